@@ -35,20 +35,13 @@ package org.noisemap.core;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
-import com.vividsolutions.jts.geom.Geometry;
+import java.io.File;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Stack;
 import java.util.concurrent.TimeUnit;
 import org.apache.log4j.Logger;
 import org.gdms.data.DataSourceFactory;
-import org.gdms.data.NoSuchTableException;
-import org.gdms.data.indexes.DefaultSpatialIndexQuery;
-import org.gdms.data.indexes.IndexException;
-import org.gdms.data.indexes.IndexManager;
-import org.gdms.data.indexes.IndexQueryException;
-import org.gdms.data.indexes.tree.IndexVisitor;
 import org.gdms.data.schema.DefaultMetadata;
 import org.gdms.data.schema.Metadata;
 import org.gdms.data.schema.MetadataUtilities;
@@ -79,6 +72,23 @@ import org.orbisgis.progress.ProgressMonitor;
  */
 public class BR_PtGrid extends AbstractTableFunction {
         private Logger logger = Logger.getLogger(BR_TriGrid.class.getName());
+        // Threads helping the computation of receivers of a cell, -1 to help
+        // only when the cells are computed one at a time
+        private int receiverHelperCount = -1;
+        private boolean receiverIsovist = false;
+        private boolean sharedObstructionMesh = false;
+        private File meshCacheDirectory = null;
+        private boolean gridObstructionTest = false;
+        // Threads of the union of buildings, 0 to merge in the calling thread
+        private int unionThreadCount = Runtime.getRuntime().availableProcessors();
+        private boolean verticalDiffraction = false;
+        private boolean adaptivePartitioning = false;
+        // Threads loading the input of the next cells, 0 to load in the calling thread
+        private int preparationThreadCount = 1;
+        // Threads computing the propagation of the cells
+        private int cellThreadCount = Runtime.getRuntime().availableProcessors();
+        // Heap budget of the cells computed at the same time, in bytes
+        private long memoryBudget = Runtime.getRuntime().maxMemory() / 4 * 3;
 	@Override
 	public Metadata getMetadata(Metadata[] tables) throws DriverException {
 		final Metadata metadata = tables[2];
@@ -140,14 +150,92 @@ public class BR_PtGrid extends AbstractTableFunction {
     public void setLogger(Logger logger) {
         this.logger = logger;
     }
+    /**
+     * @param receiverHelperCount Maximum count of threads helping the
+     * computation of the receivers of a cell, 0 to compute each cell in a
+     * single thread, -1 to use the processors only
+     * when the cells are computed one at a time
+     */
+    public void setReceiverHelperCount(int receiverHelperCount) {
+        this.receiverHelperCount = receiverHelperCount;
+    }
+    /**
+     * @param receiverIsovist Compute the visibility polygon of each receiver,
+     * faster when there is a lot of sources around each receiver
+     */
+    public void setReceiverIsovist(boolean receiverIsovist) {
+        this.receiverIsovist = receiverIsovist;
+    }
+    /**
+     * @param sharedObstructionMesh Triangulate the buildings of the whole area
+     * once and share the obstruction mesh between all cells, instead of
+     * triangulating the buildings around each cell
+     */
+    public void setSharedObstructionMesh(boolean sharedObstructionMesh) {
+        this.sharedObstructionMesh = sharedObstructionMesh;
+    }
+    /**
+     * @param meshCacheDirectory Directory where obstruction meshes are kept
+     * between runs, null to always triangulate the buildings
+     */
+    public void setMeshCacheDirectory(File meshCacheDirectory) {
+        this.meshCacheDirectory = meshCacheDirectory;
+    }
+    /**
+     * @param gridObstructionTest Answer the obstruction queries with
+     * GridObstructionTest, without the triangulation of buildings
+     */
+    public void setGridObstructionTest(boolean gridObstructionTest) {
+        this.gridObstructionTest = gridObstructionTest;
+    }
+    /**
+     * @param unionThreadCount Count of threads merging the tiles of buildings
+     * before the triangulation, 0 to merge in the calling thread
+     */
+    public void setUnionThreadCount(int unionThreadCount) {
+        this.unionThreadCount = unionThreadCount;
+    }
+    /**
+     * @param verticalDiffraction Let the sound go over the buildings lower than
+     * the ray, and compute the diffraction over the roofs
+     */
+    public void setVerticalDiffraction(boolean verticalDiffraction) {
+        this.verticalDiffraction = verticalDiffraction;
+    }
+    /**
+     * @param adaptivePartitioning Split the area in cells of nearly equal
+     * computation cost instead of a regular grid, the count of cells is still
+     * 4^subdiv
+     */
+    public void setAdaptivePartitioning(boolean adaptivePartitioning) {
+        this.adaptivePartitioning = adaptivePartitioning;
+    }
+    /**
+     * @param preparationThreadCount Count of threads loading the sources and
+     * the obstruction test of the next cells while the current cells are
+     * computed, 0 to load them in the calling thread
+     */
+    public void setPreparationThreadCount(int preparationThreadCount) {
+        this.preparationThreadCount = preparationThreadCount;
+    }
+    /**
+     * @param cellThreadCount Count of cells computed at the same time
+     */
+    public void setCellThreadCount(int cellThreadCount) {
+        this.cellThreadCount = cellThreadCount;
+    }
+    /**
+     * A cell is computed only if its memory estimation fits with the
+     * estimation of the running cells in this budget, and the next cells
+     * are loaded ahead only while the running and loaded cells are under it.
+     * @param memoryBudget Heap budget in bytes, 0 for no budget. Default
+     * is 3/4 of the maximum heap.
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
     @Override
     public DataSet evaluate(DataSourceFactory sqldsf, DataSet[] tables, Value[] values, ProgressMonitor pm) throws FunctionException {
-                boolean useGeometryIndex = false; //Use gdms geometry index for source and buildings parsing
-                IndexManager im =null;
-                if(useGeometryIndex) {
-                    im = sqldsf.getIndexManager();
-                }
-                
                 if(values.length<7) {
                     throw new FunctionException("Not enough parameters !");
                 }else if(values.length>7){
@@ -165,6 +253,11 @@ public class BR_PtGrid extends AbstractTableFunction {
                                                //distance must be superior than
                                                //maximum Receiver-Wall distance
                 ThreadPool threadManager = null;
+                ThreadPool receiverExecutor = null;
+                int receiverHelpers = receiverHelperCount;
+                ThreadPool unionExecutor = null;
+                ThreadPool preparationExecutor = null;
+                CellPrefetcher cellPrefetcher = null;
                 ProgressionOrbisGisManager pmManager=null;
                 PropagationProcessDiskWriter driverManager=null;
 		try {
@@ -188,22 +281,22 @@ public class BR_PtGrid extends AbstractTableFunction {
 			long nbreceivers = sdsReceivers.getRowCount();
 			// Set defaultGeom as the geom set by the user
 			int spatialBuildingsFieldIndex = MetadataUtilities.getSpatialFieldIndex(sds.getMetadata());
+			int heightBuildingsFieldIndex = BR_TriGrid.getHeightFieldIndex(sds);
+			if (verticalDiffraction && heightBuildingsFieldIndex < 0) {
+				logger.info("No " + BR_TriGrid.HEIGHT_FIELD
+						+ " field in the buildings table, the buildings are higher than the rays");
+			}
 			int spatialSourceFieldIndex = MetadataUtilities.getSpatialFieldIndex(sdsSources.getMetadata());
                         int spatialReceiversFieldIndex= MetadataUtilities.getSpatialFieldIndex(sdsReceivers.getMetadata());
-                        String spatialSourceFieldName =sdsSources.getMetadata().getFieldName(spatialSourceFieldIndex);
-                        String spatialBuildingsFieldName = sds.getMetadata().getFieldName(spatialBuildingsFieldIndex);                        
-                        
-                        //Initialize geometry index
-                        if(useGeometryIndex) {
-                            //Index of Sound Sources Table
-                            if(!im.isIndexed(sdsSources,spatialSourceFieldName)) {
-                                im.buildIndex(sdsSources, spatialSourceFieldName, null);
-                            }
-                            //Index of Buildings Table
-                            if(!im.isIndexed(sds,spatialBuildingsFieldName)) {
-                                im.buildIndex(sds,spatialBuildingsFieldName,null);
-                            }
-                        }
+
+                        // Read the tables once, then the rows of each cell are queried
+                        logger.info("Index the sources, the buildings and the receivers..");
+                        TableSpatialIndex buildingsTable = new TableSpatialIndex(sds,
+                                        spatialBuildingsFieldIndex);
+                        TableSpatialIndex sourcesTable = new TableSpatialIndex(sdsSources,
+                                        spatialSourceFieldIndex);
+                        TableSpatialIndex receiversTable = new TableSpatialIndex(sdsReceivers,
+                                        spatialReceiversFieldIndex);
 			// 1 Step - Evaluation of the main bounding box (receivers)
 			Envelope mainEnvelope = BR_TriGrid.GetGlobalEnvelope(sdsReceivers, pm);
                         // Split domain into 4^subdiv cells
@@ -234,16 +327,45 @@ public class BR_PtGrid extends AbstractTableFunction {
 
 			DiskBufferDriver driver = new DiskBufferDriver(sqldsf, this.getMetadata(new Metadata[] {sds.getMetadata(),sdsSources.getMetadata(), sdsReceivers.getMetadata() }));
 
-			int nbcell = gridDim * gridDim;
+			List<Envelope> cells;
+			if (adaptivePartitioning) {
+				CellPartitioner partitioner = new CellPartitioner(
+						mainEnvelope, maxSrcDist);
+				partitioner.addReceivers(receiversTable);
+				partitioner.addSources(sourcesTable);
+				partitioner.addBuildings(buildingsTable);
+				cells = partitioner.split(gridDim * gridDim);
+			} else {
+				cells = CellPartitioner.makeRegularCells(mainEnvelope, gridDim);
+			}
+			int nbcell = cells.size();
 			if (nbcell == 1) {
                 		doMultiThreading = false;
 			}
 
-			Runtime runtime = Runtime.getRuntime();
-			threadManager = new ThreadPool(
-					runtime.availableProcessors(),
-					runtime.availableProcessors() + 1, Long.MAX_VALUE,
-                    			TimeUnit.SECONDS);
+			threadManager = new ThreadPool(cellThreadCount,
+					cellThreadCount + 1, Long.MAX_VALUE, TimeUnit.SECONDS);
+			// One cell is prepared while the others are computed
+			CellScheduler cellScheduler = new CellScheduler(threadManager,
+					cellThreadCount + 1, pm);
+			cellScheduler.setMemoryBudget(memoryBudget);
+			cellScheduler.setLogger(logger);
+			// Cells computed at the same time already use the processors
+			if (receiverHelpers < 0) {
+				receiverHelpers = doMultiThreading && cellThreadCount > 1 ? 0
+						: Runtime.getRuntime().availableProcessors() - 1;
+			}
+			if (receiverHelpers > 0) {
+				receiverExecutor = new ThreadPool(receiverHelpers,
+						receiverHelpers, Long.MAX_VALUE, TimeUnit.SECONDS);
+			}
+			TiledUnion buildingsUnion = null;
+			if (unionThreadCount > 0) {
+				unionExecutor = new ThreadPool(unionThreadCount,
+						unionThreadCount, Long.MAX_VALUE, TimeUnit.SECONDS);
+				buildingsUnion = BR_TriGrid.makeBuildingsUnion(cellWidth,
+						cellHeight, maxSrcDist, unionExecutor);
+			}
 
 			pmManager = new ProgressionOrbisGisManager(
 					nbreceivers, pm);
@@ -255,159 +377,109 @@ public class BR_PtGrid extends AbstractTableFunction {
 			PropagationProcessOut threadDataOut = new PropagationProcessOut(
 					null,toDriver);
 
-			for (int cellI = 0; cellI < gridDim; cellI++) {
-				for (int cellJ = 0; cellJ < gridDim; cellJ++) {
-					Envelope cellEnvelope = BR_TriGrid.getCellEnv(mainEnvelope, cellI,
-							cellJ, gridDim, gridDim, cellWidth, cellHeight);// new
-																			// Envelope(mainEnvelope.getMinX()+cellI*cellWidth,
-					//Collect the list and index of receivers on the cell
-                                        List<Coordinate> cellReceivers = new ArrayList<Coordinate>();
-                                        List<Long> cellReceiversRowId = new ArrayList<Long>();
-
-                                        long receiversRowCount = sdsReceivers.getRowCount();
-                                        for (long rowIndex = 0; rowIndex < receiversRowCount; rowIndex++) {
-
-                                                Geometry geo = sdsReceivers.getFieldValue(rowIndex,spatialReceiversFieldIndex).getAsGeometry();
-                                                Envelope ptEnv = geo.getEnvelopeInternal();
-                                                if (ptEnv.intersects(cellEnvelope)) {
-                                                    cellReceivers.add(geo.getCoordinate());
-                                                    cellReceiversRowId.add(rowIndex);
-                                                }
-                                        }
-                                        if(!cellReceivers.isEmpty()) {
-                                            FastObstructionTest freeFieldFinder = new FastObstructionTest();
-                                            int ij = cellI * gridDim + cellJ;
-                                            logger.info("Begin processing of cell " + (cellI+1) + ","
-                                                            + (cellJ+1) + " of the " + gridDim + "x" + gridDim
-                                                            + "  grid..");
-                                            if (pm!=null && pm.isCancelled()) {
-                                                    driver.writingFinished();
-                                                    return driver.getTable("main");
-                                            }
-                                                                                                    // mainEnvelope.getMinX()+cellI*cellWidth+cellWidth,
-                                                                                                                                                            // mainEnvelope.getMinY()+cellHeight*cellJ,
-                                                                                                                                                            // mainEnvelope.getMinY()+cellHeight*cellJ+cellHeight);
-                                            Envelope expandedCellEnvelop = new Envelope(cellEnvelope);
-                                            expandedCellEnvelop.expandBy(maxSrcDist);
-                                            // Build delaunay triangulation from buildings inside the
-                                            // extended bounding box
-
-                                            // //////////////////////////////////////////////////////
-                                            // Make source index for optimization
-                                            ArrayList<Geometry> sourceGeometries = new ArrayList<Geometry>();
-                                            ArrayList<ArrayList<Double>> wj_sources = new ArrayList<ArrayList<Double>>();
-                                            QueryGeometryStructure sourcesIndex = new QueryQuadTree();
-                                            //Make the Geometry Index request of Buildings
-                                            RowsUnionClassification buildingsRowsToFetch;
-                                            if(useGeometryIndex) {
-                                                DefaultSpatialIndexQuery buildingsSpatialIndexQuery = new DefaultSpatialIndexQuery(spatialBuildingsFieldName,expandedCellEnvelop);
-                                                RowVisitor visitor = new RowVisitor();
-                                                im.queryIndex(sds, buildingsSpatialIndexQuery,visitor);
-                                                buildingsRowsToFetch = visitor.getVisitedRows();
-                                            } else {
-                                                buildingsRowsToFetch = new RowsUnionClassification(0,(int)sds.getRowCount()-1);
-                                            }
-                                            //Make the Geometry Index request of Sound Sources
-                                            RowsUnionClassification sourcesRowsToFetch;
-                                            if(useGeometryIndex) {
-                                                DefaultSpatialIndexQuery sourcesSpatialIndexQuery = new DefaultSpatialIndexQuery(spatialSourceFieldName,expandedCellEnvelop);
-                                                RowVisitor visitor = new RowVisitor();
-                                                im.queryIndex(sdsSources, sourcesSpatialIndexQuery,visitor);
-                                                sourcesRowsToFetch = visitor.getVisitedRows();
-                                            } else {
-                                                sourcesRowsToFetch = new RowsUnionClassification(0,(int)sdsSources.getRowCount()-1);
-                                            }
-                                            
-                                            
-                                            
-                                            Iterator<Integer> itSrcRows = sourcesRowsToFetch.getRowRanges();
-                                            while(itSrcRows.hasNext()) {
-                                                int rbegin=itSrcRows.next();
-                                                int rend=itSrcRows.next();
-                                                Integer idsource = 0;
-                                                for (long rowIndex = rbegin; rowIndex <= rend; rowIndex++) {
+			// Obstruction mesh of the whole area, queried by all cells
+			ObstructionTest sharedFreeFieldFinder = null;
+			if (sharedObstructionMesh) {
+				logger.info("Build the obstruction mesh of the whole area..");
+				Envelope expandedMainEnvelope = new Envelope(mainEnvelope);
+				expandedMainEnvelope.expandBy(maxSrcDist);
+				long beginMesh = System.currentTimeMillis();
+				sharedFreeFieldFinder = BR_TriGrid.makeFreeFieldFinder(buildingsTable,
+						heightBuildingsFieldIndex, expandedMainEnvelope,
+						gridObstructionTest, meshCacheDirectory, buildingsUnion);
+				logger.info("Obstruction mesh built in "
+						+ (System.currentTimeMillis() - beginMesh) + " ms");
+			}
 
-                                                        final Value[] row =sdsSources.getRow(rowIndex);
-                                                        Geometry geo = row[spatialSourceFieldIndex].getAsGeometry();
-                                                        Envelope ptEnv = geo.getEnvelopeInternal();
-                                                        if (ptEnv.intersects(expandedCellEnvelop)) {
-                                                                sourcesIndex.appendGeometry(geo, idsource);
-                                                                ArrayList<Double> wj_spectrum = new ArrayList<Double>();
-                                                                wj_spectrum.ensureCapacity(db_field_ids.size());
-                                                                for (Integer idcol : db_field_ids) {
-                                                                        wj_spectrum.add(BR_TriGrid.DbaToW(row[idcol].getAsDouble()));
-                                                                }
-                                                                wj_sources.add(wj_spectrum);
-                                                                sourceGeometries.add(geo);
-                                                                idsource++;
-                                                        }
-                                                }
-                                            }
+			// The sources and the obstruction tests of the next cells with
+			// receivers are loaded by other threads
+			List<Integer> cellIds = new ArrayList<Integer>(nbcell);
+			List<CellInput> cellInputs = new ArrayList<CellInput>(nbcell);
+			for (int ij = 0; ij < nbcell; ij++) {
+				if (receiversTable.getRows(cells.get(ij)).length > 0) {
+					Envelope expandedCellEnvelop = new Envelope(cells.get(ij));
+					expandedCellEnvelop.expandBy(maxSrcDist);
+					CellInput cellInput = new CellInput(expandedCellEnvelop,
+							sourcesTable, db_field_ids);
+					cellInput.setSharedFreeFieldFinder(sharedFreeFieldFinder);
+					cellInput.setBuildings(buildingsTable,
+							heightBuildingsFieldIndex, gridObstructionTest,
+							meshCacheDirectory, buildingsUnion);
+					cellIds.add(ij);
+					cellInputs.add(cellInput);
+				}
+			}
+			if (preparationThreadCount > 0) {
+				preparationExecutor = new ThreadPool(preparationThreadCount,
+						preparationThreadCount, Long.MAX_VALUE, TimeUnit.SECONDS);
+			}
+			cellPrefetcher = new CellPrefetcher(cellInputs,
+					preparationExecutor, preparationThreadCount + 1);
+			// The cells loaded ahead are bounded by the memory budget
+			cellPrefetcher.start(cellScheduler);
+			for (int ij : cellIds) {
+				//Collect the list and index of receivers on the cell
+                                List<Coordinate> cellReceivers = new ArrayList<Coordinate>();
+                                List<Long> cellReceiversRowId = new ArrayList<Long>();
 
-                                            // //////////////////////////////////////////////////////
-                                            // feed freeFieldFinder for fast intersection query
-                                            // optimization
-                                            Iterator<Integer> itBuildingsRows = buildingsRowsToFetch.getRowRanges();
-                                            while(itBuildingsRows.hasNext()) {
-                                                int rbegin=itBuildingsRows.next();
-                                                int rend=itBuildingsRows.next();
-                                                for (long rowIndex = rbegin; rowIndex <= rend; rowIndex++) {
-                                                        final Geometry geometry = sds.getFieldValue(rowIndex, spatialBuildingsFieldIndex).getAsGeometry();
-                                                        Envelope geomEnv = geometry.getEnvelopeInternal();
-                                                        if (expandedCellEnvelop.intersects(geomEnv)) {
-                                                                freeFieldFinder.addGeometry(geometry);
-                                                        }
-                                                }
-                                            }
-                                            freeFieldFinder.finishPolygonFeeding(expandedCellEnvelop);
+                                for (int rowIndex : receiversTable.getRows(cells.get(ij))) {
+                                        cellReceivers.add(receiversTable.getGeometry(rowIndex).getCoordinate());
+                                        cellReceiversRowId.add((long) rowIndex);
+                                }
+                                logger.info("Begin processing of cell " + (ij + 1) + " of "
+                                                + nbcell + " cells..");
+                                if (pm!=null && pm.isCancelled()) {
+                                        driver.writingFinished();
+                                        return driver.getTable("main");
+                                }
+                                // Sources and obstruction test, loaded ahead
+                                CellInput cellInput = cellPrefetcher.next();
 
-                                            PropagationProcessData threadData = new PropagationProcessData(
-                                                            cellReceivers,cellReceiversRowId, null, freeFieldFinder, sourcesIndex,
-                                                            sourceGeometries, wj_sources, db_field_freq,
-                                                            reflexionOrder, diffractionOrder, maxSrcDist,maxRefDist,
-                                                            1., wallAlpha, ij, sqldsf,
-                                                            pmManager.getRootProgress());
-                                            PropagationProcess propaProcess = new PropagationProcess(
-                                                            threadData, threadDataOut);
+                                PropagationProcessData threadData = new PropagationProcessData(
+                                                cellReceivers,cellReceiversRowId, null, cellInput.getFreeFieldFinder(),
+                                                cellInput.getSourcesIndex(), cellInput.getSourceGeometries(),
+                                                cellInput.getWjSources(), db_field_freq,
+                                                reflexionOrder, diffractionOrder, maxSrcDist,maxRefDist,
+                                                1., wallAlpha, ij, sqldsf,
+                                                pmManager.getRootProgress());
+                                threadData.receiverIsovist = receiverIsovist;
+                                threadData.verticalDiffraction = verticalDiffraction;
+                                PropagationProcess propaProcess = new PropagationProcess(
+                                                threadData, threadDataOut);
+                                propaProcess.setReceiverExecutor(receiverExecutor, receiverHelpers);
 
-                                            if (doMultiThreading) {
-                                                    if(!threadManager.hasAvaibleQueueSlot()) {
-                                                        logger.info("Wait for free Thread to begin propagation of cell "
-                                                                        + (cellI + 1)
-                                                                        + ","
-                                                                        + (cellJ + 1)
-                                                                        + " of the "
-                                                                        + gridDim
-                                                                        + "x" + gridDim + "  grid..");
-                                                    }
-                                                    while (!threadManager.hasAvaibleQueueSlot()) {
-                                                            if (pm!=null && pm.isCancelled()) {
-                                                                    driver.writingFinished();
-                                                                    return driver.getTable("main");
-                                                            }
-                                                            Thread.sleep(100);
-                                                    }
-                                                    threadManager.execute(propaProcess);
-                                                    logger.info("Processing enqueued"); // enqueued
-                                            } else {
-                                                    propaProcess.run();
-                                            }
+                                if (doMultiThreading) {
+                                        if(cellScheduler.getInFlightCount() > cellThreadCount) {
+                                            logger.info("Wait for free Thread to begin propagation of cell "
+                                                            + (ij + 1) + " of " + nbcell + " cells..");
                                         }
-				}
+                                        long memoryEstimation = CellMemoryEstimator.estimate(
+                                                        cellInput.getBuildingVertexCount(),
+                                                        cellInput.getSourceGeometries().size(),
+                                                        cellReceivers.size(), db_field_freq.size());
+                                        if (!cellScheduler.submit(propaProcess, memoryEstimation)) {
+                                                driver.writingFinished();
+                                                return driver.getTable("main");
+                                        }
+                                        logger.info("Processing enqueued"); // enqueued
+                                } else {
+                                        propaProcess.run();
+                                }
 			}
 			// Wait termination of processes
-			Thread.sleep(100);
-                        if(threadManager.getRemainingTasks() > 0) {
+                        if(cellScheduler.getInFlightCount() > 0) {
                             logger.info("Wait for termination of the lasts propagation process..");
                         }
-			while (threadManager.getRemainingTasks() > 0) {
-				if (pm!=null && pm.isCancelled()) {
-					driver.writingFinished();
-					return driver.getTable("main");
-				}
-				Thread.sleep(100);
+			if (!cellScheduler.awaitAll()) {
+				driver.writingFinished();
+				return driver.getTable("main");
 			}
-			Thread.sleep(100);
+                        if (doMultiThreading) {
+                            logger.info("Peak estimated memory of the cells "
+                                            + (cellScheduler.getPeakEstimatedMemory() >> 20)
+                                            + " MB, peak used heap "
+                                            + (cellScheduler.getPeakUsedMemory() >> 20) + " MB");
+                        }
 			// Wait for rows stack to be empty
 			driverManager.stopWatchingStack();
 			pmManager.stop();
@@ -426,10 +498,19 @@ public class BR_PtGrid extends AbstractTableFunction {
                         driver.open();
                         logger.info("Min Max Avg computation time by receiver : "+ (threadDataOut.getMinimalReceiverComputationTime()/1e6) +" ms to "+ (threadDataOut.getMaximalReceiverComputationTime()/1e6)+" ms. Avg :"+(threadDataOut.getSumReceiverComputationTime()/(nbreceivers*1e6))+" ms.");
 			logger.info("Receiver count:" + nbreceivers);
+			if (buildingsUnion != null) {
+				logger.info("Buildings union tiles reused:"
+						+ buildingsUnion.getTileCacheHit() + " merged:"
+						+ buildingsUnion.getTileCacheMiss());
+			}
 			logger.info("Receiver-Source count:"
 					+ threadDataOut.getNb_couple_receiver_src());
                         logger.info("Receiver image (reflections):"
                                         + threadDataOut.getNb_image_receiver());
+                        logger.info("Receiver image discarded (reflections):"
+                                        + threadDataOut.getNb_pruned_image_receiver());
+                        logger.info("Receiver-Sources specular reflection path skipped:"
+                                        + threadDataOut.getNb_pruned_reflexion_path());
                         logger.info("Receiver-Sources specular reflection path count:"
                                         + threadDataOut.getNb_reflexion_path());
                         logger.info("Receiver-Source diffraction path count:"+threadDataOut.getNb_diffraction_path());
@@ -444,12 +525,6 @@ public class BR_PtGrid extends AbstractTableFunction {
 			throw new FunctionException(e);
 		} catch (InterruptedException e) {
 			throw new FunctionException(e);
-                } catch (NoSuchTableException e)  {
-			throw new FunctionException(e);   
-                } catch (IndexException e)  {
-			throw new FunctionException(e); 
-                } catch (IndexQueryException e)  {
-			throw new FunctionException(e);                
 		} finally {
                     //Stop threads if there are not stoped
                     if(pmManager!=null) {
@@ -458,24 +533,21 @@ public class BR_PtGrid extends AbstractTableFunction {
                     if(threadManager!=null) {
                         threadManager.shutdown();
                     }
+                    if(receiverExecutor!=null) {
+                        receiverExecutor.shutdown();
+                    }
+                    if(cellPrefetcher!=null) {
+                        cellPrefetcher.cancel();
+                    }
+                    if(preparationExecutor!=null) {
+                        preparationExecutor.shutdown();
+                    }
+                    if(unionExecutor!=null) {
+                        unionExecutor.shutdown();
+                    }
                     if(driverManager!=null) {
                         driverManager.stopWatchingStack();
                     }
                 }
     }
-    private class RowVisitor implements IndexVisitor {
-        RowsUnionClassification visitedRows = new RowsUnionClassification();
-        @Override
-        public void visitElement(int row, Object env) {
-            visitedRows.addRow(row);
-        }
-        /**
-         * 
-         * @return Query result
-         */
-        public RowsUnionClassification getVisitedRows() {
-            return visitedRows;
-        }
-        
-    }
 }
@@ -94,6 +94,10 @@ class NodeList {
  */
 
 public class BR_TriGrid extends AbstractTableFunction {
+	/**
+	 * Height field of the buildings table
+	 */
+	public static final String HEIGHT_FIELD = "height";
 
 	private Logger logger = Logger.getLogger(BR_TriGrid.class.getName());
 	// _________ ^
@@ -101,21 +105,114 @@ public class BR_TriGrid extends AbstractTableFunction {
 	// | | | | |
 	// |_|_|_|_|
 	// -> X or I (left to right)
-	private static short nRight = 0, nLeft = 1, nBottom = 2, nTop = 3; // neighbor
-																		// relative
-																		// positions
-																		// index
-	private static short[][] neighboor = { { 1, 0 }, { -1, 0 }, { 0, -1 },
-			{ 0, 1 } }; // neighbor relative positions
 	// Timing sum in millisec
 	private long totalParseBuildings = 0;
 	private long totalDelaunay = 0;
+	// Threads helping the computation of receivers of a cell, -1 to help
+	// only when the cells are computed one at a time
+	private int receiverHelperCount = -1;
+	private boolean receiverIsovist = false;
+	private boolean sharedObstructionMesh = false;
+	private File meshCacheDirectory = null;
+	private boolean gridObstructionTest = false;
+	// Threads of the union of buildings, 0 to merge in the calling thread
+	private int unionThreadCount = Runtime.getRuntime().availableProcessors();
+	private TiledUnion buildingsUnion = null;
+	private boolean verticalDiffraction = false;
+	private boolean adaptivePartitioning = false;
+	// Threads loading the input of the next cells, 0 to load in the calling thread
+	private int preparationThreadCount = 1;
+	// Threads computing the propagation of the cells
+	private int cellThreadCount = Runtime.getRuntime().availableProcessors();
+	// Heap budget of the cells computed at the same time, in bytes
+	private long memoryBudget = Runtime.getRuntime().maxMemory() / 4 * 3;
         public void setLogger(Logger logger) {
             this.logger = logger;
         }
-	int getCellId(int row, int col, int cols) {
-		return row * cols + col;
-	}
+        /**
+         * @param receiverHelperCount Maximum count of threads helping the
+         * computation of the receivers of a cell, 0 to compute each cell in a
+         * single thread, -1 to use the processors only
+         * when the cells are computed one at a time
+         */
+        public void setReceiverHelperCount(int receiverHelperCount) {
+            this.receiverHelperCount = receiverHelperCount;
+        }
+        /**
+         * @param receiverIsovist Compute the visibility polygon of each
+         * receiver, faster when there is a lot of sources around each receiver
+         */
+        public void setReceiverIsovist(boolean receiverIsovist) {
+            this.receiverIsovist = receiverIsovist;
+        }
+        /**
+         * @param sharedObstructionMesh Triangulate the buildings of the whole
+         * area once and share the obstruction mesh between all cells, instead
+         * of triangulating the buildings around each cell
+         */
+        public void setSharedObstructionMesh(boolean sharedObstructionMesh) {
+            this.sharedObstructionMesh = sharedObstructionMesh;
+        }
+        /**
+         * @param meshCacheDirectory Directory where obstruction meshes are kept
+         * between runs, null to always triangulate the buildings
+         */
+        public void setMeshCacheDirectory(File meshCacheDirectory) {
+            this.meshCacheDirectory = meshCacheDirectory;
+        }
+        /**
+         * @param gridObstructionTest Answer the obstruction queries with
+         * GridObstructionTest, without the triangulation of buildings
+         */
+        public void setGridObstructionTest(boolean gridObstructionTest) {
+            this.gridObstructionTest = gridObstructionTest;
+        }
+        /**
+         * @param unionThreadCount Count of threads merging the tiles of
+         * buildings before the triangulation, 0 to merge in the calling thread
+         */
+        public void setUnionThreadCount(int unionThreadCount) {
+            this.unionThreadCount = unionThreadCount;
+        }
+        /**
+         * @param verticalDiffraction Let the sound go over the buildings lower
+         * than the ray, and compute the diffraction over the roofs
+         */
+        public void setVerticalDiffraction(boolean verticalDiffraction) {
+            this.verticalDiffraction = verticalDiffraction;
+        }
+        /**
+         * @param adaptivePartitioning Split the area in cells of nearly equal
+         * computation cost instead of a regular grid, the count of cells is
+         * still 4^subdiv
+         */
+        public void setAdaptivePartitioning(boolean adaptivePartitioning) {
+            this.adaptivePartitioning = adaptivePartitioning;
+        }
+        /**
+         * @param preparationThreadCount Count of threads loading the sources
+         * and the obstruction test of the next cells while the current cells
+         * are computed, 0 to load them in the calling thread
+         */
+        public void setPreparationThreadCount(int preparationThreadCount) {
+            this.preparationThreadCount = preparationThreadCount;
+        }
+        /**
+         * @param cellThreadCount Count of cells computed at the same time
+         */
+        public void setCellThreadCount(int cellThreadCount) {
+            this.cellThreadCount = cellThreadCount;
+        }
+        /**
+         * A cell is computed only if its memory estimation fits with the
+         * estimation of the running cells in this budget, and the next cells
+         * are loaded ahead only while the running and loaded cells are under it.
+         * @param memoryBudget Heap budget in bytes, 0 for no budget. Default
+         * is 3/4 of the maximum heap.
+         */
+        public void setMemoryBudget(long memoryBudget) {
+            this.memoryBudget = memoryBudget;
+        }
         /**
          * Compute the envelope of sdsSource
          * @param sdsSource
@@ -137,6 +234,20 @@ public class BR_TriGrid extends AbstractTableFunction {
 
 	}
 
+	/**
+	 * Find the height of the buildings, in meters above the ground. Without
+	 * this field the buildings are higher than any ray, then the vertical
+	 * diffraction never goes over them.
+	 * @param sdsBuildings Buildings table
+	 * @return Index of the field {@link #HEIGHT_FIELD}, -1 if the table does
+	 *         not have it
+	 * @throws DriverException
+	 */
+	static int getHeightFieldIndex(DataSet sdsBuildings)
+			throws DriverException {
+		return sdsBuildings.getMetadata().getFieldIndex(HEIGHT_FIELD);
+	}
+
 	private void addPolygon(Polygon newpoly, LayerDelaunay delaunayTool,
 			Geometry boundingBox) throws DriverException, LayerDelaunayError {
 		delaunayTool.addPolygon(newpoly, true);
@@ -186,15 +297,6 @@ public class BR_TriGrid extends AbstractTableFunction {
 			}
 		}
 	}
-	private Geometry merge(LinkedList<Geometry> toUnite, double bufferSize) {
-		GeometryFactory geometryFactory = new GeometryFactory();
-		Geometry geoArray[] = new Geometry[toUnite.size()];
-		toUnite.toArray(geoArray);
-		GeometryCollection polygonCollection = geometryFactory
-				.createGeometryCollection(geoArray);
-		return polygonCollection.buffer(bufferSize, 0,
-				BufferParameters.CAP_SQUARE);
-	}
         /**
          * Compute the envelope corresping to parameters
          * @param mainEnvelope Global envelope
@@ -214,7 +316,89 @@ public class BR_TriGrid extends AbstractTableFunction {
 				mainEnvelope.getMinY() + cellHeight * cellJ + cellHeight);
 	}
 
-	private void feedDelaunay(DataSet polygonDatabase,int spatialBuildingsFieldIndex,
+	/**
+	 * Build the obstruction mesh of the buildings intersecting the envelope
+	 * @param buildingsTable Buildings table
+	 * @param heightFieldIndex Height field of the buildings table, -1 if none
+	 * @param envelope Extent of the mesh
+	 * @param gridObstructionTest Use GridObstructionTest instead of the mesh
+	 * @param meshCacheDirectory Directory of the mesh files, may be null
+	 * @param buildingsUnion Union of buildings by tiles, may be null
+	 * @return Obstruction test structure, ready for queries
+	 */
+	static ObstructionTest makeFreeFieldFinder(TableSpatialIndex buildingsTable,
+			int heightFieldIndex, Envelope envelope,
+			boolean gridObstructionTest, File meshCacheDirectory,
+			TiledUnion buildingsUnion)
+			throws DriverException, LayerDelaunayError {
+		ObstructionTest freeFieldFinder = newFreeFieldFinder(
+				gridObstructionTest, meshCacheDirectory, buildingsUnion);
+		for (int rowIndex : buildingsTable.getRows(envelope)) {
+			freeFieldFinder.addGeometry(buildingsTable.getGeometry(rowIndex),
+					getBuildingHeight(buildingsTable, heightFieldIndex,
+							rowIndex));
+		}
+		freeFieldFinder.finishPolygonFeeding(envelope);
+		return freeFieldFinder;
+	}
+
+	/**
+	 * @param buildingsTable Buildings table
+	 * @param heightFieldIndex Height field of the buildings table, -1 if none
+	 * @param rowIndex Row of the building
+	 * @return Height of the building, Double.MAX_VALUE if the table has no
+	 *         height field or the height of this row is null, the building
+	 *         is then higher than any ray
+	 * @throws DriverException
+	 */
+	static double getBuildingHeight(TableSpatialIndex buildingsTable,
+			int heightFieldIndex, int rowIndex) throws DriverException {
+		if (heightFieldIndex < 0) {
+			return Double.MAX_VALUE;
+		}
+		Value height = buildingsTable.getFieldValue(rowIndex,
+				heightFieldIndex);
+		if (height.isNull()) {
+			return Double.MAX_VALUE;
+		}
+		return height.getAsDouble();
+	}
+
+	/**
+	 * @param gridObstructionTest Use GridObstructionTest instead of the mesh
+	 * @param meshCacheDirectory Directory of the mesh files, may be null
+	 * @param buildingsUnion Union of buildings by tiles, may be null
+	 * @return Obstruction test structure to feed with buildings
+	 */
+	static ObstructionTest newFreeFieldFinder(boolean gridObstructionTest,
+			File meshCacheDirectory, TiledUnion buildingsUnion) {
+		if (gridObstructionTest) {
+			return new GridObstructionTest();
+		}
+		FastObstructionTest freeFieldFinder = new FastObstructionTest();
+		freeFieldFinder.setMeshCacheDirectory(meshCacheDirectory);
+		freeFieldFinder.setBuildingsUnion(buildingsUnion);
+		if (buildingsUnion != null) {
+			freeFieldFinder.setCornersExecutor(buildingsUnion.getExecutor());
+		}
+		return freeFieldFinder;
+	}
+
+	/**
+	 * Tiles of maxSrcDist/2, the cache keeps the tiles of the extended
+	 * envelopes of two cells, for the two buffers of buildings.
+	 * @return Union of buildings by tiles
+	 */
+	static TiledUnion makeBuildingsUnion(double cellWidth, double cellHeight,
+			double maxSrcDist, ThreadPool unionExecutor) {
+		double tileSize = maxSrcDist / 2.;
+		int tilesByCell = (int) Math.min(Integer.MAX_VALUE / 4,
+				(Math.ceil((cellWidth + 2 * maxSrcDist) / tileSize) + 1)
+				* (Math.ceil((cellHeight + 2 * maxSrcDist) / tileSize) + 1));
+		return new TiledUnion(tileSize, tilesByCell * 4, unionExecutor);
+	}
+
+	private void feedDelaunay(TableSpatialIndex buildingsTable,
 			LayerDelaunay delaunayTool, Envelope boundingBoxFilter,
 			double srcDistance, LinkedList<LineString> delaunaySegments,
 			double minRecDist, double srcPtDist) throws DriverException,
@@ -235,21 +419,19 @@ public class BR_TriGrid extends AbstractTableFunction {
 		delaunayTool.addPolygon(boundingBox, false);
 
 		LinkedList<Geometry> toUnite = new LinkedList<Geometry>();
-		final long rowCount = polygonDatabase.getRowCount();
-		for (long rowIndex = 0; rowIndex < rowCount; rowIndex++) {
-			final Geometry geometry = polygonDatabase.getFieldValue(rowIndex, spatialBuildingsFieldIndex).getAsGeometry();
-			Envelope geomEnv = geometry.getEnvelopeInternal();
-			geomEnv.expandBy(0.5);
-			if (boundingBoxFilter.intersects(geomEnv)) {
-				// Add polygon to union array
-				toUnite.add(geometry);
-			}
+		// Buildings where the envelope expanded by 0.5 intersects the box
+		Envelope buildingsFilter = new Envelope(boundingBoxFilter);
+		buildingsFilter.expandBy(0.5);
+		for (int rowIndex : buildingsTable.getRows(buildingsFilter)) {
+			// Add polygon to union array
+			toUnite.add(buildingsTable.getGeometry(rowIndex));
 		}
 		// Reduce small artifacts to avoid, shortest geometry to be
 		// over-triangulated
 		LinkedList<Geometry> toUniteFinal = new LinkedList<Geometry>();
 		if (!toUnite.isEmpty()) {
-			Geometry bufferBuildings = merge(toUnite, 0.5);
+			Geometry bufferBuildings = buildingsUnion != null ? buildingsUnion
+					.union(toUnite, 0.5) : UnionProcess.merge(toUnite, 0.5);
 			// Remove small artifacts due to buildings buffer
 			bufferBuildings = TopologyPreservingSimplifier.simplify(
 					bufferBuildings, .1);
@@ -267,7 +449,7 @@ public class BR_TriGrid extends AbstractTableFunction {
                     }
                     if (!toUniteRoads.isEmpty()) {
                             // Build Polygons buffer from roads lines
-                            Geometry bufferRoads = merge(toUniteRoads, minRecDist);
+                            Geometry bufferRoads = UnionProcess.merge(toUniteRoads, minRecDist);
                             // Remove small artifacts due to multiple buffer crosses
                             bufferRoads = TopologyPreservingSimplifier.simplify(bufferRoads,
                                             minRecDist / 2);
@@ -281,7 +463,7 @@ public class BR_TriGrid extends AbstractTableFunction {
                                                                                             // buffer
                     }
                 }
-		Geometry union = merge(toUniteFinal, 0.); // Merge roads and buildings
+		Geometry union = UnionProcess.merge(toUniteFinal, 0.); // Merge roads and buildings
 													// together
 		// Remove geometries out of the bounding box
 		union = union.intersection(boundingBox);
@@ -292,9 +474,8 @@ public class BR_TriGrid extends AbstractTableFunction {
 	}
 
 	private void computeSecondPassDelaunay(LayerExtTriangle cellMesh,
-			Envelope mainEnvelope, int cellI, int cellJ, int cellIMax,
-			int cellJMax, double cellWidth, double cellHeight,
-			String firstPassResult, NodeList neighborsBorderVertices)
+			int cellId, String firstPassResult,
+			NodeList neighborsBorderVertices)
 			throws LayerDelaunayError {
 		long beginDelaunay = System.currentTimeMillis();
 		cellMesh.loadInputDelaunay(firstPassResult);
@@ -306,8 +487,7 @@ public class BR_TriGrid extends AbstractTableFunction {
 			}
 		}
 		cellMesh.setMinAngle(0.);
-		cellMesh.processDelaunay("second_", getCellId(cellI, cellJ, cellJMax),
-				-1, false, false);
+		cellMesh.processDelaunay("second_", cellId, -1, false, false);
 		if (neighborsBorderVertices != null) {
 			neighborsBorderVertices.nodes.clear();
 		}
@@ -318,16 +498,12 @@ public class BR_TriGrid extends AbstractTableFunction {
 	 * Delaunay triangulation of Sub-Domain
 	 * 
 	 * @param cellMesh
-	 * @param mainEnvelope
-	 * @param cellI
-	 * @param cellJ
-	 * @param cellIMax
-	 * @param cellJMax
-	 * @param cellWidth
-	 * @param cellHeight
+	 * @param cells Envelopes of all cells
+	 * @param cellNeighbors Neighbors of each cell
+	 * @param cellId Index of the cell
 	 * @param maxSrcDist
-	 * @param sds
-	 * @param sdsSources
+	 * @param buildingsTable
+	 * @param sourcesTable
 	 * @param minRecDist
 	 * @param srcPtDist
 	 * @param firstPassResults
@@ -337,20 +513,14 @@ public class BR_TriGrid extends AbstractTableFunction {
 	 * @throws LayerDelaunayError
 	 */
 	private void computeFirstPassDelaunay(LayerDelaunay cellMesh,
-			Envelope mainEnvelope, int cellI, int cellJ, int cellIMax,
-			int cellJMax, double cellWidth, double cellHeight,
-			double maxSrcDist, DataSet sdsBuildings,
-			DataSet sdsSources,int spatialBuildingsFieldIndex,int spatialSourceFieldIndex, double minRecDist,
+			List<Envelope> cells, int[][] cellNeighbors, int cellId,
+			double maxSrcDist, TableSpatialIndex buildingsTable,
+			TableSpatialIndex sourcesTable, double minRecDist,
 			double srcPtDist, String[] firstPassResults,
 			NodeList[] neighborsBorderVertices, double maximumArea)
 			throws DriverException, LayerDelaunayError {
 
-		Envelope cellEnvelope = getCellEnv(mainEnvelope, cellI, cellJ,
-				cellIMax, cellJMax, cellWidth, cellHeight);// new
-															// Envelope(mainEnvelope.getMinX()+cellI*cellWidth,
-															// mainEnvelope.getMinX()+cellI*cellWidth+cellWidth,
-															// mainEnvelope.getMinY()+cellHeight*cellJ,
-															// mainEnvelope.getMinY()+cellHeight*cellJ+cellHeight);
+		Envelope cellEnvelope = cells.get(cellId);
 		Envelope expandedCellEnvelop = new Envelope(cellEnvelope);
 		expandedCellEnvelop.expandBy(maxSrcDist);
 
@@ -362,59 +532,55 @@ public class BR_TriGrid extends AbstractTableFunction {
 		// Add roads into delaunay tool
                 LinkedList<LineString> delaunaySegments = new LinkedList<LineString>();
                 if(minRecDist>0.1) {
-                    long rowCount = sdsSources.getRowCount();
                     final double firstPtAng = (Math.PI) / 4.;
                     final double secondPtAng = (Math.PI) - firstPtAng;
                     final double thirdPtAng = Math.PI + firstPtAng;
                     final double fourPtAng = -firstPtAng;
-                    for (long rowIndex = 0; rowIndex < rowCount; rowIndex++) {
-                            Geometry pt = sdsSources.getFieldValue(rowIndex, spatialSourceFieldIndex).getAsGeometry();
-                            Envelope ptEnv = pt.getEnvelopeInternal();
-                            if (ptEnv.intersects(expandedCellEnvelop)) {
-                                    if (pt instanceof Point) {
-                                            Coordinate ptcoord = ((Point) pt).getCoordinate();
-                                            // Add 4 pts
-                                            Coordinate pt1 = new Coordinate(Math.cos(firstPtAng)
-                                                            * minRecDist + ptcoord.x, Math.sin(firstPtAng)
-                                                            * minRecDist + ptcoord.y);
-                                            Coordinate pt2 = new Coordinate(Math.cos(secondPtAng)
-                                                            * minRecDist * 2 + ptcoord.x, Math.sin(secondPtAng)
-                                                            * minRecDist * 2 + ptcoord.y);
-                                            Coordinate pt3 = new Coordinate(Math.cos(thirdPtAng)
-                                                            * minRecDist + ptcoord.x, Math.sin(thirdPtAng)
-                                                            * minRecDist + ptcoord.y);
-                                            Coordinate pt4 = new Coordinate(Math.cos(fourPtAng)
-                                                            * minRecDist * 2 + ptcoord.x, Math.sin(fourPtAng)
-                                                            * minRecDist * 2 + ptcoord.y);
-                                            if (cellEnvelope.contains(pt1)) {
-                                                    cellMesh.addVertex(pt1);
-                                            }
-                                            if (cellEnvelope.contains(pt2)) {
-                                                    cellMesh.addVertex(pt2);
-                                            }
-                                            if (cellEnvelope.contains(pt3)) {
-                                                    cellMesh.addVertex(pt3);
-                                            }
-                                            if (cellEnvelope.contains(pt4)) {
-                                                    cellMesh.addVertex(pt4);
-                                            }
-                                    } else {
-
-                                            if (pt instanceof LineString) {
-                                                    delaunaySegments.add((LineString) (pt));
-                                            } else if (pt instanceof MultiLineString) {
-                                                    int nblinestring = ((MultiLineString) pt)
-                                                                    .getNumGeometries();
-                                                    for (int idlinestring = 0; idlinestring < nblinestring; idlinestring++) {
-                                                            delaunaySegments.add((LineString) (pt
-                                                                            .getGeometryN(idlinestring)));
-                                                    }
+                    for (int rowIndex : sourcesTable.getRows(expandedCellEnvelop)) {
+                            Geometry pt = sourcesTable.getGeometry(rowIndex);
+                            if (pt instanceof Point) {
+                                    Coordinate ptcoord = ((Point) pt).getCoordinate();
+                                    // Add 4 pts
+                                    Coordinate pt1 = new Coordinate(Math.cos(firstPtAng)
+                                                    * minRecDist + ptcoord.x, Math.sin(firstPtAng)
+                                                    * minRecDist + ptcoord.y);
+                                    Coordinate pt2 = new Coordinate(Math.cos(secondPtAng)
+                                                    * minRecDist * 2 + ptcoord.x, Math.sin(secondPtAng)
+                                                    * minRecDist * 2 + ptcoord.y);
+                                    Coordinate pt3 = new Coordinate(Math.cos(thirdPtAng)
+                                                    * minRecDist + ptcoord.x, Math.sin(thirdPtAng)
+                                                    * minRecDist + ptcoord.y);
+                                    Coordinate pt4 = new Coordinate(Math.cos(fourPtAng)
+                                                    * minRecDist * 2 + ptcoord.x, Math.sin(fourPtAng)
+                                                    * minRecDist * 2 + ptcoord.y);
+                                    if (cellEnvelope.contains(pt1)) {
+                                            cellMesh.addVertex(pt1);
+                                    }
+                                    if (cellEnvelope.contains(pt2)) {
+                                            cellMesh.addVertex(pt2);
+                                    }
+                                    if (cellEnvelope.contains(pt3)) {
+                                            cellMesh.addVertex(pt3);
+                                    }
+                                    if (cellEnvelope.contains(pt4)) {
+                                            cellMesh.addVertex(pt4);
+                                    }
+                            } else {
+
+                                    if (pt instanceof LineString) {
+                                            delaunaySegments.add((LineString) (pt));
+                                    } else if (pt instanceof MultiLineString) {
+                                            int nblinestring = ((MultiLineString) pt)
+                                                            .getNumGeometries();
+                                            for (int idlinestring = 0; idlinestring < nblinestring; idlinestring++) {
+                                                    delaunaySegments.add((LineString) (pt
+                                                                    .getGeometryN(idlinestring)));
                                             }
                                     }
                             }
                     }
                 }
-		feedDelaunay(sdsBuildings,spatialBuildingsFieldIndex, cellMesh, cellEnvelope, maxSrcDist, delaunaySegments,
+		feedDelaunay(buildingsTable, cellMesh, cellEnvelope, maxSrcDist, delaunaySegments,
 				minRecDist, srcPtDist);
 
 		// Process delaunay
@@ -432,89 +598,42 @@ public class BR_TriGrid extends AbstractTableFunction {
 			int maxSteiner = Math.max(cellMesh.getVertices().size() * 5, 50000);
 			cellMesh.setMinAngle(20.);
 			String firstPathFileName = ((LayerExtTriangle) cellMesh)
-					.processDelaunay("first_",
-							getCellId(cellI, cellJ, cellJMax), maxSteiner,
-							true, true);
-			firstPassResults[getCellId(cellI, cellJ, cellJMax)] = firstPathFileName;
+					.processDelaunay("first_", cellId, maxSteiner, true,
+							true);
+			firstPassResults[cellId] = firstPathFileName;
 
 			List<Coordinate> vertices = cellMesh.getVertices();
-			boolean isLeft = cellI > 0;
-			boolean isRight = cellI < cellIMax - 1;
-			boolean isTop = cellJ < cellJMax - 1;
-			boolean isBottom = cellJ > 0;
-			int leftCellId = getCellId(cellI
-					+ BR_TriGrid.neighboor[BR_TriGrid.nLeft][0], cellJ
-					+ BR_TriGrid.neighboor[BR_TriGrid.nLeft][1], cellJMax);
-			int rightCellId = getCellId(cellI
-					+ BR_TriGrid.neighboor[BR_TriGrid.nRight][0], cellJ
-					+ BR_TriGrid.neighboor[BR_TriGrid.nRight][1], cellJMax);
-			int topCellId = getCellId(cellI
-					+ BR_TriGrid.neighboor[BR_TriGrid.nTop][0], cellJ
-					+ BR_TriGrid.neighboor[BR_TriGrid.nTop][1], cellJMax);
-			int bottomCellId = getCellId(cellI
-					+ BR_TriGrid.neighboor[BR_TriGrid.nBottom][0], cellJ
-					+ BR_TriGrid.neighboor[BR_TriGrid.nBottom][1], cellJMax);
 			// Initialization of cell array object
-			Envelope leftEnv = null, rightEnv = null, topEnv = null, bottomEnv = null;
-			if (isLeft) {
-				if (neighborsBorderVertices[leftCellId] == null) {
-					neighborsBorderVertices[leftCellId] = new NodeList();
-				}
-				leftEnv = getCellEnv(mainEnvelope, cellI
-						+ BR_TriGrid.neighboor[BR_TriGrid.nLeft][0], cellJ
-						+ BR_TriGrid.neighboor[BR_TriGrid.nLeft][1], cellIMax,
-						cellJMax, cellWidth, cellHeight);
-			}
-			if (isRight) {
-				if (neighborsBorderVertices[rightCellId] == null) {
-					neighborsBorderVertices[rightCellId] = new NodeList();
-				}
-				rightEnv = getCellEnv(mainEnvelope, cellI
-						+ BR_TriGrid.neighboor[BR_TriGrid.nRight][0], cellJ
-						+ BR_TriGrid.neighboor[BR_TriGrid.nRight][1], cellIMax,
-						cellJMax, cellWidth, cellHeight);
-			}
-			if (isBottom) {
-				if (neighborsBorderVertices[bottomCellId] == null) {
-					neighborsBorderVertices[bottomCellId] = new NodeList();
-				}
-				bottomEnv = getCellEnv(mainEnvelope, cellI
-						+ BR_TriGrid.neighboor[BR_TriGrid.nBottom][0], cellJ
-						+ BR_TriGrid.neighboor[BR_TriGrid.nBottom][1],
-						cellIMax, cellJMax, cellWidth, cellHeight);
-			}
-			if (isTop) {
-				if (neighborsBorderVertices[topCellId] == null) {
-					neighborsBorderVertices[topCellId] = new NodeList();
+			for (int neighbor : cellNeighbors[cellId]) {
+				if (neighborsBorderVertices[neighbor] == null) {
+					neighborsBorderVertices[neighbor] = new NodeList();
 				}
-				topEnv = getCellEnv(mainEnvelope, cellI
-						+ BR_TriGrid.neighboor[BR_TriGrid.nTop][0], cellJ
-						+ BR_TriGrid.neighboor[BR_TriGrid.nTop][1], cellIMax,
-						cellJMax, cellWidth, cellHeight);
 			}
 
 			// Distribute border's vertices to neighbor second pass
 			// triangulation
 			for (Coordinate vertex : vertices) {
 				Envelope ptEnv = new Envelope(vertex);
-				if (isLeft && leftEnv.distance(ptEnv) < 0.0001) // leftEnv.intersects(vertex))
-				{
-					// Left
-					// Translate to the exact position of the border
-					vertex.x = leftEnv.getMaxX();
-					neighborsBorderVertices[leftCellId].nodes.add(vertex);
-				} else if (isRight && rightEnv.distance(ptEnv) < 0.0001) {
-					// Right
-					vertex.x = rightEnv.getMinX();
-					neighborsBorderVertices[rightCellId].nodes.add(vertex);
-				} else if (isBottom && bottomEnv.distance(ptEnv) < 0.0001) {
-					// Bottom
-					vertex.y = bottomEnv.getMaxY();
-					neighborsBorderVertices[bottomCellId].nodes.add(vertex);
-				} else if (isTop && topEnv.distance(ptEnv) < 0.0001) {
-					// Top
-					vertex.y = topEnv.getMinY();
-					neighborsBorderVertices[topCellId].nodes.add(vertex);
+				for (int neighbor : cellNeighbors[cellId]) {
+					Envelope neighborEnv = cells.get(neighbor);
+					if (neighborEnv.distance(ptEnv) < 0.0001) {
+						// Translate to the exact position of the border
+						if (neighborEnv.getMaxX() < cellEnvelope.getMinX() + 0.0001) {
+							// Left
+							vertex.x = neighborEnv.getMaxX();
+						} else if (neighborEnv.getMinX() > cellEnvelope.getMaxX() - 0.0001) {
+							// Right
+							vertex.x = neighborEnv.getMinX();
+						} else if (neighborEnv.getMaxY() < cellEnvelope.getMinY() + 0.0001) {
+							// Bottom
+							vertex.y = neighborEnv.getMaxY();
+						} else {
+							// Top
+							vertex.y = neighborEnv.getMinY();
+						}
+						neighborsBorderVertices[neighbor].nodes.add(vertex);
+						break;
+					}
 				}
 			}
 
@@ -561,6 +680,11 @@ public class BR_TriGrid extends AbstractTableFunction {
                                                //maximum Receiver-Wall distance
                 DiskBufferDriver driver=null;
                 ThreadPool threadManager=null;
+                ThreadPool receiverExecutor=null;
+                int receiverHelpers=receiverHelperCount;
+                ThreadPool unionExecutor=null;
+                ThreadPool preparationExecutor=null;
+                CellPrefetcher cellPrefetcher=null;
                 ProgressionOrbisGisManager pmManager=null;
                 PropagationProcessDiskWriter driverManager=null;
 		try {
@@ -596,9 +720,19 @@ public class BR_TriGrid extends AbstractTableFunction {
                         // extract spatial field index of two input tables
 			int spatialBuildingsFieldIndex = MetadataUtilities.getSpatialFieldIndex(sds.getMetadata());
 			int spatialSourceFieldIndex = MetadataUtilities.getSpatialFieldIndex(sdsSources.getMetadata());
-			
-			
-			
+			int heightBuildingsFieldIndex = getHeightFieldIndex(sds);
+			if (verticalDiffraction && heightBuildingsFieldIndex < 0) {
+				logger.info("No " + HEIGHT_FIELD
+						+ " field in the buildings table, the buildings are higher than the rays");
+			}
+
+			// Read the tables once, then the rows of each cell are queried
+			logger.info("Index the sources and the buildings..");
+			TableSpatialIndex buildingsTable = new TableSpatialIndex(sds,
+					spatialBuildingsFieldIndex);
+			TableSpatialIndex sourcesTable = new TableSpatialIndex(sdsSources,
+					spatialSourceFieldIndex);
+
 			// 1 Step - Evaluation of the main bounding box (sources)
 			Envelope mainEnvelope = GetGlobalEnvelope(sdsSources, pm);
                         // Split domain into 4^subdiv cells
@@ -627,22 +761,54 @@ public class BR_TriGrid extends AbstractTableFunction {
 			double cellWidth = mainEnvelope.getWidth() / gridDim;
 			double cellHeight = mainEnvelope.getHeight() / gridDim;
 
-			String[] firstPassResults = new String[gridDim * gridDim];
-			NodeList[] neighborsBorderVertices = new NodeList[gridDim * gridDim];
+			List<Envelope> cells;
+			if (adaptivePartitioning) {
+				CellPartitioner partitioner = new CellPartitioner(
+						mainEnvelope, maxSrcDist);
+				// The vertices of the mesh follow the roads and the buildings
+				partitioner.addReceivers(sourcesTable);
+				partitioner.addReceivers(buildingsTable);
+				partitioner.addSources(sourcesTable);
+				partitioner.addBuildings(buildingsTable);
+				cells = partitioner.split(gridDim * gridDim);
+			} else {
+				cells = CellPartitioner.makeRegularCells(mainEnvelope, gridDim);
+			}
+			int[][] cellNeighbors = CellPartitioner.getNeighbors(cells);
+			String[] firstPassResults = new String[cells.size()];
+			NodeList[] neighborsBorderVertices = new NodeList[cells.size()];
 
 			driver = new DiskBufferDriver(dsf, getMetadata(null));
 
-			int nbcell = gridDim * gridDim;
+			int nbcell = cells.size();
 			if (nbcell == 1) {
 				doMultiThreading = false;
 				forceSinglePass = true;
 			}
 
-			Runtime runtime = Runtime.getRuntime();
-			threadManager = new ThreadPool(
-					runtime.availableProcessors(),
-					runtime.availableProcessors() + 1, Long.MAX_VALUE,
-					TimeUnit.SECONDS);
+			threadManager = new ThreadPool(cellThreadCount,
+					cellThreadCount + 1, Long.MAX_VALUE, TimeUnit.SECONDS);
+			// One cell is prepared while the others are computed
+			CellScheduler cellScheduler = new CellScheduler(threadManager,
+					cellThreadCount + 1, pm);
+			cellScheduler.setMemoryBudget(memoryBudget);
+			cellScheduler.setLogger(logger);
+			// Cells computed at the same time already use the processors
+			if (receiverHelpers < 0) {
+				receiverHelpers = doMultiThreading && cellThreadCount > 1 ? 0
+						: Runtime.getRuntime().availableProcessors() - 1;
+			}
+			if (receiverHelpers > 0) {
+				receiverExecutor = new ThreadPool(receiverHelpers,
+						receiverHelpers, Long.MAX_VALUE, TimeUnit.SECONDS);
+			}
+			buildingsUnion = null;
+			if (unionThreadCount > 0) {
+				unionExecutor = new ThreadPool(unionThreadCount,
+						unionThreadCount, Long.MAX_VALUE, TimeUnit.SECONDS);
+				buildingsUnion = makeBuildingsUnion(cellWidth, cellHeight,
+						maxSrcDist, unionExecutor);
+			}
 
 			pmManager = new ProgressionOrbisGisManager(
 					nbcell, pm);
@@ -654,196 +820,147 @@ public class BR_TriGrid extends AbstractTableFunction {
 			PropagationProcessOut threadDataOut = new PropagationProcessOut(
 					toDriver,null);
 
-			for (int cellI = 0; cellI < gridDim; cellI++) {
-				for (int cellJ = 0; cellJ < gridDim; cellJ++) {
-					FastObstructionTest freeFieldFinder = new FastObstructionTest();
-					int ij = cellI * gridDim + cellJ;
-					logger.info("Begin processing of cell " + (cellI+1) + ","
-							+ (cellJ+1) + " of the " + gridDim + "x" + gridDim
-							+ "  grid..");
-					if (pm!=null && pm.isCancelled()) {
-						driver.writingFinished();
-						return driver.getTable("main");
-					}
-					Envelope cellEnvelope = getCellEnv(mainEnvelope, cellI,
-							cellJ, gridDim, gridDim, cellWidth, cellHeight);// new
-																			// Envelope(mainEnvelope.getMinX()+cellI*cellWidth,
-																			// mainEnvelope.getMinX()+cellI*cellWidth+cellWidth,
-																			// mainEnvelope.getMinY()+cellHeight*cellJ,
-																			// mainEnvelope.getMinY()+cellHeight*cellJ+cellHeight);
-					Envelope expandedCellEnvelop = new Envelope(cellEnvelope);
-					expandedCellEnvelop.expandBy(maxSrcDist);
-					// Build delaunay triangulation from buildings inside the
-					// extended bounding box
-
-					// //////////////////////////////////////////////////////
-					// Make source index for optimization
-					ArrayList<Geometry> sourceGeometries = new ArrayList<Geometry>();
-					ArrayList<ArrayList<Double>> wj_sources = new ArrayList<ArrayList<Double>>();
-					QueryGeometryStructure sourcesIndex = new QueryQuadTree();
-					// QueryGeometryStructure<Integer> sourcesIndex=new
-					// QueryQuadTree<Integer>();
-
-					long rowCount = sdsSources.getRowCount();
-					int fieldCount = sdsSources.getMetadata().getFieldCount();
-					Integer idsource = 0;
-					for (long rowIndex = 0; rowIndex < rowCount; rowIndex++) {
-						
-						//Value[] row = sdsSources.getRow(rowIndex);
-						//Geometry geo = sdsSources.getGeometry(rowIndex);
-                                                final Value[] row = new Value[fieldCount];
-                                                for (int j = 0; j < fieldCount; j++) {
-                                                        row[j] = sdsSources.getFieldValue(rowIndex, j);
-                                                }
-                                                Geometry geo = row[spatialSourceFieldIndex].getAsGeometry();
-
-						Envelope ptEnv = geo.getEnvelopeInternal();
-						if (ptEnv.intersects(expandedCellEnvelop)) {
-							sourcesIndex.appendGeometry(geo, idsource);
-							ArrayList<Double> wj_spectrum = new ArrayList<Double>();
-							wj_spectrum.ensureCapacity(db_field_ids.size());
-							for (Integer idcol : db_field_ids) {
-								wj_spectrum
-										.add(DbaToW(row[idcol].getAsDouble()));
-							}
-							wj_sources.add(wj_spectrum);
-							sourceGeometries.add(geo);
-							idsource++;
-						}
-					}
-
-					// //////////////////////////////////////////////////////
-					// feed freeFieldFinder for fast intersection query
-					// optimization
-
+			// Obstruction mesh of the whole area, queried by all cells
+			ObstructionTest sharedFreeFieldFinder = null;
+			if (sharedObstructionMesh) {
+				logger.info("Build the obstruction mesh of the whole area..");
+				Envelope expandedMainEnvelope = new Envelope(mainEnvelope);
+				expandedMainEnvelope.expandBy(maxSrcDist);
+				long beginMesh = System.currentTimeMillis();
+				sharedFreeFieldFinder = makeFreeFieldFinder(buildingsTable,
+						heightBuildingsFieldIndex, expandedMainEnvelope,
+						gridObstructionTest, meshCacheDirectory, buildingsUnion);
+				logger.info("Obstruction mesh built in "
+						+ (System.currentTimeMillis() - beginMesh) + " ms");
+			}
 
-					rowCount = sds.getRowCount();
-					for (long rowIndex = 0; rowIndex < rowCount; rowIndex++) {
-						final Geometry geometry = sds.getFieldValue(rowIndex, spatialBuildingsFieldIndex).getAsGeometry();
-						Envelope geomEnv = geometry.getEnvelopeInternal();
-						if (expandedCellEnvelop.intersects(geomEnv)) {
-							freeFieldFinder.addGeometry(geometry);
-						}
-					}
+			// The sources and the obstruction tests of the next cells are
+			// loaded by other threads while this thread computes the receivers
+			// mesh, the second pass of a cell needs the first pass of its
+			// neighbors so the mesh is computed in the order of the cells
+			List<CellInput> cellInputs = new ArrayList<CellInput>(nbcell);
+			for (Envelope cellEnvelope : cells) {
+				Envelope expandedCellEnvelop = new Envelope(cellEnvelope);
+				expandedCellEnvelop.expandBy(maxSrcDist);
+				CellInput cellInput = new CellInput(expandedCellEnvelop,
+						sourcesTable, db_field_ids);
+				cellInput.setSharedFreeFieldFinder(sharedFreeFieldFinder);
+				cellInput.setBuildings(buildingsTable,
+						heightBuildingsFieldIndex, gridObstructionTest,
+						meshCacheDirectory, buildingsUnion);
+				cellInputs.add(cellInput);
+			}
+			if (preparationThreadCount > 0) {
+				preparationExecutor = new ThreadPool(preparationThreadCount,
+						preparationThreadCount, Long.MAX_VALUE, TimeUnit.SECONDS);
+			}
+			cellPrefetcher = new CellPrefetcher(cellInputs,
+					preparationExecutor, preparationThreadCount + 1);
+			// The cells loaded ahead are bounded by the memory budget
+			cellPrefetcher.start(cellScheduler);
+			for (int ij = 0; ij < nbcell; ij++) {
+				logger.info("Begin processing of cell " + (ij + 1) + " of "
+						+ nbcell + " cells..");
+				if (pm!=null && pm.isCancelled()) {
+					driver.writingFinished();
+					return driver.getTable("main");
+				}
+				// Compute the first pass delaunay mesh
+				// The first pass doesn't take account of additional
+				// vertices of neighbor cells at the borders
+				// then, there are discontinuities in iso surfaces at each
+				// border of cell
+				LayerDelaunay cellMesh = new LayerExtTriangle(tmpdir);// new
+																		// LayerCTriangle();
+																		// //new
+																		// LayerJDelaunay();
 
-					freeFieldFinder.finishPolygonFeeding(expandedCellEnvelop);
-
-					// Compute the first pass delaunay mesh
-					// The first pass doesn't take account of additional
-					// vertices of neighbor cells at the borders
-					// then, there are discontinuities in iso surfaces at each
-					// border of cell
-					LayerDelaunay cellMesh = new LayerExtTriangle(tmpdir);// new
-																			// LayerCTriangle();
-																			// //new
-																			// LayerJDelaunay();
-
-					if (cellMesh instanceof LayerExtTriangle
-							&& !forceSinglePass) {
-						for (short[] ijneighoffset : BR_TriGrid.neighboor) {
-							int[] ijneigh = { cellI + ijneighoffset[0],
-									cellJ + ijneighoffset[1] };
-							if (ijneigh[0] >= 0 && ijneigh[0] < gridDim
-									&& ijneigh[1] >= 0 && ijneigh[1] < gridDim) {
-								if (firstPassResults[getCellId(ijneigh[0],
-										ijneigh[1], gridDim)] == null) {
-									cellMesh.reset();
-									computeFirstPassDelaunay(cellMesh,
-											mainEnvelope, ijneigh[0],
-											ijneigh[1], gridDim, gridDim,
-											cellWidth, cellHeight, maxSrcDist,
-											sds, sdsSources,spatialBuildingsFieldIndex,spatialSourceFieldIndex, minRecDist,
-											srcPtDist, firstPassResults,
-											neighborsBorderVertices,
-											maximumArea);
-								}
-							}
-						}
-						// Compute the first pass of the 5 neighbor cells if
-						// this is not already done
-						if (firstPassResults[getCellId(cellI, cellJ, gridDim)] == null) {
+				if (cellMesh instanceof LayerExtTriangle
+						&& !forceSinglePass) {
+					for (int neighbor : cellNeighbors[ij]) {
+						if (firstPassResults[neighbor] == null) {
 							cellMesh.reset();
-							computeFirstPassDelaunay(cellMesh, mainEnvelope,
-									cellI, cellJ, gridDim, gridDim, cellWidth,
-									cellHeight, maxSrcDist, sds, sdsSources, spatialBuildingsFieldIndex,spatialSourceFieldIndex,
-									minRecDist, srcPtDist, firstPassResults,
+							computeFirstPassDelaunay(cellMesh, cells,
+									cellNeighbors, neighbor, maxSrcDist,
+									buildingsTable, sourcesTable, minRecDist,
+									srcPtDist, firstPassResults,
 									neighborsBorderVertices, maximumArea);
 						}
-
-						// Compute second pass of the current cell
+					}
+					// Compute the first pass of the neighbor cells if
+					// this is not already done
+					if (firstPassResults[ij] == null) {
 						cellMesh.reset();
-						computeSecondPassDelaunay(
-								(LayerExtTriangle) cellMesh,
-								mainEnvelope,
-								cellI,
-								cellJ,
-								gridDim,
-								gridDim,
-								cellWidth,
-								cellHeight,
-								firstPassResults[getCellId(cellI, cellJ,
-										gridDim)],
-								neighborsBorderVertices[getCellId(cellI, cellJ,
-										gridDim)]);
-					} else {
-						computeFirstPassDelaunay(cellMesh, mainEnvelope, cellI,
-								cellJ, gridDim, gridDim, cellWidth, cellHeight,
-								maxSrcDist, sds, sdsSources, spatialBuildingsFieldIndex, spatialSourceFieldIndex, minRecDist,
-								srcPtDist, firstPassResults,
-								neighborsBorderVertices, maximumArea);
+						computeFirstPassDelaunay(cellMesh, cells,
+								cellNeighbors, ij, maxSrcDist, buildingsTable,
+								sourcesTable, minRecDist, srcPtDist,
+								firstPassResults, neighborsBorderVertices,
+								maximumArea);
 					}
-					// Make a structure to keep the following information
-					// Triangle list with 3 vertices(int), and 3 neighbor
-					// triangle ID
-					// Vertices list
-
-					// The evaluation of sound level must be done where the
-					// following vertices are
-					List<Coordinate> vertices = cellMesh.getVertices();
-					List<Triangle> triangles = cellMesh.getTriangles();
-					nbreceivers += vertices.size();
-					PropagationProcessData threadData = new PropagationProcessData(
-							vertices,null, triangles, freeFieldFinder, sourcesIndex,
-							sourceGeometries, wj_sources, db_field_freq,
-							reflexionOrder, diffractionOrder, maxSrcDist,maxRefDist,
-							minRecDist, wallAlpha, ij, dsf,
-							pmManager.nextSubProcess(vertices.size()));
-					PropagationProcess propaProcess = new PropagationProcess(
-							threadData, threadDataOut);
-
-					if (doMultiThreading) {
-						logger.info("Wait for free Thread to begin propagation of cell "
-								+ (cellI + 1)
-								+ ","
-								+ (cellJ + 1)
-								+ " of the "
-								+ gridDim
-								+ "x" + gridDim + "  grid..");
-						// threadManager.executeBlocking(propaProcess);
-						while (!threadManager.hasAvaibleQueueSlot()) {
-							if (pm!=null && pm.isCancelled()) {
-								driver.writingFinished();
-								return driver.getTable("main");
-							}
-							Thread.sleep(100);
-						}
-						threadManager.execute(propaProcess);
-						logger.info("Processing enqueued"); // enqueued
-					} else {
-						propaProcess.run();
+
+					// Compute second pass of the current cell
+					cellMesh.reset();
+					computeSecondPassDelaunay((LayerExtTriangle) cellMesh, ij,
+							firstPassResults[ij], neighborsBorderVertices[ij]);
+				} else {
+					computeFirstPassDelaunay(cellMesh, cells, cellNeighbors,
+							ij, maxSrcDist, buildingsTable, sourcesTable,
+							minRecDist, srcPtDist, firstPassResults,
+							neighborsBorderVertices, maximumArea);
+				}
+				// Make a structure to keep the following information
+				// Triangle list with 3 vertices(int), and 3 neighbor
+				// triangle ID
+				// Vertices list
+
+				// The evaluation of sound level must be done where the
+				// following vertices are
+				List<Coordinate> vertices = cellMesh.getVertices();
+				List<Triangle> triangles = cellMesh.getTriangles();
+				nbreceivers += vertices.size();
+				// Sources and obstruction test, loaded while meshing
+				CellInput cellInput = cellPrefetcher.next();
+				PropagationProcessData threadData = new PropagationProcessData(
+						vertices,null, triangles, cellInput.getFreeFieldFinder(),
+						cellInput.getSourcesIndex(), cellInput.getSourceGeometries(),
+						cellInput.getWjSources(), db_field_freq,
+						reflexionOrder, diffractionOrder, maxSrcDist,maxRefDist,
+						minRecDist, wallAlpha, ij, dsf,
+						pmManager.nextSubProcess(vertices.size()));
+				threadData.receiverIsovist = receiverIsovist;
+				threadData.verticalDiffraction = verticalDiffraction;
+				PropagationProcess propaProcess = new PropagationProcess(
+						threadData, threadDataOut);
+				propaProcess.setReceiverExecutor(receiverExecutor,
+						receiverHelpers);
+
+				if (doMultiThreading) {
+					logger.info("Wait for free Thread to begin propagation of cell "
+							+ (ij + 1) + " of " + nbcell + " cells..");
+					long memoryEstimation = CellMemoryEstimator.estimate(
+							cellInput.getBuildingVertexCount(),
+							cellInput.getSourceGeometries().size(),
+							vertices.size(), db_field_freq.size());
+					if (!cellScheduler.submit(propaProcess, memoryEstimation)) {
+						driver.writingFinished();
+						return driver.getTable("main");
 					}
+					logger.info("Processing enqueued"); // enqueued
+				} else {
+					propaProcess.run();
 				}
 			}
 			// Wait termination of processes
 			logger.info("Wait for termination of the lasts propagation process..");
-			// threadManager.getRemainingTasks()>0
-			Thread.sleep(100);
-			while (threadDataOut.getCellComputed() < nbcell && doMultiThreading) {
-				if (pm!=null && pm.isCancelled()) {
-					driver.writingFinished();
-					return driver.getTable("main");
-				}
-				Thread.sleep(100);
+			if (!cellScheduler.awaitAll()) {
+				driver.writingFinished();
+				return driver.getTable("main");
+			}
+			if (doMultiThreading) {
+				logger.info("Peak estimated memory of the cells "
+						+ (cellScheduler.getPeakEstimatedMemory() >> 20)
+						+ " MB, peak used heap "
+						+ (cellScheduler.getPeakUsedMemory() >> 20) + " MB");
 			}
 			// Wait for rows stack to be empty
 			driverManager.stopWatchingStack();
@@ -862,12 +979,21 @@ public class BR_TriGrid extends AbstractTableFunction {
 			logger.info("Parse polygons time:" + this.totalParseBuildings
 					+ " ms");
 			logger.info("Delaunay time:" + this.totalDelaunay + " ms");
+			if (buildingsUnion != null) {
+				logger.info("Buildings union tiles reused:"
+						+ buildingsUnion.getTileCacheHit() + " merged:"
+						+ buildingsUnion.getTileCacheMiss());
+			}
                         logger.info("Min Max Avg computation time by receiver : "+ (threadDataOut.getMinimalReceiverComputationTime()/1e6) +" ms to "+ (threadDataOut.getMaximalReceiverComputationTime()/1e6)+" ms. Avg :"+(threadDataOut.getSumReceiverComputationTime()/(nbreceivers*1e6))+" ms.");
 			logger.info("Receiver count:" + nbreceivers);
 			logger.info("Receiver-Source count:"
 					+ threadDataOut.getNb_couple_receiver_src());
                         logger.info("Receiver image (reflections):"
                                         + threadDataOut.getNb_image_receiver());
+                        logger.info("Receiver image discarded (reflections):"
+                                        + threadDataOut.getNb_pruned_image_receiver());
+                        logger.info("Receiver-Sources specular reflection path skipped:"
+                                        + threadDataOut.getNb_pruned_reflexion_path());
                         logger.info("Receiver-Sources specular reflection path count:"
                                         + threadDataOut.getNb_reflexion_path());
                         logger.info("Receiver-Source diffraction path count:"+threadDataOut.getNb_diffraction_path());
@@ -890,6 +1016,19 @@ public class BR_TriGrid extends AbstractTableFunction {
                     if(threadManager!=null) {
                         threadManager.shutdown();
                     }
+                    if(receiverExecutor!=null) {
+                        receiverExecutor.shutdown();
+                    }
+                    if(cellPrefetcher!=null) {
+                        cellPrefetcher.cancel();
+                    }
+                    if(preparationExecutor!=null) {
+                        preparationExecutor.shutdown();
+                    }
+                    if(unionExecutor!=null) {
+                        unionExecutor.shutdown();
+                    }
+                    buildingsUnion = null;
                     if(driverManager!=null) {
                         driverManager.stopWatchingStack();
                     }
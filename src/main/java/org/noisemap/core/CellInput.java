@@ -0,0 +1,190 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.gdms.driver.DriverException;
+
+/**
+ * Input of the propagation of a cell, the sources and the obstruction test
+ * of the buildings around the cell. It can be loaded by another thread
+ * while the previous cells are computed.
+ * @author Nicolas Fortin
+ */
+public class CellInput {
+	private final Envelope expandedCellEnvelope;
+	private final TableSpatialIndex sourcesTable;
+	private final List<Integer> dbFieldIds;
+	// Obstruction test shared by all cells, or buildings to triangulate
+	private ObstructionTest sharedFreeFieldFinder = null;
+	private TableSpatialIndex buildingsTable = null;
+	private int heightFieldIndex = -1;
+	private boolean gridObstructionTest = false;
+	private File meshCacheDirectory = null;
+	private TiledUnion buildingsUnion = null;
+	// Loaded data
+	private QueryGeometryStructure sourcesIndex = null;
+	private List<Geometry> sourceGeometries = null;
+	private double[] wjSources = null;
+	private ObstructionTest freeFieldFinder = null;
+	private long buildingVertexCount = 0;
+
+	/**
+	 * @param expandedCellEnvelope Cell envelope expanded by maxSrcDist
+	 * @param sourcesTable Sources table
+	 * @param dbFieldIds Sound level fields of the sources, by frequency
+	 */
+	public CellInput(Envelope expandedCellEnvelope,
+			TableSpatialIndex sourcesTable, List<Integer> dbFieldIds) {
+		this.expandedCellEnvelope = expandedCellEnvelope;
+		this.sourcesTable = sourcesTable;
+		this.dbFieldIds = dbFieldIds;
+	}
+
+	/**
+	 * @param sharedFreeFieldFinder Obstruction test of the whole area
+	 */
+	public void setSharedFreeFieldFinder(ObstructionTest sharedFreeFieldFinder) {
+		this.sharedFreeFieldFinder = sharedFreeFieldFinder;
+	}
+
+	/**
+	 * Build the obstruction test of the buildings around the cell
+	 * @param buildingsTable Buildings table
+	 * @param heightFieldIndex Height field of the buildings table, -1 if none
+	 * @param gridObstructionTest Use GridObstructionTest instead of the mesh
+	 * @param meshCacheDirectory Directory of the mesh files, may be null
+	 * @param buildingsUnion Union of buildings by tiles, may be null
+	 */
+	public void setBuildings(TableSpatialIndex buildingsTable,
+			int heightFieldIndex, boolean gridObstructionTest,
+			File meshCacheDirectory, TiledUnion buildingsUnion) {
+		this.buildingsTable = buildingsTable;
+		this.heightFieldIndex = heightFieldIndex;
+		this.gridObstructionTest = gridObstructionTest;
+		this.meshCacheDirectory = meshCacheDirectory;
+		this.buildingsUnion = buildingsUnion;
+	}
+
+	/**
+	 * Load the sources and the obstruction test
+	 * @return This cell input
+	 * @throws DriverException
+	 * @throws LayerDelaunayError
+	 */
+	public CellInput load() throws DriverException, LayerDelaunayError {
+		sourcesIndex = new QueryPackedRTree();
+		sourceGeometries = new ArrayList<Geometry>();
+		SpectrumList wj_sources = new SpectrumList(dbFieldIds.size());
+		double[] wj_spectrum = new double[dbFieldIds.size()];
+		Integer idsource = 0;
+		for (int rowIndex : sourcesTable.getRows(expandedCellEnvelope)) {
+			Geometry geo = sourcesTable.getGeometry(rowIndex);
+			sourcesIndex.appendGeometry(geo, idsource);
+			for (int idfreq = 0; idfreq < wj_spectrum.length; idfreq++) {
+				wj_spectrum[idfreq] = PropagationProcess.dbaToW(sourcesTable
+						.getFieldValue(rowIndex, dbFieldIds.get(idfreq))
+						.getAsDouble());
+			}
+			wj_sources.add(wj_spectrum, 0, 1.);
+			sourceGeometries.add(geo);
+			idsource++;
+		}
+		wjSources = wj_sources.toArray();
+		freeFieldFinder = sharedFreeFieldFinder;
+		buildingVertexCount = 0;
+		if (freeFieldFinder == null) {
+			freeFieldFinder = BR_TriGrid.newFreeFieldFinder(
+					gridObstructionTest, meshCacheDirectory, buildingsUnion);
+			for (int rowIndex : buildingsTable.getRows(expandedCellEnvelope)) {
+				Geometry building = buildingsTable.getGeometry(rowIndex);
+				buildingVertexCount += building.getNumPoints();
+				freeFieldFinder.addGeometry(building, BR_TriGrid
+						.getBuildingHeight(buildingsTable, heightFieldIndex,
+								rowIndex));
+			}
+			freeFieldFinder.finishPolygonFeeding(expandedCellEnvelope);
+		}
+		return this;
+	}
+
+	/**
+	 * @return Index of the sources of the cell
+	 */
+	public QueryGeometryStructure getSourcesIndex() {
+		return sourcesIndex;
+	}
+
+	/**
+	 * @return Geometries of the sources of the cell
+	 */
+	public List<Geometry> getSourceGeometries() {
+		return sourceGeometries;
+	}
+
+	/**
+	 * @return Energetic spectrum of the sources
+	 */
+	public double[] getWjSources() {
+		return wjSources;
+	}
+
+	/**
+	 * @return Obstruction test of the cell
+	 */
+	public ObstructionTest getFreeFieldFinder() {
+		return freeFieldFinder;
+	}
+
+	/**
+	 * @return Vertices of the buildings of the cell obstruction test, 0 if
+	 *         the obstruction test is shared
+	 */
+	public long getBuildingVertexCount() {
+		return buildingVertexCount;
+	}
+
+	/**
+	 * @return Estimated memory of the loaded sources and obstruction test, in
+	 *         bytes
+	 */
+	public long getMemoryEstimation() {
+		return CellMemoryEstimator.estimate(buildingVertexCount,
+				sourceGeometries.size(), 0, dbFieldIds.size());
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+/**
+ * Memory used by the computation of a cell, estimated from the size of its
+ * input. CellScheduler logs the estimation of the running cells with the
+ * used heap, in order to calibrate the constants.
+ * @author Nicolas Fortin
+ */
+public final class CellMemoryEstimator {
+	// Obstruction mesh, about two triangles by vertex with their neighbors
+	// and heights, and the walls of the reflections
+	private static final long BYTES_BY_BUILDING_VERTEX = 320;
+	// Geometry, index entry and spectrum of a source point
+	private static final long BYTES_BY_SOURCE = 200;
+	private static final long BYTES_BY_SOURCE_FREQUENCY = 8;
+	// Coordinate, mesh triangles, sound level and output record
+	private static final long BYTES_BY_RECEIVER = 360;
+	// Structures of a cell whatever its size
+	private static final long BYTES_BY_CELL = 1 << 20;
+
+	private CellMemoryEstimator() {
+	}
+
+	/**
+	 * @param buildingVertices Vertices of the buildings of the cell
+	 *        obstruction test, 0 if the obstruction test is shared
+	 * @param sources Sources within the propagation distance of the cell
+	 * @param receivers Receivers of the cell
+	 * @param frequencyCount Frequency bands of the sources
+	 * @return Estimated memory in bytes
+	 */
+	public static long estimate(long buildingVertices, long sources,
+			long receivers, int frequencyCount) {
+		return BYTES_BY_CELL + buildingVertices * BYTES_BY_BUILDING_VERTEX
+				+ sources * (BYTES_BY_SOURCE + frequencyCount
+						* BYTES_BY_SOURCE_FREQUENCY)
+				+ receivers * BYTES_BY_RECEIVER;
+	}
+}
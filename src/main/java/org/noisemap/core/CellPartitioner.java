@@ -0,0 +1,362 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import com.vividsolutions.jts.geom.Envelope;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Split the computation area in cells of nearly equal cost. The cost is
+ * estimated on a grid of bins, a bin costs its receivers times the sources
+ * within the maximum propagation distance times the density of buildings
+ * around. The most expensive cell is split in two until the count of cells
+ * is reached.
+ * @author Nicolas Fortin
+ */
+public class CellPartitioner {
+	private static final int MAX_GRID_SIDE = 128;
+	// Tolerance of the shared borders of two cells
+	private static final double BORDER_EPSILON = 0.0001;
+	private final Envelope mainEnvelope;
+	private final double maxSrcDist;
+	private final int cols;
+	private final int rows;
+	private final double binWidth;
+	private final double binHeight;
+	// Count by bin, bin of column i and row j is j * cols + i
+	private final double[] receivers;
+	private final double[] sources;
+	private final double[] buildings;
+
+	/**
+	 * @param mainEnvelope Area to split
+	 * @param maxSrcDist Maximum distance between a source and a receiver
+	 */
+	public CellPartitioner(Envelope mainEnvelope, double maxSrcDist) {
+		this.mainEnvelope = new Envelope(mainEnvelope);
+		this.maxSrcDist = maxSrcDist;
+		double side = Math.max(mainEnvelope.getWidth(),
+				mainEnvelope.getHeight()) / MAX_GRID_SIDE;
+		if (side > 0) {
+			cols = Math.max(1, Math.min(MAX_GRID_SIDE,
+					(int) Math.ceil(mainEnvelope.getWidth() / side)));
+			rows = Math.max(1, Math.min(MAX_GRID_SIDE,
+					(int) Math.ceil(mainEnvelope.getHeight() / side)));
+		} else {
+			cols = 1;
+			rows = 1;
+		}
+		binWidth = mainEnvelope.getWidth() / cols;
+		binHeight = mainEnvelope.getHeight() / rows;
+		receivers = new double[cols * rows];
+		sources = new double[cols * rows];
+		buildings = new double[cols * rows];
+	}
+
+	/**
+	 * Regular split of the area, cell i,j is at index i * gridDim + j
+	 * @param mainEnvelope Area to split
+	 * @param gridDim Count of cells on each side
+	 * @return Cells envelopes
+	 */
+	public static List<Envelope> makeRegularCells(Envelope mainEnvelope,
+			int gridDim) {
+		double cellWidth = mainEnvelope.getWidth() / gridDim;
+		double cellHeight = mainEnvelope.getHeight() / gridDim;
+		List<Envelope> cells = new ArrayList<Envelope>(gridDim * gridDim);
+		for (int cellI = 0; cellI < gridDim; cellI++) {
+			for (int cellJ = 0; cellJ < gridDim; cellJ++) {
+				cells.add(BR_TriGrid.getCellEnv(mainEnvelope, cellI, cellJ,
+						gridDim, gridDim, cellWidth, cellHeight));
+			}
+		}
+		return cells;
+	}
+
+	/**
+	 * Cells sharing a part of a border, cells touching only by a corner are
+	 * not neighbors.
+	 * @param cells Cells envelopes
+	 * @return Neighbors index of each cell
+	 */
+	public static int[][] getNeighbors(List<Envelope> cells) {
+		int[][] neighbors = new int[cells.size()][];
+		List<Integer> cellNeighbors = new ArrayList<Integer>();
+		for (int idCell = 0; idCell < cells.size(); idCell++) {
+			Envelope cell = cells.get(idCell);
+			cellNeighbors.clear();
+			for (int idOther = 0; idOther < cells.size(); idOther++) {
+				if (idOther == idCell) {
+					continue;
+				}
+				Envelope other = cells.get(idOther);
+				double overlapX = Math.min(cell.getMaxX(), other.getMaxX())
+						- Math.max(cell.getMinX(), other.getMinX());
+				double overlapY = Math.min(cell.getMaxY(), other.getMaxY())
+						- Math.max(cell.getMinY(), other.getMinY());
+				if ((Math.abs(overlapX) < BORDER_EPSILON && overlapY > BORDER_EPSILON)
+						|| (Math.abs(overlapY) < BORDER_EPSILON && overlapX > BORDER_EPSILON)) {
+					cellNeighbors.add(idOther);
+				}
+			}
+			neighbors[idCell] = new int[cellNeighbors.size()];
+			for (int i = 0; i < cellNeighbors.size(); i++) {
+				neighbors[idCell][i] = cellNeighbors.get(i);
+			}
+		}
+		return neighbors;
+	}
+
+	private int getBin(double x, double y) {
+		int i = binWidth > 0 ? (int) ((x - mainEnvelope.getMinX()) / binWidth) : 0;
+		int j = binHeight > 0 ? (int) ((y - mainEnvelope.getMinY()) / binHeight) : 0;
+		// Out of the area, in the border bins
+		i = Math.max(0, Math.min(cols - 1, i));
+		j = Math.max(0, Math.min(rows - 1, j));
+		return j * cols + i;
+	}
+
+	/**
+	 * @param x Receiver position
+	 * @param y Receiver position
+	 */
+	public void addReceiver(double x, double y) {
+		receivers[getBin(x, y)]++;
+	}
+
+	/**
+	 * @param x Source position
+	 * @param y Source position
+	 */
+	public void addSource(double x, double y) {
+		sources[getBin(x, y)]++;
+	}
+
+	/**
+	 * @param x Building position
+	 * @param y Building position
+	 */
+	public void addBuilding(double x, double y) {
+		buildings[getBin(x, y)]++;
+	}
+
+	/**
+	 * Add the center of all geometries of the table as receivers
+	 * @param table Indexed table
+	 */
+	public void addReceivers(TableSpatialIndex table) {
+		add(table, receivers);
+	}
+
+	/**
+	 * Add the center of all geometries of the table as sources
+	 * @param table Indexed table
+	 */
+	public void addSources(TableSpatialIndex table) {
+		add(table, sources);
+	}
+
+	/**
+	 * Add the center of all geometries of the table as buildings
+	 * @param table Indexed table
+	 */
+	public void addBuildings(TableSpatialIndex table) {
+		add(table, buildings);
+	}
+
+	private void add(TableSpatialIndex table, double[] counts) {
+		double[] env = new double[4];
+		for (int item = 0; item < table.size(); item++) {
+			table.getItemEnvelope(item, env);
+			counts[getBin((env[0] + env[2]) / 2, (env[1] + env[3]) / 2)]++;
+		}
+	}
+
+	/**
+	 * @param counts Count by bin
+	 * @return Summed area table, (cols + 1) x (rows + 1)
+	 */
+	private double[] makeSummedArea(double[] counts) {
+		double[] sum = new double[(cols + 1) * (rows + 1)];
+		for (int j = 0; j < rows; j++) {
+			for (int i = 0; i < cols; i++) {
+				sum[(j + 1) * (cols + 1) + i + 1] = counts[j * cols + i]
+						+ sum[j * (cols + 1) + i + 1]
+						+ sum[(j + 1) * (cols + 1) + i]
+						- sum[j * (cols + 1) + i];
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * @return Sum of the bins from i0,j0 (included) to i1,j1 (excluded)
+	 */
+	private double getSum(double[] sum, int i0, int j0, int i1, int j1) {
+		return sum[j1 * (cols + 1) + i1] - sum[j0 * (cols + 1) + i1]
+				- sum[j1 * (cols + 1) + i0] + sum[j0 * (cols + 1) + i0];
+	}
+
+	/**
+	 * Estimated cost of each bin
+	 */
+	private double[] computeBinsCost() {
+		double[] sourcesSum = makeSummedArea(sources);
+		double[] buildingsSum = makeSummedArea(buildings);
+		int reachI = binWidth > 0 ? (int) Math.ceil(maxSrcDist / binWidth) : 0;
+		int reachJ = binHeight > 0 ? (int) Math.ceil(maxSrcDist / binHeight) : 0;
+		double[] cost = new double[cols * rows];
+		for (int j = 0; j < rows; j++) {
+			for (int i = 0; i < cols; i++) {
+				int i0 = Math.max(0, i - reachI);
+				int j0 = Math.max(0, j - reachJ);
+				int i1 = Math.min(cols, i + reachI + 1);
+				int j1 = Math.min(rows, j + reachJ + 1);
+				double sourcesAround = getSum(sourcesSum, i0, j0, i1, j1);
+				double buildingsDensity = getSum(buildingsSum, i0, j0, i1, j1)
+						/ ((i1 - i0) * (j1 - j0));
+				cost[j * cols + i] = (1 + receivers[j * cols + i])
+						* (1 + sourcesAround) * (1 + buildingsDensity);
+			}
+		}
+		return cost;
+	}
+
+	/**
+	 * Bins from i0,j0 (included) to i1,j1 (excluded)
+	 */
+	private static final class Region {
+		private final int i0, j0, i1, j1;
+		private final double cost;
+
+		public Region(int i0, int j0, int i1, int j1, double cost) {
+			this.i0 = i0;
+			this.j0 = j0;
+			this.i1 = i1;
+			this.j1 = j1;
+			this.cost = cost;
+		}
+	}
+
+	private double getX(int i) {
+		return i == cols ? mainEnvelope.getMaxX() : mainEnvelope.getMinX()
+				+ i * binWidth;
+	}
+
+	private double getY(int j) {
+		return j == rows ? mainEnvelope.getMaxY() : mainEnvelope.getMinY()
+				+ j * binHeight;
+	}
+
+	/**
+	 * Split the area in cells of nearly equal cost. There is less cells if
+	 * the cells can not be split anymore.
+	 * @param cellCount Count of cells
+	 * @return Cells envelopes, sorted by x then y
+	 */
+	public List<Envelope> split(int cellCount) {
+		double[] costSum = makeSummedArea(computeBinsCost());
+		PriorityQueue<Region> toSplit = new PriorityQueue<Region>(
+				Math.max(1, cellCount), new Comparator<Region>() {
+					@Override
+					public int compare(Region a, Region b) {
+						return Double.compare(b.cost, a.cost);
+					}
+				});
+		List<Region> regions = new ArrayList<Region>(Math.max(1, cellCount));
+		toSplit.add(new Region(0, 0, cols, rows, getSum(costSum, 0, 0, cols,
+				rows)));
+		while (!toSplit.isEmpty() && regions.size() + toSplit.size() < cellCount) {
+			Region region = toSplit.poll();
+			int width = region.i1 - region.i0;
+			int height = region.j1 - region.j0;
+			if (width == 1 && height == 1) {
+				regions.add(region);
+				continue;
+			}
+			// Split the longest side at the bin where the costs are closest
+			boolean splitX = height == 1 || (width > 1
+					&& width * binWidth >= height * binHeight);
+			int begin = splitX ? region.i0 : region.j0;
+			int end = splitX ? region.i1 : region.j1;
+			int bestSplit = begin + 1;
+			double bestDelta = Double.POSITIVE_INFINITY;
+			for (int split = begin + 1; split < end; split++) {
+				double first = splitX ? getSum(costSum, region.i0, region.j0,
+						split, region.j1) : getSum(costSum, region.i0,
+						region.j0, region.i1, split);
+				double delta = Math.abs(region.cost - 2 * first);
+				if (delta < bestDelta) {
+					bestDelta = delta;
+					bestSplit = split;
+				}
+			}
+			if (splitX) {
+				toSplit.add(new Region(region.i0, region.j0, bestSplit,
+						region.j1, getSum(costSum, region.i0, region.j0,
+								bestSplit, region.j1)));
+				toSplit.add(new Region(bestSplit, region.j0, region.i1,
+						region.j1, getSum(costSum, bestSplit, region.j0,
+								region.i1, region.j1)));
+			} else {
+				toSplit.add(new Region(region.i0, region.j0, region.i1,
+						bestSplit, getSum(costSum, region.i0, region.j0,
+								region.i1, bestSplit)));
+				toSplit.add(new Region(region.i0, bestSplit, region.i1,
+						region.j1, getSum(costSum, region.i0, bestSplit,
+								region.i1, region.j1)));
+			}
+		}
+		regions.addAll(toSplit);
+		Collections.sort(regions, new Comparator<Region>() {
+			@Override
+			public int compare(Region a, Region b) {
+				if (a.i0 != b.i0) {
+					return a.i0 < b.i0 ? -1 : 1;
+				}
+				return a.j0 < b.j0 ? -1 : (a.j0 == b.j0 ? 0 : 1);
+			}
+		});
+		List<Envelope> cells = new ArrayList<Envelope>(regions.size());
+		for (Region region : regions) {
+			cells.add(new Envelope(getX(region.i0), getX(region.i1),
+					getY(region.j0), getY(region.j1)));
+		}
+		return cells;
+	}
+}
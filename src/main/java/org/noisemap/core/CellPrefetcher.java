@@ -0,0 +1,221 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.gdms.driver.DriverException;
+
+/**
+ * Load the input of the cells ahead of the computation, in the order of the
+ * cells. At most prefetchCount cells are loaded and not yet consumed, this
+ * limits the memory used by the obstruction tests waiting for propagation.
+ * With the memory budget of a CellScheduler, the loading of a cell ahead
+ * starts only if the estimation of the cells in flight and of the cells
+ * already loaded is under the budget.
+ * @author Nicolas Fortin
+ */
+public class CellPrefetcher {
+	private final List<CellInput> cells;
+	private final ExecutorService executor;
+	private final int prefetchCount;
+	private final LinkedList<Future<CellInput>> loading = new LinkedList<Future<CellInput>>();
+	private int nextToLoad = 0;
+	private int nextToConsume = 0;
+	private CellScheduler memoryBudgetScheduler = null;
+
+	/**
+	 * LayerDelaunayError is not an Exception, it is wrapped to go through the
+	 * future
+	 */
+	private static final class DelaunayFailure extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		public DelaunayFailure(LayerDelaunayError cause) {
+			super(cause);
+		}
+	}
+
+	private static final class Loader implements Callable<CellInput> {
+		private final CellInput input;
+
+		public Loader(CellInput input) {
+			this.input = input;
+		}
+
+		@Override
+		public CellInput call() throws DriverException, DelaunayFailure {
+			try {
+				return input.load();
+			} catch (LayerDelaunayError ex) {
+				throw new DelaunayFailure(ex);
+			}
+		}
+	}
+
+	/**
+	 * @param cells Cells to load, in the order of consumption
+	 * @param executor Load the cells, null to load in the calling thread
+	 * @param prefetchCount Maximum count of cells loaded ahead
+	 */
+	public CellPrefetcher(List<CellInput> cells, ExecutorService executor,
+			int prefetchCount) {
+		this.cells = cells;
+		this.executor = executor;
+		this.prefetchCount = Math.max(1, prefetchCount);
+	}
+
+	/**
+	 * Start the loading of the first cells, while the caller prepares the
+	 * first cell.
+	 * @param memoryBudgetScheduler Scheduler of the loaded cells, its memory
+	 *        budget bounds the cells loaded ahead. May be null.
+	 */
+	public void start(CellScheduler memoryBudgetScheduler) {
+		this.memoryBudgetScheduler = memoryBudgetScheduler;
+		fillWindow(false);
+	}
+
+	/**
+	 * @return Estimated memory of the cells loaded and not consumed, the cells
+	 *         still loading are not counted
+	 */
+	private long getLoadedMemory() {
+		long loadedMemory = 0;
+		for (Future<CellInput> future : loading) {
+			if (future.isDone() && !future.isCancelled()) {
+				try {
+					loadedMemory += future.get().getMemoryEstimation();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					break;
+				} catch (ExecutionException ex) {
+					// Thrown back by next()
+				}
+			}
+		}
+		return loadedMemory;
+	}
+
+	private boolean fitsInBudget() {
+		if (memoryBudgetScheduler == null
+				|| memoryBudgetScheduler.getMemoryBudget() <= 0) {
+			return true;
+		}
+		long committedMemory = memoryBudgetScheduler.getInFlightMemory()
+				+ getLoadedMemory();
+		return committedMemory < memoryBudgetScheduler.getMemoryBudget();
+	}
+
+	/**
+	 * @param loadNext Start the loading of the next cell whatever the memory
+	 *        budget, the caller waits for it
+	 */
+	private void fillWindow(boolean loadNext) {
+		if (executor == null) {
+			return;
+		}
+		while (nextToLoad < cells.size()
+				&& nextToLoad - nextToConsume < prefetchCount
+				&& ((loadNext && loading.isEmpty()) || fitsInBudget())) {
+			loading.add(executor.submit(new Loader(cells.get(nextToLoad))));
+			nextToLoad++;
+		}
+	}
+
+	/**
+	 * @return True if there is a cell to consume
+	 */
+	public boolean hasNext() {
+		return nextToConsume < cells.size();
+	}
+
+	/**
+	 * Wait for the loading of the next cell, then start the loading of the
+	 * following cells.
+	 * @return Loaded input of the next cell
+	 * @throws DriverException
+	 * @throws LayerDelaunayError
+	 * @throws InterruptedException Loading cells are cancelled
+	 */
+	public CellInput next() throws DriverException, LayerDelaunayError,
+			InterruptedException {
+		if (executor == null) {
+			return cells.get(nextToConsume++).load();
+		}
+		fillWindow(true);
+		Future<CellInput> future = loading.removeFirst();
+		nextToConsume++;
+		try {
+			CellInput input = future.get();
+			fillWindow(false);
+			return input;
+		} catch (InterruptedException ex) {
+			cancel();
+			throw ex;
+		} catch (ExecutionException ex) {
+			cancel();
+			Throwable cause = ex.getCause();
+			if (cause instanceof DriverException) {
+				throw (DriverException) cause;
+			}
+			if (cause instanceof DelaunayFailure) {
+				throw (LayerDelaunayError) cause.getCause();
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * Cancel the loading of the cells not consumed
+	 */
+	public void cancel() {
+		for (Future<CellInput> future : loading) {
+			future.cancel(true);
+		}
+		loading.clear();
+		nextToLoad = cells.size();
+		nextToConsume = cells.size();
+	}
+}
@@ -0,0 +1,308 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import org.orbisgis.progress.ProgressMonitor;
+
+/**
+ * Submit the propagation of cells to an executor, with a bounded count of
+ * cells in flight. The caller is blocked until a cell is done, a worker
+ * exception is thrown back to the caller and all cells are cancelled with
+ * the progress monitor. With a memory budget, a cell is started only if its
+ * memory estimation fits with the estimation of the running cells. The used
+ * heap is measured when each cell starts and ends, and logged with its
+ * estimation in order to calibrate CellMemoryEstimator.
+ * @author Nicolas Fortin
+ */
+public class CellScheduler {
+	/**
+	 * The progress monitor does not notify, then it is checked at this
+	 * interval (ms) while waiting for a cell
+	 */
+	private static final long CANCEL_CHECK_INTERVAL = 100;
+	private final CompletionService<Object> completionService;
+	private final List<Future<Object>> pending = new ArrayList<Future<Object>>();
+	// Pending cells, in the same order
+	private final List<MeasuredCell> pendingCells = new ArrayList<MeasuredCell>();
+	private int submittedCount = 0;
+	private final int maxInFlight;
+	private final ProgressMonitor pm;
+	private boolean cancelled = false;
+	// Heap budget of the running cells in bytes, 0 for no budget
+	private long memoryBudget = 0;
+	private long inFlightMemory = 0;
+	private long peakEstimatedMemory = 0;
+	private long peakUsedMemory = 0;
+	private Logger logger = null;
+
+	/**
+	 * Measure the used heap when the cell starts and ends, in the thread
+	 * running the cell
+	 */
+	private static final class MeasuredCell implements Runnable {
+		private final Runnable cell;
+		private final int submissionId;
+		private final long memoryEstimation;
+		private volatile long startUsedMemory = 0;
+		private volatile long endUsedMemory = 0;
+
+		public MeasuredCell(Runnable cell, int submissionId,
+				long memoryEstimation) {
+			this.cell = cell;
+			this.submissionId = submissionId;
+			this.memoryEstimation = memoryEstimation;
+		}
+
+		@Override
+		public void run() {
+			startUsedMemory = getUsedMemory();
+			cell.run();
+			endUsedMemory = getUsedMemory();
+		}
+	}
+
+	/**
+	 * @param executor Run the cells
+	 * @param maxInFlight Maximum count of cells submitted and not done
+	 * @param pm Progress monitor, cancel the cells if cancelled. May be null
+	 */
+	public CellScheduler(Executor executor, int maxInFlight,
+			ProgressMonitor pm) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException(
+					"At least one cell must be in flight");
+		}
+		this.completionService = new ExecutorCompletionService<Object>(executor);
+		this.maxInFlight = maxInFlight;
+		this.pm = pm;
+	}
+
+	/**
+	 * @param memoryBudget Maximum sum of the memory estimation of the cells in
+	 *        flight, in bytes. 0 for no budget.
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * @return Maximum sum of the memory estimation of the cells in flight, in
+	 *         bytes. 0 for no budget.
+	 */
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * @param logger Log the memory estimation and the used heap of each cell,
+	 *        may be null
+	 */
+	public void setLogger(Logger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	 * Wait for a free slot then submit the cell.
+	 * @param cell Cell propagation
+	 * @return False if the processing has been cancelled, the cell is not
+	 *         submitted
+	 * @throws InterruptedException Cells are cancelled
+	 */
+	public boolean submit(Runnable cell) throws InterruptedException {
+		return submit(cell, 0);
+	}
+
+	/**
+	 * Wait for a free slot and for enough memory then submit the cell. A cell
+	 * larger than the budget is submitted when no other cell is in flight.
+	 * @param cell Cell propagation
+	 * @param memoryEstimation Memory used by the cell, in bytes
+	 * @return False if the processing has been cancelled, the cell is not
+	 *         submitted
+	 * @throws InterruptedException Cells are cancelled
+	 */
+	public boolean submit(Runnable cell, long memoryEstimation)
+			throws InterruptedException {
+		while (!cancelled
+				&& (pending.size() >= maxInFlight || !fitsInBudget(memoryEstimation))) {
+			waitNext();
+		}
+		if (cancelled || isMonitorCancelled()) {
+			cancel();
+			return false;
+		}
+		MeasuredCell measuredCell = new MeasuredCell(cell, submittedCount++,
+				memoryEstimation);
+		pending.add(completionService.submit(measuredCell, null));
+		pendingCells.add(measuredCell);
+		inFlightMemory += memoryEstimation;
+		peakEstimatedMemory = Math.max(peakEstimatedMemory, inFlightMemory);
+		return true;
+	}
+
+	/**
+	 * Wait for the termination of all submitted cells
+	 * @return False if the processing has been cancelled
+	 * @throws InterruptedException Cells are cancelled
+	 */
+	public boolean awaitAll() throws InterruptedException {
+		while (!cancelled && !pending.isEmpty()) {
+			waitNext();
+		}
+		return !cancelled;
+	}
+
+	/**
+	 * @return Count of cells submitted and not done
+	 */
+	public int getInFlightCount() {
+		return pending.size();
+	}
+
+	/**
+	 * @return Sum of the memory estimation of the cells in flight, in bytes
+	 */
+	public long getInFlightMemory() {
+		return inFlightMemory;
+	}
+
+	/**
+	 * @return Maximum sum of the memory estimation of the cells in flight,
+	 *         in bytes
+	 */
+	public long getPeakEstimatedMemory() {
+		return peakEstimatedMemory;
+	}
+
+	/**
+	 * @return Maximum used heap measured at the start or the end of a cell,
+	 *         in bytes
+	 */
+	public long getPeakUsedMemory() {
+		return peakUsedMemory;
+	}
+
+	/**
+	 * Cancel all submitted cells
+	 */
+	public void cancel() {
+		cancelled = true;
+		for (Future<Object> future : pending) {
+			future.cancel(true);
+		}
+		pending.clear();
+		pendingCells.clear();
+		inFlightMemory = 0;
+	}
+
+	private boolean fitsInBudget(long memoryEstimation) {
+		return memoryBudget <= 0 || pending.isEmpty()
+				|| inFlightMemory + memoryEstimation <= memoryBudget;
+	}
+
+	private static long getUsedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Compare the estimation of a finished cell with the used heap measured
+	 * at its start and end, in order to calibrate CellMemoryEstimator. The
+	 * other cells in flight and the garbage collector make the measure noisy,
+	 * then the calibration needs the logs of many cells.
+	 */
+	private void logMemory(MeasuredCell cell) {
+		peakUsedMemory = Math.max(peakUsedMemory,
+				Math.max(cell.startUsedMemory, cell.endUsedMemory));
+		if (logger != null) {
+			logger.info("Cell " + (cell.submissionId + 1)
+					+ " done, estimated memory "
+					+ (cell.memoryEstimation >> 10) + " KB, used heap "
+					+ (cell.startUsedMemory >> 10) + " KB at start, "
+					+ (cell.endUsedMemory >> 10) + " KB at end, "
+					+ pending.size() + " other cells in flight");
+		}
+	}
+
+	private boolean isMonitorCancelled() {
+		return pm != null && pm.isCancelled();
+	}
+
+	/**
+	 * Wait for the next finished cell, rethrow its exception if any.
+	 */
+	private void waitNext() throws InterruptedException {
+		Future<Object> done = null;
+		try {
+			while (done == null) {
+				if (isMonitorCancelled()) {
+					cancel();
+					return;
+				}
+				done = completionService.poll(CANCEL_CHECK_INTERVAL,
+						TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException ex) {
+			cancel();
+			throw ex;
+		}
+		int doneIndex = pending.indexOf(done);
+		pending.remove(doneIndex);
+		MeasuredCell doneCell = pendingCells.remove(doneIndex);
+		inFlightMemory -= doneCell.memoryEstimation;
+		try {
+			done.get();
+			logMemory(doneCell);
+		} catch (ExecutionException ex) {
+			cancel();
+			Throwable cause = ex.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+}
@@ -33,16 +33,27 @@
  */
 package org.noisemap.core;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Stack;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.grap.utilities.EnvelopeUtil;
 
 import com.vividsolutions.jts.algorithm.Angle;
-import com.vividsolutions.jts.math.Vector2D;
+import com.vividsolutions.jts.algorithm.CGAlgorithms;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
@@ -53,6 +64,7 @@ import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.LinearRing;
 import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.io.WKBWriter;
 import com.vividsolutions.jts.operation.buffer.BufferParameters;
 import java.util.*;
 
@@ -61,24 +73,48 @@ import java.util.*;
  * visibility test. TODO enable add and query of geometry object (other than
  * fitting elements) into the delaunay triangulation. To do something called
  * visibility culling.
+ * Once finishPolygonFeeding has been called, queries can be done by many
+ * threads, each thread keeps its own walk hints.
  * @author Nicolas Fortin
  */
-public class FastObstructionTest {
+public class FastObstructionTest implements ObstructionTest {
 	public static final double epsilon = 1e-7;
 	public static final double wideAngleTranslationEpsilon = 0.01;
-	private long nbObstructionTest=0;
-	private List<Triangle> triVertices;
-	private List<Coordinate> vertices;
-	private List<Triangle> triNeighbors; // Neighbors
+	// Mesh file, increment the version when the content of the file change
+	private static final int MESH_FILE_MAGIC = 0x4E4D4F42;
+	private static final int MESH_FILE_VERSION = 3;
+	// Triangles by task of the open angle computation
+	private static final int OPEN_ANGLE_TASK_TRIANGLES = 1 << 16;
+	// Mesh, built by finishPolygonFeeding
+	private double[] xy; // Vertices coordinates {x0,y0,x1,y1,..}
+	private int[] triVerts; // Vertices of the triangle t are triVerts[3*t..3*t+2]
+	private int[] triNeigh; // Neighbor of the side i of the triangle t is triNeigh[3*t+i], -1 if none
+	private float[] triHeight; // Height of triangles, 0 in the free field
 	private LinkedList<Geometry> toUnite = new LinkedList<Geometry>(); // Polygon
 	private LinkedList<Double> height= new  LinkedList<Double>(); // Height of Polygon
         private LinkedList<PolygonWithHeight> polygonwithheight= new LinkedList<PolygonWithHeight>();//list polygon with height
+        private int buildingHeightCount = 0; // Polygons added with a height
         private Envelope geometriesBoundingBox=null;
 	// union;
-	private QueryGeometryStructure triIndex = null; //TODO remove
-	private int lastFountPointTriTest = 0;
-	private List<Float> verticesOpenAngle = null;
-	private List<Coordinate> verticesOpenAngleTranslated = null; /*Open angle*/
+	// Point location grid. Triangles with an envelope intersecting the cell k
+	// are gridTriangles[gridIndex[k]..gridIndex[k+1]-1]
+	private double gridMinX;
+	private double gridMinY;
+	private double gridCellSize;
+	private int gridCols;
+	private int gridRows;
+	private int[] gridIndex;
+	private int[] gridTriangles;
+	// Directory of the mesh files, null to always build the mesh
+	private File meshCacheDirectory = null;
+	private boolean meshLoadedFromCache = false;
+	// Parallel union of buildings, null to merge in the calling thread
+	private TiledUnion buildingsUnion = null;
+	// Mutable state of the queries done without context
+	private final MeshQueryContext defaultContext = new MeshQueryContext();
+	private float[] verticesOpenAngle = null; // Open angle of each vertex
+	private double[] verticesOpenAngleTranslated = null; /*Open angle*/
+	private ExecutorService cornersExecutor = null;
         //private LinkedList<Integer> BuildingTriangleIndex= new LinkedList<Integer>(); /* the buildings list between source and receiver. Reconstruction after get a new source-reciver */
         //private LinkedList<Coordinate> pointsIntersection= new LinkedList<Coordinate>();/* the intersection of the segment source-receiver and builiding's side. Reconstruction after get a new source-reciver */
         private static class PolygonWithHeight{
@@ -99,46 +135,163 @@ public class FastObstructionTest {
         
         }
         
-         private static class TriIdWithIntersection{
-            private int triID;
-            private Coordinate coorIntersection;
-            public TriIdWithIntersection(int triID, Coordinate coorIntersection){
-            
-                this.triID=triID;
-                this.coorIntersection=coorIntersection;
+        /**
+         * Query data owned by a single thread. Queries are read only on the
+         * triangulation, then multiple threads can share this object.
+         */
+        private static class MeshQueryContext implements QueryContext {
+            private int lastFountPointTriTest = 0;
+            private long nbObstructionTest = 0;
+
+            @Override
+            public long getNbObstructionTest() {
+                return nbObstructionTest;
             }
-            public int gettriID(){
-            
-                return this.triID;
+            // A triangle is visited by the current walk if its value is navigationStamp
+            private int[] navigationHistory = new int[0];
+            private int navigationStamp = 0;
+            // Side of the triangle given to CGAlgorithms
+            private final Coordinate sideA = new Coordinate();
+            private final Coordinate sideB = new Coordinate();
+            // Upper hull of the (distance, height) profile of the current path
+            private double[] hullX = new double[16];
+            private double[] hullY = new double[16];
+            private int hullCount = 0;
+
+            /**
+             * Start a new triangle walk, the history is cleared by changing the stamp.
+             * @return Stamp of the triangles visited by the new walk
+             */
+            private int nextNavigationStamp(int triangleCount) {
+                if (navigationHistory.length < triangleCount || navigationStamp == Integer.MAX_VALUE) {
+                    navigationHistory = new int[triangleCount];
+                    navigationStamp = 0;
+                }
+                return ++navigationStamp;
             }
-            public Coordinate getcoorIntersection(){
-                return this.coorIntersection;
+
+            /**
+             * Append a point of the profile to the upper hull, the points are
+             * given by increasing distance. The points under the segment of
+             * their neighbours are removed.
+             */
+            private void pushHullPoint(double x, double y) {
+                while (hullCount >= 2) {
+                    double ax = hullX[hullCount - 2];
+                    double ay = hullY[hullCount - 2];
+                    if ((hullX[hullCount - 1] - ax) * (y - ay)
+                            - (hullY[hullCount - 1] - ay) * (x - ax) >= 0) {
+                        hullCount--;
+                    } else {
+                        break;
+                    }
+                }
+                if (hullCount == hullX.length) {
+                    hullX = Arrays.copyOf(hullX, hullCount * 2);
+                    hullY = Arrays.copyOf(hullY, hullCount * 2);
+                }
+                hullX[hullCount] = x;
+                hullY[hullCount] = y;
+                hullCount++;
             }
-        
         }
         
 	public FastObstructionTest() {
 		super();
 	}
+	/**
+	 * @return Obstruction test count of the queries done without context
+	 */
+	@Override
 	public long getNbObstructionTest() {
-		return nbObstructionTest;
+		synchronized (defaultContext) {
+			return defaultContext.nbObstructionTest;
+		}
+	}
+
+	@Override
+	public QueryContext newQueryContext() {
+		return new MeshQueryContext();
 	}
 	/**
 	 * Retrieve triangle list, only for debug and unit test purpose
-	 * @return
+	 * @return View on the mesh, triangles are built on each call of get
 	 */
 	public List<Triangle> getTriangles() {
-		return triVertices;
+		return new AbstractList<Triangle>() {
+			@Override
+			public Triangle get(int index) {
+				return new Triangle(triVerts[index * 3],
+						triVerts[index * 3 + 1], triVerts[index * 3 + 2],
+						triHeight[index]);
+			}
+
+			@Override
+			public int size() {
+				return triHeight.length;
+			}
+		};
 	}
 
         
 	/**
 	 * Retrieve vertices list, only for debug and unit test purpose
-	 * @return
+	 * @return View on the mesh, coordinates are built on each call of get
 	 */
 	public List<Coordinate> getVertices() {
-		return vertices;
+		return new AbstractList<Coordinate>() {
+			@Override
+			public Coordinate get(int index) {
+				return getVertex(index);
+			}
+
+			@Override
+			public int size() {
+				return xy.length / 2;
+			}
+		};
+	}
+
+	/**
+	 * The finished mesh is saved into this directory, in a file named by a hash
+	 * of the geometries and of the bounding box. The next call of
+	 * finishPolygonFeeding with the same input maps this file instead of
+	 * triangulating the geometries.
+	 * @param meshCacheDirectory Existing directory, null to disable the cache
+	 */
+	public void setMeshCacheDirectory(File meshCacheDirectory) {
+		this.meshCacheDirectory = meshCacheDirectory;
 	}
+
+	/**
+	 * @return True if the last call of finishPolygonFeeding has read the mesh
+	 *         from the cache directory
+	 */
+	public boolean isMeshLoadedFromCache() {
+		return meshLoadedFromCache;
+	}
+
+	/**
+	 * @param cornersExecutor Compute the open angle of the vertices by ranges
+	 *            of triangles on these threads. Null to compute in the calling
+	 *            thread.
+	 */
+	public void setCornersExecutor(ExecutorService cornersExecutor) {
+		this.cornersExecutor = cornersExecutor;
+	}
+
+	/**
+	 * @param buildingsUnion Merge the buildings by tiles, on the threads of
+	 *            this object. Null to merge in the calling thread.
+	 */
+	public void setBuildingsUnion(TiledUnion buildingsUnion) {
+		this.buildingsUnion = buildingsUnion;
+	}
+
+	private Coordinate getVertex(int vertexId) {
+		return new Coordinate(xy[vertexId * 2], xy[vertexId * 2 + 1]);
+	}
+	@Override
 	public void addGeometry(Geometry obstructionPoly) {
 		if(this.geometriesBoundingBox==null) {
 			this.geometriesBoundingBox=new Envelope(obstructionPoly.getEnvelopeInternal());
@@ -152,8 +305,8 @@ public class FastObstructionTest {
         
         /**
          * Add height of building 
-         * @return
          */
+        @Override
       	public void addGeometry(Geometry obstructionPoly, double heightofBuilding) {
 		if(this.geometriesBoundingBox==null) {
 			this.geometriesBoundingBox=new Envelope(obstructionPoly.getEnvelopeInternal());
@@ -163,16 +316,14 @@ public class FastObstructionTest {
                 
                 toUnite.add(obstructionPoly);
                 polygonwithheight.add(new PolygonWithHeight(obstructionPoly, heightofBuilding));
+                buildingHeightCount++;
         }
                 
 	private Geometry merge(LinkedList<Geometry> toUnite, double bufferSize) {
-		GeometryFactory geometryFactory = new GeometryFactory();
-		Geometry geoArray[] = new Geometry[toUnite.size()];
-		toUnite.toArray(geoArray);
-		GeometryCollection polygonCollection = geometryFactory
-				.createGeometryCollection(geoArray);
-		return polygonCollection.buffer(bufferSize, 0,
-				BufferParameters.CAP_SQUARE);
+		if (buildingsUnion != null) {
+			return buildingsUnion.union(toUnite, bufferSize);
+		}
+		return UnionProcess.merge(toUnite, bufferSize);
 	}
   
 	private void addPolygon(Polygon newpoly, LayerJDelaunay delaunayTool,
@@ -196,10 +347,16 @@ public class FastObstructionTest {
 				explodeAndAddPolygon(subGeom, delaunayTool, boundingBox);
 			}
 		} else if (intersectedGeometry instanceof Polygon) {
-                        for(PolygonWithHeight geo : polygonwithheight){
-                            if(geo.getGeometry().equals(intersectedGeometry)){
-                              addPolygon((Polygon) intersectedGeometry, delaunayTool, boundingBox,polygonwithheight.indexOf(geo));
-                              return;
+                        // A building merged with its neighbours is not found,
+                        // it has no height
+                        if (buildingHeightCount > 0) {
+                            for (PolygonWithHeight geo : polygonwithheight) {
+                                double height = geo.getHeight();
+                                if (height > 0 && !Double.isInfinite((float) height)
+                                        && geo.getGeometry().equals(intersectedGeometry)) {
+                                    delaunayTool.addPolygon((Polygon) intersectedGeometry, height);
+                                    return;
+                                }
                             }
                         }
                         addPolygon((Polygon) intersectedGeometry, delaunayTool, boundingBox);
@@ -209,6 +366,7 @@ public class FastObstructionTest {
 	}
 
 	// feeding
+	@Override
 	public void finishPolygonFeeding(Envelope boundingBoxFilter)
 			throws LayerDelaunayError {
 		if(boundingBoxFilter!=null) {
@@ -220,6 +378,22 @@ public class FastObstructionTest {
 		}
 		
 		verticesOpenAngle = null;
+		meshLoadedFromCache = false;
+		// Use the mesh of a previous run if the input is the same
+		byte[] meshKey = null;
+		File meshFile = null;
+		if (meshCacheDirectory != null && geometriesBoundingBox != null) {
+			meshKey = computeMeshKey();
+			if (meshKey != null) {
+				meshFile = new File(meshCacheDirectory, "obstruction_"
+						+ toHex(meshKey) + ".mesh");
+				if (meshFile.exists() && readMeshFile(meshFile, meshKey)) {
+					toUnite.clear();
+					meshLoadedFromCache = true;
+					return;
+				}
+			}
+		}
 		LayerJDelaunay delaunayTool = new LayerJDelaunay();
 		// Merge polygon
 		Geometry allbuilds = merge(toUnite, 0.);
@@ -243,202 +417,377 @@ public class FastObstructionTest {
 		delaunayTool.processDelaunay();
                // polygonwithheight.clear();
 		// Get results
-		this.triVertices = delaunayTool.getTriangles();
-		this.vertices = delaunayTool.getVertices();
-		this.triNeighbors = delaunayTool.getNeighbors();
+		List<Triangle> triangles = delaunayTool.getTriangles();
+		List<Coordinate> vertices = delaunayTool.getVertices();
+		List<Triangle> neighbors = delaunayTool.getNeighbors();
+		delaunayTool = null;
+		// Copy the mesh into arrays
+		xy = new double[vertices.size() * 2];
+		for (int idvert = 0; idvert < vertices.size(); idvert++) {
+			xy[idvert * 2] = vertices.get(idvert).x;
+			xy[idvert * 2 + 1] = vertices.get(idvert).y;
+		}
+		triVerts = new int[triangles.size() * 3];
+		triNeigh = new int[triangles.size() * 3];
+		triHeight = new float[triangles.size()];
+		for (int idtri = 0; idtri < triangles.size(); idtri++) {
+			Triangle tri = triangles.get(idtri);
+			Triangle neigh = neighbors.get(idtri);
+			for (int i = 0; i < 3; i++) {
+				triVerts[idtri * 3 + i] = tri.get(i);
+				triNeigh[idtri * 3 + i] = neigh.get(i);
+			}
+			triHeight[idtri] = (float) tri.getHeight();
+		}
 
 		// /////////////////////////////////
 		// Feed Query Structure to find triangle, by coordinate
+		buildLocationGrid();
+		if (meshFile != null) {
+			writeMeshFile(meshFile, meshKey);
+		}
+	}
+
+	/**
+	 * @return SHA-1 of the geometries, their height and the bounding box, null
+	 *         if the digest is not available
+	 */
+	private byte[] computeMeshKey() {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			return null;
+		}
+		ByteBuffer number = ByteBuffer.allocate(8);
+		updateDigest(digest, number, MESH_FILE_VERSION);
+		updateDigest(digest, number, geometriesBoundingBox.getMinX());
+		updateDigest(digest, number, geometriesBoundingBox.getMinY());
+		updateDigest(digest, number, geometriesBoundingBox.getMaxX());
+		updateDigest(digest, number, geometriesBoundingBox.getMaxY());
+		WKBWriter wkbWriter = new WKBWriter();
+		for (PolygonWithHeight building : polygonwithheight) {
+			digest.update(wkbWriter.write(building.getGeometry()));
+			updateDigest(digest, number, building.getHeight());
+		}
+		return digest.digest();
+	}
 
-                triIndex = new QueryQuadTree();
-		int triind = 0;
-		for (Triangle tri : this.triVertices) {
-			final Coordinate[] triCoords = { vertices.get(tri.getA()),
-					vertices.get(tri.getB()), vertices.get(tri.getC()),
-					vertices.get(tri.getA()) };
-			Polygon newpoly = factory.createPolygon(
-					factory.createLinearRing(triCoords), null);
-			triIndex.appendGeometry(newpoly, triind);
-			triind++;
+	private static void updateDigest(MessageDigest digest, ByteBuffer number,
+			double value) {
+		number.clear();
+		number.putDouble(value);
+		digest.update(number.array());
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Save the mesh, the location grid and the open angle of vertices. The file
+	 * is written aside then renamed, concurrent runs never read a partial file.
+	 * Errors are ignored, the cache is only an optimization.
+	 */
+	private void writeMeshFile(File meshFile, byte[] meshKey) {
+		if (verticesOpenAngle == null) {
+			computeVerticesOpenAngle();
+		}
+		File tempFile = null;
+		DataOutputStream out = null;
+		try {
+			tempFile = File.createTempFile("obstruction", ".tmp",
+					meshFile.getParentFile());
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tempFile)));
+			out.writeInt(MESH_FILE_MAGIC);
+			out.writeInt(MESH_FILE_VERSION);
+			out.writeInt(meshKey.length);
+			out.write(meshKey);
+			out.writeInt(xy.length / 2);
+			out.writeInt(triHeight.length);
+			out.writeInt(gridCols);
+			out.writeInt(gridRows);
+			out.writeInt(gridTriangles.length);
+			out.writeDouble(gridMinX);
+			out.writeDouble(gridMinY);
+			out.writeDouble(gridCellSize);
+			for (double value : xy) {
+				out.writeDouble(value);
+			}
+			for (double value : verticesOpenAngleTranslated) {
+				out.writeDouble(value);
+			}
+			for (float value : verticesOpenAngle) {
+				out.writeFloat(value);
+			}
+			for (float value : triHeight) {
+				out.writeFloat(value);
+			}
+			for (int value : triVerts) {
+				out.writeInt(value);
+			}
+			for (int value : triNeigh) {
+				out.writeInt(value);
+			}
+			for (int value : gridIndex) {
+				out.writeInt(value);
+			}
+			for (int value : gridTriangles) {
+				out.writeInt(value);
+			}
+			out.close();
+			out = null;
+			// Another run may have written the same mesh
+			tempFile.renameTo(meshFile);
+		} catch (IOException ex) {
+			// The mesh will be built again by the next run
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException ex) {
+					// Nothing to do
+				}
+			}
+			if (tempFile != null && tempFile.exists()) {
+				tempFile.delete();
+			}
 		}
 	}
 
+	/**
+	 * Map a file written by writeMeshFile and copy its arrays into the mesh.
+	 * @return False if the file is not valid for this input, is corrupted or
+	 *         is too large to be mapped, the mesh is not changed.
+	 */
+	private boolean readMeshFile(File meshFile, byte[] meshKey) {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(meshFile, "r");
+			// A mapped buffer can not exceed Integer.MAX_VALUE bytes
+			if (file.length() > Integer.MAX_VALUE) {
+				return false;
+			}
+			ByteBuffer buffer = file.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, file.length());
+			final int headerSize = 3 * 4 + meshKey.length + 5 * 4 + 3 * 8;
+			if (buffer.remaining() < headerSize
+					|| buffer.getInt() != MESH_FILE_MAGIC
+					|| buffer.getInt() != MESH_FILE_VERSION
+					|| buffer.getInt() != meshKey.length) {
+				return false;
+			}
+			byte[] fileKey = new byte[meshKey.length];
+			buffer.get(fileKey);
+			if (!Arrays.equals(fileKey, meshKey)) {
+				return false;
+			}
+			int vertexCount = buffer.getInt();
+			int triCount = buffer.getInt();
+			int cols = buffer.getInt();
+			int rows = buffer.getInt();
+			int gridTriCount = buffer.getInt();
+			double minX = buffer.getDouble();
+			double minY = buffer.getDouble();
+			double cellSize = buffer.getDouble();
+			if (vertexCount < 0 || triCount < 0 || cols < 1 || rows < 1
+					|| gridTriCount < 0) {
+				return false;
+			}
+			long expectedSize = vertexCount * 4L * 8L + vertexCount * 4L
+					+ triCount * 4L + triCount * 6L * 4L
+					+ ((long) cols * rows + 1) * 4L + gridTriCount * 4L;
+			if (buffer.remaining() != expectedSize) {
+				return false;
+			}
+			double[] newXy = getDoubles(buffer, vertexCount * 2);
+			double[] newTranslated = getDoubles(buffer, vertexCount * 2);
+			float[] newOpenAngle = getFloats(buffer, vertexCount);
+			float[] newTriHeight = getFloats(buffer, triCount);
+			int[] newTriVerts = getInts(buffer, triCount * 3);
+			int[] newTriNeigh = getInts(buffer, triCount * 3);
+			int[] newGridIndex = getInts(buffer, cols * rows + 1);
+			int[] newGridTriangles = getInts(buffer, gridTriCount);
+			// A corrupted file must not give indices out of the arrays
+			if (!isInRange(newTriVerts, 0, vertexCount - 1)
+					|| !isInRange(newTriNeigh, -1, triCount - 1)
+					|| !isInRange(newGridIndex, 0, gridTriCount)
+					|| !isInRange(newGridTriangles, 0, triCount - 1)) {
+				return false;
+			}
+			for (int cell = 1; cell < newGridIndex.length; cell++) {
+				if (newGridIndex[cell] < newGridIndex[cell - 1]) {
+					return false;
+				}
+			}
+			triHeight = newTriHeight;
+			triVerts = newTriVerts;
+			triNeigh = newTriNeigh;
+			gridIndex = newGridIndex;
+			gridTriangles = newGridTriangles;
+			xy = newXy;
+			verticesOpenAngleTranslated = newTranslated;
+			verticesOpenAngle = newOpenAngle;
+			gridMinX = minX;
+			gridMinY = minY;
+			gridCellSize = cellSize;
+			gridCols = cols;
+			gridRows = rows;
+			return true;
+		} catch (IOException ex) {
+			return false;
+		} catch (RuntimeException ex) {
+			// Corrupted file, the mesh is built again
+			return false;
+		} finally {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException ex) {
+					// Nothing to do
+				}
+			}
+		}
+	}
+
+	private static boolean isInRange(int[] values, int min, int max) {
+		for (int value : values) {
+			if (value < min || value > max) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static double[] getDoubles(ByteBuffer buffer, int length) {
+		double[] values = new double[length];
+		buffer.asDoubleBuffer().get(values);
+		buffer.position(buffer.position() + length * 8);
+		return values;
+	}
+
+	private static float[] getFloats(ByteBuffer buffer, int length) {
+		float[] values = new float[length];
+		buffer.asFloatBuffer().get(values);
+		buffer.position(buffer.position() + length * 4);
+		return values;
+	}
+
+	private static int[] getInts(ByteBuffer buffer, int length) {
+		int[] values = new int[length];
+		buffer.asIntBuffer().get(values);
+		buffer.position(buffer.position() + length * 4);
+		return values;
+	}
+
+	/**
+	 * Distance between the propagation line and a side of a triangle, if the
+	 * side is closer than epsilon. Same value as new LineSegment(p1,
+	 * p2).distance(new LineSegment(a, b)) without allocation. Sides farther
+	 * than epsilon are rejected by bounding boxes and orientation tests.
+	 * 
+	 * @return Distance or Double.MAX_VALUE if the side is farther than
+	 *         epsilon
+	 */
+	private double sideDistance(MeshQueryContext context, Coordinate p1,
+			Coordinate p2, int vertexA, int vertexB) {
+		final double ax = xy[vertexA * 2];
+		final double ay = xy[vertexA * 2 + 1];
+		final double bx = xy[vertexB * 2];
+		final double by = xy[vertexB * 2 + 1];
+		if (Math.max(ax, bx) < Math.min(p1.x, p2.x) - epsilon
+				|| Math.min(ax, bx) > Math.max(p1.x, p2.x) + epsilon
+				|| Math.max(ay, by) < Math.min(p1.y, p2.y) - epsilon
+				|| Math.min(ay, by) > Math.max(p1.y, p2.y) + epsilon) {
+			return Double.MAX_VALUE;
+		}
+		// Both vertices of the side on the same side of the line, farther
+		// than epsilon: orientation = distance to the line * line length
+		double dx = p2.x - p1.x;
+		double dy = p2.y - p1.y;
+		double orientA = dx * (ay - p1.y) - dy * (ax - p1.x);
+		double orientB = dx * (by - p1.y) - dy * (bx - p1.x);
+		double minOrient = epsilon * 2 * Math.sqrt(dx * dx + dy * dy);
+		if ((orientA > minOrient && orientB > minOrient)
+				|| (orientA < -minOrient && orientB < -minOrient)) {
+			return Double.MAX_VALUE;
+		}
+		context.sideA.x = ax;
+		context.sideA.y = ay;
+		context.sideB.x = bx;
+		context.sideB.y = by;
+		return CGAlgorithms.distanceLineLine(p1, p2, context.sideA,
+				context.sideB);
+	}
+
 	/**
 	 * Compute the next triangle index.Find the shortest intersection point of
 	 * triIndex segments to the p1 coordinate
 	 * 
 	 * @param triIndex
 	 *            Triangle index
-	 * @param propagationLine
-	 *            Propagation line
+	 * @param p1
+	 *            Propagation line origin
+	 * @param p2
+	 *            Propagation line destination
+	 * @param context
+	 *            Triangles already visited hold context.navigationStamp
 	 * @return Next triangle to the specified direction, -1 if there is no
 	 *         triangle neighbor.
 	 */
-	private int getNextTri(final int triIndex,
-			final LineSegment propagationLine,
-			HashSet<Integer> navigationHistory) {
-		//NonRobustLineIntersector linters = new NonRobustLineIntersector();
-		final Triangle tri = this.triVertices.get(triIndex);
-		int nearestIntersectionSide = -1;
-                int idneigh;
-                double heightOfTri=this.triNeighbors.get(triIndex).getHeight();
-		double nearestIntersectionPtDist = Double.MAX_VALUE;
-		// Find intersection pt
-		final Coordinate aTri = this.vertices.get(tri.getA());
-		final Coordinate bTri = this.vertices.get(tri.getB());
-		final Coordinate cTri = this.vertices.get(tri.getC());
-		double distline_line;
-		// Intersection First Side
-                idneigh=this.triNeighbors.get(
-                                                triIndex).get(2);
-                //add: search triangle without height
-                if (idneigh!=-1 && !navigationHistory.contains(idneigh) && heightOfTri==0) {
-                    distline_line=propagationLine.distance(new LineSegment(aTri, bTri));
-                    if (distline_line<FastObstructionTest.epsilon &&
-                            distline_line < nearestIntersectionPtDist && this.triVertices.get(idneigh).getHeight()==0) {
-                        nearestIntersectionPtDist = distline_line;
-                        nearestIntersectionSide = 2;
-                    }
-                }
-		// Intersection Second Side
-                idneigh=this.triNeighbors.get(
-                                                triIndex).get(0);
-                if (idneigh!=-1 && !navigationHistory.contains(idneigh) && heightOfTri==0 ) {
-                    distline_line=propagationLine.distance(new LineSegment(bTri, cTri));
-                    if (distline_line<FastObstructionTest.epsilon &&
-                            distline_line < nearestIntersectionPtDist && this.triVertices.get(idneigh).getHeight()==0) {
-                            nearestIntersectionPtDist = distline_line;
-                            nearestIntersectionSide = 0;
-                    }
-                }
-
-		// Intersection Third Side
-                idneigh=this.triNeighbors.get(
-                                                triIndex).get(1);
-                if (idneigh!=-1 && !navigationHistory.contains(idneigh) && heightOfTri==0) {
-                    distline_line=propagationLine.distance(new LineSegment(cTri, aTri));
-                    if (distline_line<FastObstructionTest.epsilon &&
-                            distline_line < nearestIntersectionPtDist && this.triVertices.get(idneigh).getHeight()==0) {
-                            nearestIntersectionSide = 1;
-                    }
-                }
-		if (nearestIntersectionSide != -1) {
-			return this.triNeighbors.get(triIndex).get(nearestIntersectionSide);
+	private int getNextTri(final int triIndex, final Coordinate p1,
+			final Coordinate p2, final MeshQueryContext context) {
+		int side = getNextSide(triIndex, p1, p2, context, false);
+		if (side != -1) {
+			return triNeigh[triIndex * 3 + side];
 		} else {
 			return -1;
 		}
 	}
 
-/**
-	 * Compute the next triangle index.Find the shortest intersection point of
-	 * triIndex segments to the p1 coordinate and add the triangles in building to the list
-         * and add the point of intersection(between segment of source-reciver and segment of triangle) to the list
-	 * 
-	 * @param triIndex
-	 *            Triangle index
-	 * @param propagationLine
-	 *            Propagation line
+	/**
+	 * Find the side of the triangle crossed by the propagation line
 	 * 
+	 * @param crossBuildings
+	 *            If false the sides shared with a building are skipped
+	 * @return Side index, the side is the segment of the two other vertices,
+	 *         -1 if there is no triangle neighbor to the specified direction.
 	 */
-	private TriIdWithIntersection getTriList(final int triIndex,
-			final LineSegment propagationLine,
-			HashSet<Integer> navigationHistory) {
-		//NonRobustLineIntersector linters = new NonRobustLineIntersector();
-		final Triangle tri = this.triVertices.get(triIndex);
+	private int getNextSide(final int triIndex, final Coordinate p1,
+			final Coordinate p2, final MeshQueryContext context,
+			final boolean crossBuildings) {
+		final int[] navigationHistory = context.navigationHistory;
+		final int navigationStamp = context.navigationStamp;
+		final int firstVertex = triIndex * 3;
 		int nearestIntersectionSide = -1;
-                int idneigh;
 		double nearestIntersectionPtDist = Double.MAX_VALUE;
-		// Find intersection pt
-		final Coordinate aTri = this.vertices.get(tri.getA());
-		final Coordinate bTri = this.vertices.get(tri.getB());
-		final Coordinate cTri = this.vertices.get(tri.getC());
-		double distline_line;
-		// Intersection First Side
-                idneigh=this.triNeighbors.get(
-                                                triIndex).get(2);
-                Coordinate intersection=new Coordinate();
-                if (idneigh!=-1 && !navigationHistory.contains(idneigh)) {
-                    distline_line=propagationLine.distance(new LineSegment(aTri, bTri));
-                    if (distline_line<FastObstructionTest.epsilon &&
-                            distline_line < nearestIntersectionPtDist) {
-                        nearestIntersectionPtDist = distline_line;
-                        nearestIntersectionSide = 2;
-                        if(tri.getHeight()!=0||this.triVertices.get(this.triNeighbors.get(triIndex).get(nearestIntersectionSide)).getHeight()!=0){
-                        intersection=propagationLine.intersection(new LineSegment(aTri, bTri));
-                        }
-                    }
-                }
-		// Intersection Second Side
-                idneigh=this.triNeighbors.get(
-                                                triIndex).get(0);
-                if (idneigh!=-1 && !navigationHistory.contains(idneigh)) {
-                    distline_line=propagationLine.distance(new LineSegment(bTri, cTri));
-                    if (distline_line<FastObstructionTest.epsilon &&
-                            distline_line < nearestIntersectionPtDist) {
-                            nearestIntersectionPtDist = distline_line;
-                            nearestIntersectionSide = 0;
-                            if(tri.getHeight()!=0||this.triVertices.get(this.triNeighbors.get(triIndex).get(nearestIntersectionSide)).getHeight()!=0){
-                            intersection=propagationLine.intersection(new LineSegment(bTri, cTri));
-                            }
-                    }
-                }
-
-		// Intersection Third Side
-                idneigh=this.triNeighbors.get(
-                                                triIndex).get(1);
-                if (idneigh!=-1 && !navigationHistory.contains(idneigh)) {
-                    distline_line=propagationLine.distance(new LineSegment(cTri, aTri));
-                    if (distline_line<FastObstructionTest.epsilon &&
-                            distline_line < nearestIntersectionPtDist) {
-                            nearestIntersectionSide = 1;
-                            if(tri.getHeight()!=0||this.triVertices.get(this.triNeighbors.get(triIndex).get(nearestIntersectionSide)).getHeight()!=0){
-                            intersection=propagationLine.intersection(new LineSegment(cTri, aTri));
-                            }
-                    }
-                }
-                
-                int BuildingTriID=this.triNeighbors.get(triIndex).get(nearestIntersectionSide);
-                boolean triNeighborIsBuidling=false;
-                double nextTriHeight=this.triVertices.get(BuildingTriID).getHeight();
-                if(tri.getHeight()>0 &&(nextTriHeight>0)){
-                    //intersection is in the building
-                    triNeighborIsBuidling=true;
-                }
-                //add height to this intersection
-                if(tri.getHeight()==0&&nextTriHeight>0){
-                    intersection.z=nextTriHeight;
-                }
-                else if(tri.getHeight()>0&&nextTriHeight>0){
-                    intersection.z=Math.max(nextTriHeight, tri.getHeight());
-                }
-                else if(tri.getHeight()>0&&nextTriHeight==0){
-                    intersection.z=tri.getHeight();
-                }
-                else if(tri.getHeight()==0&&nextTriHeight==0){
-                    intersection.z=0.;
-                }
-                
-		if (nearestIntersectionSide != -1) {
-                    /*
-                    //if the nearest triangle in the building, save this triangle to building list
-                         if(this.triVertices.get(BuildingTriID).getHeight()!=0 &&!BuildingTriangleIndex.contains(BuildingTriID)){
-                              BuildingTriangleIndex.add(BuildingTriID);
-                         }
-                    //if intersection is not in the building, save this intersection to intersection list
-                    */    
-                    if(!triNeighborIsBuidling&&!intersection.equals3D(new Coordinate(0.0,0.0,Double.NaN))){
-                                  //every buidling whcih is between ray source-receiver have 2 intersections, 
-                                  //if the intersection is corner of the buiding, pointsIntersection will save 2 times with the same value  
-                                  return new TriIdWithIntersection(BuildingTriID,intersection);
-                    }
-                    else{
-                                  return new TriIdWithIntersection(BuildingTriID,new Coordinate(-1,-1,-1));
-                    }
-			 
-		} else {
-			 return new TriIdWithIntersection(-1,new Coordinate(-1,-1,-1));
+		// Sides in the order of the segments AB, BC, CA
+		for (int i = 0; i < 3; i++) {
+			final int side = (i + 2) % 3;
+			final int idneigh = triNeigh[firstVertex + side];
+			//add: search triangle without height
+			if (idneigh != -1 && navigationHistory[idneigh] != navigationStamp
+					&& (crossBuildings || triHeight[idneigh] == 0)) {
+				// The side is the segment of the two other vertices
+				double distline_line = sideDistance(context, p1, p2,
+						triVerts[firstVertex + (side + 1) % 3],
+						triVerts[firstVertex + (side + 2) % 3]);
+				if (distline_line < FastObstructionTest.epsilon
+						&& distline_line < nearestIntersectionPtDist) {
+					nearestIntersectionPtDist = distline_line;
+					nearestIntersectionSide = side;
+				}
+			}
 		}
-	}        
+		return nearestIntersectionSide;
+	}
+
 	/**
 	 * Fast dot in triangle test
 	 * 
@@ -455,16 +804,32 @@ public class FastObstructionTest {
 	 */
 	private boolean dotInTri(Coordinate p, Coordinate a, Coordinate b,
 			Coordinate c) {
-		Vector2D v0 = new Vector2D(c.x - a.x, c.y - a.y);
-		Vector2D v1 = new Vector2D(b.x - a.x, b.y - a.y);
-		Vector2D v2 = new Vector2D(p.x - a.x, p.y - a.y);
+		return dotInTri(p.x, p.y, a.x, a.y, b.x, b.y, c.x, c.y);
+	}
+
+	/**
+	 * Fast dot in triangle test of the triangle of the mesh
+	 */
+	private boolean dotInTri(Coordinate p, int triIndex) {
+		final int a = triVerts[triIndex * 3] * 2;
+		final int b = triVerts[triIndex * 3 + 1] * 2;
+		final int c = triVerts[triIndex * 3 + 2] * 2;
+		return dotInTri(p.x, p.y, xy[a], xy[a + 1], xy[b], xy[b + 1], xy[c],
+				xy[c + 1]);
+	}
+
+	private static boolean dotInTri(double px, double py, double ax,
+			double ay, double bx, double by, double cx, double cy) {
+		double v0x = cx - ax, v0y = cy - ay;
+		double v1x = bx - ax, v1y = by - ay;
+		double v2x = px - ax, v2y = py - ay;
 
 		// Compute dot products
-		double dot00 = v0.dot(v0);
-		double dot01 = v0.dot(v1);
-		double dot02 = v0.dot(v2);
-		double dot11 = v1.dot(v1);
-		double dot12 = v1.dot(v2);
+		double dot00 = v0x * v0x + v0y * v0y;
+		double dot01 = v0x * v1x + v0y * v1y;
+		double dot02 = v0x * v2x + v0y * v2y;
+		double dot11 = v1x * v1x + v1y * v1y;
+		double dot12 = v1x * v2x + v1y * v2y;
 
 		// Compute barycentric coordinates
 		double invDenom = 1 / (dot00 * dot11 - dot01 * dot01);
@@ -478,33 +843,120 @@ public class FastObstructionTest {
 	}
 
 	Coordinate[] getTriangle(int triIndex) {
-		final Triangle tri = this.triVertices.get(triIndex);
-		Coordinate[] coords = { this.vertices.get(tri.getA()),
-				this.vertices.get(tri.getB()), this.vertices.get(tri.getC()) };
+		Coordinate[] coords = { getVertex(triVerts[triIndex * 3]),
+				getVertex(triVerts[triIndex * 3 + 1]),
+				getVertex(triVerts[triIndex * 3 + 2]) };
 		return coords;
 	}
 
+	/**
+	 * Envelope of the triangle in the location grid, {minCol,minRow,maxCol,maxRow}
+	 */
+	private void getGridRange(int triIndex, int[] range) {
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for (int i = 0; i < 3; i++) {
+			int vertex = triVerts[triIndex * 3 + i];
+			minX = Math.min(minX, xy[vertex * 2]);
+			maxX = Math.max(maxX, xy[vertex * 2]);
+			minY = Math.min(minY, xy[vertex * 2 + 1]);
+			maxY = Math.max(maxY, xy[vertex * 2 + 1]);
+		}
+		range[0] = getGridCol(minX);
+		range[1] = getGridRow(minY);
+		range[2] = getGridCol(maxX);
+		range[3] = getGridRow(maxY);
+	}
+
+	private int getGridCol(double x) {
+		return Math.max(0, Math.min(gridCols - 1,
+				(int) ((x - gridMinX) / gridCellSize)));
+	}
+
+	private int getGridRow(double y) {
+		return Math.max(0, Math.min(gridRows - 1,
+				(int) ((y - gridMinY) / gridCellSize)));
+	}
+
+	/**
+	 * Build the uniform grid used to find the triangle of a coordinate. The
+	 * grid has about one cell by triangle.
+	 */
+	private void buildLocationGrid() {
+		int vertexCount = xy.length / 2;
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for (int idvert = 0; idvert < vertexCount; idvert++) {
+			minX = Math.min(minX, xy[idvert * 2]);
+			maxX = Math.max(maxX, xy[idvert * 2]);
+			minY = Math.min(minY, xy[idvert * 2 + 1]);
+			maxY = Math.max(maxY, xy[idvert * 2 + 1]);
+		}
+		int triCount = triHeight.length;
+		gridMinX = minX;
+		gridMinY = minY;
+		double width = Math.max(maxX - minX, epsilon);
+		double height = Math.max(maxY - minY, epsilon);
+		gridCellSize = Math.sqrt(width * height / Math.max(1, triCount));
+		gridCols = Math.max(1, (int) Math.ceil(width / gridCellSize));
+		gridRows = Math.max(1, (int) Math.ceil(height / gridCellSize));
+		if (vertexCount == 0) {
+			gridCols = 1;
+			gridRows = 1;
+		}
+		// Count the triangles of each cell, then fill
+		gridIndex = new int[gridCols * gridRows + 1];
+		int[] range = new int[4];
+		for (int triind = 0; triind < triCount; triind++) {
+			getGridRange(triind, range);
+			for (int row = range[1]; row <= range[3]; row++) {
+				for (int col = range[0]; col <= range[2]; col++) {
+					gridIndex[row * gridCols + col + 1]++;
+				}
+			}
+		}
+		for (int cell = 0; cell < gridCols * gridRows; cell++) {
+			gridIndex[cell + 1] += gridIndex[cell];
+		}
+		gridTriangles = new int[gridIndex[gridCols * gridRows]];
+		int[] fill = Arrays.copyOf(gridIndex, gridCols * gridRows);
+		for (int triind = 0; triind < triCount; triind++) {
+			getGridRange(triind, range);
+			for (int row = range[1]; row <= range[3]; row++) {
+				for (int col = range[0]; col <= range[2]; col++) {
+					gridTriangles[fill[row * gridCols + col]++] = triind;
+				}
+			}
+		}
+	}
+
 	/**
 	 * Return the triangle id from a point coordinate inside the triangle
 	 * 
 	 * @param pt
+	 * @param context Keep the last found triangle, may be null
 	 * @return Triangle Id, Or -1 if no triangle has been found
 	 */
 
-	private int getTriangleIdByCoordinate(Coordinate pt) {
+	private int getTriangleIdByCoordinate(Coordinate pt,
+			MeshQueryContext context) {
 		// Shortcut, test if the last found triangle contain this point, if not
-		// use the quadtree
-		Coordinate[] trit = getTriangle(lastFountPointTriTest);
-		if (dotInTri(pt, trit[0], trit[1], trit[2])) {
-			return lastFountPointTriTest;
-		}
-		Envelope ptEnv = new Envelope(pt);
-		Iterator<Integer> res = triIndex.query(new Envelope(ptEnv));
-		while (res.hasNext()) {
-                        int triId = res.next();
-			Coordinate[] tri = getTriangle(triId);
-			if (dotInTri(pt, tri[0], tri[1], tri[2])) {
-				lastFountPointTriTest = triId;
+		// use the grid
+		if (context != null && dotInTri(pt, context.lastFountPointTriTest)) {
+			return context.lastFountPointTriTest;
+		}
+		if (pt.x < gridMinX || pt.y < gridMinY
+				|| pt.x > gridMinX + gridCols * gridCellSize
+				|| pt.y > gridMinY + gridRows * gridCellSize) {
+			return -1;
+		}
+		int cell = getGridRow(pt.y) * gridCols + getGridCol(pt.x);
+		for (int i = gridIndex[cell]; i < gridIndex[cell + 1]; i++) {
+			int triId = gridTriangles[i];
+			if (dotInTri(pt, triId)) {
+				if (context != null) {
+					context.lastFountPointTriTest = triId;
+				}
 				return triId;
 			}
 		}
@@ -589,179 +1041,511 @@ public class FastObstructionTest {
 	 * @return List of corners within parameters range
 	 */
 	public List<Coordinate> getWideAnglePoints(double minAngle, double maxAngle) {
-		List<Coordinate> wideAnglePts = new ArrayList<Coordinate>(
-				vertices.size());
+		return getWideAnglePoints(minAngle, maxAngle, null);
+	}
+
+	/**
+	 * 
+	 * @param minAngle
+	 *            Minimum angle [0-2Pi]
+	 * @param maxAngle
+	 *            Maximum angle [0-2Pi]
+	 * @param filter
+	 *            Keep only the corners inside this envelope, null to keep all
+	 *            corners
+	 * @return List of corners within parameters range
+	 */
+	@Override
+	public synchronized List<Coordinate> getWideAnglePoints(double minAngle,
+			double maxAngle, Envelope filter) {
 		if (verticesOpenAngle == null) {
-			verticesOpenAngle = new ArrayList<Float>(vertices.size()); // Reserve
-																		// size
-			verticesOpenAngleTranslated = new ArrayList<Coordinate>(
-					vertices.size());
-			// Vertex open angle. For each vertex
-			// [ccwmin,ccwmax,ccwmin,ccwmax,..]
-			ArrayList<ArrayList<Double>> verticesOpenAnglesTuples = new ArrayList<ArrayList<Double>>(
-					vertices.size());
-			for (int idvert = 0; idvert < vertices.size(); idvert++) {
-				verticesOpenAngle.add(0.f);
-				verticesOpenAnglesTuples.add(new ArrayList<Double>());
-			}
-			int triId = 0;
-                        
-			for (Triangle tri : this.triVertices) {
-                            if(tri.getHeight()<=0){
-				// Compute angle at each corner, then add to vertices angle
-				// array
-				Coordinate triA = vertices.get(tri.getA());
-				Coordinate triB = vertices.get(tri.getB());
-				Coordinate triC = vertices.get(tri.getC());
-				// Add A vertex min/max angle
-				updateMinMax(tri.getA(), triA, triB, triC,
-						verticesOpenAnglesTuples);
-				verticesOpenAngle.set(tri.getA(),
-						(float) (verticesOpenAngle.get(tri.getA()) + Angle
-								.angleBetween(triB, triA, triC)));
-				// Add B vertex angle
-				updateMinMax(tri.getB(), triB, triC, triA,
-						verticesOpenAnglesTuples);
-				verticesOpenAngle.set(tri.getB(),
-						(float) (verticesOpenAngle.get(tri.getB()) + Angle
-								.angleBetween(triA, triB, triC)));
-				// Add C vertex angle
-				updateMinMax(tri.getC(), triC, triA, triB,
-						verticesOpenAnglesTuples);
-				verticesOpenAngle.set(tri.getC(),
-						(float) (verticesOpenAngle.get(tri.getC()) + Angle
-								.angleBetween(triB, triC, triA)));
-				triId++;
-			}
-
-			for (int idvert = 0; idvert < vertices.size(); idvert++) {
-				// Compute median angle of open angle point
-				ArrayList<Double> curvert = verticesOpenAnglesTuples
-						.get(idvert);
-				Coordinate curVert = vertices.get(idvert);
-				if (curvert.size() == 2) {
-					double ccw1 = curvert.get(0);
-					double ccw2 = curvert.get(1);
-					if (ccw1 > ccw2) {
-						ccw1 = ccw1 - (2 * Math.PI);
-					}
-					double midAngle = ((ccw2 - ccw1) / 2.) + ccw1;
-					verticesOpenAngleTranslated.add(new Coordinate(curVert.x
-							+ (Math.cos(midAngle) * wideAngleTranslationEpsilon), curVert.y
-							+ (Math.sin(midAngle) * wideAngleTranslationEpsilon)));
-				} else {
-					verticesOpenAngleTranslated.add(curVert);
-				}
-			}
-                        }
+			computeVerticesOpenAngle();
 		}
-		int idvert = 0;
-		for (Float angleVertex : verticesOpenAngle) {
+		List<Coordinate> wideAnglePts = new ArrayList<Coordinate>(
+				verticesOpenAngle.length);
+		for (int idvert = 0; idvert < verticesOpenAngle.length; idvert++) {
+			float angleVertex = verticesOpenAngle[idvert];
 			if (angleVertex >= minAngle && angleVertex <= maxAngle) {
-				wideAnglePts.add(verticesOpenAngleTranslated.get(idvert));
+				Coordinate corner = new Coordinate(
+						verticesOpenAngleTranslated[idvert * 2],
+						verticesOpenAngleTranslated[idvert * 2 + 1]);
+				if (filter == null || filter.contains(corner)) {
+					wideAnglePts.add(corner);
+				}
 			}
-			idvert++;
 		}
 		return wideAnglePts;
 	}
 
 	/**
-	 * Compute the list of segments corresponding to holes and domain limitation
+	 * Sums at each vertex of the free field triangles of a range
+	 */
+	private final class OpenAngleSum implements Runnable {
+		private final int triBegin;
+		private final int triEnd;
+		// Open angle
+		private final double[] angle;
+		// Integral of the unit vector over the open angle, x,y
+		private final double[] sector;
+		// Count of open angle ranges beginning on a wall
+		private final int[] wallStart;
+
+		OpenAngleSum(int triBegin, int triEnd, int vertexCount) {
+			this.triBegin = triBegin;
+			this.triEnd = triEnd;
+			angle = new double[vertexCount];
+			sector = new double[vertexCount * 2];
+			wallStart = new int[vertexCount];
+		}
+
+		@Override
+		public void run() {
+			for (int triIndex = triBegin; triIndex < triEnd; triIndex++) {
+				if (triHeight[triIndex] != 0) {
+					continue;
+				}
+				for (int corner = 0; corner < 3; corner++) {
+					addCorner(triIndex, corner);
+				}
+			}
+		}
+
+		/**
+		 * The triangles are CCW, the open angle of the corner goes from the
+		 * next vertex to the previous vertex.
+		 */
+		private void addCorner(int triIndex, int corner) {
+			int vertex = triVerts[triIndex * 3 + corner];
+			int next = triVerts[triIndex * 3 + (corner + 1) % 3] * 2;
+			int previous = triVerts[triIndex * 3 + (corner + 2) % 3] * 2;
+			double x = xy[vertex * 2];
+			double y = xy[vertex * 2 + 1];
+			double u1x = xy[next] - x;
+			double u1y = xy[next + 1] - y;
+			double u2x = xy[previous] - x;
+			double u2y = xy[previous + 1] - y;
+			double u1Length = Math.sqrt(u1x * u1x + u1y * u1y);
+			double u2Length = Math.sqrt(u2x * u2x + u2y * u2y);
+			if (u1Length == 0 || u2Length == 0) {
+				return;
+			}
+			u1x /= u1Length;
+			u1y /= u1Length;
+			u2x /= u2Length;
+			u2y /= u2Length;
+			angle[vertex] += Math.abs(Math.atan2(u1x * u2y - u1y * u2x, u1x
+					* u2x + u1y * u2y));
+			// Integral of (cos,sin) from the direction u1 to u2
+			sector[vertex * 2] += u2y - u1y;
+			sector[vertex * 2 + 1] += u1x - u2x;
+			// The side vertex-next is opposite to the previous vertex
+			int idneigh = triNeigh[triIndex * 3 + (corner + 2) % 3];
+			if (idneigh == -1 || triHeight[idneigh] != 0) {
+				wallStart[vertex]++;
+			}
+		}
+
+		void add(OpenAngleSum other) {
+			for (int i = 0; i < angle.length; i++) {
+				angle[i] += other.angle[i];
+				wallStart[i] += other.wallStart[i];
+			}
+			for (int i = 0; i < sector.length; i++) {
+				sector[i] += other.sector[i];
+			}
+		}
+	}
+
+	/**
+	 * Compute the open angle of each vertex and the corner position, translated
+	 * toward the free field. Each free field triangle adds its corners to
+	 * the sums of its vertices in a single pass, by ranges of triangles on
+	 * cornersExecutor. A corner with a single open angle range is translated
+	 * toward the middle of the range, the direction of the integral of the
+	 * unit vector over the range.
+	 */
+	private void computeVerticesOpenAngle() {
+		int vertexCount = xy.length / 2;
+		int triCount = triHeight.length;
+		int taskCount = 1;
+		if (cornersExecutor != null) {
+			taskCount = (int) Math.min(Runtime.getRuntime()
+					.availableProcessors(), (triCount
+					+ OPEN_ANGLE_TASK_TRIANGLES - 1)
+					/ OPEN_ANGLE_TASK_TRIANGLES);
+			taskCount = Math.max(1, taskCount);
+		}
+		List<OpenAngleSum> tasks = new ArrayList<OpenAngleSum>(taskCount);
+		for (int idTask = 0; idTask < taskCount; idTask++) {
+			tasks.add(new OpenAngleSum(
+					(int) ((long) triCount * idTask / taskCount),
+					(int) ((long) triCount * (idTask + 1) / taskCount),
+					vertexCount));
+		}
+		if (taskCount == 1) {
+			tasks.get(0).run();
+		} else {
+			runAll(tasks);
+		}
+		OpenAngleSum sum = tasks.get(0);
+		for (int idTask = 1; idTask < taskCount; idTask++) {
+			sum.add(tasks.get(idTask));
+		}
+		// Keep the corners in arrays
+		float[] angles = new float[vertexCount];
+		double[] translated = new double[vertexCount * 2];
+		for (int idvert = 0; idvert < vertexCount; idvert++) {
+			angles[idvert] = (float) sum.angle[idvert];
+			translated[idvert * 2] = xy[idvert * 2];
+			translated[idvert * 2 + 1] = xy[idvert * 2 + 1];
+			double sx = sum.sector[idvert * 2];
+			double sy = sum.sector[idvert * 2 + 1];
+			double sLength = Math.sqrt(sx * sx + sy * sy);
+			if (sum.wallStart[idvert] == 1 && sLength > 0) {
+				translated[idvert * 2] += sx / sLength
+						* wideAngleTranslationEpsilon;
+				translated[idvert * 2 + 1] += sy / sLength
+						* wideAngleTranslationEpsilon;
+			}
+		}
+		verticesOpenAngleTranslated = translated;
+		verticesOpenAngle = angles;
+	}
+
+	/**
+	 * Run the tasks on cornersExecutor and wait for them
+	 */
+	private void runAll(List<? extends Runnable> tasks) {
+		List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+		for (Runnable task : tasks) {
+			futures.add(cornersExecutor.submit(task));
+		}
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException ex) {
+			for (Future<?> future : futures) {
+				future.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Open angle computation interrupted", ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw new IllegalStateException(ex.getCause());
+		}
+	}
+
+	/**
+	 * Stack of the sectors of the visibility polygon in expansion. A window
+	 * is the triangle to expand, its entry side and the limits of the sector
+	 * seen through this side.
+	 */
+	private static final class IsovistWindows {
+		private int size = 0;
+		// Triangle, right vertex and left vertex of the entry side
+		private int[] sides = new int[16 * 3];
+		// Limits of the sector, right x,y then left x,y
+		private double[] limits = new double[16 * 4];
+
+		private boolean isEmpty() {
+			return size == 0;
+		}
+
+		private void push(int triangle, int rightVertex, int leftVertex,
+				double rightX, double rightY, double leftX, double leftY) {
+			if (size * 3 == sides.length) {
+				sides = Arrays.copyOf(sides, sides.length * 2);
+				limits = Arrays.copyOf(limits, limits.length * 2);
+			}
+			sides[size * 3] = triangle;
+			sides[size * 3 + 1] = rightVertex;
+			sides[size * 3 + 2] = leftVertex;
+			limits[size * 4] = rightX;
+			limits[size * 4 + 1] = rightY;
+			limits[size * 4 + 2] = leftX;
+			limits[size * 4 + 3] = leftY;
+			size++;
+		}
+
+		/**
+		 * @return Index of the removed window, its values are kept until the
+		 *         next push
+		 */
+		private int pop() {
+			return --size;
+		}
+	}
+
+	/**
+	 * @return Positive if b is counter-clockwise from a, seen from origin
+	 */
+	private static double orientation(double originX, double originY,
+			double ax, double ay, double bx, double by) {
+		return (ax - originX) * (by - originY) - (ay - originY)
+				* (bx - originX);
+	}
+
+	/**
+	 * @return Distance between the point p and the segment ab, same value as
+	 *         new LineSegment(a, b).distance(p) without allocation
+	 */
+	private static double segmentDistance(double px, double py, double ax,
+			double ay, double bx, double by) {
+		double dx = bx - ax;
+		double dy = by - ay;
+		double lengthSq = dx * dx + dy * dy;
+		double t = 0;
+		if (lengthSq > 0) {
+			t = Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy)
+					/ lengthSq));
+		}
+		double cx = ax + t * dx - px;
+		double cy = ay + t * dy - py;
+		return Math.sqrt(cx * cx + cy * cy);
+	}
+
+	/**
+	 * @return True if the propagation can go through the side of the
+	 *         triangle, same rule as getNextTri
+	 */
+	private boolean isSideOpen(int triIndex, int side) {
+		int idneigh = triNeigh[triIndex * 3 + side];
+		return idneigh != -1 && triHeight[triIndex] == 0
+				&& triHeight[idneigh] == 0;
+	}
+
+	/**
+	 * Process a side of a triangle seen by the origin between right and left.
+	 * The triangle on the other side is pushed for expansion, or the sector
+	 * is closed by this side.
+	 */
+	private void expandIsovistSide(Isovist isovist, double maxDist,
+			IsovistWindows windows, int triIndex, int rightVertex,
+			int leftVertex, double rightX, double rightY, double leftX,
+			double leftY) {
+		Coordinate origin = isovist.getOrigin();
+		if (orientation(origin.x, origin.y, rightX, rightY, leftX, leftY) <= 0) {
+			return; // Empty sector
+		}
+		// Side index is the index of the opposite vertex
+		int side = 0;
+		while (triVerts[triIndex * 3 + side] == rightVertex
+				|| triVerts[triIndex * 3 + side] == leftVertex) {
+			side++;
+		}
+		double ax = xy[rightVertex * 2];
+		double ay = xy[rightVertex * 2 + 1];
+		double bx = xy[leftVertex * 2];
+		double by = xy[leftVertex * 2 + 1];
+		if (isSideOpen(triIndex, side)) {
+			if (segmentDistance(origin.x, origin.y, ax, ay, bx, by) <= maxDist) {
+				windows.push(triNeigh[triIndex * 3 + side], rightVertex,
+						leftVertex, rightX, rightY, leftX, leftY);
+			} else {
+				isovist.addSector(rightX, rightY, leftX, leftY, ax, ay, bx, by,
+						false);
+			}
+		} else {
+			isovist.addSector(rightX, rightY, leftX, leftY, ax, ay, bx, by,
+					true);
+		}
+	}
+
+	/**
+	 * Compute the visibility polygon of a point, by expansion of the
+	 * triangles seen from the origin. Each triangle is entered through one
+	 * side and the sector visible through this side is split by the opposite
+	 * vertex.
 	 * 
+	 * @param origin
+	 *            Origin of the visibility polygon
 	 * @param maxDist
-	 *            Maximum distance from origin to segments
-	 * @param p1
-	 *            Origin of search
-	 * @return List of segment
-	 */
-	public LinkedList<LineSegment> getLimitsInRange(double maxDist,
-			Coordinate p1) {
-		LinkedList<LineSegment> walls = new LinkedList<LineSegment>();
-		int curTri = getTriangleIdByCoordinate(p1);
-		int nextTri = -1;
-		short firstSide = 0;
-		HashSet<Integer> navigationHistory = new HashSet<Integer>(); // List all
-																		// triangles
-																		// already
-																		// processed
-		Stack<Integer> navigationNodes = new Stack<Integer>(); // List the
-																// current queue
-																// of triangles
-																// the process
-																// go through
-		Stack<Short> navigationSide = new Stack<Short>(); //History of current processing side
-		
-		while (curTri != -1) {
-			navigationHistory.add(curTri);
-			// for each side of the triangle
-			Triangle neighboors = this.triNeighbors.get(curTri);
-			nextTri = -1;
-			for (short idside = firstSide; idside < 3; idside++) {
-				if (!navigationHistory.contains(neighboors.get(idside))) {
-					IntSegment segVerticesIndex = this.triVertices.get(curTri)
-							.getSegment(idside);
-					LineSegment side = new LineSegment(
-							this.vertices.get(segVerticesIndex.getA()),
-							this.vertices.get(segVerticesIndex.getB()));
-					Coordinate closestPoint = side.closestPoint(p1);
-					if (closestPoint.distance(p1) <= maxDist) {
-						// In this direction there is a hole or this is outside
-						// of the geometry
-						if (neighboors.get(idside) == -1) {
-							walls.add(side);
-						} else {
-							// Store currentTriangle Id. This is where to go
-							// back when there is no more navigable neighbors at
-							// the next triangle
-							navigationNodes.add(curTri);
-							navigationSide.add(idside);
-							firstSide=0;
-							nextTri = neighboors.get(idside);
-							break; // Next triangle
-						}
+	 *            Triangles farther than this distance are not expanded
+	 * @return The visibility polygon or null if the origin is not in the free
+	 *         field or too close to a triangle side
+	 */
+	@Override
+	public Isovist getIsovist(Coordinate origin, double maxDist) {
+		int curTri = getTriangleIdByCoordinate(origin, null);
+		if (curTri == -1 || triHeight[curTri] != 0) {
+			return null;
+		}
+		Isovist isovist = new Isovist(origin, maxDist);
+		IsovistWindows windows = new IsovistWindows();
+		// Sides of the first triangle, in counter-clockwise order
+		int firstVertex = curTri * 3;
+		int va = triVerts[firstVertex];
+		int vb = triVerts[firstVertex + 1];
+		int vc = triVerts[firstVertex + 2];
+		boolean ccw = orientation(xy[va * 2], xy[va * 2 + 1], xy[vb * 2],
+				xy[vb * 2 + 1], xy[vc * 2], xy[vc * 2 + 1]) > 0;
+		for (int idside = 0; idside < 3; idside++) {
+			// The side is opposite to the vertex idside
+			int sideA = triVerts[firstVertex + (idside + 1) % 3];
+			int sideB = triVerts[firstVertex + (idside + 2) % 3];
+			int right = ccw ? sideA : sideB;
+			int left = ccw ? sideB : sideA;
+			double rightX = xy[right * 2];
+			double rightY = xy[right * 2 + 1];
+			double leftX = xy[left * 2];
+			double leftY = xy[left * 2 + 1];
+			if (segmentDistance(origin.x, origin.y, rightX, rightY, leftX,
+					leftY) < epsilon) {
+				return null;
+			}
+			expandIsovistSide(isovist, maxDist, windows, curTri, right, left,
+					rightX, rightY, leftX, leftY);
+		}
+		while (!windows.isEmpty()) {
+			int window = windows.pop();
+			int triangle = windows.sides[window * 3];
+			int rightVertex = windows.sides[window * 3 + 1];
+			int leftVertex = windows.sides[window * 3 + 2];
+			double rightX = windows.limits[window * 4];
+			double rightY = windows.limits[window * 4 + 1];
+			double leftX = windows.limits[window * 4 + 2];
+			double leftY = windows.limits[window * 4 + 3];
+			firstVertex = triangle * 3;
+			int opposite = 0;
+			while (triVerts[firstVertex + opposite] == rightVertex
+					|| triVerts[firstVertex + opposite] == leftVertex) {
+				opposite++;
+			}
+			int oppositeVertex = triVerts[firstVertex + opposite];
+			double oppositeX = xy[oppositeVertex * 2];
+			double oppositeY = xy[oppositeVertex * 2 + 1];
+			if (orientation(origin.x, origin.y, rightX, rightY, oppositeX,
+					oppositeY) <= 0) {
+				// Opposite vertex is at the right of the sector
+				expandIsovistSide(isovist, maxDist, windows, triangle,
+						oppositeVertex, leftVertex, rightX, rightY, leftX,
+						leftY);
+			} else if (orientation(origin.x, origin.y, oppositeX, oppositeY,
+					leftX, leftY) <= 0) {
+				// Opposite vertex is at the left of the sector
+				expandIsovistSide(isovist, maxDist, windows, triangle,
+						rightVertex, oppositeVertex, rightX, rightY, leftX,
+						leftY);
+			} else {
+				// The opposite vertex split the sector
+				expandIsovistSide(isovist, maxDist, windows, triangle,
+						rightVertex, oppositeVertex, rightX, rightY,
+						oppositeX, oppositeY);
+				expandIsovistSide(isovist, maxDist, windows, triangle,
+						oppositeVertex, leftVertex, oppositeX, oppositeY,
+						leftX, leftY);
+			}
+		}
+		isovist.finish();
+		return isovist;
+	}
+
+	/**
+	 * Retrieve the sides of free field triangles without free field neighbor.
+	 * These are the walls of buildings and the limits of the mesh.
+	 * 
+	 * @return Segments oriented like the sides of the triangles
+	 */
+	public List<LineSegment> getWalls() {
+		List<LineSegment> walls = new ArrayList<LineSegment>();
+		for (int triIndex = 0; triIndex < triHeight.length; triIndex++) {
+			addWalls(triIndex, null, walls);
+		}
+		return walls;
+	}
+
+	/**
+	 * Retrieve the sides of free field triangles without free field neighbor
+	 * within an envelope.
+	 * 
+	 * @param filter
+	 *            Keep only the walls intersecting this envelope
+	 * @return Segments oriented like the sides of the triangles
+	 */
+	@Override
+	public List<LineSegment> getWalls(Envelope filter) {
+		List<LineSegment> walls = new ArrayList<LineSegment>();
+		if (filter.isNull()) {
+			return walls;
+		}
+		int minCol = getGridCol(filter.getMinX());
+		int maxCol = getGridCol(filter.getMaxX());
+		int minRow = getGridRow(filter.getMinY());
+		int maxRow = getGridRow(filter.getMaxY());
+		int[] range = new int[4];
+		for (int row = minRow; row <= maxRow; row++) {
+			for (int col = minCol; col <= maxCol; col++) {
+				int cell = row * gridCols + col;
+				for (int i = gridIndex[cell]; i < gridIndex[cell + 1]; i++) {
+					int triIndex = gridTriangles[i];
+					// Process the triangle in the first cell shared with the
+					// filter only
+					getGridRange(triIndex, range);
+					if (Math.max(range[0], minCol) == col
+							&& Math.max(range[1], minRow) == row) {
+						addWalls(triIndex, filter, walls);
 					}
 				}
 			}
-			if (nextTri == -1 && !navigationNodes.empty()) {
-				// All the side have been rejected, go back by one on the
-				// navigation
-				nextTri = navigationNodes.pop();
-				firstSide = navigationSide.pop();
-			}
-			curTri = nextTri;
 		}
 		return walls;
 	}
 
+	private void addWalls(int triIndex, Envelope filter, List<LineSegment> walls) {
+		if (triHeight[triIndex] != 0) {
+			return; // Walls are the sides of the free field
+		}
+		for (int idside = 0; idside < 3; idside++) {
+			int idneigh = triNeigh[triIndex * 3 + idside];
+			if (idneigh == -1 || triHeight[idneigh] != 0) {
+				// The side is the segment of the two other vertices
+				Coordinate p0 = getVertex(triVerts[triIndex * 3 + (idside + 1) % 3]);
+				Coordinate p1 = getVertex(triVerts[triIndex * 3 + (idside + 2) % 3]);
+				if (filter == null || filter.intersects(new Envelope(p0, p1))) {
+					walls.add(new LineSegment(p0, p1));
+				}
+			}
+		}
+	}
+
         /*
          * compute diffraction.
          */
+	@Override
 	public boolean isFreeField(Coordinate p1, Coordinate p2) {
-		nbObstructionTest++;
-		LineSegment propaLine = new LineSegment(p1, p2);
-                
-		int curTri = getTriangleIdByCoordinate(p1);
-		HashSet<Integer> navigationHistory = new HashSet<Integer>();
-                if(this.triVertices.get(curTri).getHeight()!=-1.){
-                    while (curTri != -1) {
-                            navigationHistory.add(curTri);
-                            Coordinate[] tri = getTriangle(curTri);
-                            if (dotInTri(p2, tri[0], tri[1], tri[2])) {
-                                    return true;
-                            }
-                            curTri = this.getNextTri(curTri, propaLine, navigationHistory);              
-                    }
-                    return false;
-	        }
-                else{
-                    return false;
-                }
-        }
+		synchronized (defaultContext) {
+			return isFreeField(defaultContext, p1, p2);
+		}
+	}
+
+	@Override
+	public boolean isFreeField(QueryContext queryContext, Coordinate p1,
+			Coordinate p2) {
+		MeshQueryContext context = (MeshQueryContext) queryContext;
+		context.nbObstructionTest++;
+		int curTri = getTriangleIdByCoordinate(p1, context);
+		if (curTri == -1 || triHeight[curTri] != 0) {
+			return false;
+		}
+		int navigationStamp = context.nextNavigationStamp(triHeight.length);
+		int[] navigationHistory = context.navigationHistory;
+		while (curTri != -1) {
+			navigationHistory[curTri] = navigationStamp;
+			if (dotInTri(p2, curTri)) {
+				return true;
+			}
+			curTri = this.getNextTri(curTri, p1, p2, context);
+		}
+		return false;
+	}
         
         
         /*
          * 
-         * get the distance of all intersections (after the filtration by algo Jarvis March)  between the source and the receiver to compute vertical diffraction 
+         * get the distance of all intersections (after the filtration by the upper hull) between the source and the receiver to compute vertical diffraction 
          * must called after finishPolygonFeeding
 	 * @param p1
 	 *            Coordiante receiver
@@ -775,89 +1559,118 @@ public class FastObstructionTest {
          *         if Double[0],Double[1],Double[2],Double[3] are -1. then no usefull intersections.
          */
         public Double[] getPath(Coordinate p1, Coordinate p2) {
-		//BuildingTriangleIndex.clear();
-                
-                Double[] data=new Double[4];
-		LineSegment propaLine = new LineSegment(p1, p2);
-		int curTri = getTriangleIdByCoordinate(p1);
-                LinkedList<Coordinate> pointsIntersection= new LinkedList<Coordinate>();
-		HashSet<Integer> navigationHistory = new HashSet<Integer>();
+		double[] pathData = new double[4];
+		if (getPath(p1, p2, pathData)) {
+			Arrays.fill(pathData, -1.);
+		}
+		Double[] data = new Double[4];
+		for (int i = 0; i < 4; i++) {
+			data[i] = pathData[i];
+		}
+		return data;
+	}
+
+	@Override
+	public boolean getPath(Coordinate p1, Coordinate p2, double[] pathData) {
+		synchronized (defaultContext) {
+			return getPath(defaultContext, p1, p2, pathData);
+		}
+	}
+
+	@Override
+	public boolean getPath(QueryContext queryContext, Coordinate p1,
+			Coordinate p2, double[] pathData) {
+		MeshQueryContext context = (MeshQueryContext) queryContext;
+		context.nbObstructionTest++;
+		int curTri = getTriangleIdByCoordinate(p1, context);
+		double length = p1.distance(p2);
+		// The profile is in the vertical plane of the ray, x is the distance
+		// from p1 and y the height
+		context.hullCount = 0;
+		context.pushHullPoint(0, Double.isNaN(p1.z) ? 0 : p1.z);
+		int navigationStamp = context.nextNavigationStamp(triHeight.length);
+		int[] navigationHistory = context.navigationHistory;
+		boolean reachedP2 = false;
 		while (curTri != -1) {
-			navigationHistory.add(curTri);
-			Coordinate[] tri = getTriangle(curTri);
-			if (dotInTri(p2, tri[0], tri[1], tri[2])) {
+			navigationHistory[curTri] = navigationStamp;
+			if (dotInTri(p2, curTri)) {
+				reachedP2 = true;
 				break;
 			}
-			curTri = this.getTriList(curTri, propaLine, navigationHistory).gettriID();
-                        Coordinate coorIntersection=this.getTriList(curTri, propaLine, navigationHistory).getcoorIntersection();
-                        if(!coorIntersection.equals(new Coordinate(-1,-1,-1))){
-                        pointsIntersection.add(coorIntersection);
-                        }
+			int side = getNextSide(curTri, p1, p2, context, true);
+			if (side == -1) {
+				break;
+			}
+			int nextTri = triNeigh[curTri * 3 + side];
+			// A building side, the roof is flat so only the sides crossed
+			// by the ray give a point of the profile
+			if (triHeight[curTri] != triHeight[nextTri]) {
+				double sideHeight = Math.max(triHeight[curTri],
+						triHeight[nextTri]);
+				if (Double.isInfinite(sideHeight)) {
+					// Building without height
+					break;
+				}
+				context.pushHullPoint(length
+						* getSideIntersection(curTri, side, p1, p2),
+						sideHeight);
+			}
+			curTri = nextTri;
 		}
+		if (!reachedP2) {
+			Arrays.fill(pathData, -1.);
+			return false;
+		}
+		context.pushHullPoint(length, Double.isNaN(p2.z) ? 0 : p2.z);
+		int hullCount = context.hullCount;
+		if (hullCount == 2) {
+			// All buildings are under the ray
+			return true;
+		}
+		double[] hullX = context.hullX;
+		double[] hullY = context.hullY;
+		double pathLength = 0;
+		double highestPoint = 0;
+		for (int i = 0; i < hullCount - 1; i++) {
+			pathLength += Math.hypot(hullX[i + 1] - hullX[i], hullY[i + 1]
+					- hullY[i]);
+			highestPoint = Math.max(highestPoint, hullY[i]);
+		}
+		double directLength = Math.hypot(hullX[hullCount - 1] - hullX[0],
+				hullY[hullCount - 1] - hullY[0]);
+		pathData[0] = pathLength - directLength;
+		pathData[1] = pathLength
+				- Math.hypot(hullX[1] - hullX[0], hullY[1] - hullY[0])
+				- Math.hypot(hullX[hullCount - 1] - hullX[hullCount - 2],
+						hullY[hullCount - 1] - hullY[hullCount - 2]);
+		pathData[2] = highestPoint;
+		pathData[3] = pathLength;
+		return false;
+	}
 
-		
-                //add point receiver and point source into list.
-                pointsIntersection.addFirst(p1);
-                pointsIntersection.addLast(p2);
-                //change Coordinate system from 3D to 2D 
-                LinkedList<Coordinate> newPoints= getNewCoordinateSystem(pointsIntersection);
-                double[] pointsX;
-                pointsX=new double[newPoints.size()];
-                double[] pointsY;
-                pointsY=new double[newPoints.size()];
-                for(int i=0;i<newPoints.size();i++){
-                    pointsX[i]=newPoints.get(i).x;
-                    if(newPoints.get(i).y!=Double.NaN){
-                        pointsY[i]=newPoints.get(i).y;
-                    }
-                    else{
-                        pointsY[i]=0.;
-                    }
-                            
-                }
-                //algo JarvisMarch to get the convex hull           
-                JarvisMarch jm=new JarvisMarch(new JarvisMarch.Points(pointsX,pointsY));
-                JarvisMarch.Points points=jm.calculateHull();
-                //if there are no useful intersection 
-                if(points.x.length<=2){
-                    data[0]=-1.;
-                    data[1]=-1.;
-                    data[2]=-1.;
-                    data[3]=-1.;
-                    return data;
-                
-                }
-                else{
-                    LinkedList<LineSegment> path=new LinkedList<LineSegment>(); 
-                    for (int i=0;i<points.x.length-1;i++){
-                        path.add(new LineSegment(new Coordinate(points.x[i],points.y[i]),new Coordinate(points.x[i+1],points.y[i+1])));
-
-
-                    }
-                    double distancepath=0.0;//distance of path
-
-                    //prepare data to compute pure diffraction
-                    double heightpoint=0.0;//h0:the highest point intersection
-                    for(int i=0;i<path.size();i++){
-                        distancepath=path.get(i).getLength()+distancepath;
-                        if(path.get(i).p0.y>heightpoint){
-                            heightpoint=path.get(i).p0.y;
-                        }
-                    }
-                    //we used coordinate after change coordinate system to get the right distance.
-                    double distanceRandS=path.getFirst().p0.distance(path.getLast().p1);//distance of receiver and source
-                    double e=distancepath-path.getFirst().getLength()-path.getLast().getLength();//distance without first part path and last part path
-                    double deltadistance=distancepath-distanceRandS;//delt distance
-
-
-                    data[0]=deltadistance;
-                    data[1]=e;
-                    data[2]=heightpoint;
-                    data[3]=distancepath;
-                    return data;
-                
-                }
-                
+	/**
+	 * @return Position of the intersection of the triangle side on the line
+	 *         p1 p2, 0 on p1 and 1 on p2
+	 */
+	private double getSideIntersection(int triIndex, int side, Coordinate p1,
+			Coordinate p2) {
+		final int a = triVerts[triIndex * 3 + (side + 1) % 3] * 2;
+		final int b = triVerts[triIndex * 3 + (side + 2) % 3] * 2;
+		double dx = p2.x - p1.x;
+		double dy = p2.y - p1.y;
+		double ex = xy[b] - xy[a];
+		double ey = xy[b + 1] - xy[a + 1];
+		double denom = dx * ey - dy * ex;
+		double t;
+		if (denom != 0) {
+			t = ((xy[a] - p1.x) * ey - (xy[a + 1] - p1.y) * ex) / denom;
+		} else {
+			// Side on the ray, take the nearest vertex
+			t = Math.min((xy[a] - p1.x) * dx + (xy[a + 1] - p1.y) * dy,
+					(xy[b] - p1.x) * dx + (xy[b + 1] - p1.y) * dy)
+					/ (dx * dx + dy * dy);
+		}
+		return Math.max(0, Math.min(1, t));
 	}
         /*
          * 
@@ -921,28 +1734,6 @@ public class FastObstructionTest {
         */
         
         
-        /*
-         * changeCoordinateSystem, use original coordinate in 3D to change into a new markland in 2D with new x' and y' is original height of point
-         * http://en.wikipedia.org/wiki/Rotation_matrix
-         * http://read.pudn.com/downloads93/ebook/364220/zbzh.pdf
-        */
-        private LinkedList<Coordinate> getNewCoordinateSystem(LinkedList<Coordinate> listpoints){
-            LinkedList<Coordinate> newcoord=new LinkedList<Coordinate>();
-            //get angle by ray source-receiver with the X-axis.
-            double angle=new LineSegment(listpoints.getFirst(),listpoints.getLast()).angle(); 
-            double sin=Math.sin(angle);
-            double cos=Math.cos(angle);
-                
-            for(int i=0;i<listpoints.size();i++){
-                double newX=(listpoints.get(i).x-listpoints.get(0).x)*cos+(listpoints.get(i).y-listpoints.get(0).y)*sin;
-                newcoord.add(new Coordinate(newX,listpoints.get(i).z));
-            
-            
-            }
-    
-            return newcoord;
-        
-        }
         
   
   
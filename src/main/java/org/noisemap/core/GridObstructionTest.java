@@ -0,0 +1,549 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vividsolutions.jts.algorithm.CGAlgorithms;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateArrays;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineSegment;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * GridObstructionTest answers the obstruction queries without triangulation.
+ * The sides of the buildings are stored in the buckets of a uniform grid, a
+ * segment query visits the cells crossed by the segment (2D DDA) and tests
+ * the sides of these cells. The inside of buildings is given by the winding
+ * number of the cell centers, computed once by rows.
+ * Overlapping buildings are not merged, the domain limits are not walls and
+ * the visibility polygon is not available.
+ * @author Nicolas Fortin
+ */
+public class GridObstructionTest implements ObstructionTest {
+	private List<Geometry> toFeed = new ArrayList<Geometry>();
+	private Envelope geometriesBoundingBox = null;
+	// Sides of buildings {ax,ay,bx,by,..}, the building is on the right side
+	private double[] edges = new double[0];
+	private int edgeCount = 0;
+	// Corners {x,y,..} translated toward the free field and their open angle
+	private double[] cornersXy = new double[0];
+	private float[] cornersAngle = new float[0];
+	// Grid, sides with an envelope intersecting the cell k are
+	// cellEdges[cellIndex[k]..cellIndex[k+1]-1]
+	private double gridMinX;
+	private double gridMinY;
+	private double gridCellSize = 1.;
+	private int gridCols = 1;
+	private int gridRows = 1;
+	private int[] cellIndex = new int[2];
+	private int[] cellEdges = new int[0];
+	// Winding number of the cell centers, 0 out of buildings
+	private int[] cellCenterWinding = new int[1];
+	// Obstruction test count of the queries done without context
+	private final AtomicLong nbObstructionTest = new AtomicLong();
+
+	/**
+	 * The grid is read only, the context of a thread only counts its queries
+	 */
+	private static class CounterContext implements QueryContext {
+		private long nbObstructionTest = 0;
+
+		@Override
+		public long getNbObstructionTest() {
+			return nbObstructionTest;
+		}
+	}
+
+	@Override
+	public void addGeometry(Geometry obstructionPoly) {
+		if (geometriesBoundingBox == null) {
+			geometriesBoundingBox = new Envelope(obstructionPoly.getEnvelopeInternal());
+		} else {
+			geometriesBoundingBox.expandToInclude(obstructionPoly.getEnvelopeInternal());
+		}
+		toFeed.add(obstructionPoly);
+	}
+
+	/**
+	 * The grid does not store the height, the building is higher than any ray
+	 */
+	@Override
+	public void addGeometry(Geometry obstructionPoly, double height) {
+		addGeometry(obstructionPoly);
+	}
+
+	@Override
+	public void finishPolygonFeeding(Envelope boundingBoxFilter) {
+		if (boundingBoxFilter != null) {
+			if (geometriesBoundingBox != null) {
+				geometriesBoundingBox.expandToInclude(boundingBoxFilter);
+			} else {
+				geometriesBoundingBox = new Envelope(boundingBoxFilter);
+			}
+		}
+		if (geometriesBoundingBox == null) {
+			return;
+		}
+		List<double[]> corners = new ArrayList<double[]>();
+		for (Geometry geometry : toFeed) {
+			explodeAndAddPolygon(geometry, corners);
+		}
+		toFeed.clear();
+		buildGrid();
+		// Corners hidden by another building are not diffraction corners
+		cornersXy = new double[corners.size() * 2];
+		cornersAngle = new float[corners.size()];
+		int cornerCount = 0;
+		for (double[] corner : corners) {
+			if (getWinding(corner[0], corner[1]) == 0) {
+				cornersXy[cornerCount * 2] = corner[0];
+				cornersXy[cornerCount * 2 + 1] = corner[1];
+				cornersAngle[cornerCount] = (float) corner[2];
+				cornerCount++;
+			}
+		}
+		cornersXy = Arrays.copyOf(cornersXy, cornerCount * 2);
+		cornersAngle = Arrays.copyOf(cornersAngle, cornerCount);
+	}
+
+	private void explodeAndAddPolygon(Geometry geometry, List<double[]> corners) {
+		if (geometry instanceof Polygon) {
+			Polygon polygon = (Polygon) geometry;
+			addRing(polygon.getExteriorRing().getCoordinates(), true, corners);
+			for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+				addRing(polygon.getInteriorRingN(i).getCoordinates(), false,
+						corners);
+			}
+		} else {
+			for (int j = 0; j < geometry.getNumGeometries(); j++) {
+				Geometry subGeom = geometry.getGeometryN(j);
+				if (subGeom != geometry) {
+					explodeAndAddPolygon(subGeom, corners);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add the sides of a ring, oriented with the building on the right side,
+	 * and the corners of the ring.
+	 * @param shell True for an exterior ring, false for a hole
+	 */
+	private void addRing(Coordinate[] ring, boolean shell, List<double[]> corners) {
+		ring = CoordinateArrays.removeRepeatedPoints(ring);
+		if (ring.length < 4) {
+			return;
+		}
+		if (CGAlgorithms.isCCW(ring) == shell) {
+			ring = ring.clone();
+			CoordinateArrays.reverse(ring);
+		}
+		int vertexCount = ring.length - 1;
+		for (int i = 0; i < vertexCount; i++) {
+			Coordinate a = ring[(i + vertexCount - 1) % vertexCount];
+			Coordinate b = ring[i];
+			Coordinate c = ring[i + 1];
+			addEdge(b, c);
+			// Open angle from the next side to the previous side, CCW
+			double angleNext = Math.atan2(c.y - b.y, c.x - b.x);
+			double anglePrevious = Math.atan2(a.y - b.y, a.x - b.x);
+			double openAngle = anglePrevious - angleNext;
+			if (openAngle <= 0) {
+				openAngle += 2 * Math.PI;
+			}
+			double midAngle = angleNext + openAngle / 2.;
+			corners.add(new double[] {
+					b.x + Math.cos(midAngle) * FastObstructionTest.wideAngleTranslationEpsilon,
+					b.y + Math.sin(midAngle) * FastObstructionTest.wideAngleTranslationEpsilon,
+					openAngle });
+		}
+	}
+
+	private void addEdge(Coordinate a, Coordinate b) {
+		if (edges.length < (edgeCount + 1) * 4) {
+			edges = Arrays.copyOf(edges, Math.max(64, edges.length * 2));
+		}
+		edges[edgeCount * 4] = a.x;
+		edges[edgeCount * 4 + 1] = a.y;
+		edges[edgeCount * 4 + 2] = b.x;
+		edges[edgeCount * 4 + 3] = b.y;
+		edgeCount++;
+	}
+
+	private int getGridCol(double x) {
+		return Math.max(0, Math.min(gridCols - 1,
+				(int) ((x - gridMinX) / gridCellSize)));
+	}
+
+	private int getGridRow(double y) {
+		return Math.max(0, Math.min(gridRows - 1,
+				(int) ((y - gridMinY) / gridCellSize)));
+	}
+
+	/**
+	 * Envelope of the side in the grid, {minCol,minRow,maxCol,maxRow}
+	 */
+	private void getGridRange(int edge, int[] range) {
+		range[0] = getGridCol(Math.min(edges[edge * 4], edges[edge * 4 + 2]));
+		range[1] = getGridRow(Math.min(edges[edge * 4 + 1], edges[edge * 4 + 3]));
+		range[2] = getGridCol(Math.max(edges[edge * 4], edges[edge * 4 + 2]));
+		range[3] = getGridRow(Math.max(edges[edge * 4 + 1], edges[edge * 4 + 3]));
+	}
+
+	/**
+	 * Fill the buckets of sides, the grid has about one cell by side. Then
+	 * compute the winding number of cell centers, with the sides crossing the
+	 * horizontal line of each row.
+	 */
+	private void buildGrid() {
+		gridMinX = geometriesBoundingBox.getMinX();
+		gridMinY = geometriesBoundingBox.getMinY();
+		double width = Math.max(geometriesBoundingBox.getWidth(), FastObstructionTest.epsilon);
+		double height = Math.max(geometriesBoundingBox.getHeight(), FastObstructionTest.epsilon);
+		gridCellSize = Math.sqrt(width * height / Math.max(1, edgeCount));
+		gridCols = Math.max(1, (int) Math.ceil(width / gridCellSize));
+		gridRows = Math.max(1, (int) Math.ceil(height / gridCellSize));
+		int cellCount = gridCols * gridRows;
+		// Count the sides of each cell, then fill
+		cellIndex = new int[cellCount + 1];
+		int[] range = new int[4];
+		for (int edge = 0; edge < edgeCount; edge++) {
+			getGridRange(edge, range);
+			for (int row = range[1]; row <= range[3]; row++) {
+				for (int col = range[0]; col <= range[2]; col++) {
+					cellIndex[row * gridCols + col + 1]++;
+				}
+			}
+		}
+		for (int cell = 0; cell < cellCount; cell++) {
+			cellIndex[cell + 1] += cellIndex[cell];
+		}
+		cellEdges = new int[cellIndex[cellCount]];
+		int[] fill = Arrays.copyOf(cellIndex, cellCount);
+		for (int edge = 0; edge < edgeCount; edge++) {
+			getGridRange(edge, range);
+			for (int row = range[1]; row <= range[3]; row++) {
+				for (int col = range[0]; col <= range[2]; col++) {
+					cellEdges[fill[row * gridCols + col]++] = edge;
+				}
+			}
+		}
+		// Winding number of cell centers. A side crossing the row line adds
+		// its winding to all centers on its right.
+		cellCenterWinding = new int[cellCount];
+		int[] edgeRow = new int[edgeCount];
+		Arrays.fill(edgeRow, -1);
+		for (int row = 0; row < gridRows; row++) {
+			double y = gridMinY + (row + 0.5) * gridCellSize;
+			int rowOffset = row * gridCols;
+			for (int i = cellIndex[rowOffset]; i < cellIndex[rowOffset + gridCols]; i++) {
+				int edge = cellEdges[i];
+				if (edgeRow[edge] == row) {
+					continue;
+				}
+				edgeRow[edge] = row;
+				double ax = edges[edge * 4];
+				double ay = edges[edge * 4 + 1];
+				double bx = edges[edge * 4 + 2];
+				double by = edges[edge * 4 + 3];
+				if ((ay > y) != (by > y)) {
+					double x = ax + (y - ay) * (bx - ax) / (by - ay);
+					int firstCol = (int) Math.floor((x - gridMinX) / gridCellSize - 0.5) + 1;
+					if (firstCol < gridCols) {
+						cellCenterWinding[rowOffset + Math.max(0, firstCol)] += by > ay ? -1 : 1;
+					}
+				}
+			}
+			for (int col = 1; col < gridCols; col++) {
+				cellCenterWinding[rowOffset + col] += cellCenterWinding[rowOffset + col - 1];
+			}
+		}
+	}
+
+	private static double orientation(double ax, double ay, double bx,
+			double by, double px, double py) {
+		return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+	}
+
+	/**
+	 * @return Winding number of the point, 0 out of buildings
+	 */
+	private int getWinding(double x, double y) {
+		if (x < gridMinX || y < gridMinY
+				|| x > gridMinX + gridCols * gridCellSize
+				|| y > gridMinY + gridRows * gridCellSize) {
+			return 0;
+		}
+		int col = getGridCol(x);
+		int row = getGridRow(y);
+		int cell = row * gridCols + col;
+		double cx = gridMinX + (col + 0.5) * gridCellSize;
+		double cy = gridMinY + (row + 0.5) * gridCellSize;
+		// Add the sides crossed from the cell center to the point
+		int winding = cellCenterWinding[cell];
+		for (int i = cellIndex[cell]; i < cellIndex[cell + 1]; i++) {
+			int edge = cellEdges[i];
+			double ax = edges[edge * 4];
+			double ay = edges[edge * 4 + 1];
+			double bx = edges[edge * 4 + 2];
+			double by = edges[edge * 4 + 3];
+			boolean aLeft = orientation(cx, cy, x, y, ax, ay) > 0;
+			boolean bLeft = orientation(cx, cy, x, y, bx, by) > 0;
+			if (aLeft != bLeft) {
+				boolean centerLeft = orientation(ax, ay, bx, by, cx, cy) > 0;
+				boolean pointLeft = orientation(ax, ay, bx, by, x, y) > 0;
+				if (centerLeft != pointLeft) {
+					winding += pointLeft ? 1 : -1;
+				}
+			}
+		}
+		return winding;
+	}
+
+	/**
+	 * @return True if a side of the cell crosses the segment p1 + t*(dx,dy),
+	 *         with t in ]tEpsilon,1-tEpsilon[
+	 */
+	private boolean isCellCrossed(int cell, Coordinate p1, double dx,
+			double dy, double tEpsilon) {
+		for (int i = cellIndex[cell]; i < cellIndex[cell + 1]; i++) {
+			int edge = cellEdges[i];
+			double ex = edges[edge * 4 + 2] - edges[edge * 4];
+			double ey = edges[edge * 4 + 3] - edges[edge * 4 + 1];
+			double denom = dx * ey - dy * ex;
+			if (denom == 0) {
+				// Parallel
+				continue;
+			}
+			double wx = edges[edge * 4] - p1.x;
+			double wy = edges[edge * 4 + 1] - p1.y;
+			double t = (wx * ey - wy * ex) / denom;
+			double u = (wx * dy - wy * dx) / denom;
+			if (t > tEpsilon && t < 1 - tEpsilon && u >= 0 && u <= 1) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The grid does not store the height of the buildings, all buildings
+	 * are higher than the ray and there is no path over them.
+	 */
+	@Override
+	public boolean getPath(Coordinate p1, Coordinate p2, double[] pathData) {
+		nbObstructionTest.incrementAndGet();
+		return getPathOverBuildings(p1, p2, pathData);
+	}
+
+	@Override
+	public boolean getPath(QueryContext context, Coordinate p1, Coordinate p2,
+			double[] pathData) {
+		((CounterContext) context).nbObstructionTest++;
+		return getPathOverBuildings(p1, p2, pathData);
+	}
+
+	private boolean getPathOverBuildings(Coordinate p1, Coordinate p2,
+			double[] pathData) {
+		if (testFreeField(p1, p2)) {
+			return true;
+		}
+		Arrays.fill(pathData, -1.);
+		return false;
+	}
+
+	@Override
+	public QueryContext newQueryContext() {
+		return new CounterContext();
+	}
+
+	@Override
+	public boolean isFreeField(Coordinate p1, Coordinate p2) {
+		nbObstructionTest.incrementAndGet();
+		return testFreeField(p1, p2);
+	}
+
+	@Override
+	public boolean isFreeField(QueryContext context, Coordinate p1,
+			Coordinate p2) {
+		((CounterContext) context).nbObstructionTest++;
+		return testFreeField(p1, p2);
+	}
+
+	private boolean testFreeField(Coordinate p1, Coordinate p2) {
+		double dx = p2.x - p1.x;
+		double dy = p2.y - p1.y;
+		double length = Math.sqrt(dx * dx + dy * dy);
+		if (length < FastObstructionTest.epsilon) {
+			return getWinding(p1.x, p1.y) == 0;
+		}
+		// Ends of the segment may lie on a wall
+		double tEpsilon = FastObstructionTest.epsilon / length;
+		// Clip the segment to the grid extent
+		double tEnter = 0;
+		double tExit = 1;
+		double maxX = gridMinX + gridCols * gridCellSize;
+		double maxY = gridMinY + gridRows * gridCellSize;
+		if (dx != 0) {
+			double t1 = (gridMinX - p1.x) / dx;
+			double t2 = (maxX - p1.x) / dx;
+			tEnter = Math.max(tEnter, Math.min(t1, t2));
+			tExit = Math.min(tExit, Math.max(t1, t2));
+		} else if (p1.x < gridMinX || p1.x > maxX) {
+			return true;
+		}
+		if (dy != 0) {
+			double t1 = (gridMinY - p1.y) / dy;
+			double t2 = (maxY - p1.y) / dy;
+			tEnter = Math.max(tEnter, Math.min(t1, t2));
+			tExit = Math.min(tExit, Math.max(t1, t2));
+		} else if (p1.y < gridMinY || p1.y > maxY) {
+			return true;
+		}
+		if (tEnter > tExit) {
+			return true;
+		}
+		// Walk the cells crossed by the segment
+		int col = getGridCol(p1.x + tEnter * dx);
+		int row = getGridRow(p1.y + tEnter * dy);
+		int stepCol = dx > 0 ? 1 : -1;
+		int stepRow = dy > 0 ? 1 : -1;
+		double tDeltaX = dx != 0 ? gridCellSize / Math.abs(dx) : Double.MAX_VALUE;
+		double tDeltaY = dy != 0 ? gridCellSize / Math.abs(dy) : Double.MAX_VALUE;
+		double tNextX = dx != 0 ? (gridMinX + (col + (dx > 0 ? 1 : 0))
+				* gridCellSize - p1.x) / dx : Double.MAX_VALUE;
+		double tNextY = dy != 0 ? (gridMinY + (row + (dy > 0 ? 1 : 0))
+				* gridCellSize - p1.y) / dy : Double.MAX_VALUE;
+		while (true) {
+			if (isCellCrossed(row * gridCols + col, p1, dx, dy, tEpsilon)) {
+				return false;
+			}
+			if (tNextX < tNextY) {
+				if (tNextX > tExit) {
+					break;
+				}
+				col += stepCol;
+				tNextX += tDeltaX;
+				if (col < 0 || col >= gridCols) {
+					break;
+				}
+			} else {
+				if (tNextY > tExit) {
+					break;
+				}
+				row += stepRow;
+				tNextY += tDeltaY;
+				if (row < 0 || row >= gridRows) {
+					break;
+				}
+			}
+		}
+		// No side crossed, the segment is out of buildings or inside one
+		return getWinding(p1.x + dx / 2, p1.y + dy / 2) == 0;
+	}
+
+	/**
+	 * Add the sides intersecting the envelope. Each side is processed once,
+	 * in the first cell it shares with the envelope.
+	 */
+	private void addWalls(Envelope filter, List<LineSegment> walls) {
+		if (filter.isNull()) {
+			return;
+		}
+		int minCol = getGridCol(filter.getMinX());
+		int maxCol = getGridCol(filter.getMaxX());
+		int minRow = getGridRow(filter.getMinY());
+		int maxRow = getGridRow(filter.getMaxY());
+		int[] range = new int[4];
+		for (int row = minRow; row <= maxRow; row++) {
+			for (int col = minCol; col <= maxCol; col++) {
+				int cell = row * gridCols + col;
+				for (int i = cellIndex[cell]; i < cellIndex[cell + 1]; i++) {
+					int edge = cellEdges[i];
+					getGridRange(edge, range);
+					if (Math.max(range[0], minCol) != col
+							|| Math.max(range[1], minRow) != row) {
+						continue;
+					}
+					LineSegment wall = new LineSegment(edges[edge * 4],
+							edges[edge * 4 + 1], edges[edge * 4 + 2],
+							edges[edge * 4 + 3]);
+					if (filter.intersects(new Envelope(wall.p0, wall.p1))) {
+						walls.add(wall);
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public List<LineSegment> getWalls(Envelope filter) {
+		List<LineSegment> walls = new ArrayList<LineSegment>();
+		addWalls(filter, walls);
+		return walls;
+	}
+
+	@Override
+	public List<Coordinate> getWideAnglePoints(double minAngle,
+			double maxAngle, Envelope filter) {
+		List<Coordinate> wideAnglePts = new ArrayList<Coordinate>();
+		for (int idCorner = 0; idCorner < cornersAngle.length; idCorner++) {
+			float angleCorner = cornersAngle[idCorner];
+			if (angleCorner >= minAngle && angleCorner <= maxAngle) {
+				Coordinate corner = new Coordinate(cornersXy[idCorner * 2],
+						cornersXy[idCorner * 2 + 1]);
+				if (filter == null || filter.contains(corner)) {
+					wideAnglePts.add(corner);
+				}
+			}
+		}
+		return wideAnglePts;
+	}
+
+	@Override
+	public Isovist getIsovist(Coordinate origin, double maxDist) {
+		return null;
+	}
+
+	@Override
+	public long getNbObstructionTest() {
+		return nbObstructionTest.get();
+	}
+}
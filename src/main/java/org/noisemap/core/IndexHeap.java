@@ -0,0 +1,134 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of integer values sorted by a double key. Keys and values
+ * are stored in primitive arrays.
+ * 
+ * @author Nicolas Fortin
+ */
+public class IndexHeap {
+	private double[] keys;
+	private int[] values;
+	private int size = 0;
+
+	public IndexHeap() {
+		this(32);
+	}
+
+	public IndexHeap(int capacity) {
+		keys = new double[Math.max(1, capacity)];
+		values = new int[keys.length];
+	}
+
+	public void add(double key, int value) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		// Move up the new item
+		int pos = size++;
+		while (pos > 0) {
+			int parent = (pos - 1) >>> 1;
+			if (keys[parent] <= key) {
+				break;
+			}
+			keys[pos] = keys[parent];
+			values[pos] = values[parent];
+			pos = parent;
+		}
+		keys[pos] = key;
+		values[pos] = value;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return The smallest key
+	 */
+	public double peekKey() {
+		return keys[0];
+	}
+
+	/**
+	 * @return The value of the smallest key
+	 */
+	public int peekValue() {
+		return values[0];
+	}
+
+	/**
+	 * Remove the item with the smallest key
+	 * 
+	 * @return The value of the removed item
+	 */
+	public int poll() {
+		int ret = values[0];
+		size--;
+		if (size > 0) {
+			// Move down the last item
+			double key = keys[size];
+			int value = values[size];
+			int pos = 0;
+			int child;
+			while ((child = 2 * pos + 1) < size) {
+				if (child + 1 < size && keys[child + 1] < keys[child]) {
+					child++;
+				}
+				if (key <= keys[child]) {
+					break;
+				}
+				keys[pos] = keys[child];
+				values[pos] = values[child];
+				pos = child;
+			}
+			keys[pos] = key;
+			values[pos] = value;
+		}
+		return ret;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+}
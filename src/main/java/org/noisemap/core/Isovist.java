@@ -0,0 +1,217 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * 2D visibility polygon of an origin point, computed by
+ * FastObstructionTest.getIsovist. The polygon is stored as a sorted list of
+ * angular sectors, each sector is closed by a segment. Points before the
+ * segment are visible from the origin. Points behind the segment are hidden
+ * if the segment is a wall, unknown if the segment is the limit of the
+ * computed area.
+ * 
+ * @author Nicolas Fortin
+ */
+public class Isovist {
+	public static final int HIDDEN = 0;
+	public static final int VISIBLE = 1;
+	public static final int UNKNOWN = -1; // The obstruction test must be done
+	// Angular margin in radians of the sector limits
+	private static final double ANGLE_EPSILON = 1e-9;
+	private static final double DISTANCE_EPSILON = FastObstructionTest.epsilon;
+	private final Coordinate origin;
+	private final double maxDist;
+	private int sectorCount = 0;
+	private double[] startAngle = new double[16];
+	private double[] endAngle = new double[16];
+	// Segment of each sector [x0,y0,x1,y1]
+	private double[] segments = new double[64];
+	private boolean[] wall = new boolean[16];
+	private boolean sorted = true;
+
+	public Isovist(Coordinate origin, double maxDist) {
+		this.origin = origin;
+		this.maxDist = maxDist;
+	}
+
+	public Coordinate getOrigin() {
+		return origin;
+	}
+
+	/**
+	 * @return Number of angular sectors
+	 */
+	public int getSectorCount() {
+		return sectorCount;
+	}
+
+	private void addSector(double start, double end, double ax, double ay,
+			double bx, double by, boolean isWall) {
+		if (sectorCount == startAngle.length) {
+			startAngle = Arrays.copyOf(startAngle, sectorCount * 2);
+			endAngle = Arrays.copyOf(endAngle, sectorCount * 2);
+			segments = Arrays.copyOf(segments, sectorCount * 2 * 4);
+			wall = Arrays.copyOf(wall, sectorCount * 2);
+		}
+		if (sectorCount > 0 && start < startAngle[sectorCount - 1]) {
+			sorted = false;
+		}
+		startAngle[sectorCount] = start;
+		endAngle[sectorCount] = end;
+		segments[sectorCount * 4] = ax;
+		segments[sectorCount * 4 + 1] = ay;
+		segments[sectorCount * 4 + 2] = bx;
+		segments[sectorCount * 4 + 3] = by;
+		wall[sectorCount] = isWall;
+		sectorCount++;
+	}
+
+	/**
+	 * Add the sector between the directions of right and left from the
+	 * origin. The left direction is counter-clockwise from the right
+	 * direction.
+	 * 
+	 * @param ax
+	 *            First vertex of the segment that close the sector
+	 * @param bx
+	 *            Second vertex of the segment that close the sector
+	 * @param isWall
+	 *            True if points behind the segment are hidden, false if they
+	 *            are out of the computed area
+	 */
+	void addSector(double rightX, double rightY, double leftX, double leftY,
+			double ax, double ay, double bx, double by, boolean isWall) {
+		double start = Math.atan2(rightY - origin.y, rightX - origin.x);
+		double end = Math.atan2(leftY - origin.y, leftX - origin.x);
+		if (end < start) {
+			// The sector cross the -PI,PI angle
+			addSector(start, Math.PI, ax, ay, bx, by, isWall);
+			addSector(-Math.PI, end, ax, ay, bx, by, isWall);
+		} else {
+			addSector(start, end, ax, ay, bx, by, isWall);
+		}
+	}
+
+	/**
+	 * Sort sectors by angle, must be called before queries
+	 */
+	void finish() {
+		if (sorted) {
+			return;
+		}
+		Integer[] order = new Integer[sectorCount];
+		for (int i = 0; i < sectorCount; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Double.compare(startAngle[o1], startAngle[o2]);
+			}
+		});
+		double[] newStart = new double[sectorCount];
+		double[] newEnd = new double[sectorCount];
+		double[] newSegments = new double[sectorCount * 4];
+		boolean[] newWall = new boolean[sectorCount];
+		for (int i = 0; i < sectorCount; i++) {
+			int src = order[i];
+			newStart[i] = startAngle[src];
+			newEnd[i] = endAngle[src];
+			System.arraycopy(segments, src * 4, newSegments, i * 4, 4);
+			newWall[i] = wall[src];
+		}
+		startAngle = newStart;
+		endAngle = newEnd;
+		segments = newSegments;
+		wall = newWall;
+		sorted = true;
+	}
+
+	/**
+	 * @param pt
+	 *            Destination point
+	 * @return VISIBLE, HIDDEN or UNKNOWN if the point is too close to a limit
+	 *         of the visibility polygon or out of the computed area
+	 */
+	public int isVisible(Coordinate pt) {
+		double dx = pt.x - origin.x;
+		double dy = pt.y - origin.y;
+		if (dx * dx + dy * dy > maxDist * maxDist) {
+			return UNKNOWN;
+		}
+		double angle = Math.atan2(dy, dx);
+		// Last sector starting before angle
+		int low = 0;
+		int high = sectorCount - 1;
+		int sector = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (startAngle[mid] <= angle) {
+				sector = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		if (sector == -1 || angle - startAngle[sector] < ANGLE_EPSILON
+				|| endAngle[sector] - angle < ANGLE_EPSILON) {
+			return UNKNOWN;
+		}
+		// Compare the side of the segment of the origin and of the point
+		double ax = segments[sector * 4];
+		double ay = segments[sector * 4 + 1];
+		double bx = segments[sector * 4 + 2];
+		double by = segments[sector * 4 + 3];
+		double segLength = Math.sqrt((bx - ax) * (bx - ax) + (by - ay)
+				* (by - ay));
+		double ptSide = ((bx - ax) * (pt.y - ay) - (by - ay) * (pt.x - ax))
+				/ segLength;
+		double originSide = (bx - ax) * (origin.y - ay) - (by - ay)
+				* (origin.x - ax);
+		if (Math.abs(ptSide) < DISTANCE_EPSILON) {
+			return UNKNOWN;
+		}
+		if ((ptSide > 0) == (originSide > 0)) {
+			return VISIBLE;
+		} else if (wall[sector]) {
+			return HIDDEN;
+		} else {
+			return UNKNOWN;
+		}
+	}
+}
@@ -250,29 +250,18 @@ public class LayerJDelaunay implements LayerDelaunay {
 				
 				//Build ArrayList for binary search
 				
-                                //Remove triangles 
-                                //test add height
-                                
-                                if(holes.isEmpty()){
-				for(Buildingwihtheight hole : buildingwithheight) {
-					DTriangle foundTri=findTriByCoordinate(hole.getMiddleCoordinateOfBuilding(),trianglesDelaunay);
-					double heightofTri = hole.getBuildingHeight();
-                                        if(foundTri == null) {
+				//Remove the triangles of the holes
+				for(Coordinate hole : holes) {
+					DTriangle foundTri=findTriByCoordinate(hole,trianglesDelaunay);
+					if(foundTri == null) {
 						throw new LayerDelaunayError("hole outside domain ("+hole+")");
 					}
 					//Navigate through neighbors until it reach a deleted tri or locked segment
 					Stack<DTriangle> navHistoryTri=new Stack<DTriangle>();
 					Stack<Short> navHistoryDir=new Stack<Short>();
 					navHistoryTri.push(foundTri);
-					navHistoryDir.push((short)0);
-					/*
-                                         * pass the hole
-                                         * foundTri.setExternalGID(0);//Set as hole
-                                         * 
-                                        */
-                                        foundTri.setHeight(heightofTri);//Add the height to this triangle
-                                        //if this tri have height
-                                        if(heightofTri!=0){
+					navHistoryDir.push((short)0);//Set as hole
+					foundTri.setExternalGID(0);
 					while(!navHistoryTri.empty()) {
 						if(navHistoryDir.peek()==3) {
 							navHistoryTri.pop();
@@ -282,14 +271,8 @@ public class LayerJDelaunay implements LayerDelaunay {
 							if(!ed.isLocked()) {
 								DTriangle neigh=ed.getOtherTriangle(navHistoryTri.peek());
 								if(neigh != null) {
-									if(neigh.getExternalGID()!=0 && neigh.getHeight()==0) { //Not set as destroyed
-                                                                            /*  
-                                                                             * pass the hole
-									     * neigh.setExternalGID(0); //Set as hole
-                                                                             *
-                                                                            */
-                                                                            
-                                                                                neigh.setHeight(heightofTri);//Add the height to this triangle
+									if(neigh.getExternalGID()!=0) { //Not set as destroyed
+										neigh.setExternalGID(0); //Set as hole
 										navHistoryDir.push((short)(navHistoryDir.pop()+1));
 										navHistoryDir.push((short)-1);
 										navHistoryTri.push(neigh);
@@ -299,24 +282,27 @@ public class LayerJDelaunay implements LayerDelaunay {
 							navHistoryDir.push((short)(navHistoryDir.pop()+1));
 						}
 					}
-                                      }
-                          
                                     }
-                                }
-                                else{
-                               
-				//Remove triangles
-				for(Coordinate hole : holes) {
-					DTriangle foundTri=findTriByCoordinate(hole,trianglesDelaunay);
-					if(foundTri == null) {
+				//Set the height of the triangles of the buildings
+				for(Buildingwihtheight hole : buildingwithheight) {
+					DTriangle foundTri=findTriByCoordinate(hole.getMiddleCoordinateOfBuilding(),trianglesDelaunay);
+					double heightofTri = hole.getBuildingHeight();
+                                        if(foundTri == null) {
 						throw new LayerDelaunayError("hole outside domain ("+hole+")");
 					}
 					//Navigate through neighbors until it reach a deleted tri or locked segment
 					Stack<DTriangle> navHistoryTri=new Stack<DTriangle>();
 					Stack<Short> navHistoryDir=new Stack<Short>();
 					navHistoryTri.push(foundTri);
-					navHistoryDir.push((short)0);//Set as hole
-					foundTri.setExternalGID(0);
+					navHistoryDir.push((short)0);
+					/*
+                                         * pass the hole
+                                         * foundTri.setExternalGID(0);//Set as hole
+                                         * 
+                                        */
+                                        foundTri.setHeight(heightofTri);//Add the height to this triangle
+                                        //if this tri have height
+                                        if(heightofTri!=0){
 					while(!navHistoryTri.empty()) {
 						if(navHistoryDir.peek()==3) {
 							navHistoryTri.pop();
@@ -326,8 +312,14 @@ public class LayerJDelaunay implements LayerDelaunay {
 							if(!ed.isLocked()) {
 								DTriangle neigh=ed.getOtherTriangle(navHistoryTri.peek());
 								if(neigh != null) {
-									if(neigh.getExternalGID()!=0) { //Not set as destroyed
-										neigh.setExternalGID(0); //Set as hole
+									if(neigh.getExternalGID()!=0 && neigh.getHeight()==0) { //Not set as destroyed
+                                                                            /*  
+                                                                             * pass the hole
+									     * neigh.setExternalGID(0); //Set as hole
+                                                                             *
+                                                                            */
+                                                                            
+                                                                                neigh.setHeight(heightofTri);//Add the height to this triangle
 										navHistoryDir.push((short)(navHistoryDir.pop()+1));
 										navHistoryDir.push((short)-1);
 										navHistoryTri.push(neigh);
@@ -337,8 +329,9 @@ public class LayerJDelaunay implements LayerDelaunay {
 							navHistoryDir.push((short)(navHistoryDir.pop()+1));
 						}
 					}
+                                      }
+                          
                                     }
-                                }	
 				for (DTriangle triangle : trianglesDelaunay) {
 					if(triangle.getExternalGID()!=0) //Not a hole
 					{
@@ -452,6 +445,35 @@ public class LayerJDelaunay implements LayerDelaunay {
 		}
 	}
 
+	/**
+	 * Add a building of a known height. Its triangles are kept with this
+	 * height instead of being removed, the inner rings are free field.
+	 * 
+	 * @param newPoly
+	 *            Building footprint
+	 * @param height
+	 *            Height of the roof, greater than 0
+	 */
+	public void addPolygon(Polygon newPoly, double height)
+			throws LayerDelaunayError {
+		if (delaunayTool == null) {
+			delaunayTool = new ConstrainedMesh();
+		}
+		// To avoid errors we set the Z coordinate to 0.
+		SetZFilter zFilter = new SetZFilter();
+		newPoly.apply(zFilter);
+		GeometryFactory factory = new GeometryFactory();
+		final Coordinate[] coordinates = newPoly.getExteriorRing()
+				.getCoordinates();
+		if (coordinates.length > 1) {
+			this.addLineString(factory.createLineString(coordinates));
+		}
+		for (int holeIndex = 0; holeIndex < newPoly.getNumInteriorRing(); holeIndex++) {
+			this.addLineString(newPoly.getInteriorRingN(holeIndex));
+		}
+		addbuilding(newPoly.getInteriorPoint().getCoordinate(), height);
+	}
+
          /**
          * Add height of building 
          * @return
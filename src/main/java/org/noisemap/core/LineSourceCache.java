@@ -0,0 +1,214 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Discretization of the line sources of a cell, shared by all receivers.
+ * The length of each road is computed once, and the regular points of each
+ * level of the delta ladder are built on the first request. A receiver only
+ * have to find its own closest point on the line, by a scan of the segments.
+ * The delta of a receiver is rounded down to a step of the ladder, the
+ * discretization is then finer than the discretization of min(20,dist/2).
+ * 
+ * @author Nicolas Fortin
+ */
+public class LineSourceCache {
+	/** Available discretization steps in meters, from the largest */
+	public static final double[] DELTA_LADDER = { 20., 10., 5., 2.5, 1. };
+	private final LineSource[] lineSources;
+
+	/**
+	 * Precomputed data of one line source
+	 */
+	private static final class LineSource {
+		private final Coordinate[] points;
+		private final double length;
+		private final AtomicReferenceArray<Coordinate[]> splitPoints = new AtomicReferenceArray<Coordinate[]>(
+				DELTA_LADDER.length);
+
+		public LineSource(Coordinate[] points) {
+			this.points = points;
+			double roadLength = 0;
+			for (int i = 1; i < points.length; i++) {
+				roadLength += points[i - 1].distance(points[i]);
+			}
+			length = roadLength;
+		}
+
+		public double getLength() {
+			return length;
+		}
+
+		public Coordinate[] getSplitPoints(int level) {
+			Coordinate[] pts = splitPoints.get(level);
+			if (pts == null) {
+				// Concurrent threads may build the same level, the first
+				// stored array is kept
+				pts = ST_SplitLineInPoints.splitMultiPointsInRegularPoints(
+						points, DELTA_LADDER[level]);
+				if (!splitPoints.compareAndSet(level, null, pts)) {
+					pts = splitPoints.get(level);
+				}
+			}
+			return pts;
+		}
+	}
+
+	/**
+	 * @param sourceGeometries
+	 *            Sources of the cell, point sources are ignored
+	 */
+	public LineSourceCache(List<Geometry> sourceGeometries) {
+		lineSources = new LineSource[sourceGeometries.size()];
+		for (int i = 0; i < lineSources.length; i++) {
+			Geometry geom = sourceGeometries.get(i);
+			if (!(geom instanceof Point)) {
+				Coordinate[] points = geom.getCoordinates();
+				if (points.length > 1) {
+					lineSources[i] = new LineSource(points);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Index of the largest step of the ladder smaller or equal to
+	 *         delta, -1 if delta is smaller than the smallest step
+	 */
+	public static int getLadderLevel(double delta) {
+		for (int level = 0; level < DELTA_LADDER.length; level++) {
+			if (DELTA_LADDER[level] <= delta) {
+				return level;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Split the line source into points
+	 * 
+	 * @param srcIndex
+	 *            Index of the source geometry
+	 * @param startPt
+	 *            Compute the closest point on lineString with this coordinate,
+	 *            use it as one of the splitted points
+	 * @param pts
+	 *            Discretized points
+	 * @param minRecDist
+	 *            Minimum distance between source and receiver
+	 * @return computed delta, 1 if the geometry is not a line source
+	 */
+	public double splitLineSource(int srcIndex, Coordinate startPt,
+			List<Coordinate> pts, double minRecDist) {
+		LineSource lineSource = lineSources[srcIndex];
+		if (lineSource == null) {
+			return 1.;
+		}
+		Coordinate[] points = lineSource.points;
+		// Find the position of the closest point
+		double closestPtDist = Double.MAX_VALUE;
+		Coordinate closestPt = null;
+		for (int i = 1; i < points.length; i++) {
+			Coordinate p0 = points[i - 1];
+			Coordinate p1 = points[i];
+			double dx = p1.x - p0.x;
+			double dy = p1.y - p0.y;
+			double len2 = dx * dx + dy * dy;
+			double factor = len2 > 0 ? ((startPt.x - p0.x) * dx + (startPt.y - p0.y)
+					* dy)
+					/ len2
+					: 0;
+			double segcdist;
+			Coordinate segClosest;
+			if (factor > 0 && factor < 1) {
+				double px = p0.x + factor * dx;
+				double py = p0.y + factor * dy;
+				segcdist = Math.sqrt((startPt.x - px) * (startPt.x - px)
+						+ (startPt.y - py) * (startPt.y - py));
+				if (segcdist < closestPtDist) {
+					closestPtDist = segcdist;
+					closestPt = new Coordinate(px, py);
+				}
+			} else {
+				double dist0 = p0.distance(startPt);
+				double dist1 = p1.distance(startPt);
+				if (dist0 < dist1) {
+					segClosest = p0;
+					segcdist = dist0;
+				} else {
+					segClosest = p1;
+					segcdist = dist1;
+				}
+				if (segcdist < closestPtDist) {
+					closestPtDist = segcdist;
+					closestPt = segClosest;
+				}
+			}
+		}
+		double delta = 20.;
+		// If the minimum effective distance between the line source and the
+		// receiver is smaller than the minimum distance constraint then the
+		// discretisation parameter is changed
+		if (closestPtDist < minRecDist) {
+			closestPtDist = minRecDist;
+		}
+		if (closestPtDist / 2 < delta) {
+			delta = closestPtDist / 2;
+		}
+		Coordinate[] splitedPts;
+		int level = getLadderLevel(delta);
+		if (level >= 0) {
+			delta = DELTA_LADDER[level];
+			splitedPts = lineSource.getSplitPoints(level);
+		} else {
+			// Very close to the receiver, the line is split for this receiver
+			// only
+			splitedPts = ST_SplitLineInPoints.splitMultiPointsInRegularPoints(
+					points, delta);
+		}
+		pts.add(closestPt);
+		for (Coordinate pt : splitedPts) {
+			if (pt.distance(closestPt) > delta) {
+				pts.add(pt);
+			}
+		}
+		return Math.min(delta, lineSource.getLength());
+	}
+}
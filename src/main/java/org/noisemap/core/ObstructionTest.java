@@ -0,0 +1,149 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineSegment;
+
+/**
+ * ObstructionTest answers the visibility queries of the propagation on a set
+ * of buildings. Buildings are fed before the call of finishPolygonFeeding,
+ * then queries can be done by many threads, each with its own query context.
+ * 
+ * @author Nicolas Fortin
+ */
+public interface ObstructionTest {
+
+	/**
+	 * Mutable data of the queries of one thread. A context is owned by the
+	 * thread that created it and is released with it.
+	 */
+	interface QueryContext {
+		/**
+		 * @return Obstruction test count of the queries done with this context
+		 */
+		long getNbObstructionTest();
+	}
+
+	void addGeometry(Geometry obstructionPoly);
+
+	/**
+	 * @param obstructionPoly Building
+	 * @param height Height of the building, Double.MAX_VALUE if the
+	 *            building is higher than any ray
+	 */
+	void addGeometry(Geometry obstructionPoly, double height);
+
+	void finishPolygonFeeding(Envelope boundingBoxFilter)
+			throws LayerDelaunayError;
+
+	/**
+	 * @return New query context, for the queries of the calling thread
+	 */
+	QueryContext newQueryContext();
+
+	/**
+	 * Queries without context are serialized, use
+	 * {@link #isFreeField(QueryContext, Coordinate, Coordinate)} from
+	 * concurrent threads.
+	 * @return True if no building is between p1 and p2
+	 */
+	boolean isFreeField(Coordinate p1, Coordinate p2);
+
+	/**
+	 * @param context
+	 *            Query context of the calling thread
+	 * @return True if no building is between p1 and p2
+	 */
+	boolean isFreeField(QueryContext context, Coordinate p1, Coordinate p2);
+
+	/**
+	 * Height-aware free field test, the ray goes over the buildings lower
+	 * than the line between p1 and p2. A missing z is 0.
+	 * 
+	 * @param pathData
+	 *            Set when the result is false to the path over the
+	 *            buildings: [0] delta distance, [1] e, [2] height of the
+	 *            highest point, [3] length of the path. All values are -1 if
+	 *            there is no path over the buildings.
+	 * @return True if no building is above the line between p1 and p2
+	 */
+	boolean getPath(Coordinate p1, Coordinate p2, double[] pathData);
+
+	/**
+	 * Height-aware free field test with the query context of the calling
+	 * thread, see {@link #getPath(Coordinate, Coordinate, double[])}
+	 */
+	boolean getPath(QueryContext context, Coordinate p1, Coordinate p2,
+			double[] pathData);
+
+	/**
+	 * @param filter
+	 *            Keep only the walls intersecting this envelope
+	 * @return Walls, the free field is on the left side of the segment
+	 */
+	List<LineSegment> getWalls(Envelope filter);
+
+	/**
+	 * @param minAngle
+	 *            Minimum angle [0-2Pi]
+	 * @param maxAngle
+	 *            Maximum angle [0-2Pi]
+	 * @param filter
+	 *            Keep only the corners inside this envelope, null to keep all
+	 *            corners
+	 * @return Corners within parameters range, translated toward the free
+	 *         field
+	 */
+	List<Coordinate> getWideAnglePoints(double minAngle, double maxAngle,
+			Envelope filter);
+
+	/**
+	 * @param origin
+	 *            Viewpoint
+	 * @param maxDist
+	 *            Maximum distance of the visibility polygon
+	 * @return Visibility polygon, null if not supported
+	 */
+	Isovist getIsovist(Coordinate origin, double maxDist);
+
+	/**
+	 * @return Obstruction test count of the queries done without context
+	 */
+	long getNbObstructionTest();
+}
@@ -41,10 +41,11 @@ import com.vividsolutions.jts.index.quadtree.Quadtree;
 /**
  * @brief Sources merging This class can merge source point by a
  *        maximum distance, from another closed source.
- *  TODO use hashmap with position/epsilon_merge
+ *  The points are stored in a QuadTree, see PointsMergeGrid for a
+ *  faster implementation.
  * @author Nicolas Fortin
  */
-public class PointsMerge {
+public class PointsMerge implements PointsMergeStructure {
 	private Quadtree ptQuad = new Quadtree();
 	private double distMerge = 1.;
         private int index_counter=-1;
@@ -62,6 +63,7 @@ public class PointsMerge {
 	 * If the new vertex is closer than distMerge with an another vertex then it will return its index.
 	 * @return The index of the vertex
 	 */
+	@Override
 	public int getOrAppendVertex(Coordinate newCoord) {
 		Envelope queryEnv = new Envelope(newCoord);
 		queryEnv.expandBy(this.distMerge*2);
@@ -79,4 +81,10 @@ public class PointsMerge {
                 
 		return index_counter;
 	}
+
+	@Override
+	public void clear() {
+		ptQuad = new Quadtree();
+		index_counter = -1;
+	}
 }
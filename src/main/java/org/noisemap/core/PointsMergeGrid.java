@@ -0,0 +1,197 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import java.util.Arrays;
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * @brief Sources merging with a spatial hash. The plane is divided in square
+ *        cells of distMerge side, a new point is compared only with the
+ *        points of the 3x3 neighbouring cells. Cells are stored in an open
+ *        addressing table of primitive keys. clear() keeps the allocated
+ *        arrays, then the same instance can be used for each receiver.
+ * @author Nicolas Fortin
+ */
+public class PointsMergeGrid implements PointsMergeStructure {
+	private static final int END_OF_LIST = -1;
+	private final double distMerge;
+	private final double squaredDistMerge;
+	// Hash table of cells
+	private long[] cellKeys;
+	private int[] cellFirstPoint; // Last inserted point of the cell
+	private int[] cellStamp; // Cell is used only if stamp == currentStamp
+	private int currentStamp = 1;
+	private int cellCount = 0;
+	// Points
+	private double[] ptX;
+	private double[] ptY;
+	private int[] ptNext; // Next point of the same cell
+	private int size = 0;
+
+	public PointsMergeGrid(double distMerge) {
+		this(distMerge, 64);
+	}
+
+	public PointsMergeGrid(double distMerge, int capacity) {
+		this.distMerge = distMerge;
+		this.squaredDistMerge = distMerge * distMerge;
+		int tableSize = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) * 2;
+		cellKeys = new long[tableSize];
+		cellFirstPoint = new int[tableSize];
+		cellStamp = new int[tableSize];
+		ptX = new double[Math.max(capacity, 8)];
+		ptY = new double[ptX.length];
+		ptNext = new int[ptX.length];
+	}
+
+	private static long getCellKey(long cellX, long cellY) {
+		return (cellX << 32) ^ (cellY & 0xFFFFFFFFL);
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * @return Slot of the cell in the table, -1 if the cell is empty
+	 */
+	private int findCell(long key) {
+		int mask = cellKeys.length - 1;
+		int slot = hash(key) & mask;
+		while (cellStamp[slot] == currentStamp) {
+			if (cellKeys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Slot of the cell in the table, the cell is created if necessary
+	 */
+	private int findOrInsertCell(long key) {
+		if ((cellCount + 1) * 2 > cellKeys.length) {
+			growTable();
+		}
+		int mask = cellKeys.length - 1;
+		int slot = hash(key) & mask;
+		while (cellStamp[slot] == currentStamp) {
+			if (cellKeys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		cellStamp[slot] = currentStamp;
+		cellKeys[slot] = key;
+		cellFirstPoint[slot] = END_OF_LIST;
+		cellCount++;
+		return slot;
+	}
+
+	private void growTable() {
+		long[] oldKeys = cellKeys;
+		int[] oldFirst = cellFirstPoint;
+		int[] oldStamp = cellStamp;
+		int oldCurrentStamp = currentStamp;
+		cellKeys = new long[oldKeys.length * 2];
+		cellFirstPoint = new int[cellKeys.length];
+		cellStamp = new int[cellKeys.length];
+		currentStamp = 1;
+		int mask = cellKeys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldStamp[i] == oldCurrentStamp) {
+				int slot = hash(oldKeys[i]) & mask;
+				while (cellStamp[slot] == currentStamp) {
+					slot = (slot + 1) & mask;
+				}
+				cellStamp[slot] = currentStamp;
+				cellKeys[slot] = oldKeys[i];
+				cellFirstPoint[slot] = oldFirst[i];
+			}
+		}
+	}
+
+	@Override
+	public int getOrAppendVertex(Coordinate newCoord) {
+		long cellX = (long) Math.floor(newCoord.x / distMerge);
+		long cellY = (long) Math.floor(newCoord.y / distMerge);
+		for (long x = cellX - 1; x <= cellX + 1; x++) {
+			for (long y = cellY - 1; y <= cellY + 1; y++) {
+				int slot = findCell(getCellKey(x, y));
+				if (slot != -1) {
+					for (int pt = cellFirstPoint[slot]; pt != END_OF_LIST; pt = ptNext[pt]) {
+						double dx = ptX[pt] - newCoord.x;
+						double dy = ptY[pt] - newCoord.y;
+						if (dx * dx + dy * dy < squaredDistMerge) {
+							return pt;
+						}
+					}
+				}
+			}
+		}
+		// Not found then append to the points and to the cell
+		if (size == ptX.length) {
+			ptX = Arrays.copyOf(ptX, size * 2);
+			ptY = Arrays.copyOf(ptY, size * 2);
+			ptNext = Arrays.copyOf(ptNext, size * 2);
+		}
+		int slot = findOrInsertCell(getCellKey(cellX, cellY));
+		ptX[size] = newCoord.x;
+		ptY[size] = newCoord.y;
+		ptNext[size] = cellFirstPoint[slot];
+		cellFirstPoint[slot] = size;
+		return size++;
+	}
+
+	/**
+	 * @return Number of distinct points
+	 */
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		size = 0;
+		cellCount = 0;
+		currentStamp++;
+		if (currentStamp == Integer.MAX_VALUE) {
+			Arrays.fill(cellStamp, 0);
+			currentStamp = 1;
+		}
+	}
+}
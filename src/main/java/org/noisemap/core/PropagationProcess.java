@@ -35,6 +35,11 @@ package org.noisemap.core;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import com.vividsolutions.jts.algorithm.NonRobustLineIntersector;
 import com.vividsolutions.jts.algorithm.CGAlgorithms;
 import com.vividsolutions.jts.geom.Coordinate;
@@ -55,19 +60,28 @@ public class PropagationProcess implements Runnable {
 	private final static double ONETHIRD=1./3.;
 	private final static double MERGE_SRC_DIST=1.;
         private final static double DBA_FORGET_SOURCE=0.03;
+        // Energetic ratio equivalent to DBA_FORGET_SOURCE, 10*log10(1+ratio)=DBA_FORGET_SOURCE
+        private final static double W_FORGET_SOURCE_RATIO=Math.pow(10,DBA_FORGET_SOURCE/10.)-1;
         private final static double FIRST_STEP_RANGE=90;
         private final static double W_RANGE=Math.pow(10,94./10.); //94 dB(A) range search. Max iso level is >75 dB(a).
         private final static double CEL = 344.23935;
-        private final static int LIMITATION_RECEIVER_MIRROR = 1000;
         private final static int LIMITATION_DIFFRACTION_PATH = 1000;
+        private final static int RECEIVER_SLICE_SIZE = 32; // Receivers computed by a thread before fetching the next slice
 	private Thread thread;
 	private PropagationProcessData data;
 	private PropagationProcessOut dataOut;
-	private Quadtree cornersQuad;
+	private Quadtree cornersQuad; // Index in cellCorners of the corners
+	private List<Coordinate> cellCorners; // Diffraction corners of the cell, see initDiffractionCorners
+	private int[] cornerGraphIndex; // Corners visibility graph, see buildCornerGraph
+	private int[] cornerGraphNeighbors;
+	private LineSourceCache lineSourceCache; // Discretized line sources of the cell
+	private ReflectionWalls reflectionWalls; // Walls of the cell and their face to face walls, see getReflectionWalls
+	private Envelope receiversEnvelope; // Receivers of the cell expanded by maxRefDist
 	private int nbfreq;
-        private long diffractionPathCount=0;
-        private long refpathcount=0;
+	private ExecutorService receiverExecutor = null; // Pool of threads helping the computation of receivers
+	private int receiverHelperCount = 0;
 	private double[] alpha_atmo;
+	private double[] atmo_decay; // Atmospheric energetic decay coefficient by frequency band
 	private double[] freq_lambda;
         private static double GetGlobalLevel(int nbfreq,double energeticSum[]) {
             double globlvl = 0;
@@ -76,6 +90,63 @@ public class PropagationProcess implements Runnable {
             }
             return globlvl;
         }
+	/**
+	 * Point of the closed ring {a,b,c,a}
+	 */
+	private static Coordinate trianglePoint(int index, Coordinate a,
+			Coordinate b, Coordinate c) {
+		switch (index) {
+		case 1:
+			return b;
+		case 2:
+			return c;
+		default:
+			return a;
+		}
+	}
+	/**
+	 * Same answer as CGAlgorithms.isCCW(new Coordinate[] {a,b,c,a}), including
+	 * degenerate triangles, without allocating the ring.
+	 * @return True if the triangle is CCW oriented
+	 */
+	static boolean isTriangleCCW(Coordinate a, Coordinate b, Coordinate c) {
+		final int nPts = 3;
+		// find highest point
+		Coordinate hiPt = a;
+		int hiIndex = 0;
+		if (b.y > hiPt.y) {
+			hiPt = b;
+			hiIndex = 1;
+		}
+		if (c.y > hiPt.y) {
+			hiPt = c;
+			hiIndex = 2;
+		}
+		// find distinct point before highest point
+		int iPrev = hiIndex;
+		do {
+			iPrev = iPrev - 1;
+			if (iPrev < 0) {
+				iPrev = nPts;
+			}
+		} while (trianglePoint(iPrev, a, b, c).equals2D(hiPt) && iPrev != hiIndex);
+		// find distinct point after highest point
+		int iNext = hiIndex;
+		do {
+			iNext = (iNext + 1) % nPts;
+		} while (trianglePoint(iNext, a, b, c).equals2D(hiPt) && iNext != hiIndex);
+		Coordinate prev = trianglePoint(iPrev, a, b, c);
+		Coordinate next = trianglePoint(iNext, a, b, c);
+		if (prev.equals2D(hiPt) || next.equals2D(hiPt) || prev.equals2D(next)) {
+			return false;
+		}
+		int disc = CGAlgorithms.orientationIndex(prev, hiPt, next);
+		if (disc == 0) {
+			// collinear, the ring is CCW if prev is on the right of next
+			return prev.x > next.x;
+		}
+		return disc > 0;
+	}
 	/**
 	 * Occlusion test on two walls. Segments are CCW oriented.
 	 * @param wall1
@@ -83,7 +154,7 @@ public class PropagationProcess implements Runnable {
 	 * @return True if the walls are face to face
 	 */
 	static public boolean wallWallTest(LineSegment wall1,LineSegment wall2) {
-		return ((CGAlgorithms.isCCW(new Coordinate[] {wall1.getCoordinate(0),wall1.getCoordinate(1),wall2.getCoordinate(0),wall1.getCoordinate(0)}) || CGAlgorithms.isCCW(new Coordinate[] {wall1.getCoordinate(0),wall1.getCoordinate(1),wall2.getCoordinate(1),wall1.getCoordinate(0)})) && (CGAlgorithms.isCCW(new Coordinate[] {wall2.getCoordinate(0),wall2.getCoordinate(1),wall1.getCoordinate(0),wall2.getCoordinate(0)}) || CGAlgorithms.isCCW(new Coordinate[] {wall2.getCoordinate(0),wall2.getCoordinate(1),wall1.getCoordinate(1),wall2.getCoordinate(0)})));
+		return ((isTriangleCCW(wall1.p0, wall1.p1, wall2.p0) || isTriangleCCW(wall1.p0, wall1.p1, wall2.p1)) && (isTriangleCCW(wall2.p0, wall2.p1, wall1.p0) || isTriangleCCW(wall2.p0, wall2.p1, wall1.p1)));
 	}
 	/**
 	 * Occlusion test on two walls. Segments are CCW oriented.
@@ -92,73 +163,112 @@ public class PropagationProcess implements Runnable {
          * @return True if the wall is oriented to the point
 	 */
 	static public boolean wallPointTest(LineSegment wall1,Coordinate pt) {
-		return CGAlgorithms.isCCW(new Coordinate[] {wall1.getCoordinate(0),wall1.getCoordinate(1),pt,wall1.getCoordinate(0)});
+		return isTriangleCCW(wall1.p0, wall1.p1, pt);
 	}
 	/**
-	 * Recursive method to feed mirrored receiver position on walls. No
-	 * obstruction test is done.
+	 * Feed mirrored receiver positions on walls, by order of reflection. The
+	 * walls reflecting an image are the walls face to face with the last wall
+	 * of the image. No obstruction test is done.
+	 * 
+	 * An image and its children are discarded when the path length of any
+	 * source through them is greater than maxPathLength, or when the level of
+	 * a source of W_RANGE through them is lower than minImageLevel. The path
+	 * length lower bound of an image is the greatest distance between a wall
+	 * of the image and the preceding image.
 	 * 
 	 * @param receiversImage
-	 *            Add receiver image here
+	 *            Add receiver image here, wall index is an index of
+	 *            regionWalls
 	 * @param receiverCoord
-	 *            Receiver coordinate or precedent mirrored coordinate
-	 * @param lastResult
-	 *            Last row index. -1 if first reflexion
-	 * @param nearBuildingsWalls
-	 *            Walls to be reflected on
-	 * @param depth
-	 *            Depth of reflection TODO Use segment orientation to filter
-	 *            wall list
+	 *            Receiver coordinate
+	 * @param reflectionWalls
+	 *            Walls of the cell
+	 * @param regionWalls
+	 *            Index in reflectionWalls of the walls to be reflected on
+	 * @param regionWallCount
+	 *            Number of walls stored in regionWalls
+	 * @param regionWallIndex
+	 *            Index in regionWalls of the walls of reflectionWalls
+	 * @param order
+	 *            Order of reflections 1 to a limited number
+	 * @param distanceLimitation
+	 *            Maximum distance between a wall and the reflected position
+	 * @param maxPathLength
+	 *            Maximum length of a path between a source and the receiver
+	 * @param wallAlpha
+	 *            Wall absorption coefficient
+	 * @param minImageLevel
+	 *            Minimum level of a source of W_RANGE through an image, 0 to
+	 *            keep all images
+	 * @return Count of discarded images
 	 */
-	static private void feedMirroredReceiverResults(
+	static long feedMirroredReceiverResults(
 			List<MirrorReceiverResult> receiversImage,
-			Coordinate receiverCoord, int lastResult,
-			List<LineSegment> nearBuildingsWalls, int depth,
-			double distanceLimitation) {
-		// For each wall (except parent wall) compute the mirrored coordinate
-		int exceptionWallId = -1;
-		if (lastResult != -1) {
-			exceptionWallId = receiversImage.get(lastResult).getWallId();
-		}
-		int wallId = 0;
-		for (LineSegment wall : nearBuildingsWalls) {
-			if (wallId != exceptionWallId) {
-				//Counter ClockWise test. Walls vertices are CCW oriented.
-				//This help to test if a wall could see a point or another wall
-				//If the triangle formed by two point of the wall + the receiver is CCW then the wall is oriented toward the point.
-				boolean isCCW=false;
-				if (lastResult == -1) { //If the receiverCoord is not an image
-					isCCW=wallPointTest(wall,receiverCoord);
-				} else {
-					//Call wall visibility test
-					isCCW=wallWallTest(nearBuildingsWalls.get(exceptionWallId),wall);
+			Coordinate receiverCoord, ReflectionWalls reflectionWalls,
+			int[] regionWalls, int regionWallCount,
+			RegionIndex regionWallIndex, int order,
+			double distanceLimitation, double maxPathLength, double wallAlpha,
+			double minImageLevel) {
+		long prunedImages = 0;
+		List<Double> pathLengthBounds = new ArrayList<Double>(); // By image
+		List<LineSegment> walls = reflectionWalls.getWalls();
+		// The receiver (-1) is the parent of the first order images
+		int levelBegin = -1;
+		int levelEnd = 0;
+		for (int reflectionOrder = 1; reflectionOrder <= order; reflectionOrder++) {
+			double sourceLevel = W_RANGE
+					* Math.pow(1 - wallAlpha, reflectionOrder);
+			for (int parent = levelBegin; parent < levelEnd; parent++) {
+				Coordinate parentCoord = receiverCoord;
+				double parentBound = 0;
+				int begin = 0;
+				int end = regionWallCount;
+				if (parent != -1) {
+					MirrorReceiverResult parentImage = receiversImage.get(parent);
+					parentCoord = parentImage.getReceiverPos();
+					parentBound = pathLengthBounds.get(parent);
+					int parentWall = regionWalls[parentImage.getWallId()];
+					begin = reflectionWalls.getFaceWallsBegin(parentWall);
+					end = reflectionWalls.getFaceWallsEnd(parentWall);
 				}
-				
-				if(isCCW) {
-					Coordinate intersectionPt = wall.project(receiverCoord);
-					if (wall.distance(receiverCoord) < distanceLimitation) // Test
-																			// maximum
-																			// distance
-																			// constraint
-					{
-						Coordinate mirrored = new Coordinate(2 * intersectionPt.x
-								- receiverCoord.x, 2 * intersectionPt.y
-								- receiverCoord.y);
-						receiversImage.add(new MirrorReceiverResult(mirrored,
-								lastResult, wallId));
-						if (depth > 0) {
-							feedMirroredReceiverResults(receiversImage, mirrored,
-									receiversImage.size() - 1, nearBuildingsWalls,
-									depth - 1, distanceLimitation);
+				for (int cursor = begin; cursor < end; cursor++) {
+					int wallId = cursor;
+					if (parent != -1) {
+						wallId = regionWallIndex.get(reflectionWalls
+								.getFaceWall(cursor));
+						if (wallId == -1) {
+							continue;
+						}
+					}
+					LineSegment wall = walls.get(regionWalls[wallId]);
+					//Counter ClockWise test. Walls vertices are CCW oriented.
+					//If the triangle formed by two point of the wall + the receiver is CCW then the wall is oriented toward the point.
+					//Walls face to face with the parent wall have been tested by wallWallTest.
+					if (parent != -1 || wallPointTest(wall, receiverCoord)) {
+						double wallDistance = wall.distance(parentCoord);
+						if (wallDistance < distanceLimitation) {
+							double pathLengthBound = Math.max(parentBound,
+									wallDistance);
+							if (pathLengthBound >= maxPathLength
+									|| attDistW(sourceLevel, pathLengthBound) < minImageLevel) {
+								prunedImages++;
+								continue;
+							}
+							Coordinate intersectionPt = wall.project(parentCoord);
+							Coordinate mirrored = new Coordinate(2
+									* intersectionPt.x - parentCoord.x, 2
+									* intersectionPt.y - parentCoord.y);
+							receiversImage.add(new MirrorReceiverResult(
+									mirrored, parent, wallId));
+							pathLengthBounds.add(pathLengthBound);
 						}
 					}
 				}
 			}
-			wallId++;
-                        if(receiversImage.size()>LIMITATION_RECEIVER_MIRROR) {
-                            break;
-                        }
+			levelBegin = levelEnd;
+			levelEnd = receiversImage.size();
 		}
+		return prunedImages;
 	}
 
 	/**
@@ -176,12 +286,189 @@ public class PropagationProcess implements Runnable {
 	static public List<MirrorReceiverResult> getMirroredReceiverResults(
 			Coordinate receiverCoord, List<LineSegment> nearBuildingsWalls,
 			int order, double distanceLimitation) {
+		// A wall reflecting an image is closer than distanceLimitation of the
+		// preceding wall
+		ReflectionWalls reflectionWalls = new ReflectionWalls(
+				nearBuildingsWalls, distanceLimitation * 2);
+		int[] regionWalls = new int[nearBuildingsWalls.size()];
+		for (int idWall = 0; idWall < nearBuildingsWalls.size(); idWall++) {
+			regionWalls[idWall] = idWall;
+		}
+		RegionIndex regionWallIndex = new RegionIndex();
+		regionWallIndex.set(nearBuildingsWalls.size(), regionWalls,
+				regionWalls.length);
 		List<MirrorReceiverResult> receiversImage = new ArrayList<MirrorReceiverResult>();
-		feedMirroredReceiverResults(receiversImage, receiverCoord, -1,
-				nearBuildingsWalls, order - 1, distanceLimitation);
+		feedMirroredReceiverResults(receiversImage, receiverCoord,
+				reflectionWalls, regionWalls, regionWalls.length,
+				regionWallIndex, order,
+				distanceLimitation, Double.POSITIVE_INFINITY, 0, 0);
 		return receiversImage;
 	}
 
+	/**
+	 * Compute the reflection point on a wall of the path between a receiver
+	 * image and a destination (source or preceding reflection point). The
+	 * reflection point is translated by 1 cm toward the destination to be
+	 * outside of the wall. Nothing is allocated.
+	 * 
+	 * @param linters
+	 *            Intersector used for the computation
+	 * @param wall
+	 *            Wall mirroring the receiver image
+	 * @param imagePos
+	 *            Receiver image
+	 * @param destinationPt
+	 *            Source or preceding reflection point
+	 * @param reflectionPt
+	 *            Output reflection point, updated only if a reflection point
+	 *            is found
+	 * @return True if the path cross the wall and the wall is oriented to the
+	 *         destination
+	 */
+	static boolean computeReflectionPoint(NonRobustLineIntersector linters,
+			LineSegment wall, Coordinate imagePos, Coordinate destinationPt,
+			Coordinate reflectionPt) {
+		linters.computeIntersection(wall.p0, wall.p1, imagePos, destinationPt);
+		if (!linters.hasIntersection() || !wallPointTest(wall, destinationPt)) {
+			return false;
+		}
+		reflectionPt.setCoordinate(linters.getIntersection(0));
+		// Translate reflection point by epsilon value to
+		// increase computation robustness
+		double vecX = reflectionPt.x - destinationPt.x;
+		double vecY = reflectionPt.y - destinationPt.y;
+		double length = Math.sqrt(vecX * vecX + vecY * vecY);
+		// Translate reflection pt by epsilon (0.01 meter) to get outside
+		// the wall
+		reflectionPt.x -= vecX / length * 0.01;
+		reflectionPt.y -= vecY / length * 0.01;
+		return true;
+	}
+
+	/**
+	 * Mutable data of the receivers computation. Each thread computing the
+	 * receivers of this process use its own instance, then the counters are
+	 * merged into PropagationProcessOut.
+	 */
+	static final class ThreadContext {
+		long diffractionPathCount = 0;
+		long refpathcount = 0;
+		long sourceCount = 0;
+		long imageReceiverCount = 0;
+		long prunedImageCount = 0;
+		long prunedReflectionCount = 0;
+		long minComputeTime = Long.MAX_VALUE;
+		long maxComputeTime = 0;
+		long sumComputeTime = 0;
+		// Merge of the source points, reused for each receiver
+		final PointsMergeStructure sourcesMerger;
+		// Merged sources of the receiver, sorted by distance
+		final IndexHeap pendingSources = new IndexHeap();
+		final List<Integer> srcSortByDist = new ArrayList<Integer>();
+		final List<Double> srcDist = new ArrayList<Double>();
+		final List<Coordinate> srcPos = new ArrayList<Coordinate>();
+		final SpectrumList srcWj;
+		// Points of a line source and spectrum of the current raw source
+		final List<Coordinate> linePoints = new ArrayList<Coordinate>();
+		final double[] wj;
+		// A raw source is processed for the current receiver if its value is
+		// processedSourceStamp
+		int[] processedSources = new int[0];
+		int processedSourceStamp = 0;
+		// Images, corners and corners visible of the current receiver
+		final List<MirrorReceiverResult> mirroredReceiver = new ArrayList<MirrorReceiverResult>();
+		final List<Coordinate> receiverCorners = new ArrayList<Coordinate>();
+		final List<Integer> receiverCornerIds = new ArrayList<Integer>();
+		final List<Integer> cornersFreeToReceiver = new ArrayList<Integer>();
+		// Visibility polygon of the current receiver, may be null
+		Isovist receiverIsovist = null;
+		// Index in regionCorners of the cell corners
+		final RegionIndex regionCorners = new RegionIndex();
+		// Index in nearBuildingsWalls of the cell walls
+		final RegionIndex regionWalls = new RegionIndex();
+		// Walls near the receiver, from the superset of the receiver cluster
+		final WallRangeCache wallsInRange = new WallRangeCache();
+		final List<LineSegment> nearBuildingsWalls = new ArrayList<LineSegment>();
+		// Reflection path validation, reused for each receiver-source pair
+		final NonRobustLineIntersector linters = new NonRobustLineIntersector();
+		final Coordinate destinationPt = new Coordinate();
+		final Coordinate reflectionPt = new Coordinate();
+		// Path over the buildings of the last height-aware obstruction test
+		final double[] verticalPath = new double[4];
+		// Corners of the current diffraction path, by index in regionCorners
+		int[] cornerPath = new int[0];
+		// A corner is in the current diffraction path if its value is
+		// cornerPathStamp
+		int[] cornerInPath = new int[0];
+		int cornerPathStamp = 0;
+		// Queries of this thread on the obstruction test
+		final ObstructionTest.QueryContext obstructionContext;
+		long mergedObstructionTestCount = 0;
+
+		ThreadContext(PropagationProcessData data) {
+			obstructionContext = data.freeFieldFinder.newQueryContext();
+			if (data.quadtreeSourcesMerge) {
+				sourcesMerger = new PointsMerge(MERGE_SRC_DIST);
+			} else {
+				sourcesMerger = new PointsMergeGrid(MERGE_SRC_DIST);
+			}
+			srcWj = new SpectrumList(data.freq_lvl.size());
+			wj = new double[data.freq_lvl.size()];
+		}
+
+		/**
+		 * Start the source search of a new receiver, the sources processed
+		 * for the previous receiver are released by changing the stamp.
+		 * @param sourceCount Count of raw sources of the cell
+		 * @return Stamp of the raw sources processed for the new receiver
+		 */
+		int nextProcessedSourceStamp(int sourceCount) {
+			if (processedSources.length < sourceCount
+					|| processedSourceStamp == Integer.MAX_VALUE) {
+				processedSources = new int[sourceCount];
+				processedSourceStamp = 0;
+			}
+			return ++processedSourceStamp;
+		}
+
+		/**
+		 * Start a new diffraction path walk, the corners of the previous walk
+		 * are released by changing the stamp.
+		 * @param cornerCount Count of corners around the receiver
+		 * @param maxPathLength Maximum count of corners of a path
+		 * @return Stamp of the corners in the path of the new walk
+		 */
+		int nextCornerPathStamp(int cornerCount, int maxPathLength) {
+			if (cornerInPath.length < cornerCount
+					|| cornerPathStamp == Integer.MAX_VALUE) {
+				cornerInPath = new int[cornerCount];
+				cornerPathStamp = 0;
+			}
+			if (cornerPath.length < maxPathLength) {
+				cornerPath = new int[maxPathLength];
+			}
+			return ++cornerPathStamp;
+		}
+
+		long getObstructionTestCount() {
+			return obstructionContext.getNbObstructionTest()
+					+ mergedObstructionTestCount;
+		}
+
+		void merge(ThreadContext other) {
+			mergedObstructionTestCount += other.getObstructionTestCount();
+			diffractionPathCount += other.diffractionPathCount;
+			refpathcount += other.refpathcount;
+			sourceCount += other.sourceCount;
+			imageReceiverCount += other.imageReceiverCount;
+			prunedImageCount += other.prunedImageCount;
+			prunedReflectionCount += other.prunedReflectionCount;
+			minComputeTime = Math.min(minComputeTime, other.minComputeTime);
+			maxComputeTime = Math.max(maxComputeTime, other.maxComputeTime);
+			sumComputeTime += other.sumComputeTime;
+		}
+	}
+
 	public PropagationProcess(PropagationProcessData data,
 			PropagationProcessOut dataOut) {
 		thread = new Thread(this);
@@ -189,6 +476,24 @@ public class PropagationProcess implements Runnable {
 		this.data = data;
 	}
 
+	/**
+	 * Compute the receivers of this cell with the help of other threads. The
+	 * thread calling run() compute receivers too, helpers fetch slices of
+	 * receivers until there is no more receiver to compute. Helpers never
+	 * wait, then the executor may be shared by many processes.
+	 * 
+	 * @param receiverExecutor
+	 *            Thread pool of helpers, null to compute receivers in the
+	 *            calling thread only
+	 * @param receiverHelperCount
+	 *            Maximum number of helpers for this process
+	 */
+	public void setReceiverExecutor(ExecutorService receiverExecutor,
+			int receiverHelperCount) {
+		this.receiverExecutor = receiverExecutor;
+		this.receiverHelperCount = receiverHelperCount;
+	}
+
 	public void start() {
 		thread.start();
 	}
@@ -208,59 +513,6 @@ public class PropagationProcess implements Runnable {
 		return 10 * Math.log10(w);
 	}
 
-	/**
-	 * @param startPt
-	 *            Compute the closest point on lineString with this coordinate,
-	 *            use it as one of the splitted points
-	 * @return computed delta
-	 */
-	private double splitLineStringIntoPoints(Geometry geom, Coordinate startPt,
-			List<Coordinate> pts, double minRecDist) {
-		// Find the position of the closest point
-		Coordinate[] points = geom.getCoordinates();
-		// For each segments
-		Double closestPtDist = Double.MAX_VALUE;
-		Coordinate closestPt = null;
-		double roadLength = 0.;
-		for (int i = 1; i < points.length; i++) {
-			LineSegment seg = new LineSegment(points[i - 1], points[i]);
-			roadLength += seg.getLength();
-			Coordinate SegClosest = seg.closestPoint(startPt);
-			double segcdist = SegClosest.distance(startPt);
-			if (segcdist < closestPtDist) {
-				closestPtDist = segcdist;
-				closestPt = SegClosest;
-			}
-		}
-		if (closestPt == null) {
-			return 1.;
-                }
-		double delta = 20.;
-		// If the minimum effective distance between the line source and the
-		// receiver is smaller than the minimum distance constraint then the
-		// discretisation parameter is changed
-		// Delta must not not too small to avoid memory overhead.
-		if (closestPtDist < minRecDist) {
-			closestPtDist = minRecDist;
-		}
-		if (closestPtDist / 2 < delta) {
-			delta = closestPtDist / 2;
-		}
-		pts.add(closestPt);
-		Coordinate[] splitedPts = ST_SplitLineInPoints
-				.splitMultiPointsInRegularPoints(points, delta);
-		for (Coordinate pt : splitedPts) {
-			if (pt.distance(closestPt) > delta) {
-				pts.add(pt);
-			}
-		}
-		if (delta < roadLength) {
-			return delta;
-		} else {
-			return roadLength;
-		}
-	}
-
 	/**
 	 * ISO-9613 p1 - At 15°C 70% humidity
 	 * 
@@ -311,17 +563,28 @@ public class PropagationProcess implements Runnable {
 		}
 	}
 
-	private int nextFreeFieldNode(List<Coordinate> nodes, Coordinate startPt,
-			List<Integer> NodeExceptions, int firstTestNode,
-			FastObstructionTest freeFieldFinder) {
-		int validNode = firstTestNode;
-		while (NodeExceptions.contains(validNode)
-				|| (validNode < nodes.size() && !freeFieldFinder.isFreeField(
-						startPt, nodes.get(validNode)))) {
-			validNode++;
-		}
-		if (validNode >= nodes.size()) {
-			return -1;
+	/**
+	 * Find the next corner visible from the start corner using the corners
+	 * visibility graph of the cell.
+	 * 
+	 * @param pathStamp Stamp of the corners of the current path in
+	 *            context.cornerInPath
+	 * @return The smallest index in regionCorners greater or equal to
+	 *         firstTestNode and not in the current path, -1 if there is none
+	 */
+	private int nextFreeFieldNode(ThreadContext context,
+			List<Integer> regionCornerIds, int startNode, int pathStamp,
+			int firstTestNode) {
+		final int[] cornerInPath = context.cornerInPath;
+		// Corners of the cell visible from the start corner
+		int startCellCorner = regionCornerIds.get(startNode);
+		int validNode = -1;
+		for (int neighbor = cornerGraphIndex[startCellCorner]; neighbor < cornerGraphIndex[startCellCorner + 1]; neighbor++) {
+			int node = context.regionCorners.get(cornerGraphNeighbors[neighbor]);
+			if (node >= firstTestNode && (validNode == -1 || node < validNode)
+					&& cornerInPath[node] != pathStamp) {
+				validNode = node;
+			}
 		}
 		return validNode;
 	}
@@ -352,9 +615,9 @@ public class PropagationProcess implements Runnable {
 	 * @param[in] srcCoord Coordinate of source
 	 * @param[in] receiverCoord Coordinate of receiver
 	 * @param[out] energeticSum Energy by frequency band
-	 * @param[in] alpha_atmo Atmospheric absorption by frequency band
-	 * @param[in] wj Source sound pressure level dB(A) by frequency band
-	 * @param[in] li Coefficient, distance between source discretization
+	 * @param[in] atmo_decay Atmospheric decay coefficient by frequency band
+	 * @param[in] wj Source energetic level by frequency band
+	 * @param[in] wjOffset Index of the first frequency band in wj
 	 * @param[in] mirroredReceiver Receivers mirrored by walls (for reflection)
 	 * @param[in] nearBuildingsWalls Walls within maxsrcdist
 	 * @param[in] regionCorners Corners within maxsrcdist
@@ -362,12 +625,12 @@ public class PropagationProcess implements Runnable {
 	 *            from receiver
 	 * @param[in] freq_lambda Array of sound wave lambda value by frequency band
 	 */
-	private void receiverSourcePropa(Coordinate srcCoord,
+	private void receiverSourcePropa(ThreadContext context, Coordinate srcCoord,
 			Coordinate receiverCoord, double energeticSum[],
-			double[] alpha_atmo, List<Double> wj,
+			double[] atmo_decay, double[] wj, int wjOffset,
 			List<MirrorReceiverResult> mirroredReceiver,
 			List<LineSegment> nearBuildingsWalls,
-			List<Coordinate> regionCorners,
+			List<Coordinate> regionCorners, List<Integer> regionCornerIds,
 			List<Integer> regionCornersFreeToReceiver, double[] freq_lambda) 
 	{
 		// GeometryFactory factory=new GeometryFactory();
@@ -378,166 +641,95 @@ public class PropagationProcess implements Runnable {
 			// hidden by a building)
 			// Create the direct Line
 			boolean somethingHideReceiver = false;
-			somethingHideReceiver = !data.freeFieldFinder.isFreeField(
-					receiverCoord, srcCoord);
+			if (data.verticalDiffraction) {
+				somethingHideReceiver = !isFreeFieldOverBuildings(context,
+						receiverCoord, srcCoord);
+			} else {
+				somethingHideReceiver = !isFreeFieldFromReceiver(context,
+						receiverCoord, srcCoord);
+			}
 			if (!somethingHideReceiver) {
 				// Evaluation of energy at receiver
 				// add=wj/(4*pi*distance²)
 				for (int idfreq = 0; idfreq < freqcount; idfreq++) {
-					double AttenuatedWj = attDistW(wj.get(idfreq),
+					double AttenuatedWj = attDistW(wj[wjOffset + idfreq],
 							SrcReceiverDistance);
-					AttenuatedWj = attAtmW(AttenuatedWj,
-                                                SrcReceiverDistance,
-                                                alpha_atmo[idfreq]);
+					AttenuatedWj *= attAtmFactor(atmo_decay[idfreq],
+                                                SrcReceiverDistance);
 					energeticSum[idfreq] += AttenuatedWj;
 				}
 
+			} else if (data.verticalDiffraction) {
+				// Process the vertical diffraction over the buildings
+				double[] verticalPath = context.verticalPath;
+				double deltaDistance = verticalPath[0];
+				double e = verticalPath[1];
+				double fullDistance = verticalPath[3];
+				if (fullDistance >= 0 && fullDistance < data.maxSrcDist) {
+					context.diffractionPathCount++;
+					for (int idfreq = 0; idfreq < freqcount; idfreq++) {
+						double cprime = 1.;
+						//C" NMPB 2008 P.33, NFS 31-133 page 46
+						if (e > 0.3) {
+							//Multiple diffraction
+							//CPRIME=( 1+(5*gamma)^2)/((1/3)+(5*gamma)^2)
+							double gammapart = Math.pow(
+									(5 * freq_lambda[idfreq]) / e, 2);
+							cprime = (1. + gammapart) / (ONETHIRD + gammapart);
+						}
+						//(7.11) NMP2008 P.32
+						double testForm = (40 / freq_lambda[idfreq]) * cprime
+								* deltaDistance;
+						double AttenuatedWj = wj[wjOffset + idfreq];
+						// Geometric dispersion
+						//fullDistance-deltaDistance is the distance direct between source and receiver
+						AttenuatedWj = attDistW(AttenuatedWj, fullDistance
+								- deltaDistance);
+						// Apply diffraction attenuation
+						AttenuatedWj *= getDiffractionFactor(testForm);
+						// Apply atmospheric absorption and ground
+						AttenuatedWj *= attAtmFactor(atmo_decay[idfreq],
+								fullDistance);
+						energeticSum[idfreq] += AttenuatedWj;
+					}
+				}
 			}
-                        //Process diffraction 3D
-                    /*    
-                        Double[] diffractiondata=data.freeFieldFinder.getPath(receiverCoord, srcCoord);
-                        
-                        double deltadistance=diffractiondata[0];
-                        double e=diffractiondata[1];
-                        double heightpoint=diffractiondata[2];
-                        double fulldistance=diffractiondata[3];
-                        
-                        if(deltadistance!=-1.&&e!=-1.&&heightpoint!=-1.&&fulldistance!=-1.&&fulldistance<data.maxSrcDist){
-                            for (int idfreq = 0; idfreq < freqcount; idfreq++) {
-
-									double cprime;
-									//C" NMPB 2008 P.33
-									
-										//Multiple diffraction
-										//CPRIME=( 1+(5*gamma)^2)/((1/3)+(5*gamma)^2)
-										double gammapart=Math.pow((5*freq_lambda[idfreq])/e, 2);
-                                                                                //NFS 31-133 page 46
-                                                                                if(e>0.3){
-                                                                                    cprime=(1.+gammapart)/(ONETHIRD+gammapart);
-                                                                                }
-                                                                                else{
-                                                                                    cprime=1.;
-                                                                                }
-									
-									//(7.11) NMP2008 P.32
-									double testForm = (40 / freq_lambda[idfreq])
-											* cprime * deltadistance;
-									double DiffractionAttenuation = 0.;
-									if (testForm >= -2.) {
-										DiffractionAttenuation = 10 * Math
-												.log10(3 + testForm);
-									}else{
-										
-									}
-									// Limit to 0<=DiffractionAttenuation
-									DiffractionAttenuation = Math.max(0,
-											DiffractionAttenuation);
-									double AttenuatedWj = wj.get(idfreq);
-									// Geometric dispersion
-                                                                        //fulldistance-deltdistance is the distance direct between source and receiver
-									AttenuatedWj=attDistW(AttenuatedWj, fulldistance-deltadistance);
-									// Apply diffraction attenuation
-									AttenuatedWj = dbaToW(wToDba(AttenuatedWj)
-											- DiffractionAttenuation);
-									// Apply atmospheric absorption and ground
-									AttenuatedWj = attAtmW(
-											AttenuatedWj,
-											fulldistance,
-											alpha_atmo[idfreq]);
-									
-									energeticSum[idfreq] += AttenuatedWj;
-								}
-                        
-                        
-                        }
-                 */
 			//
 			// Process specular reflection
 			if (data.reflexionOrder > 0) {
-				NonRobustLineIntersector linters = new NonRobustLineIntersector();
-				for (MirrorReceiverResult receiverReflection : mirroredReceiver) {
-
-					
+				double allsourcefreqlvl = 0;
+				for (int idfreq = 0; idfreq < freqcount; idfreq++) {
+					allsourcefreqlvl += wj[wjOffset + idfreq];
+				}
+				// The receiver level only grows, paths negligible with
+				// this level are negligible with the final level
+				double forgetReflectionLvl = GetGlobalLevel(freqcount,
+						energeticSum) * W_FORGET_SOURCE_RATIO;
+				for (int idImage = 0; idImage < mirroredReceiver.size(); idImage++) {
+					MirrorReceiverResult receiverReflection = mirroredReceiver
+							.get(idImage);
 					double ReflectedSrcReceiverDistance = receiverReflection
 							.getReceiverPos().distance(srcCoord);
 					if (ReflectedSrcReceiverDistance < data.maxSrcDist ) {
-						boolean validReflection = false;
-						int reflectionOrderCounter = 0;
-						MirrorReceiverResult receiverReflectionCursor = receiverReflection;
-						// Test whether intersection point is on the wall
-						// segment or not
-						Coordinate destinationPt = new Coordinate(srcCoord);
-						LineSegment seg = nearBuildingsWalls
-								.get(receiverReflection.getWallId());
-						linters.computeIntersection(seg.p0, seg.p1,
-								receiverReflection.getReceiverPos(),
-								destinationPt);
-						while (linters.hasIntersection() && PropagationProcess.wallPointTest(seg, destinationPt)) // While there is a
-															// reflection point
-															// on another wall
-						{
-							reflectionOrderCounter++;
-							// There are a probable reflection point on the
-							// segment
-							Coordinate reflectionPt = new Coordinate(
-									linters.getIntersection(0));
-							// Translate reflection point by epsilon value to
-							// increase computation robustness
-							Coordinate vec_epsilon = new Coordinate(
-									reflectionPt.x - destinationPt.x,
-									reflectionPt.y - destinationPt.y);
-							double length = vec_epsilon
-									.distance(new Coordinate(0., 0., 0.));
-							// Normalize vector
-							vec_epsilon.x /= length;
-							vec_epsilon.y /= length;
-							// Multiply by epsilon in meter
-							vec_epsilon.x *= 0.01;
-							vec_epsilon.y *= 0.01;
-							// Translate reflection pt by epsilon to get outside
-							// the wall
-							reflectionPt.x -= vec_epsilon.x;
-							reflectionPt.y -= vec_epsilon.y;
-							// Test if there is no obstacles between the
-							// reflection point and old reflection pt (or source
-							// position)
-							validReflection = data.freeFieldFinder.isFreeField(
-									reflectionPt, destinationPt);
-							if (validReflection) // Reflection point can see
-													// source or its image
-							{
-								if (receiverReflectionCursor
-										.getMirrorResultId() == -1) { // Direct
-																		// to
-																		// the
-																		// receiver
-									validReflection = data.freeFieldFinder
-											.isFreeField(reflectionPt,
-													receiverCoord);
-									break; // That was the last reflection
-								} else {
-									// There is another reflection
-									destinationPt.setCoordinate(reflectionPt);
-									// Move reflection information cursor to a
-									// reflection closer
-									receiverReflectionCursor = mirroredReceiver
-											.get(receiverReflectionCursor
-													.getMirrorResultId());
-									// Update intersection data
-									seg = nearBuildingsWalls
-											.get(receiverReflectionCursor
-													.getWallId());
-									linters.computeIntersection(seg.p0, seg.p1,
-											receiverReflectionCursor
-													.getReceiverPos(),
-											destinationPt);
-									validReflection = false;
-								}
-							} else {
-								break;
-							}
+						// Skip the path if its level without obstruction is
+						// negligible
+						int imageOrder = 1;
+						for (MirrorReceiverResult parent = receiverReflection; parent
+								.getMirrorResultId() != -1; parent = mirroredReceiver
+								.get(parent.getMirrorResultId())) {
+							imageOrder++;
+						}
+						if (attDistW(allsourcefreqlvl
+								* Math.pow(1 - data.wallAlpha, imageOrder),
+								ReflectedSrcReceiverDistance) < forgetReflectionLvl) {
+							context.prunedReflectionCount++;
+							continue;
 						}
-						if (validReflection) {
+						int reflectionOrderCounter = validateReflectionPath(
+								context, srcCoord, receiverCoord,
+								receiverReflection, mirroredReceiver,
+								nearBuildingsWalls);
+						if (reflectionOrderCounter > 0) {
 							//NTODO remove output
 							/*
    						    System.out.print("("+srcCoord+")Path : ");
@@ -556,19 +748,20 @@ public class PropagationProcess implements Runnable {
 							System.out.println();
 							*/
 							// A path has been found
-							refpathcount+=1;
+							context.refpathcount+=1;
+							// Wall material attenuation
+							double wallAttenuation = Math.pow((1 - data.wallAlpha),
+									reflectionOrderCounter);
 							for (int idfreq = 0; idfreq < freqcount; idfreq++) {
 								// Geometric dispersion
-								double AttenuatedWj = attDistW(wj.get(idfreq),
+								double AttenuatedWj = attDistW(wj[wjOffset + idfreq],
 										ReflectedSrcReceiverDistance);
 								// Apply wall material attenuation
-								AttenuatedWj *= Math.pow((1 - data.wallAlpha),
-										reflectionOrderCounter);
+								AttenuatedWj *= wallAttenuation;
 								// Apply atmospheric absorption and ground
-								AttenuatedWj = attAtmW(
-										AttenuatedWj,
-										ReflectedSrcReceiverDistance,
-										alpha_atmo[idfreq]);
+								AttenuatedWj *= attAtmFactor(
+										atmo_decay[idfreq],
+										ReflectedSrcReceiverDistance);
 								energeticSum[idfreq] += AttenuatedWj;
 							}
 						}
@@ -584,34 +777,41 @@ public class PropagationProcess implements Runnable {
 				int firstCorner = regionCornersFreeToReceiver
 						.get(receiverFreeCornerIndex);
 				if (firstCorner != -1) {
+					long pairDiffractionPathCount = 0;
 					// History of propagation through corners
-					List<Integer> curCorner = new ArrayList<Integer>();
-					curCorner.add(firstCorner);
-					while (!curCorner.isEmpty()) {
-						Coordinate lastCorner = regionCorners.get(curCorner
-								.get(curCorner.size() - 1));
+					final int pathStamp = context.nextCornerPathStamp(
+							regionCorners.size(), Math.min(
+									data.diffractionOrder,
+									regionCorners.size()));
+					final int[] curCorner = context.cornerPath;
+					final int[] cornerInPath = context.cornerInPath;
+					int pathLength = 1;
+					curCorner[0] = firstCorner;
+					cornerInPath[firstCorner] = pathStamp;
+					while (pathLength > 0) {
+						Coordinate lastCorner = regionCorners
+								.get(curCorner[pathLength - 1]);
 						// Test Path is free to the source
-						if (data.freeFieldFinder.isFreeField(lastCorner,
-								srcCoord)) {
+						if (data.freeFieldFinder.isFreeField(
+								context.obstructionContext, lastCorner, srcCoord)) {
 							// True then the path is clear
 							// Compute attenuation level
 							double elength = 0;
 							//Compute distance of the corner path
-							for (int ie = 1; ie < curCorner.size(); ie++) {
+							for (int ie = 1; ie < pathLength; ie++) {
 								elength += regionCorners.get(
-										curCorner.get(ie - 1)).distance(
-										regionCorners.get(curCorner.get(ie)));
+										curCorner[ie - 1]).distance(
+										regionCorners.get(curCorner[ie]));
 							}
 							// delta=SO^1+O^nO^(n+1)+O^nnR
 							double diffractionFullDistance = receiverCoord
-									.distance(regionCorners.get(curCorner 			//Receiver to first corner distance
-											.get(0)))
+									.distance(regionCorners.get(curCorner[0]))	//Receiver to first corner distance
 									+ elength										//Corner to corner distance
 									+ srcCoord
-											.distance(regionCorners.get(curCorner	//Last corner to source distance
-													.get(curCorner.size() - 1)));
+											.distance(lastCorner);				//Last corner to source distance
 							if (diffractionFullDistance < data.maxSrcDist) {
-                                                                diffractionPathCount++;
+                                                                context.diffractionPathCount++;
+                                                                pairDiffractionPathCount++;
 								double delta = diffractionFullDistance
 										- SrcReceiverDistance;
 
@@ -619,7 +819,7 @@ public class PropagationProcess implements Runnable {
 
 									double cprime;
 									//C" NMPB 2008 P.33
-									if (curCorner.size() == 1) {
+									if (pathLength == 1) {
 										cprime = 1; //Single diffraction cprime=1
 									} else {
 										//Multiple diffraction
@@ -630,31 +830,19 @@ public class PropagationProcess implements Runnable {
 									//(7.11) NMP2008 P.32
 									double testForm = (40 / freq_lambda[idfreq])
 											* cprime * delta;
-									double DiffractionAttenuation = 0.;
-									if (testForm >= -2.) {
-										DiffractionAttenuation = 10 * Math
-												.log10(3 + testForm);
-									}else{
-										
-									}
-									// Limit to 0<=DiffractionAttenuation
-									DiffractionAttenuation = Math.max(0,
-											DiffractionAttenuation);
-									double AttenuatedWj = wj.get(idfreq);
+									double AttenuatedWj = wj[wjOffset + idfreq];
 									// Geometric dispersion
 									AttenuatedWj=attDistW(AttenuatedWj, SrcReceiverDistance);
 									// Apply diffraction attenuation
-									AttenuatedWj = dbaToW(wToDba(AttenuatedWj)
-											- DiffractionAttenuation);
+									AttenuatedWj *= getDiffractionFactor(testForm);
 									// Apply atmospheric absorption and ground
-									AttenuatedWj = attAtmW(
-											AttenuatedWj,
-											diffractionFullDistance,
-											alpha_atmo[idfreq]);
+									AttenuatedWj *= attAtmFactor(
+											atmo_decay[idfreq],
+											diffractionFullDistance);
 									
 									energeticSum[idfreq] += AttenuatedWj;
 								}
-                                                                if(diffractionPathCount>LIMITATION_DIFFRACTION_PATH) {
+                                                                if(pairDiffractionPathCount>LIMITATION_DIFFRACTION_PATH) {
                                                                     break; //exit diffraction search
                                                                 }
 								// TODO removing
@@ -683,24 +871,23 @@ public class PropagationProcess implements Runnable {
 						}
 						// Process to the next corner
 						int nextCorner = -1;
-						if (data.diffractionOrder > curCorner.size()) {
+						if (data.diffractionOrder > pathLength) {
 							// Continue to next order valid corner
-							nextCorner = nextFreeFieldNode(regionCorners,
-									lastCorner, curCorner, 0,
-									data.freeFieldFinder);
+							nextCorner = nextFreeFieldNode(context,
+									regionCornerIds, curCorner[pathLength - 1],
+									pathStamp, 0);
 							if (nextCorner != -1) {
-								curCorner.add(nextCorner);
+								curCorner[pathLength++] = nextCorner;
+								cornerInPath[nextCorner] = pathStamp;
 							}
 						}
-						while (nextCorner == -1 && !curCorner.isEmpty()) {
-							if (curCorner.size() > 1) {
+						while (nextCorner == -1 && pathLength > 0) {
+							if (pathLength > 1) {
 								// Next free field corner
-								nextCorner = nextFreeFieldNode(regionCorners,
-										regionCorners.get(curCorner
-												.get(curCorner.size() - 2)),
-										curCorner, curCorner.get(curCorner
-												.size() - 1),
-										data.freeFieldFinder);
+								nextCorner = nextFreeFieldNode(context,
+										regionCornerIds,
+										curCorner[pathLength - 2], pathStamp,
+										curCorner[pathLength - 1]);
 							} else {
 								// Next receiver-corner tuple
 								receiverFreeCornerIndex++;
@@ -712,10 +899,13 @@ public class PropagationProcess implements Runnable {
 									nextCorner = -1;
 								}
 							}
+							// The last corner leaves the path
+							cornerInPath[curCorner[pathLength - 1]] = 0;
 							if (nextCorner != -1) {
-								curCorner.set(curCorner.size() - 1, nextCorner);
+								curCorner[pathLength - 1] = nextCorner;
+								cornerInPath[nextCorner] = pathStamp;
 							} else {
-								curCorner.remove(curCorner.size() - 1);
+								pathLength--;
 							}
 						}
 					}
@@ -723,22 +913,27 @@ public class PropagationProcess implements Runnable {
 			}
 		}
 	}
-	private static void insertPtSource(Coordinate receiverPos,Coordinate ptpos,List<Double> wj,double li,List<Coordinate> srcPos,List<ArrayList<Double>> srcWj,PointsMerge sourcesMerger,List<Integer> srcSortedIndex,List<Double> srcDistSorted) {
+	private static void insertPtSource(Coordinate receiverPos,Coordinate ptpos,double[] wj,double li,List<Coordinate> srcPos,SpectrumList srcWj,PointsMergeStructure sourcesMerger,IndexHeap srcSortedByDist) {
 		int mergedSrcIndex=sourcesMerger.getOrAppendVertex(ptpos);
 		if(mergedSrcIndex<srcPos.size()) {
-			ArrayList<Double> mergedWj=srcWj.get(mergedSrcIndex);
 			//A source already exist and is close enough to merge
-			for(int fb=0;fb<wj.size();fb++) {
-				mergedWj.set(fb, mergedWj.get(fb)+wj.get(fb)*li);
-			}
+			srcWj.addTo(mergedSrcIndex, wj, 0, li);
 		} else {
 			//New source
-			ArrayList<Double> liWj=new ArrayList<Double>(wj.size());
-                        for(Double lvl : wj) {
-                            liWj.add(lvl*li);
-                        }
 			srcPos.add(ptpos);
-			srcWj.add(liWj);
+			srcWj.add(wj, 0, li);
+			srcSortedByDist.add(ptpos.distance(receiverPos), mergedSrcIndex);
+		}
+	}
+	private static void insertPtSource(Coordinate receiverPos,Coordinate ptpos,double[] wj,double li,List<Coordinate> srcPos,SpectrumList srcWj,PointsMergeStructure sourcesMerger,List<Integer> srcSortedIndex,List<Double> srcDistSorted) {
+		int mergedSrcIndex=sourcesMerger.getOrAppendVertex(ptpos);
+		if(mergedSrcIndex<srcPos.size()) {
+			//A source already exist and is close enough to merge
+			srcWj.addTo(mergedSrcIndex, wj, 0, li);
+		} else {
+			//New source
+			srcPos.add(ptpos);
+			srcWj.add(wj, 0, li);
                         double distanceSrcPt=ptpos.distance(receiverPos);
                         int index = Collections.binarySearch(srcDistSorted, distanceSrcPt);
 			if(index >=0) {
@@ -751,7 +946,8 @@ public class PropagationProcess implements Runnable {
 		}
 	}
 	/**
-	 * Compute the attenuation of atmospheric absorption
+	 * Compute the attenuation of atmospheric absorption. Reference
+	 * implementation in the dB domain, the propagation use attAtmFactor.
 	 * 
 	 * @param Wj
 	 *            Source energy
@@ -761,57 +957,319 @@ public class PropagationProcess implements Runnable {
 	 *            Atmospheric alpha (dB/km)
 	 * @return
 	 */
-	private Double attAtmW(double Wj, double dist, double alpha_atmo) {
+	static double attAtmW(double Wj, double dist, double alpha_atmo) {
 		return dbaToW(wToDba(Wj) - (alpha_atmo * dist) / 1000.);
 	}
+
+	/**
+	 * Convert an atmospheric absorption coefficient to an energetic decay
+	 * coefficient. Wj*exp(decay*dist) is equal to attAtmW(Wj,dist,alpha_atmo)
+	 * 
+	 * @param alpha_atmo
+	 *            Atmospheric alpha (dB/km)
+	 * @return Decay coefficient (1/m)
+	 */
+	public static double getAtmoDecay(double alpha_atmo) {
+		return -alpha_atmo * Math.log(10.) / 10000.;
+	}
+
+	/**
+	 * Energetic factor of the atmospheric absorption. The energy domain
+	 * computation differs from attAtmW by less than 1e-9 dB (floating point
+	 * rounding only).
+	 * 
+	 * @param atmo_decay
+	 *            Decay coefficient, see getAtmoDecay
+	 * @param dist
+	 *            Propagation distance
+	 * @return Multiplication factor [0-1]
+	 */
+	public static double attAtmFactor(double atmo_decay, double dist) {
+		return Math.exp(atmo_decay * dist);
+	}
+
+	/**
+	 * Energetic factor of the diffraction attenuation (7.11) NMPB2008 P.32.
+	 * The attenuation 10*log10(3+testForm), limited to 0 dB, is
+	 * applied as the factor 1/(3+testForm).
+	 * 
+	 * @param testForm
+	 *            (40/lambda)*cprime*delta
+	 * @return Multiplication factor [0-1]
+	 */
+	public static double getDiffractionFactor(double testForm) {
+		if (testForm >= -2.) {
+			return 1. / (3 + testForm);
+		} else {
+			return 1.;
+		}
+	}
 	/**
 	 * Compute sound level by frequency band at this receiver position
 	 * @param receiverCoord
 	 * @param energeticSum
 	 */
 	public void computeSoundLevelAtPosition(Coordinate receiverCoord,double energeticSum[]) {
+		ThreadContext context = new ThreadContext(data);
+		computeSoundLevelAtPosition(context, receiverCoord, energeticSum);
+		dataOut.appendFreeFieldTestCount(context.getObstructionTestCount());
+		dataOut.appendImageReceiver(context.imageReceiverCount);
+		dataOut.appendPrunedImageReceiver(context.prunedImageCount);
+		dataOut.appendPrunedReflexionPath(context.prunedReflectionCount);
+		dataOut.appendSourceCount(context.sourceCount);
+		dataOut.appendDiffractionPath(context.diffractionPathCount);
+		dataOut.appendReflexionPath(context.refpathcount);
+	}
+
+	/**
+	 * Follow the path of a receiver image from the source back to the
+	 * receiver, through the reflection points on the walls of the image and
+	 * of its parents. Nothing is allocated, the points are computed in the
+	 * scratch coordinates of the context.
+	 * 
+	 * @return Count of reflections of the path, 0 if the path is obstructed
+	 *         or does not cross its walls
+	 */
+	int validateReflectionPath(ThreadContext context, Coordinate srcCoord,
+			Coordinate receiverCoord, MirrorReceiverResult receiverReflection,
+			List<MirrorReceiverResult> mirroredReceiver,
+			List<LineSegment> nearBuildingsWalls) {
+		NonRobustLineIntersector linters = context.linters;
+		boolean validReflection = false;
+		int reflectionOrderCounter = 0;
+		MirrorReceiverResult receiverReflectionCursor = receiverReflection;
+		// Test whether intersection point is on the wall
+		// segment or not
+		Coordinate destinationPt = context.destinationPt;
+		destinationPt.setCoordinate(srcCoord);
+		Coordinate reflectionPt = context.reflectionPt;
+		// While there is a reflection point on another wall
+		while (computeReflectionPoint(linters,
+				nearBuildingsWalls.get(receiverReflectionCursor.getWallId()),
+				receiverReflectionCursor.getReceiverPos(), destinationPt,
+				reflectionPt)) {
+			reflectionOrderCounter++;
+			// Test if there is no obstacles between the reflection point and
+			// old reflection pt (or source position)
+			validReflection = data.freeFieldFinder.isFreeField(
+					context.obstructionContext, reflectionPt, destinationPt);
+			// Reflection point can see source or its image
+			if (validReflection) {
+				// Direct to the receiver
+				if (receiverReflectionCursor.getMirrorResultId() == -1) {
+					int visibility = context.receiverIsovist != null ? context.receiverIsovist
+							.isVisible(reflectionPt)
+							: Isovist.UNKNOWN;
+					if (visibility != Isovist.UNKNOWN) {
+						validReflection = visibility == Isovist.VISIBLE;
+					} else {
+						validReflection = data.freeFieldFinder
+								.isFreeField(context.obstructionContext,
+										reflectionPt, receiverCoord);
+					}
+					break; // That was the last reflection
+				} else {
+					// There is another reflection
+					destinationPt.setCoordinate(reflectionPt);
+					// Move reflection information cursor to a reflection
+					// closer
+					receiverReflectionCursor = mirroredReceiver
+							.get(receiverReflectionCursor.getMirrorResultId());
+					validReflection = false;
+				}
+			} else {
+				break;
+			}
+		}
+		return validReflection ? reflectionOrderCounter : 0;
+	}
+
+	/**
+	 * Obstruction test between the receiver and a point, the visibility
+	 * polygon of the receiver is used if available.
+	 */
+	private boolean isFreeFieldFromReceiver(ThreadContext context,
+			Coordinate receiverCoord, Coordinate pt) {
+		if (context.receiverIsovist != null) {
+			int visibility = context.receiverIsovist.isVisible(pt);
+			if (visibility != Isovist.UNKNOWN) {
+				return visibility == Isovist.VISIBLE;
+			}
+		}
+		return data.freeFieldFinder.isFreeField(context.obstructionContext,
+				receiverCoord, pt);
+	}
+
+	/**
+	 * Height-aware obstruction test between the receiver and a point, the
+	 * path over the buildings is stored in context.verticalPath. A point
+	 * visible in the visibility polygon of the receiver does not need the
+	 * walk through the buildings.
+	 */
+	private boolean isFreeFieldOverBuildings(ThreadContext context,
+			Coordinate receiverCoord, Coordinate pt) {
+		if (context.receiverIsovist != null
+				&& context.receiverIsovist.isVisible(pt) == Isovist.VISIBLE) {
+			return true;
+		}
+		return data.freeFieldFinder.getPath(context.obstructionContext,
+				receiverCoord, pt, context.verticalPath);
+	}
+
+	/**
+	 * Propagate a merged point source to the receiver if its level is not
+	 * negligible compared to the current receiver level.
+	 * 
+	 * @return Energetic contribution of the source attenuated by distance only
+	 */
+	private double pointSourcePropa(ThreadContext context, Coordinate srcCoord,
+			Coordinate receiverCoord, double energeticSum[], double[] wj,
+			int wjOffset, List<MirrorReceiverResult> mirroredReceiver,
+			List<LineSegment> nearBuildingsWalls,
+			List<Coordinate> regionCorners, List<Integer> regionCornerIds,
+			List<Integer> regionCornersFreeToReceiver) {
+		double allreceiverfreqlvl = GetGlobalLevel(nbfreq, energeticSum);
+		double allsourcefreqlvl = 0;
+		for (int idfreq = 0; idfreq < nbfreq; idfreq++) {
+			allsourcefreqlvl += wj[wjOffset + idfreq];
+		}
+		double wAttDistSource = attDistW(allsourcefreqlvl,
+				srcCoord.distance(receiverCoord));
+		// Same as abs(wToDba(wAttDistSource+allreceiverfreqlvl)-wToDba(allreceiverfreqlvl))>DBA_FORGET_SOURCE
+		if (wAttDistSource > allreceiverfreqlvl * W_FORGET_SOURCE_RATIO) {
+			context.sourceCount++;
+			receiverSourcePropa(context, srcCoord, receiverCoord, energeticSum,
+					atmo_decay, wj, wjOffset, mirroredReceiver,
+					nearBuildingsWalls, regionCorners, regionCornerIds,
+					regionCornersFreeToReceiver, freq_lambda);
+		}
+		return wAttDistSource;
+	}
+
+	private void computeSoundLevelAtPosition(ThreadContext context, Coordinate receiverCoord,double energeticSum[]) {
 		// List of walls within maxReceiverSource distance
                 double srcEnergeticSum=BASE_LVL; //Global energetic sum of all sources processed
+		context.receiverIsovist = null;
+		if (data.receiverIsovist) {
+			context.receiverIsovist = data.freeFieldFinder.getIsovist(
+					receiverCoord, data.maxSrcDist);
+		}
 		List<LineSegment> nearBuildingsWalls = null;
 		List<MirrorReceiverResult> mirroredReceiver = null;
 		if (data.reflexionOrder > 0) {
-
-			nearBuildingsWalls = new ArrayList<LineSegment>(
-					data.freeFieldFinder.getLimitsInRange(
-							data.maxRefDist , receiverCoord));
+			ReflectionWalls reflectionWalls = getReflectionWalls();
+			WallRangeCache wallsInRange = context.wallsInRange;
+			reflectionWalls.getWallsInRange(receiverCoord, data.maxRefDist,
+					wallsInRange);
+			// Cell index of nearBuildingsWalls
+			int[] regionWalls = wallsInRange.getWalls();
+			int regionWallCount = wallsInRange.getWallCount();
+			nearBuildingsWalls = context.nearBuildingsWalls;
+			nearBuildingsWalls.clear();
+			for (int i = 0; i < regionWallCount; i++) {
+				nearBuildingsWalls.add(reflectionWalls.getWalls().get(
+						regionWalls[i]));
+			}
+			context.regionWalls.set(reflectionWalls.getWallCount(),
+					regionWalls, regionWallCount);
 			// Build mirrored receiver list from wall list
-			mirroredReceiver = getMirroredReceiverResults(receiverCoord,
-					nearBuildingsWalls, data.reflexionOrder,
-					data.maxRefDist*2);
-			this.dataOut.appendImageReceiver(mirroredReceiver.size());
+			mirroredReceiver = context.mirroredReceiver;
+			mirroredReceiver.clear();
+			context.prunedImageCount += feedMirroredReceiverResults(
+					mirroredReceiver, receiverCoord, reflectionWalls,
+					regionWalls, regionWallCount, context.regionWalls,
+					data.reflexionOrder,
+					data.maxRefDist * 2, data.maxSrcDist, data.wallAlpha,
+					BASE_LVL * W_FORGET_SOURCE_RATIO);
+			context.imageReceiverCount += mirroredReceiver.size();
 		}
-		List<Coordinate> regionCorners = new ArrayList<Coordinate>();
-		List<Integer> regionCornersFreeToReceiver = new ArrayList<Integer>(); // Corners
+		List<Coordinate> regionCorners = context.receiverCorners;
+		List<Integer> regionCornerIds = context.receiverCornerIds; // Cell index of regionCorners
+		List<Integer> regionCornersFreeToReceiver = context.cornersFreeToReceiver; // Corners
 																				// free
 																				// field
 																				// with
 																				// receiver
+		regionCorners.clear();
+		regionCornerIds.clear();
+		regionCornersFreeToReceiver.clear();
 		if (data.diffractionOrder > 0) {
+			initDiffractionCorners();
 			// Query corners in the current zone
-			ArrayCoordinateListVisitor cornerQuery = new ArrayCoordinateListVisitor(
-					receiverCoord, data.maxRefDist);
-			cornersQuad.query(new Envelope(receiverCoord.x
+			List cornerQuery = cornersQuad.query(new Envelope(receiverCoord.x
 				-  data.maxRefDist, receiverCoord.x +  data.maxRefDist,
 				receiverCoord.y -  data.maxRefDist, receiverCoord.y
-						+  data.maxRefDist), cornerQuery);
-			regionCorners = cornerQuery.getItems();
+						+  data.maxRefDist));
+			for (Object cellCorner : cornerQuery) {
+				Coordinate corner = cellCorners.get((Integer) cellCorner);
+				if (receiverCoord.distance(corner) <= data.maxRefDist) {
+					regionCorners.add(corner);
+					regionCornerIds.add((Integer) cellCorner);
+				}
+			}
+			if (data.diffractionOrder > 1) {
+				context.regionCorners.set(cellCorners.size(), regionCornerIds);
+			}
 			// regionCornersFreeToReceiver.ensureCapacity(regionCorners.size());
 			for (int icorner = 0; icorner < regionCorners.size(); icorner++) {
-				if (data.freeFieldFinder.isFreeField(receiverCoord,
+				if (isFreeFieldFromReceiver(context, receiverCoord,
 						regionCorners.get(icorner))) {
 					regionCornersFreeToReceiver.add(icorner);
 				}
 			}
 		}
+                double[] wj = context.wj; // Spectrum of the current raw source
+                if (data.sourcesIndex instanceof QueryGeometryDistanceStructure) {
+                    // Sources are fetched from the nearest to the farthest
+                    QueryGeometryDistanceStructure.DistanceIterator nearestSources = ((QueryGeometryDistanceStructure) data.sourcesIndex)
+                                    .queryByDistance(receiverCoord, data.maxSrcDist);
+                    PointsMergeStructure sourcesMerger=context.sourcesMerger;
+                    sourcesMerger.clear();
+                    IndexHeap pendingSources = context.pendingSources; // Merged sources sorted by distance
+                    pendingSources.clear();
+                    List<Coordinate> srcPos = context.srcPos;
+                    srcPos.clear();
+                    SpectrumList srcWj = context.srcWj;
+                    srcWj.clear();
+                    List<Coordinate> pts = context.linePoints;
+                    boolean searchSources = true;
+                    while(true) {
+                        double nextSourceDistance = searchSources ? nearestSources.peekDistance() : Double.POSITIVE_INFINITY;
+                        // Next raw sources can't be merged with sources closer than nextSourceDistance-MERGE_SRC_DIST
+                        while(!pendingSources.isEmpty() && pendingSources.peekKey() + MERGE_SRC_DIST < nextSourceDistance) {
+                            int mergedSrcId = pendingSources.poll();
+                            srcEnergeticSum += pointSourcePropa(context, srcPos.get(mergedSrcId), receiverCoord,
+                                    energeticSum, srcWj.getArray(), srcWj.getOffset(mergedSrcId), mirroredReceiver,
+                                    nearBuildingsWalls, regionCorners, regionCornerIds, regionCornersFreeToReceiver);
+                        }
+                        if(nextSourceDistance == Double.POSITIVE_INFINITY) {
+                            break;
+                        }
+                        if(attDistW(W_RANGE,nextSourceDistance) < srcEnergeticSum * W_FORGET_SOURCE_RATIO) {
+                            searchSources = false; //Stop search for fartest sources
+                            continue;
+                        }
+                        int srcIndex = nearestSources.next();
+                        Geometry source = data.sourceGeometries.get(srcIndex);
+                        data.getSourceSpectrum(srcIndex, wj);
+                        if (source instanceof Point) {
+                            Coordinate ptpos = ((Point) source).getCoordinate();
+                            insertPtSource(receiverCoord, ptpos, wj, 1., srcPos, srcWj, sourcesMerger, pendingSources);
+                        } else {
+                            pts.clear();
+                            double li = lineSourceCache.splitLineSource(srcIndex, receiverCoord,
+                                            pts, data.minRecDist);
+                            for(Coordinate pt : pts) {
+                                    insertPtSource(receiverCoord, pt, wj, li, srcPos, srcWj, sourcesMerger, pendingSources);
+                            }
+                        }
+                    }
+                } else {
                 // Source search by multiple range query
-                HashSet<Integer> processedLineSources = new HashSet<Integer>(); //Already processed Raw source (line and/or points)
+                //Already processed Raw source (line and/or points)
+                int processedStamp = context.nextProcessedSourceStamp(data.sourceGeometries.size());
+                int[] processedSources = context.processedSources;
                 double[] ranges=new double[] {FIRST_STEP_RANGE,data.maxSrcDist/5,data.maxSrcDist/4,data.maxSrcDist/2,data.maxSrcDist};
-                long sourceCount=0;
  
                 for(double searchSourceDistance : ranges) {
                     Envelope receiverSourceRegion = new Envelope(receiverCoord.x
@@ -821,17 +1279,22 @@ public class PropagationProcess implements Runnable {
                     Iterator<Integer> regionSourcesLst = data.sourcesIndex
                                     .query(receiverSourceRegion);
 
-                    PointsMerge sourcesMerger=new PointsMerge(MERGE_SRC_DIST);
-                    List<Integer> srcSortByDist = new ArrayList<Integer>();
-                    List<Double> srcDist = new ArrayList<Double>();
-                    List<Coordinate> srcPos = new ArrayList<Coordinate>();
-                    List<ArrayList<Double>> srcWj= new ArrayList<ArrayList<Double>>();
+                    PointsMergeStructure sourcesMerger=context.sourcesMerger;
+                    sourcesMerger.clear();
+                    List<Integer> srcSortByDist = context.srcSortByDist;
+                    srcSortByDist.clear();
+                    List<Double> srcDist = context.srcDist;
+                    srcDist.clear();
+                    List<Coordinate> srcPos = context.srcPos;
+                    srcPos.clear();
+                    SpectrumList srcWj = context.srcWj;
+                    srcWj.clear();
                     while (regionSourcesLst.hasNext()) {
-                        Integer srcIndex = regionSourcesLst.next();
-                        if(!processedLineSources.contains(srcIndex)) {
-                            processedLineSources.add(srcIndex);
+                        int srcIndex = regionSourcesLst.next();
+                        if(processedSources[srcIndex] != processedStamp) {
+                            processedSources[srcIndex] = processedStamp;
                             Geometry source = data.sourceGeometries.get(srcIndex);
-                            List<Double> wj = data.wj_sources.get(srcIndex); // DbaToW(sdsSources.getDouble(srcIndex,dbField
+                            data.getSourceSpectrum(srcIndex, wj);
                             if (source instanceof Point) {
                                 Coordinate ptpos = ((Point) source).getCoordinate();
                                 insertPtSource(receiverCoord,ptpos, wj, 1., srcPos, srcWj, sourcesMerger,srcSortByDist,srcDist);
@@ -840,8 +1303,9 @@ public class PropagationProcess implements Runnable {
                                 // Discretization of line into multiple point
                                 // First point is the closest point of the LineString from
                                 // the receiver
-                                ArrayList<Coordinate> pts=new ArrayList<Coordinate>() ;
-                                double li = splitLineStringIntoPoints(source, receiverCoord,
+                                List<Coordinate> pts = context.linePoints;
+                                pts.clear();
+                                double li = lineSourceCache.splitLineSource(srcIndex, receiverCoord,
                                                 pts, data.minRecDist);
                                 for(Coordinate pt : pts) {
                                         insertPtSource(receiverCoord,pt, wj, li, srcPos, srcWj, sourcesMerger,srcSortByDist,srcDist);
@@ -853,30 +1317,16 @@ public class PropagationProcess implements Runnable {
                     //Iterate over source point sorted by their distance from the receiver
                     for (int mergedSrcId : srcSortByDist) {
                             // For each Pt Source - Pt Receiver
-                            Coordinate srcCoord=srcPos.get(mergedSrcId);
-                            ArrayList<Double> wj= srcWj.get(mergedSrcId);
-                            double allreceiverfreqlvl = GetGlobalLevel(nbfreq,energeticSum);
-                            double allsourcefreqlvl = 0;
-                            for (int idfreq = 0; idfreq < nbfreq; idfreq++) {
-                                    allsourcefreqlvl += wj.get(idfreq);
-                            }
-
-                            double wAttDistSource=attDistW(allsourcefreqlvl,srcCoord.distance(receiverCoord));
-                            srcEnergeticSum+=wAttDistSource;
-                            if(Math.abs(wToDba(wAttDistSource+allreceiverfreqlvl)-wToDba(allreceiverfreqlvl))>DBA_FORGET_SOURCE) {
-                                sourceCount++;
-                                receiverSourcePropa(srcCoord, receiverCoord, energeticSum,
-                                                alpha_atmo, wj, mirroredReceiver,
-                                                nearBuildingsWalls, regionCorners,
-                                                regionCornersFreeToReceiver, freq_lambda);
-                            }
+                            srcEnergeticSum += pointSourcePropa(context, srcPos.get(mergedSrcId), receiverCoord,
+                                    energeticSum, srcWj.getArray(), srcWj.getOffset(mergedSrcId), mirroredReceiver,
+                                    nearBuildingsWalls, regionCorners, regionCornerIds, regionCornersFreeToReceiver);
                     }
                     //srcEnergeticSum=GetGlobalLevel(nbfreq,energeticSum);
-                    if(Math.abs(wToDba(attDistW(W_RANGE,searchSourceDistance)+srcEnergeticSum)-wToDba(srcEnergeticSum))<DBA_FORGET_SOURCE) {
+                    if(attDistW(W_RANGE,searchSourceDistance) < srcEnergeticSum * W_FORGET_SOURCE_RATIO) {
                         break; //Stop search for fartest sources
                     }
                 }
-                dataOut.appendSourceCount(sourceCount);
+                }
 	}
 	/**
 	 * Must be called before computeSoundLevelAtPosition
@@ -894,76 +1344,258 @@ public class PropagationProcess implements Runnable {
 		}
 		// Compute atmospheric alpha value by specified frequency band
 		alpha_atmo = new double[data.freq_lvl.size()];
+		atmo_decay = new double[data.freq_lvl.size()];
 		for (int idfreq = 0; idfreq < nbfreq; idfreq++) {
 			alpha_atmo[idfreq] = getAlpha(data.freq_lvl.get(idfreq));
+			atmo_decay[idfreq] = getAtmoDecay(alpha_atmo[idfreq]);
+		}
+		// Line sources discretization shared by all receivers
+		lineSourceCache = new LineSourceCache(data.sourceGeometries);
+		// Walls and corners farther than maxRefDist of the receivers are not
+		// used, the obstruction mesh may cover more than this cell
+		receiversEnvelope = new Envelope();
+		for (Coordinate receiver : data.vertices) {
+			receiversEnvelope.expandToInclude(receiver);
+		}
+		receiversEnvelope.expandBy(data.maxRefDist);
+		reflectionWalls = null;
+		if (data.reflexionOrder > 0) {
+			getReflectionWalls();
 		}
-		// /////////////////////////////////////////////
-		// Search diffraction corners
-		cornersQuad = new Quadtree();
+		cellCorners = null;
+		cornersQuad = null;
+		cornerGraphIndex = null;
+		cornerGraphNeighbors = null;
 		if (data.diffractionOrder > 0) {
-			List<Coordinate> corners = data.freeFieldFinder.getWideAnglePoints(
-					Math.PI * (1 + 1 / 16.0), Math.PI * (2 - (1 / 16.)));
+			initDiffractionCorners();
+		}
+	}
+
+	/**
+	 * Search the diffraction corners of the cell, and their visibility graph
+	 * if the diffraction order is greater than one. Structures are built on
+	 * the first call needing them, then the diffraction order may be raised
+	 * after initStructures.
+	 */
+	private synchronized void initDiffractionCorners() {
+		if (cellCorners == null) {
+			cellCorners = data.freeFieldFinder.getWideAnglePoints(
+					Math.PI * (1 + 1 / 16.0), Math.PI * (2 - (1 / 16.)),
+					receiversEnvelope);
 			// Build Quadtree
-			for (Coordinate corner : corners) {
-				cornersQuad.insert(new Envelope(corner), corner);
+			cornersQuad = new Quadtree();
+			for (int idCorner = 0; idCorner < cellCorners.size(); idCorner++) {
+				cornersQuad.insert(new Envelope(cellCorners.get(idCorner)), idCorner);
 			}
 		}
+		if (data.diffractionOrder > 1 && cornerGraphIndex == null) {
+			buildCornerGraph();
+		}
 	}
-	@Override
-	public void run() {
-		initStructures();
-		GeometryFactory factory = new GeometryFactory();
-
-		// TODO comment debugging code
-
-		/*
-		 * Type
-		 * meta_type[]={TypeFactory.createType(Type.GEOMETRY),TypeFactory.createType
-		 * (Type.INT),TypeFactory.createType(Type.DOUBLE)}; String
-		 * meta_name[]={"the_geom","difid","largebandatt"}; DefaultMetadata
-		 * metadata = new DefaultMetadata(meta_type,meta_name); DiskBufferDriver
-		 * driver; try { driver = new DiskBufferDriver(data.dsf,metadata ); }
-		 * catch (DriverException e) { e.printStackTrace(); return; }
-		 */
-
-		double verticesSoundLevel[] = new double[data.vertices.size()]; // Computed
-																		// sound
-																		// level
-																		// of
-																		// vertices
 
+	/**
+	 * Walls of the cell, walls reflecting an image are closer than
+	 * 2*maxRefDist of the preceding wall. The walls are built on the first
+	 * call, then the reflection order may be raised after initStructures.
+	 * 
+	 * @return Walls of the cell and their face to face walls
+	 */
+	private synchronized ReflectionWalls getReflectionWalls() {
+		if (reflectionWalls == null) {
+			reflectionWalls = new ReflectionWalls(
+					data.freeFieldFinder.getWalls(receiversEnvelope),
+					data.maxRefDist * 2);
+		}
+		return reflectionWalls;
+	}
 
-		// For each vertices, find sources where the distance is within
-		// maxSrcDist meters
+	/**
+	 * Build the visibility graph of the corners of the cell. Only corners
+	 * that can be near the same receiver are linked, then the distance
+	 * between two linked corners is not greater than 2*maxRefDist.
+	 * Neighbors of the corner i are
+	 * cornerGraphNeighbors[cornerGraphIndex[i]..cornerGraphIndex[i+1]-1]
+	 */
+	private void buildCornerGraph() {
+		int cornerCount = cellCorners.size();
+		double maxCornerDist = data.maxRefDist * 2;
+		ObstructionTest.QueryContext queryContext = data.freeFieldFinder
+				.newQueryContext();
+		int[] degree = new int[cornerCount];
+		int[] edges = new int[64]; // Pairs of visible corners
+		int edgeCount = 0;
+		for (int idCorner = 0; idCorner < cornerCount; idCorner++) {
+			Coordinate corner = cellCorners.get(idCorner);
+			List candidates = cornersQuad.query(new Envelope(corner.x
+					- maxCornerDist, corner.x + maxCornerDist, corner.y
+					- maxCornerDist, corner.y + maxCornerDist));
+			for (Object candidate : candidates) {
+				int idOther = (Integer) candidate;
+				// Visibility is symmetric, each pair is tested once
+				if (idOther > idCorner) {
+					Coordinate other = cellCorners.get(idOther);
+					if (corner.distance(other) <= maxCornerDist
+							&& data.freeFieldFinder.isFreeField(queryContext,
+									corner, other)) {
+						if (edgeCount * 2 == edges.length) {
+							edges = Arrays.copyOf(edges, edges.length * 2);
+						}
+						edges[edgeCount * 2] = idCorner;
+						edges[edgeCount * 2 + 1] = idOther;
+						edgeCount++;
+						degree[idCorner]++;
+						degree[idOther]++;
+					}
+				}
+			}
+		}
+		// Compressed adjacency arrays
+		cornerGraphIndex = new int[cornerCount + 1];
+		for (int idCorner = 0; idCorner < cornerCount; idCorner++) {
+			cornerGraphIndex[idCorner + 1] = cornerGraphIndex[idCorner]
+					+ degree[idCorner];
+		}
+		cornerGraphNeighbors = new int[edgeCount * 2];
+		int[] fill = Arrays.copyOf(cornerGraphIndex, cornerCount);
+		for (int edge = 0; edge < edgeCount; edge++) {
+			int first = edges[edge * 2];
+			int second = edges[edge * 2 + 1];
+			cornerGraphNeighbors[fill[first]++] = second;
+			cornerGraphNeighbors[fill[second]++] = first;
+		}
+		dataOut.appendFreeFieldTestCount(queryContext.getNbObstructionTest());
+	}
+	/**
+	 * Compute the sound level of a range of receivers
+	 * 
+	 * @param context
+	 *            Data of the calling thread
+	 * @param begin
+	 *            First receiver index
+	 * @param end
+	 *            Last receiver index (excluded)
+	 * @param verticesSoundLevel
+	 *            Computed sound level of receivers
+	 */
+	private void computeReceivers(ThreadContext context, int begin, int end,
+			double[] verticesSoundLevel) {
 		ProgressionProcess propaProcessProgression = data.cellProg;
-		int idReceiver = 0;
-                long min_compute_time=Long.MAX_VALUE;
-                long max_compute_time=0;
-                long sum_compute=0;
-		for (Coordinate receiverCoord : data.vertices) {
-                        long debReceiverTime = System.nanoTime();
-                        
-			propaProcessProgression.nextSubProcessEnd();
-			double energeticSum[] = new double[data.freq_lvl.size()];
+		double energeticSum[] = new double[nbfreq];
+		for (int idReceiver = begin; idReceiver < end; idReceiver++) {
+			Coordinate receiverCoord = data.vertices.get(idReceiver);
+			long debReceiverTime = System.nanoTime();
+			if (propaProcessProgression != null) {
+				propaProcessProgression.nextSubProcessEnd();
+			}
 			for (int idfreq = 0; idfreq < nbfreq; idfreq++) {
 				energeticSum[idfreq] = 0.0;
 			}
-			computeSoundLevelAtPosition(receiverCoord, energeticSum);
+			computeSoundLevelAtPosition(context, receiverCoord, energeticSum);
 			// Save the sound level at this receiver
 			// Do the sum of all frequency bands
 			double allfreqlvl = 0;
 			for (int idfreq = 0; idfreq < nbfreq; idfreq++) {
 				allfreqlvl += energeticSum[idfreq];
 			}
-                        allfreqlvl= Math.max(allfreqlvl,BASE_LVL);
+			allfreqlvl = Math.max(allfreqlvl, BASE_LVL);
 			verticesSoundLevel[idReceiver] = allfreqlvl;
 
-                        long computeTime=System.nanoTime()-debReceiverTime;
-                        min_compute_time=Math.min(computeTime, min_compute_time);
-                        max_compute_time=Math.max(computeTime, max_compute_time);
-                        sum_compute+=computeTime;
-			idReceiver++;
+			long computeTime = System.nanoTime() - debReceiverTime;
+			context.minComputeTime = Math.min(computeTime,
+					context.minComputeTime);
+			context.maxComputeTime = Math.max(computeTime,
+					context.maxComputeTime);
+			context.sumComputeTime += computeTime;
 		}
+	}
+
+	/**
+	 * Fetch and compute slices of receivers until all receivers have been
+	 * fetched
+	 */
+	private void computeReceiverSlices(ThreadContext context,
+			AtomicInteger nextSlice, double[] verticesSoundLevel) {
+		final int receiverCount = data.vertices.size();
+		int begin = nextSlice.getAndAdd(RECEIVER_SLICE_SIZE);
+		while (begin < receiverCount) {
+			computeReceivers(context, begin,
+					Math.min(begin + RECEIVER_SLICE_SIZE, receiverCount),
+					verticesSoundLevel);
+			begin = nextSlice.getAndAdd(RECEIVER_SLICE_SIZE);
+		}
+	}
+
+	/**
+	 * Compute all receivers, with the help of the receiver executor if any
+	 * @param verticesSoundLevel Computed sound level of receivers
+	 * @return Merged data of all threads
+	 */
+	private ThreadContext computeAllReceivers(final double[] verticesSoundLevel) {
+		ThreadContext context = new ThreadContext(data);
+		final int receiverCount = data.vertices.size();
+		int helperCount = Math.min(receiverHelperCount, receiverCount
+				/ RECEIVER_SLICE_SIZE - 1);
+		if (receiverExecutor == null || helperCount <= 0) {
+			computeReceivers(context, 0, receiverCount, verticesSoundLevel);
+			return context;
+		}
+		final AtomicInteger nextSlice = new AtomicInteger(0);
+		List<Future<?>> helpers = new ArrayList<Future<?>>(helperCount);
+		List<AtomicBoolean> helpersStarted = new ArrayList<AtomicBoolean>(
+				helperCount);
+		List<ThreadContext> helperContexts = new ArrayList<ThreadContext>(
+				helperCount);
+		for (int idHelper = 0; idHelper < helperCount; idHelper++) {
+			final AtomicBoolean started = new AtomicBoolean(false);
+			final ThreadContext helperContext = new ThreadContext(data);
+			helpers.add(receiverExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+					// A helper that lost the race against cancel does nothing
+					if (started.compareAndSet(false, true)) {
+						computeReceiverSlices(helperContext, nextSlice,
+								verticesSoundLevel);
+					}
+				}
+			}));
+			helpersStarted.add(started);
+			helperContexts.add(helperContext);
+		}
+		computeReceiverSlices(context, nextSlice, verticesSoundLevel);
+		// All slices have been fetched, helpers that did not start are
+		// useless. The others may still write their last slice, wait for them.
+		try {
+			for (int idHelper = 0; idHelper < helperCount; idHelper++) {
+				if (helpersStarted.get(idHelper).compareAndSet(false, true)) {
+					helpers.get(idHelper).cancel(false);
+				} else {
+					helpers.get(idHelper).get();
+					context.merge(helperContexts.get(idHelper));
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		} catch (ExecutionException ex) {
+			throw new RuntimeException(ex.getCause());
+		}
+		return context;
+	}
+
+	@Override
+	public void run() {
+		initStructures();
+		GeometryFactory factory = new GeometryFactory();
+
+		double verticesSoundLevel[] = new double[data.vertices.size()]; // Computed
+																		// sound
+																		// level
+																		// of
+																		// vertices
+
+		// For each vertices, find sources where the distance is within
+		// maxSrcDist meters
+		ThreadContext context = computeAllReceivers(verticesSoundLevel);
                 if(data.triangles!=null) { //Triangle output type
                     // Subdivide each triangle, and apply BiCubic interpolation.
                     /*
@@ -993,13 +1625,17 @@ public class PropagationProcess implements Runnable {
                         dataOut.addValues(new PropagationResultPtRecord(data.receiverRowId.get(receiverId), data.cellId,verticesSoundLevel[receiverId] ));
                     }
                 }
-		dataOut.appendFreeFieldTestCount(data.freeFieldFinder.getNbObstructionTest());
+		dataOut.appendFreeFieldTestCount(context.getObstructionTestCount());
+		dataOut.appendImageReceiver(context.imageReceiverCount);
+		dataOut.appendPrunedImageReceiver(context.prunedImageCount);
+		dataOut.appendPrunedReflexionPath(context.prunedReflectionCount);
+		dataOut.appendSourceCount(context.sourceCount);
 		dataOut.appendCellComputed();
-                dataOut.updateMaximalReceiverComputationTime(max_compute_time);
-                dataOut.updateMinimalReceiverComputationTime(min_compute_time);
-                dataOut.addSumReceiverComputationTime(sum_compute);
-                dataOut.appendDiffractionPath(diffractionPathCount);
-		dataOut.appendReflexionPath(refpathcount);
+                dataOut.updateMaximalReceiverComputationTime(context.maxComputeTime);
+                dataOut.updateMinimalReceiverComputationTime(context.minComputeTime);
+                dataOut.addSumReceiverComputationTime(context.sumComputeTime);
+                dataOut.appendDiffractionPath(context.diffractionPathCount);
+		dataOut.appendReflexionPath(context.refpathcount);
 	}
 
 }
@@ -48,12 +48,14 @@ public class PropagationProcessData {
 	public List<Coordinate> vertices; // Coordinate of receivers
         public List<Long> receiverRowId;  //Row id of receivers, only for BR_PtGrid
 	public List<Triangle> triangles; // Index of vertices of triangles
-	public FastObstructionTest freeFieldFinder; // FreeField test
+	public ObstructionTest freeFieldFinder; // FreeField test
 	public QueryGeometryStructure sourcesIndex; // Source Index
 	public List<Geometry> sourceGeometries; // Sources geometries. Can be
 											// LINESTRING or POINT
-	public List<ArrayList<Double>> wj_sources; // Sound level of source. By
-												// frequency band, energetic
+	public double[] wjSources; // Sound level of sources. By frequency band,
+								// energetic. Index is [source*nbfreq+band]
+	public List<ArrayList<Double>> wj_sources; // Sound level of source, only
+												// set by the List constructor
 	public List<Integer> freq_lvl; // Frequency bands values, by third octave
 	public int reflexionOrder; // reflexionOrder
 	public int diffractionOrder; // diffractionOrder
@@ -64,15 +66,18 @@ public class PropagationProcessData {
 	public int cellId; // cell id
 	public DataSourceFactory dsf; // Debug purpose
 	public ProgressionProcess cellProg; // Progression information
+	public boolean receiverIsovist = false; // Compute the visibility polygon of each receiver
+	public boolean verticalDiffraction = false; // Height-aware obstruction test and diffraction over the buildings
+	public boolean quadtreeSourcesMerge = false; // Merge the source points with the quadtree of PointsMerge instead of the hash grid of PointsMergeGrid
 
-    public PropagationProcessData(List<Coordinate> vertices, List<Long> receiverRowId, List<Triangle> triangles, FastObstructionTest freeFieldFinder, QueryGeometryStructure sourcesIndex, List<Geometry> sourceGeometries, List<ArrayList<Double>> wj_sources, List<Integer> freq_lvl, int reflexionOrder, int diffractionOrder, double maxSrcDist, double maxRefDist, double minRecDist, double wallAlpha, int cellId, DataSourceFactory dsf, ProgressionProcess cellProg) {
+    public PropagationProcessData(List<Coordinate> vertices, List<Long> receiverRowId, List<Triangle> triangles, ObstructionTest freeFieldFinder, QueryGeometryStructure sourcesIndex, List<Geometry> sourceGeometries, double[] wjSources, List<Integer> freq_lvl, int reflexionOrder, int diffractionOrder, double maxSrcDist, double maxRefDist, double minRecDist, double wallAlpha, int cellId, DataSourceFactory dsf, ProgressionProcess cellProg) {
         this.vertices = vertices;
         this.receiverRowId = receiverRowId;
         this.triangles = triangles;
         this.freeFieldFinder = freeFieldFinder;
         this.sourcesIndex = sourcesIndex;
         this.sourceGeometries = sourceGeometries;
-        this.wj_sources = wj_sources;
+        this.wjSources = wjSources;
         this.freq_lvl = freq_lvl;
         this.reflexionOrder = reflexionOrder;
         this.diffractionOrder = diffractionOrder;
@@ -85,6 +90,32 @@ public class PropagationProcessData {
         this.cellProg = cellProg;
     }
 
+    /**
+     * Adapter for source levels given as a list of spectrum.
+     * The list is read at each source access, then it can be updated between
+     * two computations.
+     */
+    public PropagationProcessData(List<Coordinate> vertices, List<Long> receiverRowId, List<Triangle> triangles, ObstructionTest freeFieldFinder, QueryGeometryStructure sourcesIndex, List<Geometry> sourceGeometries, List<ArrayList<Double>> wj_sources, List<Integer> freq_lvl, int reflexionOrder, int diffractionOrder, double maxSrcDist, double maxRefDist, double minRecDist, double wallAlpha, int cellId, DataSourceFactory dsf, ProgressionProcess cellProg) {
+        this(vertices, receiverRowId, triangles, freeFieldFinder, sourcesIndex, sourceGeometries, (double[]) null, freq_lvl, reflexionOrder, diffractionOrder, maxSrcDist, maxRefDist, minRecDist, wallAlpha, cellId, dsf, cellProg);
+        this.wj_sources = wj_sources;
+    }
+
+    /**
+     * Copy the energetic spectrum of a source
+     * @param srcIndex Source index
+     * @param wj Destination array, of frequency band count length
+     */
+    public void getSourceSpectrum(int srcIndex, double[] wj) {
+        if (wjSources != null) {
+            System.arraycopy(wjSources, srcIndex * wj.length, wj, 0, wj.length);
+        } else {
+            List<Double> spectrum = wj_sources.get(srcIndex);
+            for (int idfreq = 0; idfreq < wj.length; idfreq++) {
+                wj[idfreq] = spectrum.get(idfreq);
+            }
+        }
+    }
+
 
 	
 
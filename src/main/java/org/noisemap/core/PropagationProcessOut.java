@@ -48,6 +48,8 @@ public class PropagationProcessOut {
 	private long nb_couple_receiver_src = 0;
 	private long nb_obstr_test = 0;
 	private long nb_image_receiver = 0;
+	private long nb_pruned_image_receiver = 0;
+	private long nb_pruned_reflexion_path = 0;
 	private long nb_reflexion_path = 0;
         private long nb_diffraction_path = 0;
 	private long cellComputed = 0;
@@ -117,6 +119,24 @@ public class PropagationProcessOut {
 	public synchronized long getNb_image_receiver() {
 		return nb_image_receiver;
 	}
+	public synchronized void appendPrunedImageReceiver(long added) {
+		nb_pruned_image_receiver+=added;
+	}
+	/**
+	 * @return Receiver images discarded because no source can be heard through them
+	 */
+	public synchronized long getNb_pruned_image_receiver() {
+		return nb_pruned_image_receiver;
+	}
+	public synchronized void appendPrunedReflexionPath(long added) {
+		nb_pruned_reflexion_path+=added;
+	}
+	/**
+	 * @return Receiver-Source reflection paths skipped because their level is negligible
+	 */
+	public synchronized long getNb_pruned_reflexion_path() {
+		return nb_pruned_reflexion_path;
+	}
 
 	public synchronized long getNb_reflexion_path() {
 		return nb_reflexion_path;
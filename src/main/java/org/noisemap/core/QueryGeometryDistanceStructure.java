@@ -0,0 +1,74 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * QueryGeometryStructure that can return the geometries in increasing
+ * distance from a point.
+ * 
+ * @author Nicolas Fortin
+ */
+public interface QueryGeometryDistanceStructure extends QueryGeometryStructure {
+
+	/**
+	 * Iterator on geometries sorted by distance, the distance of a geometry
+	 * is the distance of its envelope. Then this is a lower bound of the
+	 * distance of any part of the geometry.
+	 */
+	interface DistanceIterator {
+		boolean hasNext();
+
+		/**
+		 * @return External id of the next geometry
+		 */
+		int next();
+
+		/**
+		 * @return Distance of the next geometry, Double.POSITIVE_INFINITY if
+		 *         there is no more geometry
+		 */
+		double peekDistance();
+	}
+
+	/**
+	 * @param pt
+	 *            Origin of the query
+	 * @param maxDist
+	 *            Geometries farther than this distance are not returned
+	 * @return Geometries from the nearest to the farthest
+	 */
+	DistanceIterator queryByDistance(Coordinate pt, double maxDist);
+}
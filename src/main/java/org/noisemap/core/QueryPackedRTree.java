@@ -0,0 +1,306 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * RTree packed with the Sort-Tile-Recursive algorithm. Nodes and items are
+ * stored in primitive arrays, the children of a node are contiguous. The
+ * tree is built on the first query, then it can be queried by several threads.
+ * 
+ * @author Nicolas Fortin
+ */
+public class QueryPackedRTree implements QueryGeometryDistanceStructure {
+	private static final int NODE_CAPACITY = 16;
+	// Appended items
+	private double[] itemEnv = new double[64]; // minx,miny,maxx,maxy
+	private int[] itemId = new int[16];
+	private int itemCount = 0;
+	// Packed tree, items then nodes, the root is the last entry
+	private double[] entryEnv;
+	private int[] entryFirst; // First child entry or external id of an item
+	private int[] entryCount; // Number of children, 0 for items
+	private int root = -1;
+	private volatile boolean built = false;
+
+	@Override
+	public synchronized void appendGeometry(Geometry newGeom, Integer externalId) {
+		if (itemCount == itemId.length) {
+			itemId = Arrays.copyOf(itemId, itemCount * 2);
+			itemEnv = Arrays.copyOf(itemEnv, itemCount * 2 * 4);
+		}
+		Envelope env = newGeom.getEnvelopeInternal();
+		itemEnv[itemCount * 4] = env.getMinX();
+		itemEnv[itemCount * 4 + 1] = env.getMinY();
+		itemEnv[itemCount * 4 + 2] = env.getMaxX();
+		itemEnv[itemCount * 4 + 3] = env.getMaxY();
+		itemId[itemCount] = externalId;
+		itemCount++;
+		built = false;
+	}
+
+	/**
+	 * @return Number of items
+	 */
+	public int size() {
+		return itemCount;
+	}
+
+	/**
+	 * @param item Item index, in the order of appendGeometry
+	 * @param env Filled with minx,miny,maxx,maxy of the item
+	 */
+	synchronized void getItemEnvelope(int item, double[] env) {
+		System.arraycopy(itemEnv, item * 4, env, 0, 4);
+	}
+
+	/**
+	 * Sort the entries of a level by tiles. Entries are sorted by the x
+	 * center in vertical slices, then by the y center inside a slice.
+	 */
+	private static Integer[] strSort(final double[] env, int count) {
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(env[a * 4] + env[a * 4 + 2], env[b * 4]
+						+ env[b * 4 + 2]);
+			}
+		});
+		int nodeCount = (count + NODE_CAPACITY - 1) / NODE_CAPACITY;
+		int sliceCount = (int) Math.ceil(Math.sqrt(nodeCount));
+		int sliceSize = sliceCount * NODE_CAPACITY;
+		Comparator<Integer> yComparator = new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(env[a * 4 + 1] + env[a * 4 + 3],
+						env[b * 4 + 1] + env[b * 4 + 3]);
+			}
+		};
+		for (int begin = 0; begin < count; begin += sliceSize) {
+			Arrays.sort(order, begin, Math.min(count, begin + sliceSize),
+					yComparator);
+		}
+		return order;
+	}
+
+	private synchronized void build() {
+		if (built) {
+			return;
+		}
+		int maxEntries = itemCount;
+		for (int levelCount = itemCount; levelCount > 1; levelCount = (levelCount
+				+ NODE_CAPACITY - 1)
+				/ NODE_CAPACITY) {
+			maxEntries += (levelCount + NODE_CAPACITY - 1) / NODE_CAPACITY;
+		}
+		entryEnv = new double[maxEntries * 4];
+		entryFirst = new int[maxEntries];
+		entryCount = new int[maxEntries];
+		// Current level, not sorted
+		double[] levelEnv = Arrays.copyOf(itemEnv, itemCount * 4);
+		int[] levelFirst = Arrays.copyOf(itemId, itemCount);
+		int[] levelChildren = new int[itemCount];
+		int levelSize = itemCount;
+		int entrySize = 0;
+		while (levelSize > 0) {
+			Integer[] order = strSort(levelEnv, levelSize);
+			int parentCount = levelSize > 1 ? (levelSize + NODE_CAPACITY - 1)
+					/ NODE_CAPACITY : 0;
+			double[] parentEnv = new double[parentCount * 4];
+			int[] parentFirst = new int[parentCount];
+			int[] parentChildren = new int[parentCount];
+			for (int i = 0; i < levelSize; i++) {
+				int src = order[i];
+				int dest = entrySize++;
+				System.arraycopy(levelEnv, src * 4, entryEnv, dest * 4, 4);
+				entryFirst[dest] = levelFirst[src];
+				entryCount[dest] = levelChildren[src];
+				if (parentCount > 0) {
+					// Expand the parent envelope
+					int parent = i / NODE_CAPACITY;
+					if (i % NODE_CAPACITY == 0) {
+						System.arraycopy(levelEnv, src * 4, parentEnv,
+								parent * 4, 4);
+						parentFirst[parent] = dest;
+					} else {
+						parentEnv[parent * 4] = Math.min(parentEnv[parent * 4],
+								levelEnv[src * 4]);
+						parentEnv[parent * 4 + 1] = Math.min(
+								parentEnv[parent * 4 + 1], levelEnv[src * 4 + 1]);
+						parentEnv[parent * 4 + 2] = Math.max(
+								parentEnv[parent * 4 + 2], levelEnv[src * 4 + 2]);
+						parentEnv[parent * 4 + 3] = Math.max(
+								parentEnv[parent * 4 + 3], levelEnv[src * 4 + 3]);
+					}
+					parentChildren[parent]++;
+				}
+			}
+			levelEnv = parentEnv;
+			levelFirst = parentFirst;
+			levelChildren = parentChildren;
+			levelSize = parentCount;
+		}
+		root = entrySize - 1;
+		built = true;
+	}
+
+	private void ensureBuilt() {
+		if (!built) {
+			build();
+		}
+	}
+
+	@Override
+	public Iterator<Integer> query(Envelope queryEnv) {
+		ensureBuilt();
+		List<Integer> ret = new ArrayList<Integer>();
+		if (root == -1) {
+			return ret.iterator();
+		}
+		int[] stack = new int[64];
+		int stackSize = 0;
+		stack[stackSize++] = root;
+		while (stackSize > 0) {
+			int entry = stack[--stackSize];
+			if (entryEnv[entry * 4] <= queryEnv.getMaxX()
+					&& entryEnv[entry * 4 + 2] >= queryEnv.getMinX()
+					&& entryEnv[entry * 4 + 1] <= queryEnv.getMaxY()
+					&& entryEnv[entry * 4 + 3] >= queryEnv.getMinY()) {
+				if (entryCount[entry] == 0) {
+					ret.add(entryFirst[entry]);
+				} else {
+					if (stackSize + entryCount[entry] > stack.length) {
+						stack = Arrays.copyOf(stack, (stackSize + entryCount[entry]) * 2);
+					}
+					for (int child = entryFirst[entry]; child < entryFirst[entry]
+							+ entryCount[entry]; child++) {
+						stack[stackSize++] = child;
+					}
+				}
+			}
+		}
+		return ret.iterator();
+	}
+
+	private double getDistance(int entry, double x, double y) {
+		double dx = Math.max(0, Math.max(entryEnv[entry * 4] - x, x
+				- entryEnv[entry * 4 + 2]));
+		double dy = Math.max(0, Math.max(entryEnv[entry * 4 + 1] - y, y
+				- entryEnv[entry * 4 + 3]));
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	@Override
+	public DistanceIterator queryByDistance(Coordinate pt, double maxDist) {
+		ensureBuilt();
+		return new BestFirstIterator(pt.x, pt.y, maxDist);
+	}
+
+	/**
+	 * Best first traversal of the tree, nodes and items are sorted in the same
+	 * heap. An item is returned when it is on the top of the heap.
+	 */
+	private final class BestFirstIterator implements DistanceIterator {
+		private final double x;
+		private final double y;
+		private final double maxDist;
+		private final IndexHeap heap = new IndexHeap();
+
+		public BestFirstIterator(double x, double y, double maxDist) {
+			this.x = x;
+			this.y = y;
+			this.maxDist = maxDist;
+			if (root != -1) {
+				pushEntry(root);
+			}
+		}
+
+		private void pushEntry(int entry) {
+			double dist = getDistance(entry, x, y);
+			if (dist <= maxDist) {
+				heap.add(dist, entry);
+			}
+		}
+
+		/**
+		 * Open nodes until an item is on the top of the heap
+		 */
+		private void fetchItem() {
+			while (!heap.isEmpty() && entryCount[heap.peekValue()] > 0) {
+				int node = heap.poll();
+				for (int child = entryFirst[node]; child < entryFirst[node]
+						+ entryCount[node]; child++) {
+					pushEntry(child);
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			fetchItem();
+			return !heap.isEmpty();
+		}
+
+		@Override
+		public int next() {
+			fetchItem();
+			if (heap.isEmpty()) {
+				throw new NoSuchElementException("iteration has no more elements.");
+			}
+			return entryFirst[heap.poll()];
+		}
+
+		@Override
+		public double peekDistance() {
+			fetchItem();
+			if (heap.isEmpty()) {
+				return Double.POSITIVE_INFINITY;
+			}
+			return heap.peekKey();
+		}
+	}
+}
@@ -0,0 +1,350 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineSegment;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Walls of a cell with the precomputed face to face relation
+ * (PropagationProcess.wallWallTest) of each pair of walls. The relation is
+ * stored in compressed adjacency arrays.
+ * 
+ * The walls are indexed by a uniform grid stored in primitive arrays, the
+ * walls within a distance of a receiver are taken from a superset shared by
+ * the neighbouring receivers (see WallRangeCache).
+ * 
+ * @author Nicolas Fortin
+ */
+public class ReflectionWalls {
+	// Maximum number of grid cells by axis
+	private static final int MAX_GRID_SIDE = 1024;
+	// A superset of walls is reused while the receiver is closer than
+	// maxDist*CLUSTER_RATIO of the first receiver
+	private static final double CLUSTER_RATIO = 0.25;
+	private final List<LineSegment> walls;
+	// x0,y0,x1,y1 of each wall
+	private final double[] wallCoords;
+	// Grid of walls, walls of the grid cell i are
+	// gridWalls[gridIndex[i]..gridIndex[i+1]-1]
+	private final double gridMinX;
+	private final double gridMinY;
+	private final double gridCellSize;
+	private final int gridCols;
+	private final int gridRows;
+	private final int[] gridIndex;
+	private final int[] gridWalls;
+	// Walls face to face with the wall i are
+	// faceWalls[faceWallsIndex[i]..faceWallsIndex[i+1]-1]
+	private final int[] faceWallsIndex;
+	private final int[] faceWalls;
+
+	/**
+	 * @param walls
+	 *            Walls, CCW oriented
+	 * @param maxWallDist
+	 *            Face to face relation is computed only for walls closer
+	 *            than this distance
+	 */
+	public ReflectionWalls(List<LineSegment> walls, double maxWallDist) {
+		this.walls = walls;
+		int wallCount = walls.size();
+		wallCoords = new double[wallCount * 4];
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		for (int idWall = 0; idWall < wallCount; idWall++) {
+			LineSegment wall = walls.get(idWall);
+			wallCoords[idWall * 4] = wall.p0.x;
+			wallCoords[idWall * 4 + 1] = wall.p0.y;
+			wallCoords[idWall * 4 + 2] = wall.p1.x;
+			wallCoords[idWall * 4 + 3] = wall.p1.y;
+			minX = Math.min(minX, Math.min(wall.p0.x, wall.p1.x));
+			minY = Math.min(minY, Math.min(wall.p0.y, wall.p1.y));
+			maxX = Math.max(maxX, Math.max(wall.p0.x, wall.p1.x));
+			maxY = Math.max(maxY, Math.max(wall.p0.y, wall.p1.y));
+		}
+		if (wallCount == 0) {
+			minX = minY = maxX = maxY = 0;
+		}
+		// Half of the face to face distance, a query covers a few cells
+		double cellSize = maxWallDist / 2;
+		double extent = Math.max(maxX - minX, maxY - minY);
+		if (!(cellSize >= extent / MAX_GRID_SIDE)) {
+			cellSize = extent / MAX_GRID_SIDE;
+		}
+		if (!(cellSize > 0)) {
+			cellSize = 1;
+		}
+		gridMinX = minX;
+		gridMinY = minY;
+		gridCellSize = cellSize;
+		gridCols = Math.min(MAX_GRID_SIDE,
+				(int) ((maxX - minX) / cellSize) + 1);
+		gridRows = Math.min(MAX_GRID_SIDE,
+				(int) ((maxY - minY) / cellSize) + 1);
+		// Each wall is stored in all the grid cells of its envelope
+		gridIndex = new int[gridCols * gridRows + 1];
+		for (int idWall = 0; idWall < wallCount; idWall++) {
+			for (int row = getWallRowMin(idWall); row <= getWallRowMax(idWall); row++) {
+				for (int col = getWallColMin(idWall); col <= getWallColMax(idWall); col++) {
+					gridIndex[row * gridCols + col + 1]++;
+				}
+			}
+		}
+		for (int cell = 0; cell < gridCols * gridRows; cell++) {
+			gridIndex[cell + 1] += gridIndex[cell];
+		}
+		gridWalls = new int[gridIndex[gridCols * gridRows]];
+		int[] cellFill = Arrays.copyOf(gridIndex, gridCols * gridRows);
+		for (int idWall = 0; idWall < wallCount; idWall++) {
+			for (int row = getWallRowMin(idWall); row <= getWallRowMax(idWall); row++) {
+				for (int col = getWallColMin(idWall); col <= getWallColMax(idWall); col++) {
+					gridWalls[cellFill[row * gridCols + col]++] = idWall;
+				}
+			}
+		}
+		int[] degree = new int[wallCount];
+		int[] pairs = new int[64];
+		int pairCount = 0;
+		int[] candidates = new int[16];
+		int[] wallStamp = new int[wallCount];
+		for (int idWall = 0; idWall < wallCount; idWall++) {
+			LineSegment wall = walls.get(idWall);
+			candidates = queryGrid(
+					Math.min(wall.p0.x, wall.p1.x) - maxWallDist,
+					Math.min(wall.p0.y, wall.p1.y) - maxWallDist,
+					Math.max(wall.p0.x, wall.p1.x) + maxWallDist,
+					Math.max(wall.p0.y, wall.p1.y) + maxWallDist, wallStamp,
+					idWall + 1, candidates);
+			int candidateCount = candidates[0];
+			for (int cursor = 1; cursor <= candidateCount; cursor++) {
+				int idOther = candidates[cursor];
+				// The relation is symmetric, each pair is tested once
+				if (idOther > idWall) {
+					LineSegment other = walls.get(idOther);
+					if (wall.distance(other) <= maxWallDist
+							&& PropagationProcess.wallWallTest(wall, other)) {
+						if (pairCount * 2 == pairs.length) {
+							pairs = Arrays.copyOf(pairs, pairs.length * 2);
+						}
+						pairs[pairCount * 2] = idWall;
+						pairs[pairCount * 2 + 1] = idOther;
+						pairCount++;
+						degree[idWall]++;
+						degree[idOther]++;
+					}
+				}
+			}
+		}
+		faceWallsIndex = new int[wallCount + 1];
+		for (int idWall = 0; idWall < wallCount; idWall++) {
+			faceWallsIndex[idWall + 1] = faceWallsIndex[idWall]
+					+ degree[idWall];
+		}
+		faceWalls = new int[pairCount * 2];
+		int[] fill = Arrays.copyOf(faceWallsIndex, wallCount);
+		for (int pair = 0; pair < pairCount; pair++) {
+			int first = pairs[pair * 2];
+			int second = pairs[pair * 2 + 1];
+			faceWalls[fill[first]++] = second;
+			faceWalls[fill[second]++] = first;
+		}
+	}
+
+	private int getCol(double x) {
+		return Math.max(0, Math.min(gridCols - 1,
+				(int) Math.floor((x - gridMinX) / gridCellSize)));
+	}
+
+	private int getRow(double y) {
+		return Math.max(0, Math.min(gridRows - 1,
+				(int) Math.floor((y - gridMinY) / gridCellSize)));
+	}
+
+	private int getWallColMin(int idWall) {
+		return getCol(Math.min(wallCoords[idWall * 4],
+				wallCoords[idWall * 4 + 2]));
+	}
+
+	private int getWallColMax(int idWall) {
+		return getCol(Math.max(wallCoords[idWall * 4],
+				wallCoords[idWall * 4 + 2]));
+	}
+
+	private int getWallRowMin(int idWall) {
+		return getRow(Math.min(wallCoords[idWall * 4 + 1],
+				wallCoords[idWall * 4 + 3]));
+	}
+
+	private int getWallRowMax(int idWall) {
+		return getRow(Math.max(wallCoords[idWall * 4 + 1],
+				wallCoords[idWall * 4 + 3]));
+	}
+
+	/**
+	 * Collect the walls stored in the grid cells intersecting an envelope
+	 * 
+	 * @param wallStamp
+	 *            Stamp of each wall, to collect a wall once
+	 * @param stamp
+	 *            Stamp of this query, different of all values of wallStamp
+	 * @param found
+	 *            Destination, found[0] is the count of walls stored from
+	 *            found[1]
+	 * @return found, or a greater copy of it
+	 */
+	private int[] queryGrid(double minX, double minY, double maxX,
+			double maxY, int[] wallStamp, int stamp, int[] found) {
+		int count = 0;
+		int colMax = getCol(maxX);
+		int rowMax = getRow(maxY);
+		for (int row = getRow(minY); row <= rowMax; row++) {
+			for (int col = getCol(minX); col <= colMax; col++) {
+				int cell = row * gridCols + col;
+				for (int cursor = gridIndex[cell]; cursor < gridIndex[cell + 1]; cursor++) {
+					int idWall = gridWalls[cursor];
+					if (wallStamp[idWall] != stamp) {
+						wallStamp[idWall] = stamp;
+						if (count + 1 == found.length) {
+							found = Arrays.copyOf(found, found.length * 2);
+						}
+						found[++count] = idWall;
+					}
+				}
+			}
+		}
+		found[0] = count;
+		return found;
+	}
+
+	/**
+	 * @return Squared distance between the point and the wall
+	 */
+	private double wallDistanceSq(int idWall, double x, double y) {
+		double x0 = wallCoords[idWall * 4];
+		double y0 = wallCoords[idWall * 4 + 1];
+		double dx = wallCoords[idWall * 4 + 2] - x0;
+		double dy = wallCoords[idWall * 4 + 3] - y0;
+		double lengthSq = dx * dx + dy * dy;
+		double t = 0;
+		if (lengthSq > 0) {
+			t = Math.max(0, Math.min(1, ((x - x0) * dx + (y - y0) * dy)
+					/ lengthSq));
+		}
+		double ex = x0 + t * dx - x;
+		double ey = y0 + t * dy - y;
+		return ex * ex + ey * ey;
+	}
+
+	public List<LineSegment> getWalls() {
+		return walls;
+	}
+
+	public int getWallCount() {
+		return walls.size();
+	}
+
+	/**
+	 * @return First index in faceWalls of the walls face to the wall
+	 */
+	public int getFaceWallsBegin(int idWall) {
+		return faceWallsIndex[idWall];
+	}
+
+	/**
+	 * @return Last index (excluded) in faceWalls of the walls face to the
+	 *         wall
+	 */
+	public int getFaceWallsEnd(int idWall) {
+		return faceWallsIndex[idWall + 1];
+	}
+
+	/**
+	 * @return Wall index stored at this position of faceWalls
+	 */
+	public int getFaceWall(int index) {
+		return faceWalls[index];
+	}
+
+	/**
+	 * Find the walls near a point. The grid is queried only when the point
+	 * is out of the cluster of the cached superset, else the superset is
+	 * filtered by distance without allocation.
+	 * 
+	 * @param pt
+	 *            Origin of search
+	 * @param maxDist
+	 *            Maximum distance from origin to walls
+	 * @param cache
+	 *            Superset and result of the search, read the walls with
+	 *            cache.getWall(0..getWallCount()-1)
+	 */
+	public void getWallsInRange(Coordinate pt, double maxDist,
+			WallRangeCache cache) {
+		double clusterRadius = maxDist * CLUSTER_RATIO;
+		if (!cache.isValid(this, pt, maxDist)) {
+			double supersetDist = maxDist + clusterRadius;
+			int[] superset = queryGrid(pt.x - supersetDist, pt.y
+					- supersetDist, pt.x + supersetDist, pt.y + supersetDist,
+					cache.getWallStamp(walls.size()), cache.nextStamp(),
+					cache.superset);
+			// Keep only the walls that may be in range of the cluster
+			double supersetDistSq = supersetDist * supersetDist;
+			int count = 0;
+			for (int cursor = 1; cursor <= superset[0]; cursor++) {
+				int idWall = superset[cursor];
+				if (wallDistanceSq(idWall, pt.x, pt.y) <= supersetDistSq) {
+					superset[++count] = idWall;
+				}
+			}
+			superset[0] = count;
+			cache.setSuperset(this, superset, pt, maxDist, clusterRadius);
+		}
+		int[] superset = cache.superset;
+		int[] found = cache.getWalls(superset[0]);
+		double maxDistSq = maxDist * maxDist;
+		int count = 0;
+		for (int cursor = 1; cursor <= superset[0]; cursor++) {
+			int idWall = superset[cursor];
+			if (wallDistanceSq(idWall, pt.x, pt.y) <= maxDistSq) {
+				found[count++] = idWall;
+			}
+		}
+		cache.setWallCount(count);
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import java.util.List;
+
+/**
+ * Index of a subset of the items of a cell, from the cell item index. The
+ * arrays are kept between two subsets, then setting a new subset only cost
+ * the size of the subset.
+ * 
+ * @author Nicolas Fortin
+ */
+public class RegionIndex {
+	private int[] regionIndex = new int[0];
+	private int[] regionStamp = new int[0];
+	private int stamp = 0;
+
+	/**
+	 * @param cellItemCount
+	 *            Number of items in the cell
+	 * @param regionItems
+	 *            Cell index of the items of the region
+	 */
+	public void set(int cellItemCount, List<Integer> regionItems) {
+		if (regionIndex.length < cellItemCount) {
+			regionIndex = new int[cellItemCount];
+			regionStamp = new int[cellItemCount];
+			stamp = 0;
+		}
+		stamp++;
+		for (int i = 0; i < regionItems.size(); i++) {
+			int cellItem = regionItems.get(i);
+			regionIndex[cellItem] = i;
+			regionStamp[cellItem] = stamp;
+		}
+	}
+
+	/**
+	 * @param cellItemCount
+	 *            Number of items in the cell
+	 * @param regionItems
+	 *            Cell index of the items of the region
+	 * @param regionItemCount
+	 *            Number of items stored in regionItems
+	 */
+	public void set(int cellItemCount, int[] regionItems, int regionItemCount) {
+		if (regionIndex.length < cellItemCount) {
+			regionIndex = new int[cellItemCount];
+			regionStamp = new int[cellItemCount];
+			stamp = 0;
+		}
+		stamp++;
+		for (int i = 0; i < regionItemCount; i++) {
+			int cellItem = regionItems[i];
+			regionIndex[cellItem] = i;
+			regionStamp[cellItem] = stamp;
+		}
+	}
+
+	/**
+	 * @return Index in the region of the cell item, -1 if the item is not in
+	 *         the region
+	 */
+	public int get(int cellItem) {
+		if (regionStamp[cellItem] == stamp) {
+			return regionIndex[cellItem];
+		}
+		return -1;
+	}
+}
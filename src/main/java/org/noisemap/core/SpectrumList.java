@@ -0,0 +1,148 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of energetic spectrums stored in a single flat array.
+ * The value of the frequency band b of the spectrum i is at index
+ * [i*nbfreq+b]. This avoid the boxing of each band level in Double objects.
+ * 
+ * @author Nicolas Fortin
+ */
+public class SpectrumList {
+	private final int nbfreq;
+	private double[] values;
+	private int size = 0;
+
+	public SpectrumList(int nbfreq) {
+		this(nbfreq, 16);
+	}
+
+	public SpectrumList(int nbfreq, int capacity) {
+		this.nbfreq = nbfreq;
+		this.values = new double[Math.max(1, capacity) * nbfreq];
+	}
+
+	private void ensureCapacity(int spectrumCount) {
+		if (spectrumCount * nbfreq > values.length) {
+			int newCapacity = Math.max(spectrumCount,
+					(values.length / Math.max(1, nbfreq)) * 2);
+			values = Arrays.copyOf(values, newCapacity * nbfreq);
+		}
+	}
+
+	/**
+	 * Append a spectrum multiplied by a factor
+	 * @param wj Source array
+	 * @param offset Offset of the first band in wj
+	 * @param factor Multiplication factor of each band
+	 * @return Index of the new spectrum
+	 */
+	public int add(double[] wj, int offset, double factor) {
+		ensureCapacity(size + 1);
+		int dest = size * nbfreq;
+		for (int idfreq = 0; idfreq < nbfreq; idfreq++) {
+			values[dest + idfreq] = wj[offset + idfreq] * factor;
+		}
+		return size++;
+	}
+
+	/**
+	 * Add a spectrum multiplied by a factor to an existing spectrum
+	 * @param index Index of the spectrum to update
+	 * @param wj Source array
+	 * @param offset Offset of the first band in wj
+	 * @param factor Multiplication factor of each band
+	 */
+	public void addTo(int index, double[] wj, int offset, double factor) {
+		int dest = index * nbfreq;
+		for (int idfreq = 0; idfreq < nbfreq; idfreq++) {
+			values[dest + idfreq] += wj[offset + idfreq] * factor;
+		}
+	}
+
+	/**
+	 * @param index Spectrum index
+	 * @param idfreq Frequency band index
+	 * @return Energetic value
+	 */
+	public double get(int index, int idfreq) {
+		return values[index * nbfreq + idfreq];
+	}
+
+	/**
+	 * @param index Spectrum index
+	 * @return Offset of the first band of the spectrum in getArray()
+	 */
+	public int getOffset(int index) {
+		return index * nbfreq;
+	}
+
+	/**
+	 * @return The backing array, valid until the next insertion
+	 */
+	public double[] getArray() {
+		return values;
+	}
+
+	/**
+	 * @return A copy of the values, trimmed to the spectrum count
+	 */
+	public double[] toArray() {
+		return Arrays.copyOf(values, size * nbfreq);
+	}
+
+	/**
+	 * @return Spectrum count
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return Frequency band count
+	 */
+	public int getBandCount() {
+		return nbfreq;
+	}
+
+	/**
+	 * Remove all spectrums, the allocated memory is kept.
+	 */
+	public void clear() {
+		size = 0;
+	}
+}
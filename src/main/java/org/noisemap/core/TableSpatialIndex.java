@@ -0,0 +1,143 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import java.util.Arrays;
+import java.util.Iterator;
+import org.gdms.data.values.Value;
+import org.gdms.driver.DataSet;
+import org.gdms.driver.DriverException;
+
+/**
+ * Envelopes of the geometries of a table, read in one pass and packed in a
+ * RTree. The rows of a cell are then found without scanning the table.
+ * The index can be queried by several threads. The table is not known to
+ * support concurrent readers, then its rows are read through this index
+ * only, one thread at a time.
+ * @author Nicolas Fortin
+ */
+public class TableSpatialIndex {
+	private final DataSet table;
+	private final int spatialFieldIndex;
+	private final QueryPackedRTree index = new QueryPackedRTree();
+
+	/**
+	 * Read all the rows of the table
+	 * @param table Table to index
+	 * @param spatialFieldIndex Geometry field of the table
+	 * @throws DriverException
+	 */
+	public TableSpatialIndex(DataSet table, int spatialFieldIndex)
+			throws DriverException {
+		this.table = table;
+		this.spatialFieldIndex = spatialFieldIndex;
+		long rowCount = table.getRowCount();
+		if (rowCount > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many rows to index: "
+					+ rowCount);
+		}
+		for (int rowIndex = 0; rowIndex < rowCount; rowIndex++) {
+			Geometry geometry = getGeometry(rowIndex);
+			// An empty geometry does not intersect any cell
+			if (!geometry.getEnvelopeInternal().isNull()) {
+				index.appendGeometry(geometry, rowIndex);
+			}
+		}
+	}
+
+	/**
+	 * @return Geometry field of the table
+	 */
+	public int getSpatialFieldIndex() {
+		return spatialFieldIndex;
+	}
+
+	/**
+	 * @return Count of indexed rows
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * @param item Item index, from 0 to size() - 1
+	 * @param env Filled with minx,miny,maxx,maxy of the geometry
+	 */
+	public void getItemEnvelope(int item, double[] env) {
+		index.getItemEnvelope(item, env);
+	}
+
+	/**
+	 * @param rowIndex Row of the table
+	 * @return Geometry of this row
+	 * @throws DriverException
+	 */
+	public synchronized Geometry getGeometry(long rowIndex)
+			throws DriverException {
+		return table.getFieldValue(rowIndex, spatialFieldIndex).getAsGeometry();
+	}
+
+	/**
+	 * @param rowIndex Row of the table
+	 * @param fieldId Field of the table
+	 * @return Value of the field in this row
+	 * @throws DriverException
+	 */
+	public synchronized Value getFieldValue(long rowIndex, int fieldId)
+			throws DriverException {
+		return table.getFieldValue(rowIndex, fieldId);
+	}
+
+	/**
+	 * @param queryEnv Region of interest
+	 * @return Rows where the geometry envelope intersects the region, in the
+	 *         order of the table
+	 */
+	public int[] getRows(Envelope queryEnv) {
+		int[] rows = new int[16];
+		int rowCount = 0;
+		Iterator<Integer> it = index.query(queryEnv);
+		while (it.hasNext()) {
+			if (rowCount == rows.length) {
+				rows = Arrays.copyOf(rows, rowCount * 2);
+			}
+			rows[rowCount++] = it.next();
+		}
+		rows = Arrays.copyOf(rows, rowCount);
+		Arrays.sort(rows);
+		return rows;
+	}
+}
@@ -136,26 +136,4 @@ public class ThreadPool extends ThreadPoolExecutor {
 	public int getRemainingTasks() {
 		return this.getQueue().size() + this.getActiveCount();
 	}
-
-	/**
-	 * Wait for free queue slot if poolSize is superior or equal of maximum pool
-	 * size then executes the given task sometime in the future. The task may
-	 * execute in a new thread or in an existing pooled thread. If the task
-	 * cannot be submitted for execution, either because this executor has been
-	 * shutdown or because its capacity has been reached, the task is handled by
-	 * the current RejectedExecutionHandler.
-	 * 
-	 * @param command
-	 */
-	public void executeBlocking(Runnable command) {
-		while (this.getQueue().size() + this.getActiveCount() >= this
-				.getMaximumPoolSize()) {
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException e) {
-				return; // do not execute
-			}
-		}
-		super.execute(command);
-	}
 }
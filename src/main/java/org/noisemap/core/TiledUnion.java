@@ -0,0 +1,299 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Union of building footprints by tiles. A footprint belongs to the tile
+ * containing the centre of its envelope. Tiles are merged in parallel, then
+ * the results of neighbouring tiles are merged by pairs until one geometry
+ * remains. The merged tiles are kept in a LRU cache, the extended envelopes
+ * of neighbouring cells share most of their tiles.
+ * @author Nicolas Fortin
+ */
+public class TiledUnion {
+	private final double tileSize;
+	private final ExecutorService executor;
+	private final Map<TileKey, TileEntry> tileCache;
+	private long tileCacheHit = 0;
+	private long tileCacheMiss = 0;
+
+	/**
+	 * Position and buffer of a merged tile
+	 */
+	private static final class TileKey {
+		private final long col;
+		private final long row;
+		private final double bufferSize;
+
+		public TileKey(long col, long row, double bufferSize) {
+			this.col = col;
+			this.row = row;
+			this.bufferSize = bufferSize;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof TileKey)) {
+				return false;
+			}
+			TileKey other = (TileKey) obj;
+			return col == other.col && row == other.row
+					&& Double.compare(bufferSize, other.bufferSize) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			long bits = col * 31 + row;
+			bits = bits * 31 + Double.doubleToLongBits(bufferSize);
+			return (int) (bits ^ (bits >>> 32));
+		}
+	}
+
+	/**
+	 * Footprints of a tile, before and after the union
+	 */
+	private static final class TileEntry {
+		private final TileKey key;
+		private final List<Geometry> footprints;
+		private Geometry merged = null;
+		private UnionProcess task = null;
+
+		public TileEntry(TileKey key, List<Geometry> footprints) {
+			this.key = key;
+			this.footprints = footprints;
+		}
+
+		/**
+		 * @return True if this entry has been built with the same footprints
+		 */
+		public boolean isSameFootprints(List<Geometry> other) {
+			if (footprints.size() != other.size()) {
+				return false;
+			}
+			for (int i = 0; i < footprints.size(); i++) {
+				if (!footprints.get(i).equalsExact(other.get(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * @param tileSize Width and height of tiles
+	 * @param cacheSize Maximum count of merged tiles kept in memory
+	 * @param executor Threads of the tile unions
+	 */
+	public TiledUnion(double tileSize, final int cacheSize,
+			ExecutorService executor) {
+		this.tileSize = tileSize;
+		this.executor = executor;
+		this.tileCache = new LinkedHashMap<TileKey, TileEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<TileKey, TileEntry> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * @return Count of tiles read from the cache
+	 */
+	public synchronized long getTileCacheHit() {
+		return tileCacheHit;
+	}
+
+	/**
+	 * @return Count of tiles merged
+	 */
+	public synchronized long getTileCacheMiss() {
+		return tileCacheMiss;
+	}
+
+	/**
+	 * Interleave the bits of col and row, neighbouring tiles have close codes
+	 */
+	private static long mortonCode(long col, long row) {
+		long code = 0;
+		for (int bit = 0; bit < 31; bit++) {
+			code |= ((col >> bit) & 1L) << (2 * bit);
+			code |= ((row >> bit) & 1L) << (2 * bit + 1);
+		}
+		return code;
+	}
+
+	/**
+	 * @return Threads of the tile unions
+	 */
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Run the tasks on the executor and wait for them
+	 */
+	private void runAll(List<UnionProcess> tasks) {
+		List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+		for (UnionProcess task : tasks) {
+			futures.add(executor.submit(task));
+		}
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException ex) {
+			for (Future<?> future : futures) {
+				future.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Union of buildings interrupted", ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw new IllegalStateException(ex.getCause());
+		}
+	}
+
+	/**
+	 * Merge geometries, same result as UnionProcess.merge
+	 * @param toUnite Geometries to merge
+	 * @param bufferSize Buffer of the geometries, 0 for the union only
+	 * @return Merged geometry
+	 */
+	public Geometry union(Collection<Geometry> toUnite, double bufferSize) {
+		// Dispatch footprints in tiles
+		Map<TileKey, List<Geometry>> tiles = new HashMap<TileKey, List<Geometry>>();
+		long minCol = Long.MAX_VALUE;
+		long minRow = Long.MAX_VALUE;
+		for (Geometry footprint : toUnite) {
+			Envelope envelope = footprint.getEnvelopeInternal();
+			if (envelope.isNull()) {
+				continue;
+			}
+			long col = (long) Math.floor((envelope.getMinX() + envelope.getMaxX()) / 2. / tileSize);
+			long row = (long) Math.floor((envelope.getMinY() + envelope.getMaxY()) / 2. / tileSize);
+			minCol = Math.min(minCol, col);
+			minRow = Math.min(minRow, row);
+			TileKey key = new TileKey(col, row, bufferSize);
+			List<Geometry> tile = tiles.get(key);
+			if (tile == null) {
+				tile = new ArrayList<Geometry>();
+				tiles.put(key, tile);
+			}
+			tile.add(footprint);
+		}
+		if (tiles.isEmpty()) {
+			return UnionProcess.merge(toUnite, bufferSize);
+		}
+		// Use the cached tiles, merge the others
+		List<TileEntry> entries = new ArrayList<TileEntry>(tiles.size());
+		List<UnionProcess> tasks = new ArrayList<UnionProcess>();
+		synchronized (this) {
+			for (Map.Entry<TileKey, List<Geometry>> tile : tiles.entrySet()) {
+				TileEntry entry = tileCache.get(tile.getKey());
+				if (entry != null && entry.isSameFootprints(tile.getValue())) {
+					tileCacheHit++;
+				} else {
+					tileCacheMiss++;
+					entry = new TileEntry(tile.getKey(), tile.getValue());
+					entry.task = new UnionProcess(entry.footprints, bufferSize);
+					tasks.add(entry.task);
+				}
+				entries.add(entry);
+			}
+		}
+		runAll(tasks);
+		synchronized (this) {
+			for (TileEntry entry : entries) {
+				if (entry.task != null) {
+					entry.merged = entry.task.getResult();
+					entry.task = null;
+					tileCache.put(entry.key, entry);
+				}
+			}
+		}
+		// Merge neighbouring tiles first
+		final long originCol = minCol;
+		final long originRow = minRow;
+		Collections.sort(entries, new Comparator<TileEntry>() {
+			@Override
+			public int compare(TileEntry o1, TileEntry o2) {
+				long code1 = mortonCode(o1.key.col - originCol, o1.key.row - originRow);
+				long code2 = mortonCode(o2.key.col - originCol, o2.key.row - originRow);
+				return code1 < code2 ? -1 : (code1 == code2 ? 0 : 1);
+			}
+		});
+		List<Geometry> level = new ArrayList<Geometry>(entries.size());
+		for (TileEntry entry : entries) {
+			level.add(entry.merged);
+		}
+		while (level.size() > 1) {
+			tasks = new ArrayList<UnionProcess>(level.size() / 2);
+			for (int i = 0; i + 1 < level.size(); i += 2) {
+				List<Geometry> pair = new ArrayList<Geometry>(2);
+				pair.add(level.get(i));
+				pair.add(level.get(i + 1));
+				tasks.add(new UnionProcess(pair, 0.));
+			}
+			runAll(tasks);
+			List<Geometry> nextLevel = new ArrayList<Geometry>(tasks.size() + 1);
+			for (UnionProcess task : tasks) {
+				nextLevel.add(task.getResult());
+			}
+			if (level.size() % 2 == 1) {
+				nextLevel.add(level.get(level.size() - 1));
+			}
+			level = nextLevel;
+		}
+		return level.get(0);
+	}
+}
@@ -33,18 +33,56 @@
  */
 package org.noisemap.core;
 
+import java.util.Collection;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.operation.buffer.BufferParameters;
+
 /**
- *
+ * Union of a set of geometries, a task of TiledUnion.
  * @author Nicolas Fortin
  */
 public class UnionProcess implements Runnable  {
+    private final Collection<Geometry> toUnite;
+    private final double bufferSize;
+    private Geometry result = null;
 
-    public UnionProcess() {
+    /**
+     * @param toUnite Geometries to merge
+     * @param bufferSize Buffer of the geometries, 0 for the union only
+     */
+    public UnionProcess(Collection<Geometry> toUnite, double bufferSize) {
+        this.toUnite = toUnite;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return Merged geometry, null if the task has not been run
+     */
+    public Geometry getResult() {
+        return result;
     }
 
     @Override
     public void run() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        result = merge(toUnite, bufferSize);
     }
 
+    /**
+     * Merge geometries with a square cap buffer
+     * @param toUnite Geometries to merge
+     * @param bufferSize Buffer of the geometries, 0 for the union only
+     * @return Merged geometry
+     */
+    public static Geometry merge(Collection<Geometry> toUnite, double bufferSize) {
+        GeometryFactory geometryFactory = new GeometryFactory();
+        Geometry geoArray[] = new Geometry[toUnite.size()];
+        toUnite.toArray(geoArray);
+        GeometryCollection polygonCollection = geometryFactory
+                .createGeometryCollection(geoArray);
+        return polygonCollection.buffer(bufferSize, 0,
+                BufferParameters.CAP_SQUARE);
+    }
 }
@@ -0,0 +1,149 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import java.util.Arrays;
+
+/**
+ * Walls of ReflectionWalls near the last receiver, with the superset of the
+ * walls near the receivers of the cluster of the last receiver. The arrays
+ * are kept between two receivers, one instance by thread.
+ * 
+ * @author Nicolas Fortin
+ */
+public class WallRangeCache {
+	// superset[1..superset[0]] are the walls in range of the cluster
+	int[] superset = new int[16];
+	private ReflectionWalls owner = null;
+	private double centerX;
+	private double centerY;
+	private double maxDist;
+	private double clusterRadiusSq;
+	private int[] wallStamp = new int[0];
+	private int stamp = 0;
+	private int[] walls = new int[16];
+	private int wallCount = 0;
+	private long supersetQueryCount = 0;
+	private long supersetReuseCount = 0;
+
+	/**
+	 * @return True if the walls in range of pt are all in the superset
+	 */
+	boolean isValid(ReflectionWalls reflectionWalls, Coordinate pt,
+			double maxDist) {
+		if (owner == reflectionWalls && this.maxDist == maxDist) {
+			double dx = pt.x - centerX;
+			double dy = pt.y - centerY;
+			if (dx * dx + dy * dy <= clusterRadiusSq) {
+				supersetReuseCount++;
+				return true;
+			}
+		}
+		supersetQueryCount++;
+		return false;
+	}
+
+	int[] getWallStamp(int cellWallCount) {
+		if (wallStamp.length < cellWallCount || stamp == Integer.MAX_VALUE) {
+			wallStamp = new int[Math.max(wallStamp.length, cellWallCount)];
+			stamp = 0;
+		}
+		return wallStamp;
+	}
+
+	int nextStamp() {
+		return ++stamp;
+	}
+
+	void setSuperset(ReflectionWalls reflectionWalls, int[] superset,
+			Coordinate center, double maxDist, double clusterRadius) {
+		this.owner = reflectionWalls;
+		this.superset = superset;
+		this.centerX = center.x;
+		this.centerY = center.y;
+		this.maxDist = maxDist;
+		this.clusterRadiusSq = clusterRadius * clusterRadius;
+	}
+
+	/**
+	 * @return Array of the walls found, of at least this capacity
+	 */
+	int[] getWalls(int capacity) {
+		if (walls.length < capacity) {
+			walls = Arrays.copyOf(walls, Math.max(capacity, walls.length * 2));
+		}
+		return walls;
+	}
+
+	void setWallCount(int wallCount) {
+		this.wallCount = wallCount;
+	}
+
+	/**
+	 * @return Number of walls found by the last search
+	 */
+	public int getWallCount() {
+		return wallCount;
+	}
+
+	/**
+	 * @return Index in ReflectionWalls of the wall found
+	 */
+	public int getWall(int index) {
+		return walls[index];
+	}
+
+	/**
+	 * @return Index in ReflectionWalls of the walls found, the first
+	 *         getWallCount() values are set
+	 */
+	public int[] getWalls() {
+		return walls;
+	}
+
+	/**
+	 * @return Number of searches that queried the grid of walls
+	 */
+	public long getSupersetQueryCount() {
+		return supersetQueryCount;
+	}
+
+	/**
+	 * @return Number of searches that filtered the cached superset
+	 */
+	public long getSupersetReuseCount() {
+		return supersetReuseCount;
+	}
+}
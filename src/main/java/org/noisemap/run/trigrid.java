@@ -83,6 +83,17 @@ public class trigrid {
         System.out.println("-rdepth 2        : sound reflection order [0-n] (int)");
         System.out.println("-ddepth 1        : sound diffraction order [0-n] (int)");
         System.out.println("-awalls 0.2      : alpha of walls [0-1[ (double)");
+        System.out.println("-rthreads -1     : threads helping the computation of receivers of a cell, 0 to disable, -1 only when cells are computed one at a time (int)");
+        System.out.println("-isovist false   : compute the visibility polygon of each receiver (boolean)");
+        System.out.println("-sharedmesh false : build one obstruction mesh for the whole area (boolean)");
+        System.out.println("-meshcache dir   : directory where obstruction meshes are kept between runs");
+        System.out.println("-gridobstruction false : obstruction test on a grid of walls, without triangulation (boolean)");
+        System.out.println("-uthreads 4      : threads merging the buildings by tiles, 0 to disable (int)");
+        System.out.println("-vdiffraction false : sound goes over the low buildings, diffraction over the roofs, buildings height read from the height field (boolean)");
+        System.out.println("-adaptive false  : split the area in cells of nearly equal cost instead of a regular grid (boolean)");
+        System.out.println("-prepthreads 1   : threads loading the sources and buildings of the next cells, 0 to disable (int)");
+        System.out.println("-cellthreads 4   : count of cells computed at the same time (int)");
+        System.out.println("-heapbudget 2048 : heap budget of the cells computed at the same time in MB, 0 for no budget, default 3/4 of the max heap (int)");
         System.out.println("-ib builds.gdms  : file name of buildings gdms file");
         System.out.println("-is sources.gdms : file name of noise sources gdms file");
         System.out.println("-o trilvl.gdms   : output filename of gdms file");
@@ -112,6 +123,17 @@ public class trigrid {
         int reflectionDepth=2;
         int diffractionDepth=1;
         double wallAlpha=.2;
+        int receiverHelperCount=-1;
+        boolean receiverIsovist=false;
+        boolean sharedObstructionMesh=false;
+        File meshCacheDirectory=null;
+        boolean gridObstructionTest=false;
+        int unionThreadCount=Runtime.getRuntime().availableProcessors();
+        boolean verticalDiffraction=false;
+        boolean adaptivePartitioning=false;
+        int preparationThreadCount=1;
+        int cellThreadCount=Runtime.getRuntime().availableProcessors();
+        long memoryBudget=Runtime.getRuntime().maxMemory() / 4 * 3;
 
 
         //Read parameters
@@ -145,6 +167,28 @@ public class trigrid {
                 diffractionDepth=Integer.valueOf(sargs.pop());
             }else if(argument.contentEquals("-awalls")) {
                 wallAlpha=Double.valueOf(sargs.pop());
+            }else if(argument.contentEquals("-rthreads")) {
+                receiverHelperCount=Integer.valueOf(sargs.pop());
+            }else if(argument.contentEquals("-isovist")) {
+                receiverIsovist=Boolean.valueOf(sargs.pop());
+            }else if(argument.contentEquals("-sharedmesh")) {
+                sharedObstructionMesh=Boolean.valueOf(sargs.pop());
+            }else if(argument.contentEquals("-meshcache")) {
+                meshCacheDirectory=new File(sargs.pop());
+            }else if(argument.contentEquals("-gridobstruction")) {
+                gridObstructionTest=Boolean.valueOf(sargs.pop());
+            }else if(argument.contentEquals("-uthreads")) {
+                unionThreadCount=Integer.valueOf(sargs.pop());
+            }else if(argument.contentEquals("-vdiffraction")) {
+                verticalDiffraction=Boolean.valueOf(sargs.pop());
+            }else if(argument.contentEquals("-adaptive")) {
+                adaptivePartitioning=Boolean.valueOf(sargs.pop());
+            }else if(argument.contentEquals("-prepthreads")) {
+                preparationThreadCount=Integer.valueOf(sargs.pop());
+            }else if(argument.contentEquals("-cellthreads")) {
+                cellThreadCount=Integer.valueOf(sargs.pop());
+            }else if(argument.contentEquals("-heapbudget")) {
+                memoryBudget=Long.valueOf(sargs.pop()) << 20;
             }else if(argument.contentEquals("-ib")) {
                 buildingsFilename=sargs.pop();
             }else if(argument.contentEquals("-is")) {
@@ -195,6 +239,17 @@ public class trigrid {
             BR_TriGrid propa=new BR_TriGrid();
             Logger log = new ConsoleLogger("BR_TriGrid");
             propa.setLogger(log);
+            propa.setReceiverHelperCount(receiverHelperCount);
+            propa.setReceiverIsovist(receiverIsovist);
+            propa.setSharedObstructionMesh(sharedObstructionMesh);
+            propa.setMeshCacheDirectory(meshCacheDirectory);
+            propa.setGridObstructionTest(gridObstructionTest);
+            propa.setUnionThreadCount(unionThreadCount);
+            propa.setVerticalDiffraction(verticalDiffraction);
+            propa.setAdaptivePartitioning(adaptivePartitioning);
+            propa.setPreparationThreadCount(preparationThreadCount);
+            propa.setCellThreadCount(cellThreadCount);
+            propa.setMemoryBudget(memoryBudget);
             Value[] propaArgs={ValueFactory.createValue(splField),ValueFactory.createValue(maxDist),ValueFactory.createValue(maxRDist),ValueFactory.createValue(splitDepth),ValueFactory.createValue(roadsWidth),ValueFactory.createValue(densification),ValueFactory.createValue(maxarea),ValueFactory.createValue(reflectionDepth),ValueFactory.createValue(diffractionDepth),ValueFactory.createValue(wallAlpha)};
             DataSet data;
             try {
@@ -231,6 +286,17 @@ public class trigrid {
             BR_PtGrid propa=new BR_PtGrid();
             Logger log = new ConsoleLogger("BR_PtGrid");
             propa.setLogger(log);
+            propa.setReceiverHelperCount(receiverHelperCount);
+            propa.setReceiverIsovist(receiverIsovist);
+            propa.setSharedObstructionMesh(sharedObstructionMesh);
+            propa.setMeshCacheDirectory(meshCacheDirectory);
+            propa.setGridObstructionTest(gridObstructionTest);
+            propa.setUnionThreadCount(unionThreadCount);
+            propa.setVerticalDiffraction(verticalDiffraction);
+            propa.setAdaptivePartitioning(adaptivePartitioning);
+            propa.setPreparationThreadCount(preparationThreadCount);
+            propa.setCellThreadCount(cellThreadCount);
+            propa.setMemoryBudget(memoryBudget);
             Value[] propaArgs={ValueFactory.createValue(splField),ValueFactory.createValue(maxDist),ValueFactory.createValue(maxRDist),ValueFactory.createValue(splitDepth),ValueFactory.createValue(reflectionDepth),ValueFactory.createValue(diffractionDepth),ValueFactory.createValue(wallAlpha)};
             DataSet data;
             try {
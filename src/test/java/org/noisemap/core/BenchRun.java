@@ -0,0 +1,97 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measured code of the benchmarks of the tests. The code is run a first time
+ * as the JIT warm up, then run again for the measure.
+ */
+abstract class BenchRun {
+	/**
+	 * Value computed by the last run, checked by the test so that the JIT
+	 * can not drop the measured code
+	 */
+	protected double result;
+
+	/**
+	 * The measured code, it must compute the same result on each run
+	 */
+	protected abstract void run() throws Exception;
+
+	/**
+	 * @return Value computed by the last run
+	 */
+	public double getResult() {
+		return result;
+	}
+
+	/**
+	 * @return Duration of the measured run, in nanoseconds
+	 */
+	public long time() throws Exception {
+		run();
+		long deb = System.nanoTime();
+		run();
+		return System.nanoTime() - deb;
+	}
+
+	/**
+	 * @return Bytes allocated by the current thread during the measured run,
+	 *         -1 if the VM does not count the allocated bytes
+	 */
+	public long allocatedBytes() throws Exception {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+		if (!allocationBean.isThreadAllocatedMemorySupported()
+				|| !allocationBean.isThreadAllocatedMemoryEnabled()) {
+			return -1;
+		}
+		long threadId = Thread.currentThread().getId();
+		run();
+		// Bytes allocated by the measure itself
+		long startOverhead = allocationBean.getThreadAllocatedBytes(threadId);
+		long overhead = allocationBean.getThreadAllocatedBytes(threadId)
+				- startOverhead;
+		long startBytes = allocationBean.getThreadAllocatedBytes(threadId);
+		run();
+		return allocationBean.getThreadAllocatedBytes(threadId) - startBytes
+				- overhead;
+	}
+}
@@ -194,6 +194,14 @@ public class QueryGeometryStructureTest extends TestCase {
             rTreeIndex.appendGeometry(sourceGeom, rowIndex);
         }
         long feedRTreeTime = System.currentTimeMillis() - startFeedRtree;
+        //Init packed rtree structure
+        long startFeedPackedRtree=System.currentTimeMillis();
+        QueryPackedRTree packedRTreeIndex = new QueryPackedRTree();
+        for (Integer rowIndex = 0; rowIndex < rowCount; rowIndex++) {
+            Geometry sourceGeom = sdsSources.getFieldValue(rowIndex, spatialSourceFieldIndex).getAsGeometry();
+            packedRTreeIndex.appendGeometry(sourceGeom, rowIndex);
+        }
+        long feedPackedRTreeTime = System.currentTimeMillis() - startFeedPackedRtree;
         
         
         
@@ -201,6 +209,7 @@ public class QueryGeometryStructureTest extends TestCase {
         System.out.println("Feed QueryQuadTree in "+feedQuadtreeTime+" ms");
         System.out.println("Feed QueryGridIndex in "+feedGridTime+" ms");
         System.out.println("Feed RTreeIndex in "+feedRTreeTime+" ms");
+        System.out.println("Feed QueryPackedRTree in "+feedPackedRTreeTime+" ms");
         
        Envelope testExtract = new Envelope(new Coordinate(-1.5552300630926283,47.24373163594368),
                                             new Coordinate(-1.5516724508251067,47.246733371294404));
@@ -229,14 +238,61 @@ public class QueryGeometryStructureTest extends TestCase {
         debQuery = System.nanoTime();
         nbItemsReturned = countResult(rTreeIndex.query(testExtract));
         System.out.println("RTreeIndex query time in "+(System.nanoTime() - debQuery)/1e6+" ms with "+nbItemsReturned+" items returned.");
+        debQuery = System.nanoTime();
+        nbItemsReturned = countResult(packedRTreeIndex.query(testExtract));
+        System.out.println("QueryPackedRTree query time (with packing) in "+(System.nanoTime() - debQuery)/1e6+" ms with "+nbItemsReturned+" items returned.");
+        debQuery = System.nanoTime();
+        nbItemsReturned = countResult(packedRTreeIndex.query(testExtract));
+        System.out.println("QueryPackedRTree query time in "+(System.nanoTime() - debQuery)/1e6+" ms with "+nbItemsReturned+" items returned.");
 
         
         
         
         //Check items returned by GridIndex
         queryAssert(expectedQueryValue,gridIndex.query(testExtract));
+        queryAssert(expectedQueryValue,packedRTreeIndex.query(testExtract));
         //queryAssert(expectedQueryValue,quadIndex.query(testExtract));
     }
+    /**
+     * Geometries must be returned from the nearest to the farthest
+     */
+    public void testPackedRTreeDistanceQuery() {
+        GeometryFactory fact = new GeometryFactory();
+        Random rand = new Random(42);
+        List<Geometry> geometries = new ArrayList<Geometry>();
+        QueryPackedRTree packedRTreeIndex = new QueryPackedRTree();
+        for (Integer idGeom = 0; idGeom < 2000; idGeom++) {
+            Coordinate p0 = new Coordinate(rand.nextDouble() * 1000, rand.nextDouble() * 1000);
+            Coordinate p1 = new Coordinate(p0.x + rand.nextDouble() * 50, p0.y + rand.nextDouble() * 50);
+            Geometry geom = fact.createLineString(new Coordinate[] {p0, p1});
+            geometries.add(geom);
+            packedRTreeIndex.appendGeometry(geom, idGeom);
+        }
+        final double maxDist = 150;
+        for (int idQuery = 0; idQuery < 20; idQuery++) {
+            Coordinate pt = new Coordinate(rand.nextDouble() * 1000, rand.nextDouble() * 1000);
+            Geometry queryPt = fact.createPoint(pt);
+            int expectedCount = 0;
+            for (Geometry geom : geometries) {
+                if (geom.getEnvelope().distance(queryPt) <= maxDist) {
+                    expectedCount++;
+                }
+            }
+            QueryGeometryDistanceStructure.DistanceIterator nearest = packedRTreeIndex.queryByDistance(pt, maxDist);
+            double lastDistance = 0;
+            int foundCount = 0;
+            while (nearest.hasNext()) {
+                double distance = nearest.peekDistance();
+                int idGeom = nearest.next();
+                assertTrue(distance >= lastDistance);
+                assertEquals(geometries.get(idGeom).getEnvelope().distance(queryPt), distance, 1e-9);
+                lastDistance = distance;
+                foundCount++;
+            }
+            assertEquals(expectedCount, foundCount);
+            assertEquals(Double.POSITIVE_INFINITY, nearest.peekDistance());
+        }
+    }
     private Integer countResult(Iterator<Integer> result) {
         Integer counter=0;
         while(result.hasNext()) {
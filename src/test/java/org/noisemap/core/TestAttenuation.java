@@ -0,0 +1,144 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Check the energy domain attenuation against the dB domain formulas.
+ */
+public class TestAttenuation extends TestCase {
+	// Maximal difference in dB between energy domain and dB domain
+	private static final double DB_TOLERANCE = 1e-9;
+	private static final double[] ALPHA_ATMO = { 0.25, 0.38, 0.57, 0.82,
+			1.13, 1.51, 1.92, 2.36, 2.84, 3.38, 4.08, 5.05, 6.51, 8.75, 12.2,
+			17.7, 26.4, 39.9 };
+
+	private static double diffractionAttenuationDb(double testForm) {
+		double DiffractionAttenuation = 0.;
+		if (testForm >= -2.) {
+			DiffractionAttenuation = 10 * Math.log10(3 + testForm);
+		}
+		return Math.max(0, DiffractionAttenuation);
+	}
+
+	public void testAtmosphericAbsorption() {
+		Random rand = new Random(42);
+		for (int i = 0; i < 10000; i++) {
+			double wj = PropagationProcess.dbaToW(rand.nextDouble() * 120);
+			double dist = rand.nextDouble() * 2000;
+			double alpha = ALPHA_ATMO[i % ALPHA_ATMO.length];
+			double ref = PropagationProcess.wToDba(PropagationProcess.attAtmW(wj,
+					dist, alpha));
+			double linear = PropagationProcess.wToDba(wj
+					* PropagationProcess.attAtmFactor(
+							PropagationProcess.getAtmoDecay(alpha), dist));
+			assertEquals(ref, linear, DB_TOLERANCE);
+		}
+	}
+
+	public void testDiffractionFactor() {
+		Random rand = new Random(42);
+		for (int i = 0; i < 10000; i++) {
+			double wj = PropagationProcess.dbaToW(rand.nextDouble() * 120);
+			double testForm = rand.nextDouble() * 200 - 4;
+			double ref = PropagationProcess.wToDba(wj)
+					- diffractionAttenuationDb(testForm);
+			double linear = PropagationProcess.wToDba(wj
+					* PropagationProcess.getDiffractionFactor(testForm));
+			assertEquals(ref, linear, DB_TOLERANCE);
+		}
+	}
+
+	public void testBenchmarkAttenuation() throws Exception {
+		System.out.println("________________________________________________");
+		System.out.println("Attenuation kernel Bench :");
+		final int pathCount = 200000;
+		final int nbfreq = ALPHA_ATMO.length;
+		final double[] atmoDecay = new double[nbfreq];
+		for (int idfreq = 0; idfreq < nbfreq; idfreq++) {
+			atmoDecay[idfreq] = PropagationProcess.getAtmoDecay(ALPHA_ATMO[idfreq]);
+		}
+		final double[] dist = new double[pathCount];
+		final double[] testForm = new double[pathCount];
+		Random rand = new Random(42);
+		for (int i = 0; i < pathCount; i++) {
+			dist[i] = 1 + rand.nextDouble() * 500;
+			testForm[i] = rand.nextDouble() * 50;
+		}
+		final double wj = PropagationProcess.dbaToW(90.);
+		BenchRun logDomain = new BenchRun() {
+			@Override
+			protected void run() {
+				result = 0;
+				for (int i = 0; i < pathCount; i++) {
+					for (int idfreq = 0; idfreq < nbfreq; idfreq++) {
+						double att = PropagationProcess.attDistW(wj, dist[i]);
+						att = PropagationProcess.dbaToW(PropagationProcess
+								.wToDba(att)
+								- diffractionAttenuationDb(testForm[i]));
+						result += PropagationProcess.attAtmW(att, dist[i],
+								ALPHA_ATMO[idfreq]);
+					}
+				}
+			}
+		};
+		BenchRun linearDomain = new BenchRun() {
+			@Override
+			protected void run() {
+				result = 0;
+				for (int i = 0; i < pathCount; i++) {
+					for (int idfreq = 0; idfreq < nbfreq; idfreq++) {
+						double att = PropagationProcess.attDistW(wj, dist[i]);
+						att *= PropagationProcess
+								.getDiffractionFactor(testForm[i]);
+						result += att
+								* PropagationProcess.attAtmFactor(
+										atmoDecay[idfreq], dist[i]);
+					}
+				}
+			}
+		};
+		long logTime = logDomain.time();
+		long linearTime = linearDomain.time();
+		assertEquals(PropagationProcess.wToDba(logDomain.getResult()),
+				PropagationProcess.wToDba(linearDomain.getResult()),
+				DB_TOLERANCE);
+		System.out.println(pathCount + " paths, dB domain : " + logTime / 1e6
+				+ " ms, energy domain : " + linearTime / 1e6
+				+ " ms, speedup x" + ((double) logTime / linearTime));
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import java.util.List;
+import java.util.Random;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+import junit.framework.TestCase;
+
+/**
+ * Regular and adaptive split of the computation area
+ */
+public class TestCellPartitioner extends TestCase {
+
+	public void testRegularNeighbors() {
+		List<Envelope> cells = CellPartitioner.makeRegularCells(new Envelope(
+				0, 100, 0, 100), 4);
+		assertEquals(16, cells.size());
+		int[][] neighbors = CellPartitioner.getNeighbors(cells);
+		// Corner, border and inner cells
+		assertEquals(2, neighbors[0].length);
+		assertEquals(3, neighbors[1].length);
+		assertEquals(4, neighbors[5].length);
+		// Cell i,j at index i * 4 + j
+		assertEquals(1, neighbors[0][0]);
+		assertEquals(4, neighbors[0][1]);
+	}
+
+	public void testBalancedSplit() {
+		Envelope area = new Envelope(0, 100, 0, 100);
+		CellPartitioner partitioner = new CellPartitioner(area, 10);
+		Random random = new Random(0);
+		double[][] receivers = new double[22000][];
+		// Downtown in the corner, suburbs everywhere
+		for (int i = 0; i < receivers.length; i++) {
+			double side = i < 20000 ? 10 : 100;
+			receivers[i] = new double[] { random.nextDouble() * side,
+					random.nextDouble() * side };
+			partitioner.addReceiver(receivers[i][0], receivers[i][1]);
+		}
+		List<Envelope> cells = partitioner.split(16);
+		assertEquals(16, cells.size());
+		double areaSum = 0;
+		int maxCount = 0;
+		for (Envelope cell : cells) {
+			assertTrue(area.contains(cell));
+			areaSum += cell.getArea();
+			int count = 0;
+			for (double[] receiver : receivers) {
+				if (receiver[0] >= cell.getMinX() && receiver[0] < cell.getMaxX()
+						&& receiver[1] >= cell.getMinY()
+						&& receiver[1] < cell.getMaxY()) {
+					count++;
+				}
+			}
+			maxCount = Math.max(maxCount, count);
+		}
+		assertEquals(area.getArea(), areaSum, 1e-6);
+		// A regular grid puts all the downtown in one cell
+		assertTrue(maxCount < receivers.length / 4);
+		int[][] neighbors = CellPartitioner.getNeighbors(cells);
+		for (int[] cellNeighbors : neighbors) {
+			assertTrue(cellNeighbors.length > 0);
+		}
+	}
+}
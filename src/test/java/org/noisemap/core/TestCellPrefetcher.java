@@ -0,0 +1,370 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Ordered delivery, bounded prefetch, failure propagation and cancellation
+ * of CellPrefetcher
+ */
+public class TestCellPrefetcher extends TestCase {
+
+	/**
+	 * Cell without tables, the loading only counts and may wait or fail
+	 */
+	private static class CountingCell extends CellInput {
+		private final int cellId;
+		private final long memoryEstimation;
+		private final AtomicInteger started;
+		private final AtomicInteger loaded;
+		private long loadingTime = 0;
+		private CountDownLatch gate = null;
+		private LayerDelaunayError delaunayFailure = null;
+		private RuntimeException runtimeFailure = null;
+
+		public CountingCell(int cellId, long memoryEstimation,
+				AtomicInteger started, AtomicInteger loaded) {
+			super(null, null, null);
+			this.cellId = cellId;
+			this.memoryEstimation = memoryEstimation;
+			this.started = started;
+			this.loaded = loaded;
+		}
+
+		@Override
+		public CellInput load() throws LayerDelaunayError {
+			started.incrementAndGet();
+			try {
+				if (gate != null) {
+					gate.await();
+				}
+				if (loadingTime > 0) {
+					Thread.sleep(loadingTime);
+				}
+			} catch (InterruptedException ex) {
+				// Cancelled
+				return this;
+			}
+			if (delaunayFailure != null) {
+				throw delaunayFailure;
+			}
+			if (runtimeFailure != null) {
+				throw runtimeFailure;
+			}
+			loaded.incrementAndGet();
+			return this;
+		}
+
+		@Override
+		public long getMemoryEstimation() {
+			return memoryEstimation;
+		}
+	}
+
+	/**
+	 * Load the cells in the submitting thread, a cell is loaded as soon as it
+	 * is submitted
+	 */
+	private static class DirectExecutor extends AbstractExecutorService {
+		private boolean shutdown = false;
+
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+
+		@Override
+		public void shutdown() {
+			shutdown = true;
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			shutdown = true;
+			return Collections.emptyList();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return shutdown;
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return shutdown;
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) {
+			return true;
+		}
+	}
+
+	private static List<CellInput> makeCells(int cellCount,
+			long memoryEstimation, AtomicInteger started, AtomicInteger loaded) {
+		List<CellInput> cells = new ArrayList<CellInput>();
+		for (int i = 0; i < cellCount; i++) {
+			cells.add(new CountingCell(i, memoryEstimation, started, loaded));
+		}
+		return cells;
+	}
+
+	public void testInOrderDelivery() throws Exception {
+		ThreadPool executor = new ThreadPool(4, 4, Long.MAX_VALUE,
+				TimeUnit.SECONDS);
+		try {
+			AtomicInteger started = new AtomicInteger();
+			AtomicInteger loaded = new AtomicInteger();
+			List<CellInput> cells = makeCells(20, 0, started, loaded);
+			// The first cells of a window are the slowest to load
+			for (int i = 0; i < cells.size(); i++) {
+				((CountingCell) cells.get(i)).loadingTime = 4 - i % 4;
+			}
+			CellPrefetcher prefetcher = new CellPrefetcher(cells, executor, 4);
+			prefetcher.start(null);
+			for (int i = 0; i < cells.size(); i++) {
+				assertTrue(prefetcher.hasNext());
+				CountingCell cell = (CountingCell) prefetcher.next();
+				assertEquals(i, cell.cellId);
+			}
+			assertFalse(prefetcher.hasNext());
+			assertEquals(20, loaded.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testLoadingInCallingThread() throws Exception {
+		AtomicInteger started = new AtomicInteger();
+		AtomicInteger loaded = new AtomicInteger();
+		List<CellInput> cells = makeCells(5, 0, started, loaded);
+		CellPrefetcher prefetcher = new CellPrefetcher(cells, null, 3);
+		prefetcher.start(null);
+		// Nothing is loaded ahead
+		assertEquals(0, started.get());
+		for (int i = 0; i < cells.size(); i++) {
+			assertEquals(i, ((CountingCell) prefetcher.next()).cellId);
+			assertEquals(i + 1, started.get());
+		}
+		assertFalse(prefetcher.hasNext());
+	}
+
+	public void testPrefetchBound() throws Exception {
+		AtomicInteger started = new AtomicInteger();
+		AtomicInteger loaded = new AtomicInteger();
+		List<CellInput> cells = makeCells(10, 40, started, loaded);
+		CellPrefetcher prefetcher = new CellPrefetcher(cells,
+				new DirectExecutor(), 3);
+		prefetcher.start(null);
+		assertEquals(3, started.get());
+		for (int consumed = 1; consumed <= cells.size(); consumed++) {
+			prefetcher.next();
+			// The window is filled again, up to prefetchCount cells ahead
+			assertEquals(Math.min(cells.size() - consumed, 3), started.get()
+					- consumed);
+		}
+		assertFalse(prefetcher.hasNext());
+	}
+
+	public void testPrefetchBoundWithBudget() throws Exception {
+		ThreadPool executor = new ThreadPool(2, 2, Long.MAX_VALUE,
+				TimeUnit.SECONDS);
+		try {
+			CellScheduler scheduler = new CellScheduler(executor, 2, null);
+			scheduler.setMemoryBudget(100);
+			// A cell in flight uses most of the budget
+			final CountDownLatch inFlightGate = new CountDownLatch(1);
+			assertTrue(scheduler.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						inFlightGate.await();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, 90));
+			AtomicInteger started = new AtomicInteger();
+			AtomicInteger loaded = new AtomicInteger();
+			List<CellInput> cells = makeCells(10, 40, started, loaded);
+			CellPrefetcher prefetcher = new CellPrefetcher(cells,
+					new DirectExecutor(), 8);
+			prefetcher.start(scheduler);
+			// 90 in flight, then one cell of 40 exceeds the budget
+			assertEquals(1, started.get());
+			inFlightGate.countDown();
+			assertTrue(scheduler.awaitAll());
+			for (int consumed = 1; consumed <= cells.size(); consumed++) {
+				prefetcher.next();
+				// Cells are loaded ahead until their memory exceeds the budget
+				assertEquals(Math.min(cells.size() - consumed, 3), started.get()
+						- consumed);
+			}
+			assertFalse(prefetcher.hasNext());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testBudgetDoesNotBlockNext() throws Exception {
+		ThreadPool executor = new ThreadPool(2, 2, Long.MAX_VALUE,
+				TimeUnit.SECONDS);
+		final CountDownLatch inFlightGate = new CountDownLatch(1);
+		try {
+			CellScheduler scheduler = new CellScheduler(executor, 2, null);
+			scheduler.setMemoryBudget(100);
+			// The cell in flight exceeds the budget alone
+			assertTrue(scheduler.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						inFlightGate.await();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, 200));
+			AtomicInteger started = new AtomicInteger();
+			AtomicInteger loaded = new AtomicInteger();
+			List<CellInput> cells = makeCells(3, 500, started, loaded);
+			CellPrefetcher prefetcher = new CellPrefetcher(cells,
+					new DirectExecutor(), 2);
+			prefetcher.start(scheduler);
+			assertEquals(0, started.get());
+			// The cell waited by the caller is loaded whatever the budget
+			for (int i = 0; i < cells.size(); i++) {
+				assertEquals(i, ((CountingCell) prefetcher.next()).cellId);
+				assertEquals(i + 1, started.get());
+			}
+			assertFalse(prefetcher.hasNext());
+		} finally {
+			inFlightGate.countDown();
+			executor.shutdown();
+		}
+	}
+
+	public void testLoaderFailure() throws Exception {
+		ThreadPool executor = new ThreadPool(2, 2, Long.MAX_VALUE,
+				TimeUnit.SECONDS);
+		try {
+			AtomicInteger started = new AtomicInteger();
+			AtomicInteger loaded = new AtomicInteger();
+			List<CellInput> cells = makeCells(6, 0, started, loaded);
+			LayerDelaunayError failure = new LayerDelaunayError("mesh failure");
+			((CountingCell) cells.get(2)).delaunayFailure = failure;
+			CellPrefetcher prefetcher = new CellPrefetcher(cells, executor, 2);
+			prefetcher.start(null);
+			assertEquals(0, ((CountingCell) prefetcher.next()).cellId);
+			assertEquals(1, ((CountingCell) prefetcher.next()).cellId);
+			try {
+				prefetcher.next();
+				fail("The loader error must be thrown back");
+			} catch (LayerDelaunayError ex) {
+				assertSame(failure, ex);
+			}
+			// The following cells are cancelled
+			assertFalse(prefetcher.hasNext());
+			// Runtime exceptions are thrown back as is
+			cells = makeCells(2, 0, started, loaded);
+			((CountingCell) cells.get(0)).runtimeFailure = new IllegalArgumentException(
+					"cell failure");
+			prefetcher = new CellPrefetcher(cells, executor, 2);
+			prefetcher.start(null);
+			try {
+				prefetcher.next();
+				fail("The loader exception must be thrown back");
+			} catch (IllegalArgumentException ex) {
+				assertEquals("cell failure", ex.getMessage());
+			}
+			assertFalse(prefetcher.hasNext());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testCancel() throws Exception {
+		ThreadPool executor = new ThreadPool(2, 2, Long.MAX_VALUE,
+				TimeUnit.SECONDS);
+		try {
+			AtomicInteger started = new AtomicInteger();
+			AtomicInteger loaded = new AtomicInteger();
+			List<CellInput> cells = makeCells(6, 0, started, loaded);
+			CountDownLatch gate = new CountDownLatch(1);
+			for (CellInput cell : cells) {
+				((CountingCell) cell).gate = gate;
+			}
+			CellPrefetcher prefetcher = new CellPrefetcher(cells, executor, 3);
+			prefetcher.start(null);
+			prefetcher.cancel();
+			assertFalse(prefetcher.hasNext());
+			// Running loads are interrupted, waiting loads never start
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+			assertEquals(0, loaded.get());
+			assertTrue(started.get() <= 2);
+
+			// The interruption of the caller waiting for a cell cancels the
+			// loading of the others
+			executor = new ThreadPool(2, 2, Long.MAX_VALUE, TimeUnit.SECONDS);
+			started.set(0);
+			cells = makeCells(6, 0, started, loaded);
+			for (CellInput cell : cells) {
+				((CountingCell) cell).gate = gate;
+			}
+			prefetcher = new CellPrefetcher(cells, executor, 3);
+			prefetcher.start(null);
+			Thread.currentThread().interrupt();
+			try {
+				prefetcher.next();
+				fail("The interruption must be thrown back");
+			} catch (InterruptedException ex) {
+				assertFalse(prefetcher.hasNext());
+			}
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+			assertEquals(0, loaded.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Bounded submission, memory budget and failure propagation of
+ * CellScheduler
+ */
+public class TestCellScheduler extends TestCase {
+
+	private static class SleepingCell implements Runnable {
+		private final AtomicInteger running;
+		private final AtomicInteger maxRunning;
+		private final AtomicInteger done;
+
+		public SleepingCell(AtomicInteger running, AtomicInteger maxRunning,
+				AtomicInteger done) {
+			this.running = running;
+			this.maxRunning = maxRunning;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			int count = running.incrementAndGet();
+			synchronized (maxRunning) {
+				maxRunning.set(Math.max(maxRunning.get(), count));
+			}
+			try {
+				Thread.sleep(5);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			running.decrementAndGet();
+			done.incrementAndGet();
+		}
+	}
+
+	public void testBoundedSubmission() throws InterruptedException {
+		ThreadPool executor = new ThreadPool(4, 4, Long.MAX_VALUE,
+				TimeUnit.SECONDS);
+		try {
+			CellScheduler scheduler = new CellScheduler(executor, 2, null);
+			AtomicInteger running = new AtomicInteger();
+			AtomicInteger maxRunning = new AtomicInteger();
+			AtomicInteger done = new AtomicInteger();
+			for (int i = 0; i < 20; i++) {
+				assertTrue(scheduler.submit(new SleepingCell(running,
+						maxRunning, done)));
+				assertTrue(scheduler.getInFlightCount() <= 2);
+			}
+			assertTrue(scheduler.awaitAll());
+			assertEquals(20, done.get());
+			assertEquals(0, scheduler.getInFlightCount());
+			assertTrue(maxRunning.get() <= 2);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testMemoryBudget() throws InterruptedException {
+		ThreadPool executor = new ThreadPool(4, 4, Long.MAX_VALUE,
+				TimeUnit.SECONDS);
+		try {
+			CellScheduler scheduler = new CellScheduler(executor, 4, null);
+			scheduler.setMemoryBudget(100);
+			AtomicInteger running = new AtomicInteger();
+			AtomicInteger maxRunning = new AtomicInteger();
+			AtomicInteger done = new AtomicInteger();
+			for (int i = 0; i < 10; i++) {
+				assertTrue(scheduler.submit(new SleepingCell(running,
+						maxRunning, done), 40));
+				assertTrue(scheduler.getInFlightMemory() <= 100);
+			}
+			// A cell larger than the budget runs alone
+			assertTrue(scheduler.submit(new SleepingCell(running,
+					maxRunning, done), 500));
+			assertEquals(1, scheduler.getInFlightCount());
+			assertTrue(scheduler.awaitAll());
+			assertEquals(11, done.get());
+			assertEquals(0, scheduler.getInFlightMemory());
+			assertTrue(maxRunning.get() <= 2);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testWorkerFailure() throws InterruptedException {
+		ThreadPool executor = new ThreadPool(2, 2, Long.MAX_VALUE,
+				TimeUnit.SECONDS);
+		try {
+			CellScheduler scheduler = new CellScheduler(executor, 2, null);
+			scheduler.submit(new Runnable() {
+				@Override
+				public void run() {
+					throw new IllegalArgumentException("cell failure");
+				}
+			});
+			try {
+				scheduler.awaitAll();
+				fail("The worker exception must be thrown back");
+			} catch (IllegalArgumentException ex) {
+				assertEquals("cell failure", ex.getMessage());
+			}
+			// Next submissions are refused
+			assertFalse(scheduler.submit(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}));
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -33,8 +33,13 @@
  */
 package org.noisemap.core;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 import org.noisemap.core.FastObstructionTest;
 import org.noisemap.core.LayerDelaunayError;
@@ -120,6 +125,45 @@ public class TestFastObstruction extends TestCase {
 		assertTrue("Void Intersection test #1 failed",manager.isFreeField(new Coordinate(5,20), new Coordinate(14,30)));
 		manager.getWideAnglePoints(Math.PI * (1 + 1 / 16.0), Math.PI * (2 - (1 / 16.)));
 	}
+	/**
+	 * The visibility polygon must give the same answer than isFreeField
+	 */
+	public void testIsovist() throws LayerDelaunayError {
+		GeometryFactory factory = new GeometryFactory();
+		Coordinate[] building1Coords = { new Coordinate(15., 5.,0.),
+				new Coordinate(30., 5.,0.), new Coordinate(30., 30.,0.),
+				new Coordinate(15., 30.,0.), new Coordinate(15., 5.,0.) };
+		Coordinate[] building2Coords = { new Coordinate(5., 35.,0.),
+				new Coordinate(12., 35.,0.), new Coordinate(12., 40.,0.),
+				new Coordinate(5., 40.,0.), new Coordinate(5., 35.,0.) };
+		FastObstructionTest manager = new FastObstructionTest();
+		manager.addGeometry(factory.createPolygon(
+				factory.createLinearRing(building1Coords), null));
+		manager.addGeometry(factory.createPolygon(
+				factory.createLinearRing(building2Coords), null));
+		manager.finishPolygonFeeding(new Envelope(new Coordinate(0., 0.,0.),
+				new Coordinate(45., 45.,0.)));
+		Coordinate[] receivers = { new Coordinate(5, 15),
+				new Coordinate(35.5, 20.2), new Coordinate(20.1, 40.3),
+				new Coordinate(8.3, 30.7) };
+		Random rand = new Random(42);
+		int knownCount = 0;
+		for (Coordinate receiver : receivers) {
+			Isovist isovist = manager.getIsovist(receiver, 100.);
+			assertNotNull(isovist);
+			for (int i = 0; i < 500; i++) {
+				Coordinate pt = new Coordinate(rand.nextDouble() * 45,
+						rand.nextDouble() * 45);
+				int visibility = isovist.isVisible(pt);
+				if (visibility != Isovist.UNKNOWN) {
+					knownCount++;
+					assertEquals(manager.isFreeField(receiver, pt),
+							visibility == Isovist.VISIBLE);
+				}
+			}
+		}
+		assertTrue(knownCount > 0);
+	}
 	public void testBenchmark() throws LayerDelaunayError {
 		System.out.println("________________________________________________");
 		System.out.println("FastObstructionTest Bench :");
@@ -191,6 +235,242 @@ public class TestFastObstruction extends TestCase {
 		System.out.println(query_count+" Bench JTS intersection test in "+testJTS+" ns");
 		System.out.println("Speed-up of FastObstructionTest: "+testJTS/testfast+" x");
 	}
+	/**
+	 * Throughput of isFreeField on a district of buildings
+	 */
+	public void testFreeFieldThroughput() throws Exception {
+		System.out.println("________________________________________________");
+		System.out.println("FastObstructionTest isFreeField throughput :");
+		GeometryFactory factory = new GeometryFactory();
+		final FastObstructionTest manager = new FastObstructionTest();
+		// 10x10 blocks of 15x15 m buildings, streets of 10 m
+		for (int i = 0; i < 10; i++) {
+			for (int j = 0; j < 10; j++) {
+				double x = 10 + i * 25;
+				double y = 10 + j * 25;
+				Coordinate[] buildingCoords = { new Coordinate(x, y, 0.),
+						new Coordinate(x + 15, y, 0.),
+						new Coordinate(x + 15, y + 15, 0.),
+						new Coordinate(x, y + 15, 0.), new Coordinate(x, y, 0.) };
+				manager.addGeometry(factory.createPolygon(
+						factory.createLinearRing(buildingCoords), null));
+			}
+		}
+		manager.finishPolygonFeeding(new Envelope(new Coordinate(0., 0., 0.),
+				new Coordinate(260., 260., 0.)));
+		// Points in the streets
+		Random rand = new Random(42);
+		final int pairCount = 20000;
+		final Coordinate[] receivers = new Coordinate[pairCount];
+		final Coordinate[] sources = new Coordinate[pairCount];
+		for (int i = 0; i < pairCount; i++) {
+			receivers[i] = new Coordinate(5 + rand.nextInt(11) * 25,
+					rand.nextDouble() * 260);
+			sources[i] = new Coordinate(rand.nextDouble() * 260,
+					5 + rand.nextInt(11) * 25);
+		}
+		BenchRun freeField = new BenchRun() {
+			@Override
+			protected void run() {
+				result = 0;
+				for (int i = 0; i < pairCount; i++) {
+					if (manager.isFreeField(receivers[i], sources[i])) {
+						result++;
+					}
+				}
+			}
+		};
+		long elapsed = freeField.time();
+		System.out.println(pairCount + " isFreeField in " + elapsed / 1e6
+				+ " ms (" + (long) (pairCount / (elapsed / 1e9)) + " test/s), "
+				+ (int) freeField.getResult() + " free field");
+	}
+	private FastObstructionTest makeBlocks(File meshCacheDirectory,
+			double buildingWidth) throws LayerDelaunayError {
+		GeometryFactory factory = new GeometryFactory();
+		FastObstructionTest manager = new FastObstructionTest();
+		manager.setMeshCacheDirectory(meshCacheDirectory);
+		for (int i = 0; i < 4; i++) {
+			for (int j = 0; j < 4; j++) {
+				double x = 10 + i * 25;
+				double y = 10 + j * 25;
+				Coordinate[] buildingCoords = { new Coordinate(x, y, 0.),
+						new Coordinate(x + buildingWidth, y, 0.),
+						new Coordinate(x + buildingWidth, y + 15, 0.),
+						new Coordinate(x, y + 15, 0.), new Coordinate(x, y, 0.) };
+				manager.addGeometry(factory.createPolygon(
+						factory.createLinearRing(buildingCoords), null));
+			}
+		}
+		manager.finishPolygonFeeding(new Envelope(new Coordinate(0., 0., 0.),
+				new Coordinate(110., 110., 0.)));
+		return manager;
+	}
+	/**
+	 * A mesh read from the cache directory must give the same answers than
+	 * the triangulated one
+	 */
+	public void testMeshCache() throws LayerDelaunayError, IOException {
+		File meshCacheDirectory = File.createTempFile("meshcache", "");
+		assertTrue(meshCacheDirectory.delete() && meshCacheDirectory.mkdir());
+		try {
+			FastObstructionTest built = makeBlocks(meshCacheDirectory, 15.);
+			assertFalse(built.isMeshLoadedFromCache());
+			assertEquals(1, meshCacheDirectory.listFiles().length);
+			FastObstructionTest loaded = makeBlocks(meshCacheDirectory, 15.);
+			assertTrue(loaded.isMeshLoadedFromCache());
+			assertEquals(built.getTriangles().size(), loaded.getTriangles().size());
+			assertEquals(built.getVertices(), loaded.getVertices());
+			double minAngle = Math.PI * (1 + 1 / 16.0);
+			double maxAngle = Math.PI * (2 - (1 / 16.));
+			assertEquals(built.getWideAnglePoints(minAngle, maxAngle),
+					loaded.getWideAnglePoints(minAngle, maxAngle));
+			Random rand = new Random(42);
+			for (int i = 0; i < 1000; i++) {
+				Coordinate p1 = new Coordinate(rand.nextDouble() * 110,
+						rand.nextDouble() * 110);
+				Coordinate p2 = new Coordinate(rand.nextDouble() * 110,
+						rand.nextDouble() * 110);
+				assertEquals(built.isFreeField(p1, p2), loaded.isFreeField(p1, p2));
+			}
+			// Other buildings, other mesh file
+			FastObstructionTest other = makeBlocks(meshCacheDirectory, 12.);
+			assertFalse(other.isMeshLoadedFromCache());
+			assertEquals(2, meshCacheDirectory.listFiles().length);
+		} finally {
+			for (File meshFile : meshCacheDirectory.listFiles()) {
+				meshFile.delete();
+			}
+			meshCacheDirectory.delete();
+		}
+	}
+	/**
+	 * A truncated or corrupted mesh file is ignored, the mesh is triangulated
+	 * again and the file is replaced
+	 */
+	public void testCorruptedMeshCache() throws LayerDelaunayError, IOException {
+		File meshCacheDirectory = File.createTempFile("meshcache", "");
+		assertTrue(meshCacheDirectory.delete() && meshCacheDirectory.mkdir());
+		try {
+			FastObstructionTest built = makeBlocks(meshCacheDirectory, 15.);
+			File meshFile = meshCacheDirectory.listFiles()[0];
+			long meshFileLength = meshFile.length();
+			// Truncated file
+			RandomAccessFile file = new RandomAccessFile(meshFile, "rw");
+			try {
+				file.setLength(meshFileLength / 2);
+			} finally {
+				file.close();
+			}
+			FastObstructionTest truncated = makeBlocks(meshCacheDirectory, 15.);
+			assertFalse(truncated.isMeshLoadedFromCache());
+			assertEquals(meshFileLength, meshFile.length());
+			// Same size, but the end of the location grid is overwritten
+			file = new RandomAccessFile(meshFile, "rw");
+			try {
+				file.seek(meshFileLength - 8);
+				file.writeInt(Integer.MAX_VALUE);
+				file.writeInt(-2);
+			} finally {
+				file.close();
+			}
+			FastObstructionTest corrupted = makeBlocks(meshCacheDirectory, 15.);
+			assertFalse(corrupted.isMeshLoadedFromCache());
+			FastObstructionTest loaded = makeBlocks(meshCacheDirectory, 15.);
+			assertTrue(loaded.isMeshLoadedFromCache());
+			Random rand = new Random(42);
+			for (int i = 0; i < 1000; i++) {
+				Coordinate p1 = new Coordinate(rand.nextDouble() * 110,
+						rand.nextDouble() * 110);
+				Coordinate p2 = new Coordinate(rand.nextDouble() * 110,
+						rand.nextDouble() * 110);
+				boolean freeField = built.isFreeField(p1, p2);
+				assertEquals(freeField, truncated.isFreeField(p1, p2));
+				assertEquals(freeField, corrupted.isFreeField(p1, p2));
+				assertEquals(freeField, loaded.isFreeField(p1, p2));
+			}
+		} finally {
+			for (File meshFile : meshCacheDirectory.listFiles()) {
+				meshFile.delete();
+			}
+			meshCacheDirectory.delete();
+		}
+	}
+	/**
+	 * The union by tiles must cover the same area than the union of all
+	 * buildings, and reuse the tiles of the previous call
+	 */
+	public void testTiledUnion() {
+		GeometryFactory factory = new GeometryFactory();
+		List<Geometry> buildings = new ArrayList<Geometry>();
+		// Overlapping buildings, crossing the tiles limits
+		for (int i = 0; i < 12; i++) {
+			for (int j = 0; j < 12; j++) {
+				double x = i * 18;
+				double y = j * 18;
+				Coordinate[] buildingCoords = { new Coordinate(x, y, 0.),
+						new Coordinate(x + 20, y, 0.),
+						new Coordinate(x + 20, y + 10, 0.),
+						new Coordinate(x, y + 10, 0.), new Coordinate(x, y, 0.) };
+				buildings.add(factory.createPolygon(
+						factory.createLinearRing(buildingCoords), null));
+			}
+		}
+		ThreadPool unionExecutor = new ThreadPool(4, 4, Long.MAX_VALUE,
+				TimeUnit.SECONDS);
+		try {
+			TiledUnion tiledUnion = new TiledUnion(50., 64, unionExecutor);
+			for (double bufferSize : new double[] { 0., 0.5 }) {
+				Geometry reference = UnionProcess.merge(buildings, bufferSize);
+				Geometry union = tiledUnion.union(buildings, bufferSize);
+				// Buffer joins may differ slightly at the tiles limits
+				double tolerance = bufferSize > 0 ? 1. : 1e-6;
+				assertEquals(0., reference.symDifference(union).getArea(),
+						tolerance);
+			}
+			long merged = tiledUnion.getTileCacheMiss();
+			assertEquals(0, tiledUnion.getTileCacheHit());
+			tiledUnion.union(buildings, 0.);
+			assertEquals(merged, tiledUnion.getTileCacheMiss());
+			assertEquals(merged / 2, tiledUnion.getTileCacheHit());
+		} finally {
+			unionExecutor.shutdown();
+		}
+	}
+	/**
+	 * The corners of a building are translated outside of it, along the
+	 * bisector of the open angle
+	 */
+	public void testCornerDirection() throws LayerDelaunayError {
+		GeometryFactory factory = new GeometryFactory();
+		Coordinate[] buildingCoords = { new Coordinate(15., 5.,0.),
+				new Coordinate(30., 5.,0.), new Coordinate(30., 30.,0.),
+				new Coordinate(15., 30.,0.), new Coordinate(15., 5.,0.) };
+		FastObstructionTest manager = new FastObstructionTest();
+		manager.addGeometry(factory.createPolygon(
+				factory.createLinearRing(buildingCoords), null));
+		manager.finishPolygonFeeding(new Envelope(new Coordinate(0., 0.,0.),
+				new Coordinate(45., 45.,0.)));
+		List<Coordinate> corners = manager.getWideAnglePoints(
+				Math.PI * (1 + 1 / 16.0), Math.PI * (2 - (1 / 16.)));
+		assertEquals(4, corners.size());
+		double shift = FastObstructionTest.wideAngleTranslationEpsilon
+				/ Math.sqrt(2);
+		for (int idCorner = 0; idCorner < 4; idCorner++) {
+			Coordinate corner = buildingCoords[idCorner];
+			Coordinate expected = new Coordinate(corner.x
+					+ (corner.x < 20 ? -shift : shift), corner.y
+					+ (corner.y < 20 ? -shift : shift));
+			boolean found = false;
+			for (Coordinate translated : corners) {
+				if (translated.distance(expected) < 1e-9) {
+					found = true;
+				}
+			}
+			assertTrue("Corner at " + corner + " not translated outside",
+					found);
+		}
+	}
 	public void testScene1() throws LayerDelaunayError {
 		//Build Scene with One Building
 		GeometryFactory factory = new GeometryFactory();
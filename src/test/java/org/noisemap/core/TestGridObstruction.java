@@ -0,0 +1,243 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineSegment;
+import com.vividsolutions.jts.geom.Polygon;
+
+import junit.framework.TestCase;
+
+/**
+ * Compare GridObstructionTest with the obstruction mesh of FastObstructionTest
+ */
+public class TestGridObstruction extends TestCase {
+
+	/**
+	 * Rows and columns of square buildings
+	 */
+	private static List<Polygon> makeBlocks(int blockCount, double buildingWidth,
+			double streetWidth) {
+		GeometryFactory factory = new GeometryFactory();
+		List<Polygon> buildings = new ArrayList<Polygon>();
+		for (int i = 0; i < blockCount; i++) {
+			for (int j = 0; j < blockCount; j++) {
+				double x = streetWidth + i * (buildingWidth + streetWidth);
+				double y = streetWidth + j * (buildingWidth + streetWidth);
+				Coordinate[] buildingCoords = { new Coordinate(x, y, 0.),
+						new Coordinate(x + buildingWidth, y, 0.),
+						new Coordinate(x + buildingWidth, y + buildingWidth, 0.),
+						new Coordinate(x, y + buildingWidth, 0.),
+						new Coordinate(x, y, 0.) };
+				buildings.add(factory.createPolygon(
+						factory.createLinearRing(buildingCoords), null));
+			}
+		}
+		return buildings;
+	}
+
+	private static Envelope getSceneEnvelope(int blockCount,
+			double buildingWidth, double streetWidth) {
+		double size = streetWidth + blockCount * (buildingWidth + streetWidth);
+		return new Envelope(0., size, 0., size);
+	}
+
+	private static ObstructionTest feed(ObstructionTest obstructionTest,
+			List<Polygon> buildings, Envelope envelope)
+			throws LayerDelaunayError {
+		for (Polygon building : buildings) {
+			obstructionTest.addGeometry(building);
+		}
+		obstructionTest.finishPolygonFeeding(envelope);
+		return obstructionTest;
+	}
+
+	/**
+	 * Random points out of the buildings
+	 */
+	private static Coordinate[] makeFreePoints(List<Polygon> buildings,
+			Envelope envelope, int count, Random rand) {
+		Coordinate[] points = new Coordinate[count];
+		int pointCount = 0;
+		while (pointCount < count) {
+			Coordinate pt = new Coordinate(envelope.getMinX()
+					+ rand.nextDouble() * envelope.getWidth(),
+					envelope.getMinY() + rand.nextDouble()
+							* envelope.getHeight());
+			boolean free = true;
+			for (Polygon building : buildings) {
+				Envelope buildingEnv = new Envelope(building.getEnvelopeInternal());
+				buildingEnv.expandBy(0.1);
+				if (buildingEnv.contains(pt)) {
+					free = false;
+					break;
+				}
+			}
+			if (free) {
+				points[pointCount++] = pt;
+			}
+		}
+		return points;
+	}
+
+	private void checkSameAnswers(List<Polygon> buildings, Envelope envelope)
+			throws LayerDelaunayError {
+		ObstructionTest mesh = feed(new FastObstructionTest(), buildings,
+				envelope);
+		ObstructionTest grid = feed(new GridObstructionTest(), buildings,
+				envelope);
+		Random rand = new Random(42);
+		Coordinate[] points = makeFreePoints(buildings, envelope, 2000, rand);
+		int freeFieldCount = 0;
+		for (int i = 0; i < points.length - 1; i++) {
+			boolean freeField = mesh.isFreeField(points[i], points[i + 1]);
+			assertEquals(freeField, grid.isFreeField(points[i], points[i + 1]));
+			if (freeField) {
+				freeFieldCount++;
+			}
+		}
+		assertTrue(freeFieldCount > 0 && freeFieldCount < points.length - 1);
+		assertEquals(points.length - 1, grid.getNbObstructionTest());
+		double minAngle = Math.PI * (1 + 1 / 16.0);
+		double maxAngle = Math.PI * (2 - (1 / 16.));
+		assertEquals(mesh.getWideAnglePoints(minAngle, maxAngle, null).size(),
+				grid.getWideAnglePoints(minAngle, maxAngle, null).size());
+	}
+
+	public void testSceneOneBuilding() throws LayerDelaunayError {
+		GeometryFactory factory = new GeometryFactory();
+		Coordinate[] building1Coords = { new Coordinate(15., 5.,0.),
+				new Coordinate(30., 5.,0.), new Coordinate(30., 30.,0.),
+				new Coordinate(15., 30.,0.), new Coordinate(15., 5.,0.) };
+		List<Polygon> buildings = new ArrayList<Polygon>();
+		buildings.add(factory.createPolygon(
+				factory.createLinearRing(building1Coords), null));
+		checkSameAnswers(buildings, new Envelope(0., 45., 0., 45.));
+	}
+
+	public void testSceneDistrict() throws LayerDelaunayError {
+		checkSameAnswers(makeBlocks(10, 15, 10), getSceneEnvelope(10, 15, 10));
+	}
+
+	/**
+	 * Segments inside a building or ending on a wall
+	 */
+	public void testInsideBuilding() throws LayerDelaunayError {
+		ObstructionTest grid = feed(new GridObstructionTest(),
+				makeBlocks(2, 10, 10), getSceneEnvelope(2, 10, 10));
+		// Inside and through the first building
+		assertFalse(grid.isFreeField(new Coordinate(12, 12), new Coordinate(18, 15)));
+		assertFalse(grid.isFreeField(new Coordinate(5, 5), new Coordinate(15, 15)));
+		// From a wall to the street and along the street
+		assertTrue(grid.isFreeField(new Coordinate(20, 15), new Coordinate(25, 15)));
+		assertTrue(grid.isFreeField(new Coordinate(5, 2), new Coordinate(5, 45)));
+		// From a wall to the inside of the building
+		assertFalse(grid.isFreeField(new Coordinate(20, 15), new Coordinate(19, 15)));
+		// Walls are oriented with the free field on the left
+		for (LineSegment wall : grid.getWalls(getSceneEnvelope(2, 10, 10))) {
+			Coordinate midPoint = wall.midPoint();
+			double length = wall.getLength();
+			Coordinate left = new Coordinate(midPoint.x
+					- (wall.p1.y - wall.p0.y) / length, midPoint.y
+					+ (wall.p1.x - wall.p0.x) / length);
+			assertTrue(grid.isFreeField(left, new Coordinate(5, 5))
+					|| grid.isFreeField(left, new Coordinate(25, 25))
+					|| grid.isFreeField(left, new Coordinate(45, 45)));
+		}
+		assertEquals(16, grid.getWalls(getSceneEnvelope(2, 10, 10)).size());
+	}
+
+	private void benchmarkScene(String sceneName,
+			final List<Polygon> buildings, final Envelope envelope,
+			final int pairCount) throws Exception {
+		Random rand = new Random(42);
+		final Coordinate[] points = makeFreePoints(buildings, envelope,
+				pairCount * 2, rand);
+		for (final boolean gridEngine : new boolean[] { false, true }) {
+			final ObstructionTest[] engine = new ObstructionTest[1];
+			BenchRun setupRun = new BenchRun() {
+				@Override
+				protected void run() throws LayerDelaunayError {
+					engine[0] = feed(gridEngine ? new GridObstructionTest()
+							: new FastObstructionTest(), buildings, envelope);
+				}
+			};
+			long setup = setupRun.time();
+			BenchRun freeFieldRun = new BenchRun() {
+				@Override
+				protected void run() {
+					result = 0;
+					for (int i = 0; i < pairCount; i++) {
+						if (engine[0].isFreeField(points[i * 2],
+								points[i * 2 + 1])) {
+							result++;
+						}
+					}
+				}
+			};
+			long elapsed = freeFieldRun.time();
+			System.out.println(sceneName + " "
+					+ engine[0].getClass().getSimpleName() + " setup in "
+					+ setup / 1e6 + " ms, " + pairCount + " isFreeField in "
+					+ elapsed / 1e6 + " ms ("
+					+ (long) (pairCount / (elapsed / 1e9)) + " test/s), "
+					+ (int) freeFieldRun.getResult() + " free field");
+		}
+	}
+
+	public void testBenchmarkEngines() throws Exception {
+		System.out.println("________________________________________________");
+		System.out.println("Obstruction engines Bench :");
+		GeometryFactory factory = new GeometryFactory();
+		Coordinate[] building1Coords = { new Coordinate(15., 5.,0.),
+				new Coordinate(30., 5.,0.), new Coordinate(30., 30.,0.),
+				new Coordinate(15., 30.,0.), new Coordinate(15., 5.,0.) };
+		List<Polygon> scene1 = new ArrayList<Polygon>();
+		scene1.add(factory.createPolygon(
+				factory.createLinearRing(building1Coords), null));
+		benchmarkScene("Scene 1", scene1, new Envelope(0., 45., 0., 45.), 20000);
+		// Dense city centre
+		benchmarkScene("District", makeBlocks(20, 15, 10),
+				getSceneEnvelope(20, 15, 10), 20000);
+		// Small houses far from each other, long rays
+		benchmarkScene("Suburb", makeBlocks(20, 10, 90),
+				getSceneEnvelope(20, 10, 90), 20000);
+	}
+}
@@ -0,0 +1,179 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineSegment;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Check the cached discretization of line sources.
+ */
+public class TestLineSourceCache extends TestCase {
+
+	/**
+	 * Discretization done for each receiver, without cache
+	 */
+	private static double splitLineStringIntoPoints(Geometry geom,
+			Coordinate startPt, List<Coordinate> pts, double minRecDist) {
+		Coordinate[] points = geom.getCoordinates();
+		double closestPtDist = Double.MAX_VALUE;
+		Coordinate closestPt = null;
+		double roadLength = 0.;
+		for (int i = 1; i < points.length; i++) {
+			LineSegment seg = new LineSegment(points[i - 1], points[i]);
+			roadLength += seg.getLength();
+			Coordinate segClosest = seg.closestPoint(startPt);
+			double segcdist = segClosest.distance(startPt);
+			if (segcdist < closestPtDist) {
+				closestPtDist = segcdist;
+				closestPt = segClosest;
+			}
+		}
+		double delta = 20.;
+		if (closestPtDist < minRecDist) {
+			closestPtDist = minRecDist;
+		}
+		if (closestPtDist / 2 < delta) {
+			delta = closestPtDist / 2;
+		}
+		pts.add(closestPt);
+		for (Coordinate pt : ST_SplitLineInPoints
+				.splitMultiPointsInRegularPoints(points, delta)) {
+			if (pt.distance(closestPt) > delta) {
+				pts.add(pt);
+			}
+		}
+		return Math.min(delta, roadLength);
+	}
+
+	public void testSplitLineSource() {
+		GeometryFactory factory = new GeometryFactory();
+		List<Geometry> sources = new ArrayList<Geometry>();
+		sources.add(factory.createPoint(new Coordinate(5, 5)));
+		sources.add(factory.createLineString(new Coordinate[] {
+				new Coordinate(0, 0), new Coordinate(150, 0),
+				new Coordinate(160, 80), new Coordinate(300, 95) }));
+		LineSourceCache cache = new LineSourceCache(sources);
+		// Receivers where the delta is one of the ladder steps or smaller than
+		// the last step
+		Coordinate[] receivers = { new Coordinate(60, 40),
+				new Coordinate(60, 20), new Coordinate(60, -10),
+				new Coordinate(60, 2), new Coordinate(154, 40) };
+		for (Coordinate receiver : receivers) {
+			List<Coordinate> expected = new ArrayList<Coordinate>();
+			List<Coordinate> got = new ArrayList<Coordinate>();
+			double expectedLi = splitLineStringIntoPoints(sources.get(1),
+					receiver, expected, 0.5);
+			double li = cache.splitLineSource(1, receiver, got, 0.5);
+			assertEquals(expectedLi, li, 1e-12);
+			assertEquals(expected.size(), got.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(0., expected.get(i).distance(got.get(i)), 1e-9);
+			}
+		}
+		// Delta of 3.5m, the 2.5m step is used
+		List<Coordinate> pts = new ArrayList<Coordinate>();
+		assertEquals(2.5, cache.splitLineSource(1, new Coordinate(60, 7), pts,
+				0.5));
+		// Point source is not splitted
+		pts.clear();
+		assertEquals(1., cache.splitLineSource(0, new Coordinate(0, 0), pts,
+				0.5));
+		assertTrue(pts.isEmpty());
+	}
+
+	/**
+	 * Energy of the line source of 1 W/m received without obstruction
+	 */
+	private static double getReceivedEnergy(double li, List<Coordinate> pts,
+			Coordinate receiver) {
+		double energy = 0;
+		for (Coordinate pt : pts) {
+			energy += PropagationProcess.attDistW(li, pt.distance(receiver));
+		}
+		return energy;
+	}
+
+	/**
+	 * The delta rounded down to the ladder changes the points, not the
+	 * received energy. The discretization of min(20,dist/2) itself differs
+	 * from the integral along the road by up to 2 dB, the rounded delta must
+	 * stay within 1.5 dB of it by receiver and within 0.2 dB on average.
+	 */
+	public void testReceivedEnergy() {
+		GeometryFactory factory = new GeometryFactory();
+		Random rand = new Random(42);
+		List<Geometry> sources = new ArrayList<Geometry>();
+		for (int idRoad = 0; idRoad < 50; idRoad++) {
+			Coordinate[] points = new Coordinate[2 + rand.nextInt(5)];
+			for (int i = 0; i < points.length; i++) {
+				points[i] = new Coordinate(rand.nextDouble() * 300,
+						rand.nextDouble() * 300);
+			}
+			sources.add(factory.createLineString(points));
+		}
+		LineSourceCache cache = new LineSourceCache(sources);
+		double sumDifference = 0;
+		int pairCount = 0;
+		for (int idReceiver = 0; idReceiver < 20; idReceiver++) {
+			Coordinate receiver = new Coordinate(
+					rand.nextDouble() * 340 - 20, rand.nextDouble() * 340 - 20);
+			for (int idRoad = 0; idRoad < sources.size(); idRoad++) {
+				List<Coordinate> expected = new ArrayList<Coordinate>();
+				List<Coordinate> got = new ArrayList<Coordinate>();
+				double expectedLi = splitLineStringIntoPoints(
+						sources.get(idRoad), receiver, expected, 1.);
+				double li = cache.splitLineSource(idRoad, receiver, got, 1.);
+				// The same closest point
+				assertEquals(0., expected.get(0).distance(got.get(0)), 1e-9);
+				double difference = Math.abs(PropagationProcess
+						.wToDba(getReceivedEnergy(li, got, receiver))
+						- PropagationProcess.wToDba(getReceivedEnergy(
+								expectedLi, expected, receiver)));
+				assertTrue("Received energy differs by " + difference
+						+ " dB", difference < 1.5);
+				sumDifference += difference;
+				pairCount++;
+			}
+		}
+		assertTrue(sumDifference / pairCount < 0.2);
+	}
+}
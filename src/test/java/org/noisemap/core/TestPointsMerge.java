@@ -0,0 +1,124 @@
+/**
+ * NoiseMap is a scientific computation plugin for OrbisGIS developed in order to
+ * evaluate the noise impact on urban mobility plans. This model is
+ * based on the French standard method NMPB2008. It includes traffic-to-noise
+ * sources evaluation and sound propagation processing.
+ *
+ * This version is developed at French IRSTV Institute and at IFSTTAR
+ * (http://www.ifsttar.fr/) as part of the Eval-PDU project, funded by the
+ * French Agence Nationale de la Recherche (ANR) under contract ANR-08-VILL-0005-01.
+ *
+ * Noisemap is distributed under GPL 3 license. Its reference contact is Judicaël
+ * Picaut <judicael.picaut@ifsttar.fr>. It is maintained by Nicolas Fortin
+ * as part of the "Atelier SIG" team of the IRSTV Institute <http://www.irstv.fr/>.
+ *
+ * Copyright (C) 2011 IFSTTAR
+ * Copyright (C) 2011-2012 IRSTV (FR CNRS 2488)
+ *
+ * Noisemap is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Noisemap is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Noisemap. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * For more information, please consult: <http://www.orbisgis.org/>
+ * or contact directly:
+ * info_at_ orbisgis.org
+ */
+package org.noisemap.core;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Compare the merge of points by the QuadTree and by the spatial hash.
+ */
+public class TestPointsMerge extends TestCase {
+	private static final double MERGE_DIST = 1.;
+
+	/**
+	 * Groups of 4 points around centers spaced by 5 meters, all points of a
+	 * group must have the same index
+	 */
+	private static List<Coordinate> makeClusters(int clusterCount, Random rand) {
+		List<Coordinate> clusterCenters = new ArrayList<Coordinate>();
+		for (int i = 0; i < clusterCount; i++) {
+			clusterCenters.add(new Coordinate(5 * rand.nextInt(1000) - 2500, 5 * rand
+					.nextInt(1000) - 2500));
+		}
+		List<Coordinate> pts = new ArrayList<Coordinate>();
+		for (int i = 0; i < clusterCount * 4; i++) {
+			Coordinate center = clusterCenters.get(rand.nextInt(clusterCount));
+			double angle = rand.nextDouble() * 2 * Math.PI;
+			double radius = rand.nextDouble() * 0.3;
+			pts.add(new Coordinate(center.x + Math.cos(angle) * radius,
+					center.y + Math.sin(angle) * radius));
+		}
+		return pts;
+	}
+
+	public void testSameIndex() {
+		List<Coordinate> pts = makeClusters(2000, new Random(42));
+		PointsMerge quadMerge = new PointsMerge(MERGE_DIST);
+		PointsMergeGrid gridMerge = new PointsMergeGrid(MERGE_DIST, 8);
+		for (int run = 0; run < 2; run++) {
+			for (Coordinate pt : pts) {
+				assertEquals(quadMerge.getOrAppendVertex(pt),
+						gridMerge.getOrAppendVertex(pt));
+			}
+			// The second run check the reuse of the structures
+			quadMerge.clear();
+			gridMerge.clear();
+		}
+		assertEquals(0, gridMerge.size());
+	}
+
+	public void testBenchmarkPointsMerge() throws Exception {
+		System.out.println("________________________________________________");
+		System.out.println("Points merge Bench :");
+		final int receiverCount = 200;
+		final List<Coordinate> pts = makeClusters(2000, new Random(42));
+		final PointsMergeGrid gridMerge = new PointsMergeGrid(MERGE_DIST);
+		BenchRun quadTreeMerge = new BenchRun() {
+			@Override
+			protected void run() {
+				result = 0;
+				for (int receiver = 0; receiver < receiverCount; receiver++) {
+					PointsMerge quadMerge = new PointsMerge(MERGE_DIST);
+					for (Coordinate pt : pts) {
+						result += quadMerge.getOrAppendVertex(pt);
+					}
+				}
+			}
+		};
+		BenchRun spatialHashMerge = new BenchRun() {
+			@Override
+			protected void run() {
+				result = 0;
+				for (int receiver = 0; receiver < receiverCount; receiver++) {
+					gridMerge.clear();
+					for (Coordinate pt : pts) {
+						result += gridMerge.getOrAppendVertex(pt);
+					}
+				}
+			}
+		};
+		long quadTime = quadTreeMerge.time();
+		long gridTime = spatialHashMerge.time();
+		assertEquals(quadTreeMerge.getResult(), spatialHashMerge.getResult(),
+				0);
+		System.out.println(receiverCount * pts.size() + " points, QuadTree : "
+				+ quadTime / 1e6 + " ms, spatial hash : " + gridTime / 1e6
+				+ " ms, speedup x" + ((double) quadTime / gridTime));
+	}
+}
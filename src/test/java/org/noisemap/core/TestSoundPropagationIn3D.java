@@ -8,12 +8,26 @@ import com.vividsolutions.jts.geom.LineSegment;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.Polygon;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 
 
 import junit.framework.TestCase;
+import org.gdms.data.DataSourceFactory;
+import org.gdms.data.schema.DefaultMetadata;
+import org.gdms.data.schema.Metadata;
+import org.gdms.data.types.Type;
+import org.gdms.data.types.TypeFactory;
+import org.gdms.data.values.Value;
+import org.gdms.data.values.ValueFactory;
+import org.gdms.driver.DataSet;
+import org.gdms.driver.DiskBufferDriver;
+import org.gdms.driver.DriverException;
 
 /**
  *
@@ -208,4 +222,214 @@ public class TestSoundPropagationIn3D extends TestCase {
 
            
            }
+
+    private FastObstructionTest makeTwoBuildings() throws LayerDelaunayError {
+        GeometryFactory factory = new GeometryFactory();
+        Coordinate[] building1Coords = { new Coordinate(15., 5.,0.),
+                new Coordinate(30., 5.,0.), new Coordinate(30., 30.,0.),
+                new Coordinate(15., 30.,0.), new Coordinate(15., 5.,0.) };
+        Coordinate[] building2Coords = { new Coordinate(40., 5.,0.),
+                new Coordinate(45., 5.,0.), new Coordinate(45., 30.,0.),
+                new Coordinate(40., 30.,0.), new Coordinate(40., 5.,0.) };
+        FastObstructionTest ft = new FastObstructionTest();
+        ft.addGeometry(factory.createPolygon(
+                factory.createLinearRing(building1Coords), null), 5.);
+        ft.addGeometry(factory.createPolygon(
+                factory.createLinearRing(building2Coords), null), 4.);
+        ft.finishPolygonFeeding(new Envelope(new Coordinate(0., 0.,0.), new Coordinate(60., 60.,0.)));
+        return ft;
+    }
+
+    /**
+     * The ray goes over the buildings lower than itself, the path over the
+     * higher buildings follows the edges of the roofs
+     */
+    public void testPathOverBuildings() throws LayerDelaunayError {
+        FastObstructionTest ft = makeTwoBuildings();
+        double[] pathData = new double[4];
+        // Over the two buildings
+        assertTrue(ft.getPath(new Coordinate(5, 15, 10), new Coordinate(48, 25, 10), pathData));
+        // The 2D test does not use the height
+        assertFalse(ft.isFreeField(new Coordinate(5, 15, 10), new Coordinate(48, 25, 10)));
+        // Over the first building only
+        assertTrue(ft.getPath(new Coordinate(10, 15, 6), new Coordinate(35, 15, 6), pathData));
+        // Under the roof of the first building, the path goes by its two edges
+        assertFalse(ft.getPath(new Coordinate(10, 15, 4.5), new Coordinate(35, 15, 4.5), pathData));
+        double pathLength = Math.hypot(5, 0.5) + 15 + Math.hypot(5, 0.5);
+        assertEquals(pathLength - 25, pathData[0], 1e-6);
+        assertEquals(15, pathData[1], 1e-6);
+        assertEquals(5, pathData[2], 1e-6);
+        assertEquals(pathLength, pathData[3], 1e-6);
+        // The low second building is under the path over the first one
+        assertFalse(ft.getPath(new Coordinate(10, 15, 4.5), new Coordinate(50, 15, 4.5), pathData));
+        assertEquals(Math.hypot(5, 0.5) + 15 + Math.hypot(20, 0.5), pathData[3], 1e-6);
+        // Same values with the former interface
+        Double[] lt = ft.getPath(new Coordinate(10, 15, 4.5), new Coordinate(35, 15, 4.5));
+        assertEquals(pathLength, lt[3], 1e-6);
+    }
+
+    private static DataSet makeTable(String[] fieldNames, Type[] fieldTypes,
+            List<Value[]> rows) throws DriverException {
+        File targetDir = new File("target");
+        DataSourceFactory dsf = new DataSourceFactory(new File(targetDir,
+                "sources").getAbsolutePath(), targetDir.getAbsolutePath());
+        Metadata metadata = new DefaultMetadata(fieldTypes, fieldNames);
+        DiskBufferDriver driver = new DiskBufferDriver(dsf, metadata);
+        for (Value[] row : rows) {
+            driver.addValues(row);
+        }
+        driver.writingFinished();
+        driver.open();
+        return driver.getTable("main");
+    }
+
+    /**
+     * Load a building of 3 m between a source and a receiver on the ground
+     * as BR_TriGrid does, from the buildings table.
+     * @param withHeight The buildings table has the height field
+     * @param sharedMesh Build the mesh of the whole area instead of the mesh
+     * of the cell
+     * @return Sound level at the receiver
+     */
+    private static double computeLowBuildingLevel(boolean withHeight,
+            boolean sharedMesh, boolean verticalDiffraction)
+            throws DriverException, LayerDelaunayError {
+        GeometryFactory factory = new GeometryFactory();
+        Coordinate[] buildingCoords = { new Coordinate(15., 5.),
+                new Coordinate(30., 5.), new Coordinate(30., 30.),
+                new Coordinate(15., 30.), new Coordinate(15., 5.) };
+        Polygon building = factory.createPolygon(
+                factory.createLinearRing(buildingCoords), null);
+        List<Value[]> buildingRows = new ArrayList<Value[]>();
+        DataSet buildings;
+        if (withHeight) {
+            buildingRows.add(new Value[] { ValueFactory.createValue(building),
+                    ValueFactory.createValue(3.) });
+            buildings = makeTable(new String[] { "the_geom",
+                    BR_TriGrid.HEIGHT_FIELD }, new Type[] {
+                    TypeFactory.createType(Type.GEOMETRY),
+                    TypeFactory.createType(Type.DOUBLE) }, buildingRows);
+        } else {
+            buildingRows.add(new Value[] { ValueFactory.createValue(building) });
+            buildings = makeTable(new String[] { "the_geom" },
+                    new Type[] { TypeFactory.createType(Type.GEOMETRY) },
+                    buildingRows);
+        }
+        List<Value[]> sourceRows = new ArrayList<Value[]>();
+        sourceRows.add(new Value[] {
+                ValueFactory.createValue(factory.createPoint(new Coordinate(40, 15))),
+                ValueFactory.createValue(100.) });
+        DataSet sources = makeTable(new String[] { "the_geom", "db_m" },
+                new Type[] { TypeFactory.createType(Type.GEOMETRY),
+                TypeFactory.createType(Type.DOUBLE) }, sourceRows);
+        TableSpatialIndex buildingsTable = new TableSpatialIndex(buildings, 0);
+        TableSpatialIndex sourcesTable = new TableSpatialIndex(sources, 0);
+        int heightFieldIndex = BR_TriGrid.getHeightFieldIndex(buildings);
+        assertEquals(withHeight ? 1 : -1, heightFieldIndex);
+
+        Envelope cellEnvelope = new Envelope(new Coordinate(-170., -170.),
+                new Coordinate(170, 170));
+        List<Integer> dbFieldIds = new ArrayList<Integer>();
+        dbFieldIds.add(1);
+        List<Integer> freqLvl = new ArrayList<Integer>();
+        freqLvl.add(125);
+        CellInput cellInput = new CellInput(cellEnvelope, sourcesTable,
+                dbFieldIds);
+        if (sharedMesh) {
+            cellInput.setSharedFreeFieldFinder(BR_TriGrid.makeFreeFieldFinder(
+                    buildingsTable, heightFieldIndex, cellEnvelope, false,
+                    null, null));
+        }
+        cellInput.setBuildings(buildingsTable, heightFieldIndex, false, null,
+                null);
+        cellInput.load();
+        PropagationProcessData propData = new PropagationProcessData(
+                new ArrayList<Coordinate>(), null, new ArrayList<Triangle>(),
+                cellInput.getFreeFieldFinder(), cellInput.getSourcesIndex(),
+                cellInput.getSourceGeometries(), cellInput.getWjSources(),
+                freqLvl, 0, 0, 80., 50., 1., 0., 0, null, null);
+        propData.verticalDiffraction = verticalDiffraction;
+        PropagationProcess propManager = new PropagationProcess(propData,
+                new PropagationProcessOut(null, null));
+        propManager.initStructures();
+        double energeticSum[] = { 0. };
+        propManager.computeSoundLevelAtPosition(new Coordinate(5, 15),
+                energeticSum);
+        return PropagationProcess.wToDba(energeticSum[0]);
+    }
+
+    /**
+     * The height of the buildings is read from the buildings table, the
+     * sound goes over the low building only with the vertical diffraction
+     */
+    public void testLowBuildingFromTable() throws DriverException,
+            LayerDelaunayError {
+        for (boolean sharedMesh : new boolean[] { false, true }) {
+            double overRoofLevel = computeLowBuildingLevel(true, sharedMesh, true);
+            double hiddenLevel = computeLowBuildingLevel(true, sharedMesh, false);
+            assertFalse(Double.isInfinite(overRoofLevel));
+            assertTrue(overRoofLevel + " <= " + hiddenLevel,
+                    overRoofLevel > hiddenLevel);
+        }
+    }
+
+    /**
+     * Without the height field the building is higher than any ray, the
+     * vertical diffraction does not change the level
+     */
+    public void testBuildingsTableWithoutHeight() throws DriverException,
+            LayerDelaunayError {
+        for (boolean sharedMesh : new boolean[] { false, true }) {
+            assertEquals(computeLowBuildingLevel(false, sharedMesh, false),
+                    computeLowBuildingLevel(false, sharedMesh, true), 1e-6);
+        }
+    }
+
+    public void testBenchmarkPathOverBuildings() throws Exception {
+        System.out.println("________________________________________________");
+        System.out.println("Path over buildings Bench :");
+        final FastObstructionTest ft = makeTwoBuildings();
+        Random random = new Random(42);
+        final int rayCount = 200000;
+        final Coordinate[] from = new Coordinate[rayCount];
+        final Coordinate[] to = new Coordinate[rayCount];
+        for (int i = 0; i < rayCount; i++) {
+            from[i] = new Coordinate(random.nextDouble() * 60, 31 + random.nextDouble() * 29, 4.5);
+            to[i] = new Coordinate(random.nextDouble() * 60, random.nextDouble() * 60, 4.5);
+        }
+        final double[] pathData = new double[4];
+        BenchRun freeFieldRun = new BenchRun() {
+            @Override
+            protected void run() {
+                result = 0;
+                for (int i = 0; i < rayCount; i++) {
+                    if (ft.isFreeField(from[i], to[i])) {
+                        result++;
+                    }
+                }
+            }
+        };
+        BenchRun pathRun = new BenchRun() {
+            @Override
+            protected void run() {
+                result = 0;
+                for (int i = 0; i < rayCount; i++) {
+                    if (ft.getPath(from[i], to[i], pathData)) {
+                        result++;
+                    }
+                }
+            }
+        };
+        long freeFieldTime = freeFieldRun.time();
+        long pathTime = pathRun.time();
+        // The height-aware test only finds more free rays
+        assertTrue(pathRun.getResult() >= freeFieldRun.getResult());
+        double ratio = (double) pathTime / freeFieldTime;
+        System.out.println("isFreeField " + freeFieldTime / 1e6 + " ms, getPath "
+                + pathTime / 1e6 + " ms, ratio " + ratio);
+        // Loose bound, only a path walking far more triangles than the 2D
+        // test would exceed it
+        assertTrue("getPath is " + ratio + " times slower than isFreeField",
+                ratio < 50);
+    }
 }
\ No newline at end of file
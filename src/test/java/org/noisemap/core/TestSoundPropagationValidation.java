@@ -43,6 +43,7 @@ import com.vividsolutions.jts.geom.Polygon;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.TimeUnit;
 
 
 import junit.framework.TestCase;
@@ -163,9 +164,250 @@ public class TestSoundPropagationValidation extends TestCase {
 		splCompare(dbaSingleSource, "Scene 1 R3_S2",dbaDupp);
 
 		System.out.println("Simulation done in "+(System.currentTimeMillis()-startSimulation)+"ms");
-		System.out.println(manager.getNbObstructionTest()+" obstruction test has been done..");
+		System.out.println(propDataOut.getNb_obstr_test()+" obstruction test has been done..");
 		System.out.println("testScene1 done in "+(System.currentTimeMillis()-startMakeScene)+"ms");
 	}
+	/**
+	 * Build the scene of testScene1, the building and the point source.
+	 * @param sourcesIndex Empty index of sources
+	 * @throws LayerDelaunayError
+	 */
+	private static PropagationProcessData makeScene1Data(QueryGeometryStructure sourcesIndex, int reflexionOrder, int diffractionOrder) throws LayerDelaunayError {
+		GeometryFactory factory = new GeometryFactory();
+		List<Geometry> srclst=new ArrayList<Geometry>();
+		srclst.add(factory.createPoint(new Coordinate(40,15,0)));
+		List<ArrayList<Double>> srcSpectrum=new ArrayList<ArrayList<Double>>();
+		srcSpectrum.add(new ArrayList<Double>());
+		srcSpectrum.get(0).add(PropagationProcess.dbaToW(100.)); // 100 dB(A) @ 125 Hz
+		return makeScene1Data(sourcesIndex, srclst, srcSpectrum, reflexionOrder, diffractionOrder);
+	}
+	/**
+	 * Build the building of testScene1 with the provided sources.
+	 * @param sourcesIndex Empty index of sources
+	 * @param srclst Sources geometries
+	 * @param srcSpectrum Sound level of sources @ 125 Hz
+	 * @throws LayerDelaunayError
+	 */
+	private static PropagationProcessData makeScene1Data(QueryGeometryStructure sourcesIndex, List<Geometry> srclst, List<ArrayList<Double>> srcSpectrum, int reflexionOrder, int diffractionOrder) throws LayerDelaunayError {
+		GeometryFactory factory = new GeometryFactory();
+		Coordinate[] building1Coords = { new Coordinate(15., 5.,0.),
+				new Coordinate(30., 5.,0.), new Coordinate(30., 30.,0.),
+				new Coordinate(15., 30.,0.), new Coordinate(15., 5.,0.) };
+		Polygon building1 = factory.createPolygon(
+				factory.createLinearRing(building1Coords), null);
+		Envelope cellEnvelope=new Envelope(new Coordinate(-170., -170.,0.),new Coordinate(170, 170,0.));
+		List<Integer> freqLvl=new ArrayList<Integer>();
+		freqLvl.add(125);
+		for(int idsrc=0;idsrc<srclst.size();idsrc++) {
+			sourcesIndex.appendGeometry(srclst.get(idsrc), idsrc);
+		}
+		FastObstructionTest manager = new FastObstructionTest();
+		manager.addGeometry(building1);
+		manager.finishPolygonFeeding(cellEnvelope);
+		return new PropagationProcessData(manager.getVertices(),null, manager.getTriangles(), manager, sourcesIndex, srclst, srcSpectrum, freqLvl, reflexionOrder, diffractionOrder, 80.,50., 1., 0., 0, null, null);
+	}
+	/**
+	 * Raise the orders of reflection and diffraction after initStructures,
+	 * the structures needed by the new orders must be built on demand.
+	 * @throws LayerDelaunayError
+	 */
+	public void testRaiseOrdersAfterInit() throws LayerDelaunayError {
+		Envelope cellEnvelope=new Envelope(new Coordinate(-170., -170.,0.),new Coordinate(170, 170,0.));
+		PropagationProcessData propData=makeScene1Data(new QueryGridIndex(cellEnvelope, 8, 8), 0, 0);
+		PropagationProcess propManager=new PropagationProcess(propData, new PropagationProcessOut(new Stack<PropagationResultTriRecord>(),null));
+		propManager.initStructures();
+		propData.diffractionOrder=1;
+		splCompare(splCompute(propManager, new Coordinate(15,40,0)), "Raised order R4_S1", 46.81);
+		propData.diffractionOrder=2;
+		splCompare(splCompute(propManager, new Coordinate(5,15,0)), "Raised order R1_S1", 34.97);
+	}
+	/**
+	 * Build the scene of testMergeSources, three buildings and two line
+	 * sources at the same position.
+	 * @param sourcesIndex Empty index of sources
+	 * @throws LayerDelaunayError
+	 */
+	private static PropagationProcessData makeScene2Data(QueryGeometryStructure sourcesIndex, int reflexionOrder, int diffractionOrder) throws LayerDelaunayError {
+		GeometryFactory factory = new GeometryFactory();
+		Coordinate[] building1Coords = { new Coordinate(6., 2.,0.),
+                new Coordinate(18., 2.,0.),new Coordinate(18., 6.,0.),
+                new Coordinate(6., 6.,0.),new Coordinate(6., 2.,0.)};
+		Coordinate[] building2Coords = { new Coordinate(24., 2.,0.),
+                new Coordinate(28., 2.,0.),new Coordinate(28., 6.,0.),
+                new Coordinate(24., 6.,0.),new Coordinate(24., 2.,0.)};
+		Coordinate[] building3Coords = { new Coordinate(6., 10.,0.),
+                new Coordinate(24., 10.,0.),new Coordinate(24.,18.,0.),
+                new Coordinate(6., 18.,0.),new Coordinate(6., 10.,0.)};
+		List<Geometry> srclst=new ArrayList<Geometry>();
+		Coordinate[] way1={new Coordinate(2,8,0),new Coordinate(24,8,0),new Coordinate(30,14,0)};
+		LineString road1=factory.createLineString(way1);
+		srclst.add(road1);
+		srclst.add(road1);
+		Envelope cellEnvelope=new Envelope(new Coordinate(-500., -500.,0.),new Coordinate(500, 500,0.));
+		List<ArrayList<Double>> srcSpectrum=new ArrayList<ArrayList<Double>>();
+		srcSpectrum.add(new ArrayList<Double>());
+		srcSpectrum.add(new ArrayList<Double>());
+		srcSpectrum.get(0).add(PropagationProcess.dbaToW(100.)); // 100 dB(A) @ 125 Hz
+		srcSpectrum.get(1).add(PropagationProcess.dbaToW(100.)); // 100 dB(A) @ 125 Hz
+		List<Integer> freqLvl=new ArrayList<Integer>();
+		freqLvl.add(125);
+		for(int idsrc=0;idsrc<srclst.size();idsrc++) {
+			sourcesIndex.appendGeometry(srclst.get(idsrc), idsrc);
+		}
+		FastObstructionTest manager = new FastObstructionTest();
+		manager.addGeometry(factory.createPolygon(factory.createLinearRing(building1Coords), null));
+		manager.addGeometry(factory.createPolygon(factory.createLinearRing(building2Coords), null));
+		manager.addGeometry(factory.createPolygon(factory.createLinearRing(building3Coords), null));
+		manager.finishPolygonFeeding(cellEnvelope);
+		return new PropagationProcessData(manager.getVertices(),null, manager.getTriangles(), manager, sourcesIndex, srclst, srcSpectrum, freqLvl, reflexionOrder, diffractionOrder, 80.,50., 1., 0., 0, null, null);
+	}
+	/**
+	 * Compute the receivers with the distance ordered source loop
+	 * (QueryPackedRTree) and with the range query loop (QueryGridIndex), for
+	 * each couple of reflection and diffraction orders.
+	 */
+	private void compareSourceLoops(PropagationProcessData gridData, PropagationProcessData rtreeData, Coordinate[] receivers, int[][] orders, String sceneName) {
+		PropagationProcess gridManager=new PropagationProcess(gridData, new PropagationProcessOut(new Stack<PropagationResultTriRecord>(),null));
+		gridManager.initStructures();
+		PropagationProcess rtreeManager=new PropagationProcess(rtreeData, new PropagationProcessOut(new Stack<PropagationResultTriRecord>(),null));
+		rtreeManager.initStructures();
+		for(int[] order : orders) {
+			gridData.reflexionOrder=order[0];
+			gridData.diffractionOrder=order[1];
+			rtreeData.reflexionOrder=order[0];
+			rtreeData.diffractionOrder=order[1];
+			for(Coordinate receiver : receivers) {
+				String testName=sceneName+" R"+order[0]+"D"+order[1]+" "+receiver;
+				splCompare(splCompute(rtreeManager, receiver), testName, splCompute(gridManager, receiver));
+			}
+		}
+	}
+	/**
+	 * The distance ordered source loop must give the levels of the range
+	 * query loop.
+	 * @throws LayerDelaunayError
+	 */
+	public void testDistanceOrderedSources() throws LayerDelaunayError {
+		int[][] orders={{0,0},{1,0},{0,1},{0,2},{1,2}};
+		// Scene 1, a point source
+		Envelope scene1Envelope=new Envelope(new Coordinate(-170., -170.,0.),new Coordinate(170, 170,0.));
+		Coordinate[] scene1Receivers={new Coordinate(15,40,0),new Coordinate(5,15,0),
+			new Coordinate(40,20,0),new Coordinate(40,25,0),new Coordinate(35,15,0),
+			new Coordinate(40,30,0),new Coordinate(20,20,0)};
+		compareSourceLoops(makeScene1Data(new QueryGridIndex(scene1Envelope, 8, 8), 0, 0),
+				makeScene1Data(new QueryPackedRTree(), 0, 0), scene1Receivers, orders, "Scene 1");
+		// Scene 2, two line sources merged at the same position
+		Envelope scene2Envelope=new Envelope(new Coordinate(-500., -500.,0.),new Coordinate(500, 500,0.));
+		Coordinate[] scene2Receivers={new Coordinate(20,4,0),new Coordinate(26,4,0),
+			new Coordinate(12,7,0),new Coordinate(15,8.5,0),new Coordinate(2,20,0),
+			new Coordinate(30,20,0),new Coordinate(40,30,0)};
+		int[][] scene2Orders={{3,0},{2,1},{0,2},{1,2}};
+		compareSourceLoops(makeScene2Data(new QueryGridIndex(scene2Envelope, 8, 8), 0, 0),
+				makeScene2Data(new QueryPackedRTree(), 0, 0), scene2Receivers, scene2Orders, "Scene 2");
+		// Scene 1 with a loud source near the receivers and a grid of faint
+		// sources, the search of farthest sources stops early
+		GeometryFactory factory = new GeometryFactory();
+		List<Geometry> srclst=new ArrayList<Geometry>();
+		List<ArrayList<Double>> srcSpectrum=new ArrayList<ArrayList<Double>>();
+		srclst.add(factory.createPoint(new Coordinate(40,15,0)));
+		srcSpectrum.add(new ArrayList<Double>());
+		srcSpectrum.get(0).add(PropagationProcess.dbaToW(100.));
+		for(int x=-160;x<=160;x+=20) {
+			for(int y=-160;y<=160;y+=20) {
+				srclst.add(factory.createPoint(new Coordinate(x+0.5,y+0.5,0)));
+				ArrayList<Double> spectrum=new ArrayList<Double>();
+				spectrum.add(PropagationProcess.dbaToW(60.));
+				srcSpectrum.add(spectrum);
+			}
+		}
+		Coordinate[] scene3Receivers={new Coordinate(40,20,0),new Coordinate(35,15,0),
+			new Coordinate(45,10,0),new Coordinate(5,15,0),new Coordinate(-100,-100,0)};
+		int[][] scene3Orders={{0,0},{1,1}};
+		compareSourceLoops(makeScene1Data(new QueryGridIndex(scene1Envelope, 8, 8), srclst, srcSpectrum, 0, 0),
+				makeScene1Data(new QueryPackedRTree(), srclst, srcSpectrum, 0, 0), scene3Receivers, scene3Orders, "Scene 3");
+	}
+	/**
+	 * The quadtree merge of source points must give the levels of the hash
+	 * grid merge.
+	 * @throws LayerDelaunayError
+	 */
+	public void testQuadtreeSourcesMerge() throws LayerDelaunayError {
+		PropagationProcessData gridData=makeScene2Data(new QueryPackedRTree(), 2, 1);
+		PropagationProcess gridManager=new PropagationProcess(gridData, new PropagationProcessOut(new Stack<PropagationResultTriRecord>(),null));
+		gridManager.initStructures();
+		PropagationProcessData quadtreeData=makeScene2Data(new QueryPackedRTree(), 2, 1);
+		quadtreeData.quadtreeSourcesMerge=true;
+		PropagationProcess quadtreeManager=new PropagationProcess(quadtreeData, new PropagationProcessOut(new Stack<PropagationResultTriRecord>(),null));
+		quadtreeManager.initStructures();
+		Coordinate[] receivers={new Coordinate(20,4,0),new Coordinate(12,7,0),
+			new Coordinate(2,20,0),new Coordinate(30,20,0),new Coordinate(40,30,0)};
+		for(Coordinate receiver : receivers) {
+			splCompare(splCompute(quadtreeManager, receiver), "Quadtree merge "+receiver, splCompute(gridManager, receiver));
+		}
+	}
+	/**
+	 * Compute the scene 2 on a grid of receivers, with the receivers of the
+	 * cell computed by helper threads or by the calling thread only.
+	 * @param helperCount Count of helper threads, 0 to compute in the calling thread
+	 * @param receiversLevel Computed sound level of receivers
+	 * @return Counters of the propagation
+	 */
+	private static PropagationProcessOut computeReceiverGrid(int helperCount, double[] receiversLevel) throws LayerDelaunayError {
+		PropagationProcessData propData=makeScene2Data(new QueryPackedRTree(), 2, 2);
+		List<Coordinate> receivers=new ArrayList<Coordinate>();
+		List<Long> receiverRowId=new ArrayList<Long>();
+		for(int i=0;i<20;i++) {
+			for(int j=0;j<20;j++) {
+				receiverRowId.add((long) receivers.size());
+				receivers.add(new Coordinate(-10+i*3.1,-10+j*3.1,0));
+			}
+		}
+		propData.vertices=receivers;
+		propData.receiverRowId=receiverRowId;
+		propData.triangles=null;
+		Stack<PropagationResultPtRecord> ptStack=new Stack<PropagationResultPtRecord>();
+		PropagationProcessOut propDataOut=new PropagationProcessOut(null,ptStack);
+		PropagationProcess propManager=new PropagationProcess(propData, propDataOut);
+		ThreadPool receiverExecutor=null;
+		if(helperCount>0) {
+			receiverExecutor=new ThreadPool(helperCount, helperCount, Long.MAX_VALUE, TimeUnit.SECONDS);
+		}
+		propManager.setReceiverExecutor(receiverExecutor, helperCount);
+		try {
+			propManager.run();
+		} finally {
+			if(receiverExecutor!=null) {
+				receiverExecutor.shutdown();
+			}
+		}
+		assertEquals(receivers.size(), ptStack.size());
+		for(PropagationResultPtRecord record : ptStack) {
+			receiversLevel[(int) record.getReceiverRecordRow()]=record.getReceiverLvl();
+		}
+		return propDataOut;
+	}
+	/**
+	 * The receivers computed by helper threads must have the level and the
+	 * counters of the receivers computed by a single thread.
+	 * @throws LayerDelaunayError
+	 */
+	public void testReceiverHelpers() throws LayerDelaunayError {
+		double[] singleThreadLevel=new double[400];
+		PropagationProcessOut singleThreadOut=computeReceiverGrid(0, singleThreadLevel);
+		double[] helpersLevel=new double[400];
+		PropagationProcessOut helpersOut=computeReceiverGrid(3, helpersLevel);
+		for(int idReceiver=0;idReceiver<singleThreadLevel.length;idReceiver++) {
+			assertEquals(singleThreadLevel[idReceiver], helpersLevel[idReceiver], singleThreadLevel[idReceiver]*1e-9);
+		}
+		assertEquals(singleThreadOut.getNb_couple_receiver_src(), helpersOut.getNb_couple_receiver_src());
+		assertEquals(singleThreadOut.getNb_obstr_test(), helpersOut.getNb_obstr_test());
+		assertEquals(singleThreadOut.getNb_image_receiver(), helpersOut.getNb_image_receiver());
+		assertEquals(singleThreadOut.getNb_pruned_image_receiver(), helpersOut.getNb_pruned_image_receiver());
+		assertEquals(singleThreadOut.getNb_pruned_reflexion_path(), helpersOut.getNb_pruned_reflexion_path());
+		assertEquals(singleThreadOut.getNb_reflexion_path(), helpersOut.getNb_reflexion_path());
+		assertEquals(singleThreadOut.getNb_diffraction_path(), helpersOut.getNb_diffraction_path());
+		assertEquals(1, helpersOut.getCellComputed());
+	}
 	/**
 	 * Build a scene with two line source at the same position
 	 * @throws LayerDelaunayError
@@ -263,9 +505,11 @@ public class TestSoundPropagationValidation extends TestCase {
 
 
 		System.out.println("Simulation done in "+(System.currentTimeMillis()-startSimulation)+"ms");
-		System.out.println(manager.getNbObstructionTest()+" obstruction test has been done..");
+		System.out.println(propDataOut.getNb_obstr_test()+" obstruction test has been done..");
 		System.out.println(propDataOut.getNb_couple_receiver_src()+" point source created..");
 		System.out.println(propDataOut.getNb_image_receiver()+" receiver image found..");
+		System.out.println(propDataOut.getNb_pruned_image_receiver()+" receiver image discarded..");
+		System.out.println(propDataOut.getNb_pruned_reflexion_path()+" reflection path skipped..");
 		System.out.println(propDataOut.getNb_reflexion_path()+" reflection path found..");
 		splCompare(dbaRef, "Scene 2 (20,4)",91.916);
 		System.out.println("testScene1 done in "+(System.currentTimeMillis()-startMakeScene)+"ms");
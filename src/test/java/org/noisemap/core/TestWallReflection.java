@@ -33,8 +33,17 @@
  */
 package org.noisemap.core;
 
+import com.vividsolutions.jts.algorithm.CGAlgorithms;
+import com.vividsolutions.jts.algorithm.NonRobustLineIntersector;
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineSegment;
+import com.vividsolutions.jts.geom.Polygon;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
@@ -95,4 +104,188 @@ public class TestWallReflection extends TestCase {
 		assertFalse(PropagationProcess.wallWallTest(b30, b23));
 		
 	}
+
+	/**
+	 * The face to face walls stored by ReflectionWalls must be the walls
+	 * accepted by wallWallTest
+	 */
+	public void testReflectionWalls() {
+		Coordinate[] building = new Coordinate[] { new Coordinate(0, 9),
+				new Coordinate(4, 9), new Coordinate(4, 4), new Coordinate(0, 4),
+				new Coordinate(7, 5), new Coordinate(11, 5), new Coordinate(9, 0),
+				new Coordinate(5, 0) };
+		List<LineSegment> walls = new ArrayList<LineSegment>();
+		for (int idBuilding = 0; idBuilding < 2; idBuilding++) {
+			for (int idVertex = 0; idVertex < 4; idVertex++) {
+				walls.add(new LineSegment(building[idBuilding * 4 + idVertex],
+						building[idBuilding * 4 + (idVertex + 1) % 4]));
+			}
+		}
+		walls.add(new LineSegment(new Coordinate(0, -2), new Coordinate(12, -2)));
+		walls.add(new LineSegment(new Coordinate(12, -2), new Coordinate(16, 3)));
+		ReflectionWalls reflectionWalls = new ReflectionWalls(walls, 100);
+		for (int idWall = 0; idWall < walls.size(); idWall++) {
+			List<Integer> faceWalls = new ArrayList<Integer>();
+			for (int cursor = reflectionWalls.getFaceWallsBegin(idWall); cursor < reflectionWalls
+					.getFaceWallsEnd(idWall); cursor++) {
+				faceWalls.add(reflectionWalls.getFaceWall(cursor));
+			}
+			for (int idOther = 0; idOther < walls.size(); idOther++) {
+				assertEquals(idOther != idWall
+						&& PropagationProcess.wallWallTest(walls.get(idWall),
+								walls.get(idOther)), faceWalls.contains(idOther));
+			}
+		}
+		// Walls too far are not linked
+		reflectionWalls = new ReflectionWalls(walls, 1);
+		assertEquals(reflectionWalls.getFaceWallsBegin(0),
+				reflectionWalls.getFaceWallsEnd(0));
+	}
+
+	/**
+	 * The orientation test without allocation must give the answers of
+	 * CGAlgorithms.isCCW, degenerate triangles included
+	 */
+	public void testTriangleOrientation() {
+		Random random = new Random(42);
+		for (int i = 0; i < 10000; i++) {
+			// Small integer coordinates to get collinear and equal points
+			Coordinate a = new Coordinate(random.nextInt(4), random.nextInt(4));
+			Coordinate b = new Coordinate(random.nextInt(4), random.nextInt(4));
+			Coordinate c = new Coordinate(random.nextInt(4), random.nextInt(4));
+			assertEquals(CGAlgorithms.isCCW(new Coordinate[] { a, b, c, a }),
+					PropagationProcess.isTriangleCCW(a, b, c));
+		}
+	}
+
+	/**
+	 * Reflection point of the path between an image and the source
+	 */
+	public void testReflectionPoint() {
+		LineSegment wall = new LineSegment(new Coordinate(0, 0),
+				new Coordinate(10, 0));
+		Coordinate image = new Coordinate(5, -5);
+		Coordinate source = new Coordinate(2, 5);
+		Coordinate reflectionPt = new Coordinate();
+		NonRobustLineIntersector linters = new NonRobustLineIntersector();
+		assertTrue(PropagationProcess.computeReflectionPoint(linters, wall,
+				image, source, reflectionPt));
+		// Intersection at (3.5,0) moved by 1 cm toward the source
+		assertEquals(3.5 - 0.01 * 1.5 / Math.sqrt(1.5 * 1.5 + 25),
+				reflectionPt.x, 1e-9);
+		assertEquals(0.01 * 5 / Math.sqrt(1.5 * 1.5 + 25), reflectionPt.y,
+				1e-9);
+		// The wall is not oriented to a source behind it
+		assertFalse(PropagationProcess.computeReflectionPoint(linters, wall,
+				source, image, reflectionPt));
+	}
+
+	private static Polygon makeBuilding(GeometryFactory factory, double minX,
+			double minY, double maxX, double maxY) {
+		return factory.createPolygon(factory.createLinearRing(new Coordinate[] {
+				new Coordinate(minX, minY), new Coordinate(maxX, minY),
+				new Coordinate(maxX, maxY), new Coordinate(minX, maxY),
+				new Coordinate(minX, minY) }), null);
+	}
+
+	private int validateAllPaths(PropagationProcess process,
+			PropagationProcess.ThreadContext context, Coordinate[] sources,
+			Coordinate receiver, List<MirrorReceiverResult> images,
+			List<LineSegment> walls) {
+		int validPathCount = 0;
+		for (Coordinate source : sources) {
+			for (int idImage = 0; idImage < images.size(); idImage++) {
+				if (process.validateReflectionPath(context, source, receiver,
+						images.get(idImage), images, walls) > 0) {
+					validPathCount++;
+				}
+			}
+		}
+		return validPathCount;
+	}
+
+	/**
+	 * The validation of the reflection paths of 2nd order images, obstruction
+	 * tests included, must not allocate anything
+	 */
+	public void testReflectionPathAllocation() throws Exception {
+		GeometryFactory factory = new GeometryFactory();
+		FastObstructionTest manager = new FastObstructionTest();
+		manager.addGeometry(makeBuilding(factory, 10, 10, 20, 20));
+		manager.addGeometry(makeBuilding(factory, 30, 5, 40, 25));
+		manager.addGeometry(makeBuilding(factory, 15, 35, 35, 40));
+		manager.finishPolygonFeeding(new Envelope(0, 50, 0, 50));
+		final Coordinate receiver = new Coordinate(25, 15);
+		final Coordinate[] sources = new Coordinate[] { new Coordinate(25, 2),
+				new Coordinate(25, 28), new Coordinate(5, 25),
+				new Coordinate(45, 45), new Coordinate(45, 2) };
+		// All the walls of the scene are within 100 m of the receiver
+		final List<LineSegment> walls = manager.getWalls();
+		final List<MirrorReceiverResult> images = PropagationProcess
+				.getMirroredReceiverResults(receiver, walls, 2, 100);
+		PropagationProcessData data = new PropagationProcessData(
+				new ArrayList<Coordinate>(), null, null, manager, null,
+				new ArrayList<Geometry>(), (double[]) null,
+				new ArrayList<Integer>(), 2, 0, 100., 100., 1., 0.2, 0, null,
+				null);
+		final PropagationProcess process = new PropagationProcess(data,
+				new PropagationProcessOut(null, null));
+		final PropagationProcess.ThreadContext context = new PropagationProcess.ThreadContext(
+				data);
+		int validPathCount = validateAllPaths(process, context, sources,
+				receiver, images, walls);
+		assertTrue(validPathCount > 0);
+		assertTrue(validPathCount < sources.length * images.size());
+
+		final int runCount = 2000;
+		long allocatedBytes = new BenchRun() {
+			@Override
+			protected void run() {
+				for (int i = 0; i < runCount; i++) {
+					validateAllPaths(process, context, sources, receiver,
+							images, walls);
+				}
+			}
+		}.allocatedBytes();
+		if (allocatedBytes >= 0) { // Not available on all VMs
+			assertEquals(0, allocatedBytes);
+		}
+	}
+
+	/**
+	 * The walls found from the superset of the receiver cluster must be the
+	 * walls within the distance of each receiver
+	 */
+	public void testWallsInRange() {
+		Random random = new Random(42);
+		List<LineSegment> walls = new ArrayList<LineSegment>();
+		for (int idWall = 0; idWall < 2000; idWall++) {
+			Coordinate p0 = new Coordinate(random.nextDouble() * 1000,
+					random.nextDouble() * 1000);
+			walls.add(new LineSegment(p0, new Coordinate(p0.x
+					+ random.nextDouble() * 40 - 20, p0.y
+					+ random.nextDouble() * 40 - 20)));
+		}
+		double maxDist = 50;
+		ReflectionWalls reflectionWalls = new ReflectionWalls(walls,
+				maxDist * 2);
+		WallRangeCache wallsInRange = new WallRangeCache();
+		// Receivers close to each other, as the vertices of a mesh
+		Coordinate receiver = new Coordinate(500, 500);
+		for (int i = 0; i < 1000; i++) {
+			receiver = new Coordinate(receiver.x + random.nextDouble() * 10
+					- 5, receiver.y + random.nextDouble() * 10 - 5);
+			reflectionWalls.getWallsInRange(receiver, maxDist, wallsInRange);
+			List<Integer> found = new ArrayList<Integer>();
+			for (int cursor = 0; cursor < wallsInRange.getWallCount(); cursor++) {
+				found.add(wallsInRange.getWall(cursor));
+			}
+			for (int idWall = 0; idWall < walls.size(); idWall++) {
+				assertEquals(walls.get(idWall).distance(receiver) <= maxDist,
+						found.contains(idWall));
+			}
+		}
+		assertTrue(wallsInRange.getSupersetReuseCount() > wallsInRange
+				.getSupersetQueryCount());
+	}
 }